@@ -0,0 +1,166 @@
+package kvstore.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Contention benchmarks of DataStorage, on the heap, off the heap and in the LSM tree, against LegacyDataStorage, the
+ * per-key lock implementation it replaced. Each benchmark runs the operations of the request handlers: GET reads one
+ * random key, PUT overwrites one random key, and the mixed benchmark does 90% GET and 10% PUT. The key space is either a
+ * few hot keys, which all threads contend on, or a large one.
+ *
+ * main() runs the benchmarks with 1 to 64 threads and prints the throughput of the implementations side by side.
+ * Pass thread counts as arguments to run only those.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataStorageContentionBenchmark {
+  private static final int[] DEFAULT_THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+  private static final int READ_PERCENTAGE = 90;
+
+  @Param({"DataStorage", "OffHeapDataStorage", "LsmDataStorage", "LegacyDataStorage"})
+  public String implementation;
+
+  @Param({"16", "65536"})
+  public int numKeys;
+
+  private DataStorage dataStorage;
+  private LegacyDataStorage legacyDataStorage;
+  private String[] keys;
+  // Directory of the LSM tree, or null for the other implementations
+  private Path lsmDir;
+
+  @Setup
+  public void setUp() throws IOException {
+    dataStorage = new DataStorage(createStorageEngine());
+    legacyDataStorage = new LegacyDataStorage();
+    keys = new String[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      keys[i] = "key" + i;
+      dataStorage.put(keys[i], "value" + i);
+      legacyDataStorage.put(keys[i], "value" + i);
+    }
+  }
+
+  private StorageEngine createStorageEngine() throws IOException {
+    switch (implementation) {
+      case "OffHeapDataStorage":
+        return new OffHeapStorageEngine(false);
+      case "LsmDataStorage":
+        lsmDir = Files.createTempDirectory("lsm-benchmark");
+        return new LsmStorageEngine(lsmDir);
+      default:
+        return new HeapStorageEngine();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (lsmDir == null) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(lsmDir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public String get() {
+    return read(randomKey());
+  }
+
+  @Benchmark
+  public void put() {
+    write(randomKey());
+  }
+
+  @Benchmark
+  public String readMostly() {
+    String key = randomKey();
+    if (ThreadLocalRandom.current().nextInt(100) < READ_PERCENTAGE) {
+      return read(key);
+    }
+    write(key);
+    return null;
+  }
+
+  private String randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(numKeys)];
+  }
+
+  // The GET handler, before and after the redesign
+  private String read(String key) {
+    if (!implementation.equals("LegacyDataStorage")) {
+      return dataStorage.get(key);
+    }
+    legacyDataStorage.blockingReadLock(key);
+    String value = legacyDataStorage.containsKey(key) ? legacyDataStorage.get(key) : null;
+    legacyDataStorage.readUnlock(key);
+    return value;
+  }
+
+  // Applying a decided PUT, before and after the redesign
+  private void write(String key) {
+    if (!implementation.equals("LegacyDataStorage")) {
+      dataStorage.put(key, key);
+    } else {
+      legacyDataStorage.put(key, key);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    int[] threadCounts = DEFAULT_THREAD_COUNTS;
+    if (args.length > 0) {
+      threadCounts = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        threadCounts[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    List<String> summary = new ArrayList<>();
+    for (int threads : threadCounts) {
+      OptionsBuilder options = new OptionsBuilder();
+      options.include(DataStorageContentionBenchmark.class.getSimpleName()).threads(threads);
+      for (RunResult result : new Runner(options.build()).run()) {
+        String benchmark = result.getParams().getBenchmark();
+        summary.add(String.format("%-8d %-12s %-8s %-18s %12.2f",
+                threads,
+                benchmark.substring(benchmark.lastIndexOf('.') + 1),
+                result.getParams().getParam("numKeys"),
+                result.getParams().getParam("implementation"),
+                result.getPrimaryResult().getScore()));
+      }
+    }
+
+    System.out.printf("%n%-8s %-12s %-8s %-18s %12s%n", "threads", "benchmark", "keys", "implementation", "ops/us");
+    summary.forEach(System.out::println);
+  }
+}
@@ -0,0 +1,38 @@
+package kvstore.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The DataStorage implementation before it became lock-free, kept as the baseline of the contention benchmarks: a plain
+ * HashMap guarded by a read-write lock per key, created on first use and never removed. GET requests took the read
+ * lock of the key. The lock logging is left out, so that only the data structure is measured.
+ *
+ * The HashMap is only safe here because the benchmarks never add or remove keys concurrently.
+ */
+class LegacyDataStorage {
+  private final Map<String, String> store = new HashMap<>();
+  private final ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+
+  void blockingReadLock(String key) {
+    locks.computeIfAbsent(key, k -> new ReentrantReadWriteLock()).readLock().lock();
+  }
+
+  void readUnlock(String key) {
+    locks.get(key).readLock().unlock();
+  }
+
+  void put(String key, String value) {
+    store.put(key, value);
+  }
+
+  String get(String key) {
+    return store.get(key);
+  }
+
+  boolean containsKey(String key) {
+    return store.containsKey(key);
+  }
+}
@@ -0,0 +1,218 @@
+package kvstore.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import kvstore.GetRequest;
+import kvstore.GetResponse;
+import kvstore.KeyValueStoreGrpc;
+import kvstore.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
+import kvstore.KeyValuePair;
+import kvstore.MultiPutRequest;
+import kvstore.client.AsyncRPCClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Load test of the reads while the writes are stuck in Paxos: the latency of GETs sent to the leader and to a follower
+ * while background writers keep hundreds of PUTs in flight on both. With writes "stalled", every prepare and accept
+ * handler fails (RandomException at 100%), so the PUTs hang in the Paxos retries until their deadline. The GET latency
+ * should stay close to the one with no writes at all, as the stalled writes don't hold the handler threads.
+ *
+ * Runs the handlers on the default executor of gRPC, on a small fixed pool that a blocking write path would use up, and
+ * on virtual threads. The virtual executor requires Java 21: on an older Java, its trials fail in setUp().
+ *
+ * On Java 21, a virtual thread that blocks inside a synchronized block pins its carrier thread. The in-process transport
+ * starts calls while holding a monitor, so with a single carrier, e.g. on 1 CPU, the first GET forwarded to the leader
+ * can pin the only carrier and wait for a lock held by a virtual thread that has none left to run on. The forked JVM
+ * runs with 4 carriers, so that the virtual trials measure the executor rather than deadlock.
+ *
+ * The first iterations after the servers start are twice as slow as the later ones, so the warmup is long enough to
+ * keep them out of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.virtualThreadScheduler.parallelism=4")
+public class ReadUnderWriteStallBenchmark {
+  private static final int FIRST_PORT = 4100;
+  private static final int NUM_REPLICAS = 3;
+  private static final int NUM_KEYS = 1024;
+  // Threads of the "fixed" executor, fewer than the PUTs in flight
+  private static final int FIXED_POOL_THREADS = 8;
+  // PUTs every background writer keeps in flight
+  private static final int WRITES_IN_FLIGHT = 256;
+  private static final int TIMEOUT_IN_MS = 30000;
+
+  @Param({"default", "fixed", "virtual"})
+  public String executor;
+
+  @Param({"none", "stalled"})
+  public String writes;
+
+  private Path dataDir;
+  private final List<Server> servers = new ArrayList<>();
+  private final List<ExecutorService> executors = new ArrayList<>();
+  private final List<Thread> writers = new ArrayList<>();
+  private volatile boolean writing;
+  private ManagedChannel leaderChannel;
+  private ManagedChannel followerChannel;
+  private KeyValueStoreBlockingStub leaderStub;
+  private KeyValueStoreBlockingStub followerStub;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    ServerLogger.setEnabled(false);
+    // No faults while the cluster starts, so that every trial starts from an elected leader.
+    RandomException.setExceptionRatio(0);
+    dataDir = Files.createTempDirectory("read-under-write-stall-benchmark");
+
+    List<Integer> allReplicaPorts = new ArrayList<>();
+    for (int i = 0; i < NUM_REPLICAS; i++) {
+      allReplicaPorts.add(FIRST_PORT + i);
+    }
+    for (int port : allReplicaPorts) {
+      Path replicaDir = dataDir.resolve("replica-" + port);
+      DataStorage dataStorage = new DataStorage();
+      WriteAheadLog writeAheadLog = new WriteAheadLog(replicaDir);
+      ReplicatedLog replicatedLog = new ReplicatedLog(dataStorage, writeAheadLog);
+      Snapshotter snapshotter = new Snapshotter(replicaDir, dataStorage, replicatedLog, writeAheadLog);
+      KeyValueStoreImpl service = new KeyValueStoreImpl(port, allReplicaPorts, dataStorage, replicatedLog, snapshotter,
+              ReadUnderWriteStallBenchmark::openChannel);
+      InProcessServerBuilder builder = InProcessServerBuilder.forName(serverName(port)).addService(service);
+      ExecutorService handlerExecutor = createExecutor(executor);
+      if (handlerExecutor != null) {
+        executors.add(handlerExecutor);
+        builder.executor(handlerExecutor);
+      }
+      servers.add(builder.build().start());
+    }
+
+    leaderChannel = openChannel(FIRST_PORT);
+    followerChannel = openChannel(FIRST_PORT + 1);
+    leaderStub = KeyValueStoreGrpc.newBlockingStub(leaderChannel);
+    followerStub = KeyValueStoreGrpc.newBlockingStub(followerChannel);
+    // The first write elects the replica it is sent to. It also stores every key the GETs read.
+    MultiPutRequest.Builder requestBuilder = MultiPutRequest.newBuilder();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      requestBuilder.addPairs(KeyValuePair.newBuilder().setKey("key" + i).setValue("value" + i));
+    }
+    leaderStub.withDeadlineAfter(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS).multiPut(requestBuilder.build());
+    // Let the follower learn the leader, so that it forwards its writes and asks the leader for the read index.
+    followerStub.withDeadlineAfter(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS).multiPut(requestBuilder.build());
+
+    if (writes.equals("stalled")) {
+      RandomException.setExceptionRatio(1);
+      writing = true;
+      startWriter(leaderChannel);
+      startWriter(followerChannel);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, InterruptedException {
+    writing = false;
+    RandomException.setExceptionRatio(0);
+    for (Thread writer : writers) {
+      writer.interrupt();
+      writer.join();
+    }
+    leaderChannel.shutdownNow();
+    followerChannel.shutdownNow();
+    for (Server server : servers) {
+      server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    for (ExecutorService handlerExecutor : executors) {
+      handlerExecutor.shutdownNow();
+    }
+    try (Stream<Path> files = Files.walk(dataDir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  // GETs served by the leader from its read lease
+  @Benchmark
+  @Threads(4)
+  public GetResponse getFromLeader() {
+    return get(leaderStub);
+  }
+
+  // GETs served by a follower once it applied the read index of the leader
+  @Benchmark
+  @Threads(4)
+  public GetResponse getFromFollower() {
+    return get(followerStub);
+  }
+
+  private static GetResponse get(KeyValueStoreBlockingStub stub) {
+    String key = "key" + ThreadLocalRandom.current().nextInt(NUM_KEYS);
+    GetRequest request = GetRequest.newBuilder().setKey(key).build();
+    try {
+      return stub.withDeadlineAfter(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS).get(request);
+    } catch (StatusRuntimeException e) {
+      return null;
+    }
+  }
+
+  // Keep WRITES_IN_FLIGHT PUTs in flight on the channel until the trial ends. Failed PUTs are replaced like the others.
+  private void startWriter(ManagedChannel channel) {
+    AsyncRPCClient client = new AsyncRPCClient(channel, WRITES_IN_FLIGHT);
+    Thread writer = new Thread(() -> {
+      while (writing && !Thread.currentThread().isInterrupted()) {
+        String key = "key" + ThreadLocalRandom.current().nextInt(NUM_KEYS);
+        client.put(key, key);
+      }
+    }, "background-writer");
+    writer.setDaemon(true);
+    writers.add(writer);
+    writer.start();
+  }
+
+  // Executor of the handlers of one replica, or null for the default executor of gRPC
+  private static ExecutorService createExecutor(String name) {
+    switch (name) {
+      case "fixed":
+        return Executors.newFixedThreadPool(FIXED_POOL_THREADS);
+      case "virtual":
+        return RPCServer.newVirtualThreadExecutor();
+      default:
+        return null;
+    }
+  }
+
+  private static String serverName(int port) {
+    return "read-under-write-stall-benchmark-" + port;
+  }
+
+  private static ManagedChannel openChannel(int port) {
+    return InProcessChannelBuilder.forName(serverName(port)).build();
+  }
+}
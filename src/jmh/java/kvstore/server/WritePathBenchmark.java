@@ -0,0 +1,174 @@
+package kvstore.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import kvstore.KeyValueStoreGrpc;
+import kvstore.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
+import kvstore.PutRequest;
+import kvstore.PutResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the whole write path: a PUT handled by KeyValueStoreImpl, batched by the WriteBatcher, replicated by
+ * the Proposer, logged to the write-ahead logs and applied by every replica. The replicas run in this JVM and talk over
+ * in-process gRPC channels, so the benchmark measures the server code rather than the network.
+ *
+ * Runs with 3 and 5 replicas, with the fault injection of RandomException on (the 20% of failed accept and decide
+ * handlers the servers run with) and off, and with the keys split into 1 or 4 shards, each replicated by its own Paxos
+ * group. PUTs are sent to the leader, and to a follower that forwards them. With several shards, the leader of every
+ * shard is elected by the first write of the shard, so "leader" is the replica that leads most shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WritePathBenchmark {
+  private static final int FIRST_PORT = 4000;
+  private static final int NUM_KEYS = 65536;
+  private static final double FAULT_INJECTION_RATIO = 0.2;
+  private static final int TIMEOUT_IN_MS = 30000;
+
+  @Param({"3", "5"})
+  public int numReplicas;
+
+  @Param({"false", "true"})
+  public boolean faultInjection;
+
+  @Param({"1", "4"})
+  public int numShards;
+
+  private Path dataDir;
+  private final List<Server> servers = new ArrayList<>();
+  // One channel per replica, shared by the shards like on a real server
+  private static final Map<Integer, ManagedChannel> CHANNELS = new ConcurrentHashMap<>();
+  private ManagedChannel leaderChannel;
+  private ManagedChannel followerChannel;
+  private KeyValueStoreBlockingStub leaderStub;
+  private KeyValueStoreBlockingStub followerStub;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    ServerLogger.setEnabled(false);
+    // No faults while the cluster starts, so that every trial starts from an elected leader.
+    RandomException.setExceptionRatio(0);
+    dataDir = Files.createTempDirectory("write-path-benchmark");
+
+    List<Integer> allReplicaPorts = new ArrayList<>();
+    for (int i = 0; i < numReplicas; i++) {
+      allReplicaPorts.add(FIRST_PORT + i);
+    }
+    for (int port : allReplicaPorts) {
+      List<KeyValueStoreImpl> shards = new ArrayList<>();
+      for (int shard = 0; shard < numShards; shard++) {
+        Path shardDir = dataDir.resolve("replica-" + port).resolve("shard-" + shard);
+        DataStorage dataStorage = new DataStorage();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(shardDir);
+        ReplicatedLog replicatedLog = new ReplicatedLog(dataStorage, writeAheadLog);
+        Snapshotter snapshotter = new Snapshotter(shardDir, dataStorage, replicatedLog, writeAheadLog);
+        shards.add(new KeyValueStoreImpl(shard, port, allReplicaPorts, dataStorage, replicatedLog, snapshotter,
+                WritePathBenchmark::sharedChannel));
+      }
+      servers.add(InProcessServerBuilder.forName(serverName(port)).addService(new ShardRouter(shards)).build().start());
+    }
+
+    leaderChannel = openChannel(FIRST_PORT);
+    followerChannel = openChannel(FIRST_PORT + 1);
+    leaderStub = KeyValueStoreGrpc.newBlockingStub(leaderChannel);
+    followerStub = KeyValueStoreGrpc.newBlockingStub(followerChannel);
+    // The first PUT of a shard elects the replica it is sent to.
+    for (int i = 0; i < 16 * numShards; i++) {
+      put(leaderStub);
+    }
+    put(followerStub);
+    RandomException.setExceptionRatio(faultInjection ? FAULT_INJECTION_RATIO : 0);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, InterruptedException {
+    leaderChannel.shutdownNow();
+    followerChannel.shutdownNow();
+    for (Server server : servers) {
+      server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    for (ManagedChannel channel : CHANNELS.values()) {
+      channel.shutdownNow();
+    }
+    CHANNELS.clear();
+    try (Stream<Path> files = Files.walk(dataDir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  // One PUT at a time through the leader: the latency of one Paxos round, with nothing to batch
+  @Benchmark
+  public PutResponse putToLeader() {
+    return put(leaderStub);
+  }
+
+  // Concurrent PUTs through the leader, which the WriteBatcher groups into shared proposals
+  @Benchmark
+  @Threads(16)
+  public PutResponse concurrentPutToLeader() {
+    return put(leaderStub);
+  }
+
+  // Concurrent PUTs through a follower, which forwards them to the leader
+  @Benchmark
+  @Threads(16)
+  public PutResponse concurrentPutToFollower() {
+    return put(followerStub);
+  }
+
+  private static PutResponse put(KeyValueStoreBlockingStub stub) {
+    String key = "key" + ThreadLocalRandom.current().nextInt(NUM_KEYS);
+    PutRequest request = PutRequest.newBuilder().setKey(key).setValue(key).build();
+    try {
+      return stub.withDeadlineAfter(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS).put(request);
+    } catch (StatusRuntimeException e) {
+      // A failed PUT counts as an operation too, as it would for a client. Failures only come from fault injection.
+      return null;
+    }
+  }
+
+  private static String serverName(int port) {
+    return "write-path-benchmark-" + port;
+  }
+
+  private static ManagedChannel openChannel(int port) {
+    return InProcessChannelBuilder.forName(serverName(port)).build();
+  }
+
+  private static ManagedChannel sharedChannel(int port) {
+    return CHANNELS.computeIfAbsent(port, WritePathBenchmark::openChannel);
+  }
+}
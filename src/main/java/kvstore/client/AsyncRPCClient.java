@@ -0,0 +1,151 @@
+package kvstore.client;
+
+import io.grpc.*;
+import io.grpc.stub.StreamObserver;
+import kvstore.*;
+import kvstore.KeyValueStoreGrpc.KeyValueStoreStub;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous client of the key-value store. Every method sends its request right away and returns a CompletableFuture
+ * of the response, so a single thread can keep many requests in flight on one shared channel. The futures fail with the
+ * StatusRuntimeException of the call if the server returns an error.
+ *
+ * At most maxInFlightRequests requests are in flight at a time: beyond that, the methods block the calling thread until
+ * a response arrives, which keeps a fast caller from queueing up requests without bound. The futures complete on the
+ * gRPC threads, so the stages depending on them shouldn't block.
+ */
+public class AsyncRPCClient implements AutoCloseable {
+  private static final int TIMEOUT = 5000;
+
+  private final ManagedChannel channel;
+  // Whether the channel was created by this client, and is shut down with it
+  private final boolean ownsChannel;
+  private final KeyValueStoreStub asyncStub;
+  private final int maxInFlightRequests;
+  private final Semaphore inFlightPermits;
+
+  // Constructor for initializing the client with a custom server IP and port, on a channel of its own.
+  public AsyncRPCClient(String serverIp, int serverPort, int maxInFlightRequests) {
+    this(Grpc.newChannelBuilder(serverIp + ":" + serverPort, InsecureChannelCredentials.create()).build(),
+            true, maxInFlightRequests);
+  }
+
+  // Constructor for initializing the client on a channel shared with other clients. The caller shuts the channel down.
+  public AsyncRPCClient(ManagedChannel channel, int maxInFlightRequests) {
+    this(channel, false, maxInFlightRequests);
+  }
+
+  private AsyncRPCClient(ManagedChannel channel, boolean ownsChannel, int maxInFlightRequests) {
+    if (maxInFlightRequests <= 0) {
+      throw new IllegalArgumentException("maxInFlightRequests must be positive: " + maxInFlightRequests);
+    }
+    this.channel = channel;
+    this.ownsChannel = ownsChannel;
+    this.asyncStub = KeyValueStoreGrpc.newStub(channel);
+    this.maxInFlightRequests = maxInFlightRequests;
+    this.inFlightPermits = new Semaphore(maxInFlightRequests);
+  }
+
+  // Method for making an asynchronous 'put' RPC call to the server.
+  public CompletableFuture<PutResponse> put(String key, String value) {
+    PutRequest request = PutRequest.newBuilder().setKey(key).setValue(value).build();
+    return call((stub, observer) -> stub.put(request, observer));
+  }
+
+  // Method for making an asynchronous 'get' RPC call to the server.
+  public CompletableFuture<GetResponse> get(String key) {
+    GetRequest request = GetRequest.newBuilder().setKey(key).build();
+    return call((stub, observer) -> stub.get(request, observer));
+  }
+
+  // Method for making an asynchronous 'delete' RPC call to the server.
+  public CompletableFuture<DeleteResponse> delete(String key) {
+    DeleteRequest request = DeleteRequest.newBuilder().setKey(key).build();
+    return call((stub, observer) -> stub.delete(request, observer));
+  }
+
+  // Method for making an asynchronous 'multiGet' RPC call to the server, for several keys at once.
+  public CompletableFuture<MultiGetResponse> multiGet(List<String> keys) {
+    MultiGetRequest request = MultiGetRequest.newBuilder().addAllKeys(keys).build();
+    return call((stub, observer) -> stub.multiGet(request, observer));
+  }
+
+  // Method for making an asynchronous 'multiPut' RPC call to the server, for several pairs at once.
+  public CompletableFuture<MultiPutResponse> multiPut(List<KeyValuePair> pairs) {
+    MultiPutRequest request = MultiPutRequest.newBuilder().addAllPairs(pairs).build();
+    return call((stub, observer) -> stub.multiPut(request, observer));
+  }
+
+  // Method for making an asynchronous 'multiDelete' RPC call to the server, for several keys at once.
+  public CompletableFuture<MultiDeleteResponse> multiDelete(List<String> keys) {
+    MultiDeleteRequest request = MultiDeleteRequest.newBuilder().addAllKeys(keys).build();
+    return call((stub, observer) -> stub.multiDelete(request, observer));
+  }
+
+  // Number of requests sent and not responded yet
+  public int inFlightRequests() {
+    return maxInFlightRequests - inFlightPermits.availablePermits();
+  }
+
+  // Shut down the channel if this client created it, waiting for the requests in flight to complete. If interrupted,
+  // stops waiting and keeps the interrupt status of the thread.
+  @Override
+  public void close() {
+    if (ownsChannel) {
+      try {
+        channel.shutdown().awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Send one unary call once a permit is available, and complete the returned future with its outcome. The permit is
+   * released before the future completes, so that the stages depending on it can send requests of their own.
+   */
+  private <T> CompletableFuture<T> call(BiConsumer<KeyValueStoreStub, StreamObserver<T>> method) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      inFlightPermits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.completeExceptionally(e);
+      return future;
+    }
+    StreamObserver<T> responseObserver = new StreamObserver<T>() {
+      private T response;
+
+      @Override
+      public void onNext(T response) {
+        this.response = response;
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        inFlightPermits.release();
+        future.completeExceptionally(t);
+      }
+
+      @Override
+      public void onCompleted() {
+        inFlightPermits.release();
+        future.complete(response);
+      }
+    };
+    try {
+      // The deadline is fixed when the stub is derived, so every call derives its own.
+      method.accept(asyncStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS), responseObserver);
+    } catch (RuntimeException e) {
+      inFlightPermits.release();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+}
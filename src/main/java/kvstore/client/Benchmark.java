@@ -0,0 +1,348 @@
+package kvstore.client;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import kvstore.KeyValuePair;
+import kvstore.ReplicaGroup;
+import kvstore.metrics.LatencyHistogram;
+import kvstore.partition.PartitionRing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YCSB-style load generator. Runs a mix of GET, PUT and DELETE requests from a number of threads against one server
+ * replica for a fixed duration, optionally at a target rate, and reports the throughput and the p50 / p99 / p999 latency
+ * of every operation type, both periodically and at the end.
+ *
+ * With a target rate, every thread sends on a fixed schedule, and the latency is measured from the time the request was
+ * due rather than the time it was sent. A stalled server then shows in the latencies of the requests that had to wait,
+ * instead of silently lowering the rate (the "coordinated omission" of closed-loop benchmarks).
+ *
+ * If the server has a partition map, the requests of every key go straight to a replica of its group, so the load
+ * spreads over all the groups. The map is read once at the start.
+ */
+public class Benchmark {
+  private static final int PRELOAD_BATCH_SIZE = 1000;
+  private static final String KEY_PREFIX = "key";
+  private static final char[] VALUE_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+  // Operation types of the mix
+  private enum Operation {
+    GET, PUT, DELETE
+  }
+
+  // Options of the benchmark, parsed from the ClientApp flags
+  public static class Options {
+    private int readPercent = 50;
+    private int writePercent = 50;
+    private int deletePercent = 0;
+    private long keySpace = 100_000;
+    private boolean zipfian = false;
+    private int valueSize = 100;
+    private int threads = 8;
+    private long targetOpsPerSecond = 0;
+    private int durationInSeconds = 60;
+    private int reportIntervalInSeconds = 10;
+    private boolean preload = false;
+
+    /**
+     * Parse one benchmark flag. Returns false if the flag isn't a benchmark flag. Throws IllegalArgumentException if
+     * its value is invalid.
+     */
+    public boolean parseFlag(String flag) {
+      int separator = flag.indexOf('=');
+      String name = separator < 0 ? flag : flag.substring(0, separator);
+      String value = separator < 0 ? "" : flag.substring(separator + 1);
+      switch (name) {
+        case "--mix":
+          String[] percents = value.split(":");
+          if (percents.length != 3) {
+            throw new IllegalArgumentException("--mix must be <read>:<write>:<delete>, e.g. 90:9:1");
+          }
+          readPercent = parseNonNegative(name, percents[0]);
+          writePercent = parseNonNegative(name, percents[1]);
+          deletePercent = parseNonNegative(name, percents[2]);
+          if (readPercent + writePercent + deletePercent != 100) {
+            throw new IllegalArgumentException("--mix percentages must add up to 100");
+          }
+          return true;
+        case "--keyspace":
+          keySpace = parsePositive(name, value);
+          return true;
+        case "--distribution":
+          if (!"uniform".equals(value) && !"zipfian".equals(value)) {
+            throw new IllegalArgumentException("--distribution must be uniform or zipfian");
+          }
+          zipfian = "zipfian".equals(value);
+          return true;
+        case "--value-size":
+          valueSize = (int) parsePositive(name, value);
+          return true;
+        case "--threads":
+          threads = (int) parsePositive(name, value);
+          return true;
+        case "--target-ops":
+          targetOpsPerSecond = parseNonNegative(name, value);
+          return true;
+        case "--duration":
+          durationInSeconds = (int) parsePositive(name, value);
+          return true;
+        case "--report-interval":
+          reportIntervalInSeconds = (int) parsePositive(name, value);
+          return true;
+        case "--preload":
+          preload = true;
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private static int parseNonNegative(String name, String value) {
+      try {
+        int parsed = Integer.parseInt(value);
+        if (parsed >= 0) {
+          return parsed;
+        }
+      } catch (NumberFormatException ignored) {
+      }
+      throw new IllegalArgumentException(name + " must be a non-negative integer: " + value);
+    }
+
+    private static long parsePositive(String name, String value) {
+      try {
+        long parsed = Long.parseLong(value);
+        if (parsed > 0) {
+          return parsed;
+        }
+      } catch (NumberFormatException ignored) {
+      }
+      throw new IllegalArgumentException(name + " must be a positive integer: " + value);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("mix %d:%d:%d (get:put:delete), %d keys (%s), %d-byte values, %d threads, %s, %d s",
+              readPercent, writePercent, deletePercent, keySpace, zipfian ? "zipfian" : "uniform", valueSize, threads,
+              targetOpsPerSecond == 0 ? "no target rate" : "target " + targetOpsPerSecond + " ops/s",
+              durationInSeconds);
+    }
+  }
+
+  // Statistics of one operation type: latencies of the successful requests, plus the failed ones
+  private static class OperationStats {
+    private final LatencyHistogram current = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    // Requests of keys that don't exist, and requests that failed otherwise: current interval, then total
+    private final AtomicLongArray notFound = new AtomicLongArray(2);
+    private final AtomicLongArray errors = new AtomicLongArray(2);
+  }
+
+  // Partition map, or null to send every request to the server
+  private final PartitionRing ring;
+  // Client of one replica of every group of the map by group name, or of the server under the null name
+  private final Map<String, AsyncRPCClient> clients = new HashMap<>();
+  private final Options options;
+  private final ZipfianGenerator zipfianGenerator;
+  private final OperationStats[] stats = new OperationStats[Operation.values().length];
+
+  public Benchmark(String serverIp, int serverPort, Options options) {
+    try (RPCClient mapClient = new RPCClient(serverIp, serverPort)) {
+      this.ring = mapClient.getPartitionRing();
+    }
+    // One channel per group for all the threads. Every thread has at most one request in flight.
+    if (ring == null) {
+      clients.put(null, new AsyncRPCClient(serverIp, serverPort, options.threads));
+    } else {
+      for (ReplicaGroup group : ring.getMap().getGroupsList()) {
+        String address = group.getAddresses(ThreadLocalRandom.current().nextInt(group.getAddressesCount()));
+        clients.put(group.getName(), new AsyncRPCClient(address.substring(0, address.lastIndexOf(':')),
+                PartitionRing.portOf(address), options.threads));
+      }
+    }
+    this.options = options;
+    this.zipfianGenerator = options.zipfian ? new ZipfianGenerator(options.keySpace) : null;
+    for (Operation operation : Operation.values()) {
+      stats[operation.ordinal()] = new OperationStats();
+    }
+  }
+
+  // Run the benchmark, and print the report.
+  public void run() throws InterruptedException {
+    ClientLogger.info("Benchmark: " + options);
+    if (options.preload) {
+      preload();
+    }
+
+    long startTime = System.nanoTime();
+    long endTime = startTime + options.durationInSeconds * 1_000_000_000L;
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < options.threads; i++) {
+      Thread worker = new Thread(() -> runWorker(startTime, endTime), "benchmark-" + i);
+      worker.start();
+      workers.add(worker);
+    }
+
+    long intervalInNanos = options.reportIntervalInSeconds * 1_000_000_000L;
+    long lastReportTime = startTime;
+    while (System.nanoTime() < endTime) {
+      long nextReportTime = Math.min(lastReportTime + intervalInNanos, endTime);
+      LockSupport.parkNanos(nextReportTime - System.nanoTime());
+      if (System.nanoTime() >= nextReportTime) {
+        report(String.format("[%ds]", (nextReportTime - startTime) / 1_000_000_000L), nextReportTime - lastReportTime);
+        lastReportTime = nextReportTime;
+      }
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    // Requests still in flight at the end of the last interval
+    report("[tail]", System.nanoTime() - lastReportTime);
+    reportTotal(System.nanoTime() - startTime);
+    for (AsyncRPCClient client : clients.values()) {
+      client.close();
+    }
+  }
+
+  // Client of the group of the key
+  private AsyncRPCClient clientOf(String key) {
+    return clients.get(ring == null ? null : ring.groupOf(key).getName());
+  }
+
+  // Write every key of the key space once, so that the reads find them.
+  private void preload() {
+    ClientLogger.info("Preloading " + options.keySpace + " keys");
+    long startTime = System.nanoTime();
+    List<CompletableFuture<?>> batches = new ArrayList<>();
+    // The batch of every client being filled
+    Map<AsyncRPCClient, List<KeyValuePair>> openBatches = new HashMap<>();
+    for (long i = 0; i < options.keySpace; i++) {
+      String key = KEY_PREFIX + i;
+      AsyncRPCClient client = clientOf(key);
+      List<KeyValuePair> batch = openBatches.computeIfAbsent(client, c -> new ArrayList<>());
+      batch.add(KeyValuePair.newBuilder().setKey(key).setValue(randomValue()).build());
+      if (batch.size() == PRELOAD_BATCH_SIZE) {
+        batches.add(client.multiPut(batch));
+        openBatches.remove(client);
+      }
+    }
+    for (Map.Entry<AsyncRPCClient, List<KeyValuePair>> batch : openBatches.entrySet()) {
+      batches.add(batch.getKey().multiPut(batch.getValue()));
+    }
+    CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).join();
+    ClientLogger.info(String.format("Preloaded %d keys in %d ms", options.keySpace,
+            (System.nanoTime() - startTime) / 1_000_000));
+  }
+
+  private void runWorker(long startTime, long endTime) {
+    // Every thread sends its share of the target rate. The first requests are spread over one interval.
+    long intervalInNanos = options.targetOpsPerSecond == 0 ? 0 : 1_000_000_000L * options.threads / options.targetOpsPerSecond;
+    long dueTime = startTime + (intervalInNanos == 0 ? 0 : ThreadLocalRandom.current().nextLong(intervalInNanos));
+    while (true) {
+      if (intervalInNanos > 0) {
+        LockSupport.parkNanos(dueTime - System.nanoTime());
+      } else {
+        dueTime = System.nanoTime();
+      }
+      if (dueTime >= endTime || System.nanoTime() >= endTime) {
+        return;
+      }
+      Operation operation = nextOperation();
+      String key = KEY_PREFIX + nextKeyIndex();
+      AsyncRPCClient client = clientOf(key);
+      OperationStats operationStats = stats[operation.ordinal()];
+      try {
+        switch (operation) {
+          case GET:
+            client.get(key).join();
+            break;
+          case PUT:
+            client.put(key, randomValue()).join();
+            break;
+          case DELETE:
+            client.delete(key).join();
+            break;
+        }
+        operationStats.current.record((System.nanoTime() - dueTime) / 1000);
+      } catch (CompletionException e) {
+        // The server rejects the GET and DELETE of a key that doesn't exist, which is part of the workload.
+        boolean isNotFound = e.getCause() instanceof StatusRuntimeException
+                && ((StatusRuntimeException) e.getCause()).getStatus().getCode() == Status.Code.INVALID_ARGUMENT;
+        if (isNotFound) {
+          operationStats.current.record((System.nanoTime() - dueTime) / 1000);
+          operationStats.notFound.incrementAndGet(0);
+        } else {
+          operationStats.errors.incrementAndGet(0);
+        }
+      }
+      dueTime += intervalInNanos;
+    }
+  }
+
+  private Operation nextOperation() {
+    int percent = ThreadLocalRandom.current().nextInt(100);
+    if (percent < options.readPercent) {
+      return Operation.GET;
+    }
+    return percent < options.readPercent + options.writePercent ? Operation.PUT : Operation.DELETE;
+  }
+
+  private long nextKeyIndex() {
+    return zipfianGenerator != null ? zipfianGenerator.next() : ThreadLocalRandom.current().nextLong(options.keySpace);
+  }
+
+  // Random value of the configured size. Lower case only, since the server stores values in lower case.
+  private String randomValue() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    char[] value = new char[options.valueSize];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = VALUE_CHARACTERS[random.nextInt(VALUE_CHARACTERS.length)];
+    }
+    return new String(value);
+  }
+
+  // Print the stats of the last interval, and add them to the totals.
+  private void report(String label, long intervalInNanos) {
+    for (Operation operation : Operation.values()) {
+      OperationStats operationStats = stats[operation.ordinal()];
+      LatencyHistogram interval = operationStats.current.drain();
+      long notFound = operationStats.notFound.getAndSet(0, 0);
+      long errors = operationStats.errors.getAndSet(0, 0);
+      operationStats.total.add(interval);
+      operationStats.notFound.addAndGet(1, notFound);
+      operationStats.errors.addAndGet(1, errors);
+      if (interval.count() > 0 || errors > 0) {
+        printLine(label, operation, interval, notFound, errors, intervalInNanos);
+      }
+    }
+  }
+
+  private void reportTotal(long durationInNanos) {
+    ClientLogger.info("Benchmark done: " + options);
+    long totalOps = 0;
+    for (Operation operation : Operation.values()) {
+      OperationStats operationStats = stats[operation.ordinal()];
+      totalOps += operationStats.total.count();
+      printLine("[total]", operation, operationStats.total, operationStats.notFound.get(1), operationStats.errors.get(1),
+              durationInNanos);
+    }
+    ClientLogger.info(String.format("[total] ALL: %d ops, %.1f ops/s", totalOps, totalOps * 1e9 / durationInNanos));
+  }
+
+  private static void printLine(String label, Operation operation, LatencyHistogram histogram, long notFound,
+                                long errors, long durationInNanos) {
+    ClientLogger.info(String.format(
+            "%s %s: %d ops, %.1f ops/s, p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms, %d not found, %d errors",
+            label, operation, histogram.count(), histogram.count() * 1e9 / durationInNanos,
+            histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0,
+            histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0, notFound, errors));
+  }
+}
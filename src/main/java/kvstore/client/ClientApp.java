@@ -3,21 +3,52 @@ package kvstore.client;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 
 // Main class to start the client application
 public class ClientApp {
+  // Stands for an open bound of a scan range in the user input
+  private static final String SCAN_OPEN_BOUND = "*";
+  // Ends the key of a watch of a prefix in the user input
+  private static final String WATCH_PREFIX_SUFFIX = "*";
+
   public static void main(String[] args) {
     CliFlags flags = parseCli(args);
     RPCClient client = null;
     try {
-      client = new RPCClient(flags.serverIp, flags.serverPort);
+      client = new RPCClient(flags.serverIp, flags.serverPort,
+              flags.cacheSize > 0 ? new ReadCache(flags.cacheSize, flags.cachePolicy) : null);
     } catch(Exception ex) {
       ClientLogger.error("Unable to start client. " + ex.getMessage());
       System.exit(1);
     }
 
+    if (flags.benchmarkOptions != null) {
+      // Benchmark mode: run the load, print the report, then exit
+      try {
+        new Benchmark(flags.serverIp, flags.serverPort, flags.benchmarkOptions).run();
+      } catch (InterruptedException e) {
+        ClientLogger.error("Benchmark interrupted");
+        System.exit(1);
+      }
+      System.exit(0);
+    }
+
+    if (flags.loadFile != null) {
+      // Bulk load mode: load the file, then exit instead of prompting for requests
+      long numLoaded = -1;
+      try {
+        numLoaded = client.bulkLoad(flags.loadFile);
+      } catch (IOException e) {
+        ClientLogger.error("Unable to read " + flags.loadFile + ": " + e.getMessage());
+      }
+      System.exit(numLoaded < 0 ? 1 : 0);
+    }
+
     if (!flags.skipPrepopulate) {
       prePopulateRequests(client);
     }
@@ -30,21 +61,52 @@ public class ClientApp {
     private final String serverIp;
     private final int serverPort;
     private final boolean skipPrepopulate;
+    // File to bulk load, or null to run interactively
+    private final Path loadFile;
+    // Options of the benchmark to run, or null to run interactively
+    private final Benchmark.Options benchmarkOptions;
+    // Capacity of the client-side read cache, or 0 for no cache
+    private final int cacheSize;
+    private final ReadCache.Policy cachePolicy;
 
     // Constructor for CliFlags
-    public CliFlags(String serverIp, int serverPort, boolean skipPrepopulate) {
+    public CliFlags(String serverIp, int serverPort, boolean skipPrepopulate, Path loadFile,
+                    Benchmark.Options benchmarkOptions, int cacheSize, ReadCache.Policy cachePolicy) {
       this.serverIp = serverIp;
       this.serverPort = serverPort;
       this.skipPrepopulate = skipPrepopulate;
+      this.loadFile = loadFile;
+      this.benchmarkOptions = benchmarkOptions;
+      this.cacheSize = cacheSize;
+      this.cachePolicy = cachePolicy;
     }
   }
 
   // Prints the usage instructions for the ClientApp.
   private static void printUsage() {
-    String usage = "Usage: ClientApp <server-ip> <server-port> [--skip-prepopulate]\n"
+    String usage = "Usage: ClientApp <server-ip> <server-port> [--skip-prepopulate] [--load-file=<path>]\n"
+            + "           [--cache-size=<n>] [--cache-policy=<policy>]\n"
+            + "       ClientApp <server-ip> <server-port> --benchmark [<benchmark flags>]\n"
             + "  <server-ip>: IP of the server\n"
             + "  <server-port>: Port numbers of the server replica to talk to\n"
-            + "  --skip-prepopulate: Optional flag. If specified, skips prepopulating 5 PUTs, 5 GETs and 5 DELETEs";
+            + "  --skip-prepopulate: Optional flag. If specified, skips prepopulating 5 PUTs, 5 GETs and 5 DELETEs\n"
+            + "  --load-file: Optional flag. If specified, bulk loads the file and exits. Each line of the file holds a key\n"
+            + "    and a value separated by a space\n"
+            + "  --cache-size=<n>: Optional flag. Cache up to n values read by GET in the client, kept up to date by the\n"
+            + "    invalidations the replicas push on writes. If unspecified, every GET goes to the server\n"
+            + "  --cache-policy=<policy>: Optional flag. Eviction policy of the cache, one of tinylfu, lru.\n"
+            + "    If unspecified, will use default value tinylfu\n"
+            + "  --benchmark: Optional flag. If specified, runs a load against the server and reports the throughput and\n"
+            + "    the latency percentiles of every operation type, then exits. Benchmark flags:\n"
+            + "    --mix=<get>:<put>:<delete>: Percentages of the operation types. Defaults to 50:50:0\n"
+            + "    --keyspace=<n>: Number of distinct keys. Defaults to 100000\n"
+            + "    --distribution=<uniform|zipfian>: Distribution of the keys. Defaults to uniform\n"
+            + "    --value-size=<n>: Size of the values written, in characters. Defaults to 100\n"
+            + "    --threads=<n>: Number of client threads, each with one request in flight. Defaults to 8\n"
+            + "    --target-ops=<n>: Target number of operations per second, 0 for as fast as possible. Defaults to 0\n"
+            + "    --duration=<seconds>: Duration of the run. Defaults to 60\n"
+            + "    --report-interval=<seconds>: Interval of the periodic reports. Defaults to 10\n"
+            + "    --preload: Write every key once before the run";
     System.out.println(usage);
   }
 
@@ -66,16 +128,72 @@ public class ClientApp {
     }
 
     boolean skipPrepopulate = false;
-    if (args.length >= 3) {
-      if ("--skip-prepopulate".equals(args[2])) {
+    Path loadFile = null;
+    boolean benchmark = false;
+    boolean hasBenchmarkFlags = false;
+    Benchmark.Options benchmarkOptions = new Benchmark.Options();
+    int cacheSize = 0;
+    ReadCache.Policy cachePolicy = ReadCache.Policy.TINYLFU;
+    for (int i = 2; i < args.length; i++) {
+      if ("--skip-prepopulate".equals(args[i])) {
         skipPrepopulate = true;
+      } else if (args[i].startsWith("--cache-size=")) {
+        String size = args[i].substring("--cache-size=".length());
+        if (!size.matches("\\d{1,9}")) {
+          printUsage();
+          ClientLogger.error("Invalid cache size: " + size);
+          System.exit(1);
+        }
+        cacheSize = Integer.parseInt(size);
+      } else if (args[i].startsWith("--cache-policy=")) {
+        String policy = args[i].substring("--cache-policy=".length());
+        if (!policy.equals("tinylfu") && !policy.equals("lru")) {
+          printUsage();
+          ClientLogger.error("Unknown cache policy: " + policy);
+          System.exit(1);
+        }
+        cachePolicy = ReadCache.Policy.valueOf(policy.toUpperCase());
+      } else if (args[i].startsWith("--load-file=")) {
+        loadFile = Paths.get(args[i].substring("--load-file=".length()));
+        if (!Files.isRegularFile(loadFile)) {
+          printUsage();
+          ClientLogger.error("Load file not found: " + loadFile);
+          System.exit(1);
+        }
+      } else if ("--benchmark".equals(args[i])) {
+        benchmark = true;
+      } else if (parseBenchmarkFlag(benchmarkOptions, args[i])) {
+        hasBenchmarkFlags = true;
       } else {
         printUsage();
-        ClientLogger.error("Invalid port number: " + serverPort);
+        ClientLogger.error("Invalid flag: " + args[i]);
         System.exit(1);
       }
     }
-    return new CliFlags(serverIp, serverPort, skipPrepopulate);
+    if (hasBenchmarkFlags && !benchmark) {
+      printUsage();
+      ClientLogger.error("Benchmark flags require --benchmark");
+      System.exit(1);
+    }
+    if (benchmark && loadFile != null) {
+      printUsage();
+      ClientLogger.error("--benchmark and --load-file can't be used together");
+      System.exit(1);
+    }
+    return new CliFlags(serverIp, serverPort, skipPrepopulate, loadFile, benchmark ? benchmarkOptions : null,
+            cacheSize, cachePolicy);
+  }
+
+  // Parse one benchmark flag into the options. Returns false if the flag isn't a benchmark flag.
+  private static boolean parseBenchmarkFlag(Benchmark.Options options, String flag) {
+    try {
+      return options.parseFlag(flag);
+    } catch (IllegalArgumentException e) {
+      printUsage();
+      ClientLogger.error(e.getMessage());
+      System.exit(1);
+      return false;
+    }
   }
 
   // Method to pre-populate requests with sample data
@@ -165,20 +283,41 @@ public class ClientApp {
   private static boolean verifyUserInput(String text) {
     String[] textArray = text.split(" ");
 
+    if (textArray.length == 1
+            && (textArray[0].equalsIgnoreCase("stats") || textArray[0].equalsIgnoreCase("unwatch"))) {
+      return true;
+    }
     if (textArray.length < 2) {
       ClientLogger.error("Invalid input. Please refer to Readme for accepted input format.");
       return false;
     }
 
     String method = textArray[0].toLowerCase();
-    if (!method.equals("put") && !method.equals("get") && !method.equals("delete")) {
+    if (!method.equals("put") && !method.equals("get") && !method.equals("delete") && !method.equals("scan")
+            && !method.equals("mget") && !method.equals("mput") && !method.equals("mdelete")
+            && !method.equals("watch")) {
       ClientLogger.error("Unknown method type. Please refer to Readme for accepted input format.");
       return false;
     }
-    if ((method.equals("get") || method.equals("delete")) && textArray.length != 2 || method.equals("put") && textArray.length != 3) {
+    if ((method.equals("get") || method.equals("delete") || method.equals("watch")) && textArray.length != 2
+            || method.equals("put") && textArray.length != 3) {
       ClientLogger.error("Invalid input. Please refer to Readme for accepted input format.");
       return false;
     }
+    if (method.equals("mput") && textArray.length % 2 != 1) {
+      ClientLogger.error("Invalid input. Please refer to Readme for accepted input format.");
+      return false;
+    }
+    if (method.equals("scan")) {
+      if (textArray.length != 3 && textArray.length != 4) {
+        ClientLogger.error("Invalid input. Please refer to Readme for accepted input format.");
+        return false;
+      }
+      if (textArray.length == 4 && !textArray[3].matches("\\d+")) {
+        ClientLogger.error("Invalid scan limit. Please refer to Readme for accepted input format.");
+        return false;
+      }
+    }
     return true;
   }
 
@@ -186,6 +325,15 @@ public class ClientApp {
   private static void sendRequest(String request, RPCClient client) {
     String[] arr = request.split(" ");
     String method = arr[0].toLowerCase();
+    if (method.equals("stats")) {
+      client.stats();
+      return;
+    }
+    if (method.equals("unwatch")) {
+      client.cancelWatches();
+      ClientLogger.info("Watches cancelled");
+      return;
+    }
     String key = arr[1];
     if (method.equals("put")) {
       client.put(key, arr[2]);
@@ -193,6 +341,24 @@ public class ClientApp {
       client.get(key);
     } else if (method.equals("delete")) {
       client.delete(key);
+    } else if (method.equals("mget")) {
+      client.multiGet(Arrays.asList(arr).subList(1, arr.length));
+    } else if (method.equals("mput")) {
+      client.multiPut(Arrays.asList(arr).subList(1, arr.length));
+    } else if (method.equals("mdelete")) {
+      client.multiDelete(Arrays.asList(arr).subList(1, arr.length));
+    } else if (method.equals("scan")) {
+      // "*" leaves the bound open.
+      String startKey = key.equals(SCAN_OPEN_BOUND) ? "" : key;
+      String endKey = arr[2].equals(SCAN_OPEN_BOUND) ? "" : arr[2];
+      int limit = arr.length == 4 ? Integer.parseInt(arr[3]) : 0;
+      client.scan(startKey, endKey, limit);
+    } else if (method.equals("watch")) {
+      // A trailing "*" watches the keys starting with the prefix. Events are printed as they arrive.
+      boolean prefix = key.endsWith(WATCH_PREFIX_SUFFIX);
+      client.watch(prefix ? key.substring(0, key.length() - WATCH_PREFIX_SUFFIX.length()) : key, prefix,
+              event -> ClientLogger.info(String.format("Watch event: %s %s %s (shard %d, revision %d)",
+                      event.getType(), event.getKey(), event.getValue(), event.getShard(), event.getRevision())));
     }
   }
 }
@@ -1,21 +1,128 @@
 package kvstore.client;
 
 import io.grpc.*;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import kvstore.*;
 import kvstore.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
+import kvstore.KeyValueStoreGrpc.KeyValueStoreStub;
 
+import kvstore.partition.PartitionRing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
-public class RPCClient{
+/**
+ * Client of the key-value store. If the server has a partition map, the keys are split across several replica groups:
+ * the client gets the map from the server, and sends the request of every key straight to a replica of the group that
+ * owns it. Multi-key requests are split by group, scans merge the ranges of all the groups, and bulk loads stream the
+ * records of every group to it in parallel. When a group rejects a key it no longer owns, the client refreshes its map
+ * from that group and retries.
+ *
+ * With a ReadCache, GETs are served from the cache when they hit. The client subscribes to the invalidations of every
+ * replica it reads from, and only caches the values the replica tracks for its subscription. When an invalidation
+ * stream fails, or the partition map changes, the whole cache is dropped, as invalidations may have been missed.
+ *
+ * Watches stream the changes of a key or a prefix from a replica of every group that may hold them. When a watch
+ * stream fails, it is resumed from the revisions it reached, on the next replica of the group.
+ */
+public class RPCClient implements AutoCloseable {
+  // Channel to the server the client was started with
+  private final ManagedChannel channel;
+  // Whether the channel was created by this client, and is shut down with it
+  private final boolean ownsChannel;
   // Define a blocking stub for making synchronous RPC calls to the KeyValueStore service.
   private final KeyValueStoreBlockingStub blockingStub;
+  // Define an async stub on the same channel for the client-streaming calls.
+  private final KeyValueStoreStub asyncStub;
+  // Channels to the replicas of the partition map, by address
+  private final Map<String, ManagedChannel> groupChannels = new ConcurrentHashMap<>();
+  // Partition map, or null to send every request to the server of the client
+  private volatile PartitionRing ring = null;
+  // Address of the replica the client talks to in every group of the map
+  private volatile Map<String, String> groupAddresses = Map.of();
+  // Client-side read cache, or null to send every GET to the server
+  private final ReadCache cache;
+  // Invalidation streams of the cache, by the address of the replica, or "" for the server of the client
+  private final Map<String, InvalidationStream> invalidationStreams = new ConcurrentHashMap<>();
+  // Watches that are not cancelled yet
+  private final List<Watch> watches = new CopyOnWriteArrayList<>();
   private static final int TIMEOUT = 5000;
+  // A scan streams many chunks, so it gets more time than a single request.
+  private static final int SCAN_TIMEOUT = 60000;
+  // Records per message of a bulk load. The server regroups them into its own, larger chunks.
+  private static final int BULK_LOAD_MESSAGE_PAIRS = 1000;
+  private static final long BULK_LOAD_PROGRESS_INTERVAL_IN_MS = 1000;
+  // Attempts of a request whose group rejects keys it doesn't own, refreshing the map in between
+  private static final int MAX_ROUTING_ATTEMPTS = 4;
+  // How long to wait for a group that has an older partition map than the client to reload it
+  private static final long STALE_GROUP_RETRY_DELAY_IN_MS = 1000;
+  // Minimum time between two attempts to open the invalidation stream of a replica
+  private static final long RESUBSCRIBE_DELAY_IN_MS = 1000;
+  // Time between a failed watch stream and its resumption
+  private static final long REWATCH_DELAY_IN_MS = 1000;
 
   // Constructor for initializing the client with a custom server IP and port.
   public RPCClient(String serverIp, int serverPort) {
-    String target = serverIp + ":" + serverPort;
-    ManagedChannel channel = Grpc.newChannelBuilder(target, InsecureChannelCredentials.create()).build();
+    this(serverIp, serverPort, null);
+  }
+
+  // Same, serving the GETs that hit from the given cache, unless it is null
+  public RPCClient(String serverIp, int serverPort, ReadCache cache) {
+    this(Grpc.newChannelBuilder(serverIp + ":" + serverPort, InsecureChannelCredentials.create()).build(), true,
+            cache);
+  }
+
+  // Constructor for initializing the client on a channel shared with other clients, e.g. an AsyncRPCClient. The caller
+  // shuts the channel down.
+  public RPCClient(ManagedChannel channel) {
+    this(channel, false, null);
+  }
+
+  private RPCClient(ManagedChannel channel, boolean ownsChannel, ReadCache cache) {
+    this.channel = channel;
+    this.ownsChannel = ownsChannel;
     this.blockingStub = KeyValueStoreGrpc.newBlockingStub(channel);
+    this.asyncStub = KeyValueStoreGrpc.newStub(channel);
+    this.cache = cache;
+    refreshMap(blockingStub);
+    if (cache != null && ring == null) {
+      subscriptionOf(null);
+    }
+  }
+
+  // The partition map of the client, or null if the server holds every key
+  public PartitionRing getPartitionRing() {
+    return ring;
+  }
+
+  // The read cache of the client, or null without one
+  public ReadCache getCache() {
+    return cache;
   }
 
   // Method for making a 'put' RPC call to the server.
@@ -23,7 +130,7 @@ public class RPCClient{
     PutRequest request = PutRequest.newBuilder().setKey(key).setValue(value).build();
     PutResponse response;
     try {
-      response = blockingStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).put(request);
+      response = call(key, stub -> stub.put(request));
     } catch (StatusRuntimeException e) {
       ClientLogger.error("Error from server: " + e.getMessage());
       return;
@@ -31,17 +138,44 @@ public class RPCClient{
     ClientLogger.info("Response from server: " + response.getStatus());
   }
 
-  // Method for making a 'get' RPC call to the server.
-  public void get(String key) {
-    GetRequest request = GetRequest.newBuilder().setKey(key).build();
+  /**
+   * Method for making a 'get' RPC call to the server. Returns the value, or null if the call failed. With a cache, a hit
+   * skips the call, and the value of a miss is cached if the replica tracks the key for the cache.
+   */
+  public String get(String key) {
+    String cacheKey = key.toLowerCase();
+    long loadToken = -1;
+    if (cache != null) {
+      String cached = cache.get(cacheKey);
+      if (cached != null) {
+        ClientLogger.info("Response from cache: " + cached);
+        return cached;
+      }
+      // The load starts before the subscription is read, so that a failure of the stream cancels it.
+      loadToken = cache.startLoad(cacheKey);
+    }
     GetResponse response;
     try {
-      response = blockingStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).get(request);
+      response = call(key, stub -> stub.get(GetRequest.newBuilder()
+              .setKey(key)
+              .setCacheSubscription(subscriptionOf(groupOf(key)))
+              .build()));
     } catch (StatusRuntimeException e) {
+      if (cache != null) {
+        cache.cancelLoad(cacheKey, loadToken);
+      }
       ClientLogger.error("Error from server: " + e.getMessage());
-      return;
+      return null;
+    }
+    if (cache != null) {
+      if (response.getCacheable()) {
+        cache.completeLoad(cacheKey, loadToken, response.getValue());
+      } else {
+        cache.cancelLoad(cacheKey, loadToken);
+      }
     }
     ClientLogger.info("Response from server: " + response.getValue());
+    return response.getValue();
   }
 
   // Method for making a 'delete' RPC call to the server.
@@ -49,11 +183,748 @@ public class RPCClient{
     DeleteRequest request = DeleteRequest.newBuilder().setKey(key).build();
     DeleteResponse response;
     try {
-      response = blockingStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).delete(request);
+      response = call(key, stub -> stub.delete(request));
     } catch (StatusRuntimeException e) {
       ClientLogger.error("Error from server: " + e.getMessage());
       return;
     }
     ClientLogger.info("Response from server: " + response.getStatus());
   }
+
+  /**
+   * Method for making a 'scan' RPC call to the server. Prints the pairs as the chunks arrive. An empty end key means no
+   * upper bound, and a limit of 0 means no limit. With a partition map, every group streams its part of the range, and
+   * the parts are merged in key order.
+   */
+  public void scan(String startKey, String endKey, int limit) {
+    ScanRequest request = ScanRequest.newBuilder().setStartKey(startKey).setEndKey(endKey).setLimit(limit).build();
+    long numPairs = 0;
+    // Cancels the scans of the groups that are still streaming once the limit is reached
+    Context.CancellableContext scanContext = Context.current().withCancellation();
+    Context previousContext = scanContext.attach();
+    try {
+      // A scan covers every group, so it uses the latest map.
+      if (ring != null) {
+        refreshMap(blockingStub);
+      }
+      List<Iterator<KeyValuePair>> ranges = new ArrayList<>();
+      for (KeyValueStoreBlockingStub stub : allGroupStubs()) {
+        ranges.add(pairsOf(stub.withDeadlineAfter(SCAN_TIMEOUT, TimeUnit.MILLISECONDS).scan(request)));
+      }
+      Iterator<KeyValuePair> pairs = ranges.size() == 1 ? ranges.get(0) : new MergedRanges(ranges);
+      while (pairs.hasNext() && (limit == 0 || numPairs < limit)) {
+        KeyValuePair pair = pairs.next();
+        ClientLogger.info("Response from server: " + pair.getKey() + " " + pair.getValue());
+        numPairs++;
+      }
+    } catch (StatusRuntimeException e) {
+      ClientLogger.error("Error from server: " + e.getMessage());
+      return;
+    } finally {
+      scanContext.detach(previousContext);
+      scanContext.cancel(null);
+    }
+    ClientLogger.info("Response from server: " + numPairs + " pairs");
+  }
+
+  // Method for making a 'multiGet' RPC call to the server, for several keys at once.
+  public void multiGet(List<String> keys) {
+    List<KeyResult> results;
+    try {
+      results = scatter(keys, (stub, indexes) -> {
+        MultiGetRequest.Builder request = MultiGetRequest.newBuilder();
+        indexes.forEach(i -> request.addKeys(keys.get(i)));
+        return stub.multiGet(request.build()).getResultsList();
+      });
+    } catch (StatusRuntimeException e) {
+      ClientLogger.error("Error from server: " + e.getMessage());
+      return;
+    }
+    logResults(results);
+  }
+
+  // Method for making a 'multiPut' RPC call to the server. Keys and values alternate in the list.
+  public void multiPut(List<String> keysAndValues) {
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i + 1 < keysAndValues.size(); i += 2) {
+      keys.add(keysAndValues.get(i));
+    }
+    List<KeyResult> results;
+    try {
+      results = scatter(keys, (stub, indexes) -> {
+        MultiPutRequest.Builder request = MultiPutRequest.newBuilder();
+        indexes.forEach(i -> request.addPairs(
+                KeyValuePair.newBuilder().setKey(keys.get(i)).setValue(keysAndValues.get(2 * i + 1))));
+        return stub.multiPut(request.build()).getResultsList();
+      });
+    } catch (StatusRuntimeException e) {
+      ClientLogger.error("Error from server: " + e.getMessage());
+      return;
+    }
+    logResults(results);
+  }
+
+  // Method for making a 'multiDelete' RPC call to the server, for several keys at once.
+  public void multiDelete(List<String> keys) {
+    List<KeyResult> results;
+    try {
+      results = scatter(keys, (stub, indexes) -> {
+        MultiDeleteRequest.Builder request = MultiDeleteRequest.newBuilder();
+        indexes.forEach(i -> request.addKeys(keys.get(i)));
+        return stub.multiDelete(request.build()).getResultsList();
+      });
+    } catch (StatusRuntimeException e) {
+      ClientLogger.error("Error from server: " + e.getMessage());
+      return;
+    }
+    logResults(results);
+  }
+
+  // Method for making a 'stats' RPC call to the server. Logs the latency summaries, counters and gauges of the replica.
+  public void stats() {
+    StatsResponse response;
+    try {
+      response = blockingStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).stats(StatsRequest.getDefaultInstance());
+    } catch (StatusRuntimeException e) {
+      ClientLogger.error("Error from server: " + e.getMessage());
+      return;
+    }
+    for (LatencySummary latency : response.getLatenciesList()) {
+      ClientLogger.info(String.format("Response from server: %s count=%d mean=%dus p50=%dus p99=%dus p999=%dus max=%dus",
+              latency.getSeries(), latency.getCount(), latency.getMeanUs(), latency.getP50Us(), latency.getP99Us(),
+              latency.getP999Us(), latency.getMaxUs()));
+    }
+    for (MetricValue counter : response.getCountersList()) {
+      ClientLogger.info("Response from server: " + counter.getSeries() + " " + counter.getValue());
+    }
+    for (MetricValue gauge : response.getGaugesList()) {
+      ClientLogger.info("Response from server: " + gauge.getSeries() + " " + gauge.getValue());
+    }
+    if (cache != null) {
+      ClientLogger.info("Client cache: " + cache.describe());
+    }
+  }
+
+  /**
+   * Method for making a 'watch' RPC call to the server. Passes every change of the key, or of the keys starting with
+   * the prefix if prefix is set, to the listener, in commit order within every shard, until the watch is cancelled.
+   * With a partition map, a key is watched on its group, and a prefix on every group of the map. A failed stream is
+   * resumed from the revisions it reached, unless the replica no longer has them: the watch ends with an error then.
+   */
+  public Watch watch(String key, boolean prefix, Consumer<WatchEvent> listener) {
+    Watch watch = new Watch();
+    PartitionRing current = ring;
+    if (current == null) {
+      watch.streams.add(new WatchStream(key, prefix, listener, null));
+    } else {
+      for (ReplicaGroup group : current.getMap().getGroupsList()) {
+        if (prefix || group.getName().equals(current.groupOf(key).getName())) {
+          watch.streams.add(new WatchStream(key, prefix, listener, group));
+        }
+      }
+    }
+    watches.add(watch);
+    watch.streams.forEach(WatchStream::open);
+    return watch;
+  }
+
+  // Cancel every watch of the client
+  public void cancelWatches() {
+    for (Watch watch : watches) {
+      watch.cancel();
+    }
+  }
+
+  // A watch of a key or a prefix, on one stream per replica group
+  public class Watch {
+    private final List<WatchStream> streams = new ArrayList<>();
+
+    // Stop the watch. The listener may still get the events already received.
+    public void cancel() {
+      watches.remove(this);
+      for (WatchStream stream : streams) {
+        stream.cancel();
+      }
+    }
+  }
+
+  /**
+   * Watch stream of one replica group. Keeps the revision of every shard up to which it got every change: the revision
+   * of its last event plus one, or the revisions the replica reports. A failed stream is opened again after
+   * REWATCH_DELAY_IN_MS from these revisions, on the next replica of the group if the replica is unavailable.
+   */
+  private class WatchStream implements ClientResponseObserver<WatchRequest, WatchResponse> {
+    private final String key;
+    private final boolean prefix;
+    private final Consumer<WatchEvent> listener;
+    // Group of the partition map, or null for the server of the client
+    private final ReplicaGroup group;
+    private ClientCallStreamObserver<WatchRequest> requestStream;
+    // Index of the replica of the group the stream is open to
+    private int replicaIndex;
+    // Revisions reached, one per shard, or null before the first message of the replica
+    private long[] revisions = null;
+    // Whether the stream failed and hasn't been resumed yet. Only the first failure is logged.
+    private boolean failing = false;
+    private boolean cancelled = false;
+
+    private WatchStream(String key, boolean prefix, Consumer<WatchEvent> listener, ReplicaGroup group) {
+      this.key = key;
+      this.prefix = prefix;
+      this.listener = listener;
+      this.group = group;
+      // Starts on the replica the client talks to in the group
+      this.replicaIndex = group == null ? 0
+              : Math.max(0, group.getAddressesList().indexOf(groupAddresses.get(group.getName())));
+    }
+
+    private synchronized void open() {
+      if (cancelled) {
+        return;
+      }
+      WatchRequest.Builder request = WatchRequest.newBuilder().setKey(key).setPrefix(prefix);
+      if (revisions != null) {
+        Arrays.stream(revisions).forEach(request::addFromRevisions);
+      }
+      ManagedChannel streamChannel = group == null ? channel : channelOf(group.getAddresses(replicaIndex));
+      KeyValueStoreGrpc.newStub(streamChannel).watch(request.build(), this);
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<WatchRequest> requestStream) {
+      this.requestStream = requestStream;
+    }
+
+    @Override
+    public synchronized void onNext(WatchResponse response) {
+      if (response.getRevisionsCount() > 0) {
+        if (revisions == null || failing) {
+          ClientLogger.info((revisions == null ? "Watching " : "Resumed watch of ") + (prefix ? "prefix " : "key ")
+                  + key + " from revisions " + response.getRevisionsList());
+        }
+        if (revisions == null) {
+          revisions = new long[response.getRevisionsCount()];
+        }
+        failing = false;
+        for (int shard = 0; shard < revisions.length && shard < response.getRevisionsCount(); shard++) {
+          revisions[shard] = Math.max(revisions[shard], response.getRevisions(shard));
+        }
+      }
+      for (WatchEvent event : response.getEventsList()) {
+        revisions[event.getShard()] = Math.max(revisions[event.getShard()], event.getRevision() + 1);
+        listener.accept(event);
+      }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+      if (cancelled) {
+        return;
+      }
+      Status.Code code = Status.fromThrowable(t).getCode();
+      if (code == Status.Code.OUT_OF_RANGE || code == Status.Code.INVALID_ARGUMENT
+              || code == Status.Code.FAILED_PRECONDITION) {
+        ClientLogger.error("Watch of " + key + " ended: " + t.getMessage());
+        return;
+      }
+      if (code == Status.Code.UNAVAILABLE && group != null) {
+        replicaIndex = (replicaIndex + 1) % group.getAddressesCount();
+      }
+      if (!failing) {
+        failing = true;
+        ClientLogger.error("Watch stream of " + key + " failed, resuming: " + t.getMessage());
+      }
+      CompletableFuture.delayedExecutor(REWATCH_DELAY_IN_MS, TimeUnit.MILLISECONDS).execute(this::open);
+    }
+
+    @Override
+    public void onCompleted() {
+      onError(Status.UNAVAILABLE.withDescription("Stream completed").asRuntimeException());
+    }
+
+    private synchronized void cancel() {
+      cancelled = true;
+      if (requestStream != null) {
+        requestStream.cancel("Watch cancelled", null);
+      }
+    }
+  }
+
+  /**
+   * Method for making a 'bulkLoad' RPC call to the server. Streams the records of the file, one "key value" per line,
+   * as fast as the server takes them, and logs the progress the server acks. With a partition map, every group gets its
+   * own stream of its records, read from its own pass over the file, and the groups load in parallel. Returns the number
+   * of records loaded, or -1 if the load failed.
+   */
+  public long bulkLoad(Path file) throws IOException {
+    long startTime = System.currentTimeMillis();
+    // The groups don't check the records against their map, so the load uses the latest one.
+    if (ring != null) {
+      refreshMap(blockingStub);
+    }
+    PartitionRing loadRing = ring;
+    List<BufferedReader> readers = new ArrayList<>();
+    try {
+      List<BulkLoadObserver> observers = new ArrayList<>();
+      if (loadRing == null) {
+        readers.add(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+        observers.add(new BulkLoadObserver(readers.get(0), key -> true, true));
+        asyncStub.bulkLoad(observers.get(0));
+      } else {
+        for (Map.Entry<String, String> group : groupAddresses.entrySet()) {
+          readers.add(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+          // Only the first group reports the invalid records, which every group skips.
+          BulkLoadObserver observer = new BulkLoadObserver(readers.get(readers.size() - 1),
+                  key -> loadRing.groupOf(key).getName().equals(group.getKey()), observers.isEmpty());
+          observers.add(observer);
+          KeyValueStoreGrpc.newStub(channelOf(group.getValue())).bulkLoad(observer);
+        }
+      }
+      long numLoaded = 0;
+      for (BulkLoadObserver observer : observers) {
+        long groupLoaded = observer.await();
+        numLoaded = numLoaded < 0 || groupLoaded < 0 ? -1 : numLoaded + groupLoaded;
+      }
+      if (numLoaded < 0) {
+        return -1;
+      }
+      long durationInMs = Math.max(1, System.currentTimeMillis() - startTime);
+      ClientLogger.info("Response from server: " + numLoaded + " records loaded in " + durationInMs + " ms ("
+              + numLoaded * 1000 / durationInMs + " records/s)");
+      return numLoaded;
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      for (BufferedReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  // Streams the records of a bulk load whenever the call has room for them, and collects the acks of the server.
+  private static class BulkLoadObserver implements ClientResponseObserver<BulkLoadRequest, BulkLoadAck> {
+    private final BufferedReader reader;
+    // Whether a key goes to this stream
+    private final Predicate<String> ownsKey;
+    private final boolean logSkipped;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ClientCallStreamObserver<BulkLoadRequest> requestStream;
+    private boolean sentAll = false;
+    private long numSkipped = 0;
+    private volatile long numLoaded = 0;
+    private volatile boolean failed = false;
+    private volatile IOException readError = null;
+    private long lastProgressTime = System.currentTimeMillis();
+
+    private BulkLoadObserver(BufferedReader reader, Predicate<String> ownsKey, boolean logSkipped) {
+      this.reader = reader;
+      this.ownsKey = ownsKey;
+      this.logSkipped = logSkipped;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<BulkLoadRequest> requestStream) {
+      this.requestStream = requestStream;
+      requestStream.setOnReadyHandler(this::send);
+    }
+
+    // Sends messages for as long as the call is ready, and completes the call at the end of the file.
+    private synchronized void send() {
+      try {
+        while (!sentAll && requestStream.isReady()) {
+          BulkLoadRequest.Builder message = BulkLoadRequest.newBuilder();
+          String line;
+          while (message.getPairsCount() < BULK_LOAD_MESSAGE_PAIRS && (line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+              continue;
+            }
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length != 2) {
+              numSkipped++;
+              if (logSkipped) {
+                ClientLogger.error("Skipped invalid record: " + line);
+              }
+              continue;
+            }
+            if (!ownsKey.test(tokens[0])) {
+              continue;
+            }
+            message.addPairs(KeyValuePair.newBuilder().setKey(tokens[0]).setValue(tokens[1]));
+          }
+          if (message.getPairsCount() > 0) {
+            requestStream.onNext(message.build());
+          }
+          if (message.getPairsCount() < BULK_LOAD_MESSAGE_PAIRS) {
+            sentAll = true;
+            if (numSkipped > 0 && logSkipped) {
+              ClientLogger.error("Skipped " + numSkipped + " invalid records");
+            }
+            requestStream.onCompleted();
+          }
+        }
+      } catch (IOException e) {
+        sentAll = true;
+        readError = e;
+        requestStream.cancel("Unable to read the load file", e);
+      }
+    }
+
+    @Override
+    public void onNext(BulkLoadAck ack) {
+      numLoaded = ack.getNumLoaded();
+      long now = System.currentTimeMillis();
+      if (now - lastProgressTime >= BULK_LOAD_PROGRESS_INTERVAL_IN_MS) {
+        lastProgressTime = now;
+        ClientLogger.info("Response from server: " + numLoaded + " records loaded so far");
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      if (readError == null) {
+        ClientLogger.error("Error from server after " + numLoaded + " records loaded: " + t.getMessage());
+      }
+      failed = true;
+      done.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+      done.countDown();
+    }
+
+    // Wait for the load to complete. Returns the number of records loaded, or -1 if the load failed.
+    private long await() {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        requestStream.cancel("Interrupted", e);
+        return -1;
+      }
+      if (readError != null) {
+        throw new UncheckedIOException(readError);
+      }
+      return failed ? -1 : numLoaded;
+    }
+  }
+
+  // Shut down the channels of the client, waiting for the requests in flight to complete. If interrupted, stops waiting
+  // and keeps the interrupt status of the thread. The channels are shut down either way.
+  @Override
+  public void close() {
+    for (InvalidationStream stream : invalidationStreams.values()) {
+      stream.close();
+    }
+    cancelWatches();
+    List<ManagedChannel> channels = new ArrayList<>(groupChannels.values());
+    if (ownsChannel) {
+      channels.add(channel);
+    }
+    channels.forEach(ManagedChannel::shutdown);
+    try {
+      for (ManagedChannel closedChannel : channels) {
+        closedChannel.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get the partition map of a server, and use it if it is newer than the map of the client. The client talks to a
+   * random replica of every group, so that the clients spread over the replicas. A server without a partition map, or
+   * one that doesn't know the call, leaves the client sending every request to its own server.
+   */
+  private synchronized void refreshMap(KeyValueStoreBlockingStub stub) {
+    PartitionMap map;
+    try {
+      map = stub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).getPartitionMap(PartitionMapRequest.getDefaultInstance());
+    } catch (StatusRuntimeException e) {
+      if (e.getStatus().getCode() != Status.Code.UNIMPLEMENTED) {
+        ClientLogger.error("Unable to get the partition map: " + e.getMessage());
+      }
+      return;
+    }
+    if (map.getGroupsCount() == 0 || ring != null && map.getVersion() <= ring.getVersion()) {
+      return;
+    }
+    Map<String, String> addresses = new LinkedHashMap<>();
+    for (ReplicaGroup group : map.getGroupsList()) {
+      String current = groupAddresses.get(group.getName());
+      addresses.put(group.getName(), group.getAddressesList().contains(current) ? current
+              : group.getAddresses(ThreadLocalRandom.current().nextInt(group.getAddressesCount())));
+    }
+    groupAddresses = addresses;
+    ring = new PartitionRing(map);
+    ClientLogger.info("Using partition map version " + map.getVersion() + " with " + map.getGroupsCount()
+            + " replica groups");
+    // The cached keys may have moved to groups the client isn't subscribed to.
+    if (cache != null) {
+      cache.invalidateAll();
+      for (String group : addresses.keySet()) {
+        subscriptionOf(group);
+      }
+    }
+  }
+
+  // Id of the cache subscription to the replica of a group, or "" if the client has no cache or isn't subscribed yet.
+  private String subscriptionOf(String group) {
+    if (cache == null) {
+      return "";
+    }
+    String address = group == null ? null : groupAddresses.get(group);
+    return invalidationStreams.computeIfAbsent(address == null ? "" : address,
+            target -> new InvalidationStream(target.isEmpty() ? channel : channelOf(target))).subscriptionId();
+  }
+
+  /**
+   * Invalidation stream of the cache from one replica. Opened again on the first GET at least RESUBSCRIBE_DELAY_IN_MS
+   * after it failed. Until the replica sends the id of the new subscription, the values it serves aren't cached.
+   */
+  private class InvalidationStream implements ClientResponseObserver<InvalidationRequest, Invalidations> {
+    private final ManagedChannel streamChannel;
+    private ClientCallStreamObserver<InvalidationRequest> requestStream;
+    private volatile String subscriptionId = "";
+    private boolean open = false;
+    private boolean closed = false;
+    private long lastOpenTime = 0;
+
+    private InvalidationStream(ManagedChannel streamChannel) {
+      this.streamChannel = streamChannel;
+    }
+
+    private synchronized String subscriptionId() {
+      long now = System.currentTimeMillis();
+      if (!open && !closed && now - lastOpenTime >= RESUBSCRIBE_DELAY_IN_MS) {
+        open = true;
+        lastOpenTime = now;
+        KeyValueStoreGrpc.newStub(streamChannel)
+                .subscribeInvalidations(InvalidationRequest.getDefaultInstance(), this);
+      }
+      return subscriptionId;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<InvalidationRequest> requestStream) {
+      this.requestStream = requestStream;
+    }
+
+    @Override
+    public void onNext(Invalidations invalidations) {
+      if (!invalidations.getSubscriptionId().isEmpty()) {
+        subscriptionId = invalidations.getSubscriptionId();
+        return;
+      }
+      Instant now = Instant.now();
+      cache.recordInvalidationLag(
+              now.getEpochSecond() * 1_000_000 + now.getNano() / 1000 - invalidations.getAppliedAtMicros());
+      if (invalidations.getAll()) {
+        cache.invalidateAll();
+      }
+      for (String key : invalidations.getKeysList()) {
+        cache.invalidate(key);
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      failed(t.getMessage());
+    }
+
+    @Override
+    public void onCompleted() {
+      failed("Stream completed");
+    }
+
+    // Stop caching the values of the replica, and drop the cached values, since invalidations may have been lost.
+    private synchronized void failed(String reason) {
+      subscriptionId = "";
+      open = false;
+      cache.invalidateAll();
+      if (!closed) {
+        ClientLogger.error("Cache invalidation stream failed, cache cleared: " + reason);
+      }
+    }
+
+    private synchronized void close() {
+      closed = true;
+      if (open) {
+        requestStream.cancel("Client closed", null);
+      }
+    }
+  }
+
+  private ManagedChannel channelOf(String address) {
+    return groupChannels.computeIfAbsent(address,
+            target -> Grpc.newChannelBuilder(target, InsecureChannelCredentials.create()).build());
+  }
+
+  // Group of the key in the partition map, or null without a map
+  private String groupOf(String key) {
+    PartitionRing current = ring;
+    return current == null ? null : current.groupOf(key).getName();
+  }
+
+  // Stub to the replica of a group, or to the server of the client for the null group
+  private KeyValueStoreBlockingStub stubOf(String group) {
+    String address = group == null ? null : groupAddresses.get(group);
+    return address == null ? blockingStub : KeyValueStoreGrpc.newBlockingStub(channelOf(address));
+  }
+
+  // Stubs to one replica of every group, or to the server of the client without a map
+  private List<KeyValueStoreBlockingStub> allGroupStubs() {
+    if (ring == null) {
+      return List.of(blockingStub);
+    }
+    List<KeyValueStoreBlockingStub> stubs = new ArrayList<>();
+    for (String address : groupAddresses.values()) {
+      stubs.add(KeyValueStoreGrpc.newBlockingStub(channelOf(address)));
+    }
+    return stubs;
+  }
+
+  // Send the request of a key to the group that owns it, refreshing the map and retrying if the group rejects the key.
+  private <T> T call(String key, Function<KeyValueStoreBlockingStub, T> rpc) {
+    for (int attempt = 1; ; attempt++) {
+      KeyValueStoreBlockingStub stub = stubOf(groupOf(key));
+      try {
+        return rpc.apply(stub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS));
+      } catch (StatusRuntimeException e) {
+        if (attempt == MAX_ROUTING_ATTEMPTS || !handleWrongGroup(e, stub)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Send a multi-key request to every group that owns some of the keys, and return the results of all the keys in the
+   * order of the keys. rpc sends the request of the keys of the given indexes, and returns their results in order. The
+   * keys a group rejects are sent again with the refreshed map.
+   */
+  private List<KeyResult> scatter(List<String> keys,
+                                  BiFunction<KeyValueStoreBlockingStub, List<Integer>, List<KeyResult>> rpc) {
+    KeyResult[] results = new KeyResult[keys.size()];
+    List<Integer> pending = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+      pending.add(i);
+    }
+    for (int attempt = 1; !pending.isEmpty(); attempt++) {
+      Map<String, List<Integer>> indexesByGroup = new HashMap<>();
+      for (int i : pending) {
+        indexesByGroup.computeIfAbsent(groupOf(keys.get(i)), group -> new ArrayList<>()).add(i);
+      }
+      List<Integer> rejected = new ArrayList<>();
+      for (Map.Entry<String, List<Integer>> entry : indexesByGroup.entrySet()) {
+        List<Integer> indexes = entry.getValue();
+        KeyValueStoreBlockingStub stub = stubOf(entry.getKey());
+        try {
+          List<KeyResult> groupResults = rpc.apply(stub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS), indexes);
+          for (int j = 0; j < indexes.size(); j++) {
+            results[indexes.get(j)] = groupResults.get(j);
+          }
+        } catch (StatusRuntimeException e) {
+          if (attempt == MAX_ROUTING_ATTEMPTS || !handleWrongGroup(e, stub)) {
+            throw e;
+          }
+          rejected.addAll(indexes);
+        }
+      }
+      Collections.sort(rejected);
+      pending = rejected;
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Returns whether the error is a group rejecting a key it doesn't own, after refreshing the map from that group if
+   * it has a newer map, or waiting for it to load the map of the client otherwise.
+   */
+  private boolean handleWrongGroup(StatusRuntimeException e, KeyValueStoreBlockingStub stub) {
+    Metadata trailers = Status.trailersFromThrowable(e);
+    String version = trailers == null ? null : trailers.get(PartitionRing.MAP_VERSION_TRAILER);
+    if (e.getStatus().getCode() != Status.Code.FAILED_PRECONDITION || version == null) {
+      return false;
+    }
+    PartitionRing current = ring;
+    if (current == null || Long.parseLong(version) > current.getVersion()) {
+      refreshMap(stub);
+      return true;
+    }
+    try {
+      Thread.sleep(STALE_GROUP_RETRY_DELAY_IN_MS);
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  // The pairs of the chunks of a scan
+  private static Iterator<KeyValuePair> pairsOf(Iterator<ScanResponse> chunks) {
+    return new Iterator<KeyValuePair>() {
+      private Iterator<KeyValuePair> chunk = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!chunk.hasNext() && chunks.hasNext()) {
+          chunk = chunks.next().getPairsList().iterator();
+        }
+        return chunk.hasNext();
+      }
+
+      @Override
+      public KeyValuePair next() {
+        hasNext();
+        return chunk.next();
+      }
+    };
+  }
+
+  // Merges the sorted ranges of the groups into one sorted range. The groups hold disjoint keys.
+  private static class MergedRanges implements Iterator<KeyValuePair> {
+    private final List<Iterator<KeyValuePair>> ranges;
+    // The head of each non-exhausted range, smallest key first
+    private final PriorityQueue<Map.Entry<KeyValuePair, Integer>> heads =
+            new PriorityQueue<>((a, b) -> a.getKey().getKey().compareTo(b.getKey().getKey()));
+
+    private MergedRanges(List<Iterator<KeyValuePair>> ranges) {
+      this.ranges = ranges;
+      for (int i = 0; i < ranges.size(); i++) {
+        advance(i);
+      }
+    }
+
+    private void advance(int rangeIndex) {
+      if (ranges.get(rangeIndex).hasNext()) {
+        heads.add(Map.entry(ranges.get(rangeIndex).next(), rangeIndex));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public KeyValuePair next() {
+      Map.Entry<KeyValuePair, Integer> head = heads.remove();
+      advance(head.getValue());
+      return head.getKey();
+    }
+  }
+
+  // Log the outcome of every key of a multi-key request
+  private static void logResults(List<KeyResult> results) {
+    for (KeyResult result : results) {
+      if (!result.getStatus()) {
+        ClientLogger.error("Error from server for key " + result.getKey() + ": " + result.getError());
+      } else if (!result.getValue().isEmpty()) {
+        ClientLogger.info("Response from server: " + result.getKey() + " " + result.getValue());
+      } else {
+        ClientLogger.info("Response from server: " + result.getKey() + " true");
+      }
+    }
+  }
 }
@@ -0,0 +1,255 @@
+package kvstore.client;
+
+import kvstore.metrics.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the values the client read, kept coherent by the invalidation streams of the replicas. A value is
+ * only cached if the replica tracked its key before reading it, and it is dropped when the replica reports a write to
+ * the key, so a cached value is at most the invalidation lag behind the replica that served it.
+ *
+ * A value read while an invalidation of its key arrives may already be stale, so every miss starts a load, and the
+ * value it reads is only cached if no invalidation of the key, or of the whole cache, arrived since it started.
+ *
+ * The eviction policy is W-TinyLFU by default: new keys enter a small LRU window, and a key evicted from the window
+ * only replaces the LRU key of the main segmented LRU if it was read more often, as estimated by a count-min sketch of
+ * the recent reads. Keys read once, e.g. by a scan-like burst, can't push out the hot keys. With the LRU policy, the
+ * whole cache is the window.
+ */
+public class ReadCache {
+  public enum Policy { LRU, TINYLFU }
+
+  // Shares of the W-TinyLFU segments, as in the W-TinyLFU paper
+  private static final double WINDOW_SHARE = 0.01;
+  private static final double PROTECTED_SHARE = 0.8;
+
+  private final int capacity;
+  private final int windowCapacity;
+  private final int protectedCapacity;
+  // Segments in LRU order, least recently used first. A key is in at most one of them.
+  private final LinkedHashMap<String, String> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, String> probation = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, String> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+  // Null with the LRU policy
+  private final FrequencySketch sketch;
+  // Token of the load in flight of every key. An invalidation of the key cancels it.
+  private final Map<String, Long> loads = new HashMap<>();
+  private long nextLoadToken = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long invalidations = 0;
+  private long evictions = 0;
+  // Time from the write applied by the replica to its invalidation received by the client
+  private final LatencyHistogram invalidationLag = new LatencyHistogram();
+
+  public ReadCache(int capacity, Policy policy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Cache capacity must be at least 1. Got " + capacity);
+    }
+    this.capacity = capacity;
+    if (policy == Policy.LRU) {
+      this.windowCapacity = capacity;
+      this.protectedCapacity = 0;
+      this.sketch = null;
+    } else {
+      this.windowCapacity = Math.max(1, (int) (capacity * WINDOW_SHARE));
+      this.protectedCapacity = (int) ((capacity - windowCapacity) * PROTECTED_SHARE);
+      this.sketch = new FrequencySketch(capacity);
+    }
+  }
+
+  // The cached value of the key, or null on a miss. Keys are cached in lower case, like the data storage keeps them.
+  public synchronized String get(String key) {
+    if (sketch != null) {
+      sketch.increment(key);
+    }
+    String value = window.get(key);
+    if (value == null) {
+      value = protectedSegment.get(key);
+    }
+    if (value == null) {
+      value = probation.remove(key);
+      if (value != null) {
+        // A second hit in the main segment protects the key.
+        protectedSegment.put(key, value);
+        if (protectedSegment.size() > protectedCapacity) {
+          Map.Entry<String, String> demoted = removeEldest(protectedSegment);
+          probation.put(demoted.getKey(), demoted.getValue());
+        }
+      }
+    }
+    if (value == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return value;
+  }
+
+  // Start loading a key after a miss. Returns the token to pass to completeLoad.
+  public synchronized long startLoad(String key) {
+    long token = nextLoadToken++;
+    loads.put(key, token);
+    return token;
+  }
+
+  // Cache the value a load read, unless the key was invalidated since the load started.
+  public synchronized void completeLoad(String key, long token, String value) {
+    Long current = loads.get(key);
+    if (current == null || current != token) {
+      return;
+    }
+    loads.remove(key);
+    if (window.containsKey(key)) {
+      window.put(key, value);
+    } else if (probation.containsKey(key)) {
+      probation.put(key, value);
+    } else if (protectedSegment.containsKey(key)) {
+      protectedSegment.put(key, value);
+    } else {
+      window.put(key, value);
+      if (window.size() > windowCapacity) {
+        admit(removeEldest(window));
+      }
+    }
+  }
+
+  // Give up a load that read nothing to cache
+  public synchronized void cancelLoad(String key, long token) {
+    Long current = loads.get(key);
+    if (current != null && current == token) {
+      loads.remove(key);
+    }
+  }
+
+  // Move a key evicted from the window to the main segments, if it is read more often than the key it would evict.
+  private void admit(Map.Entry<String, String> candidate) {
+    if (windowCapacity == capacity) {
+      evictions++;
+      return;
+    }
+    if (probation.size() + protectedSegment.size() < capacity - windowCapacity) {
+      probation.put(candidate.getKey(), candidate.getValue());
+      return;
+    }
+    LinkedHashMap<String, String> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+    String victim = victimSegment.keySet().iterator().next();
+    evictions++;
+    if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+      victimSegment.remove(victim);
+      probation.put(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> segment) {
+    Iterator<Map.Entry<String, String>> entries = segment.entrySet().iterator();
+    Map.Entry<String, String> eldest = entries.next();
+    Map.Entry<String, String> entry = Map.entry(eldest.getKey(), eldest.getValue());
+    entries.remove();
+    return entry;
+  }
+
+  // Drop the key, and cancel its load in flight.
+  public synchronized void invalidate(String key) {
+    loads.remove(key);
+    if (window.remove(key) != null || probation.remove(key) != null || protectedSegment.remove(key) != null) {
+      invalidations++;
+    }
+  }
+
+  // Record the time from a write applied by a replica to its invalidation received by the client
+  public void recordInvalidationLag(long lagInMicros) {
+    invalidationLag.record(lagInMicros);
+  }
+
+  // Drop every key and cancel every load, e.g. when an invalidation stream failed and invalidations may be lost.
+  public synchronized void invalidateAll() {
+    invalidations += size();
+    window.clear();
+    probation.clear();
+    protectedSegment.clear();
+    loads.clear();
+  }
+
+  public synchronized int size() {
+    return window.size() + probation.size() + protectedSegment.size();
+  }
+
+  // One line summary of the cache: size, hit rate, invalidations, evictions and invalidation lag percentiles
+  public synchronized String describe() {
+    long lookups = hits + misses;
+    return String.format("size=%d/%d hits=%d misses=%d hitRate=%.1f%% invalidations=%d evictions=%d "
+                    + "invalidationLag p50=%dus p99=%dus max=%dus",
+            size(), capacity, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, invalidations, evictions,
+            invalidationLag.percentile(0.5), invalidationLag.percentile(0.99), invalidationLag.max());
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Count-min sketch of how often the keys were read, with 4-bit counters in 4 rows. Once it counted 10 reads per cached
+   * key, all the counters are halved, so that the frequencies follow the recent reads.
+   */
+  private static class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final byte[][] counts;
+    private final int mask;
+    private final int sampleSize;
+    private int numIncrements = 0;
+
+    private FrequencySketch(int capacity) {
+      // A power of two at least the capacity
+      int width = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+      this.counts = new byte[ROWS][width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * capacity;
+    }
+
+    private int indexOf(String key, int row) {
+      int hash = key.hashCode() * SEEDS[row];
+      hash ^= hash >>> 17;
+      hash *= 0xED5AD4BB;
+      return (hash ^ (hash >>> 11)) & mask;
+    }
+
+    private void increment(String key) {
+      boolean incremented = false;
+      for (int row = 0; row < ROWS; row++) {
+        int index = indexOf(key, row);
+        if (counts[row][index] < MAX_COUNT) {
+          counts[row][index]++;
+          incremented = true;
+        }
+      }
+      if (incremented && ++numIncrements >= sampleSize) {
+        for (byte[] row : counts) {
+          for (int i = 0; i < row.length; i++) {
+            row[i] >>= 1;
+          }
+        }
+        numIncrements /= 2;
+      }
+    }
+
+    private int frequency(String key) {
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < ROWS; row++) {
+        frequency = Math.min(frequency, counts[row][indexOf(key, row)]);
+      }
+      return frequency;
+    }
+  }
+}
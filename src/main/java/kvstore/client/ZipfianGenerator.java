@@ -0,0 +1,69 @@
+package kvstore.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws key indexes in [0, numKeys) with a Zipfian distribution, like the YCSB workloads: a few keys get most of the
+ * requests. Uses the method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases", which draws in
+ * constant time once zeta(numKeys) is computed. The ranks are scrambled with a hash, so that the hot keys are spread
+ * over the key space instead of all being the smallest indexes.
+ */
+public class ZipfianGenerator {
+  // The skew of the YCSB workloads
+  public static final double DEFAULT_THETA = 0.99;
+
+  private final long numKeys;
+  private final double theta;
+  private final double alpha;
+  private final double zetaN;
+  private final double eta;
+
+  public ZipfianGenerator(long numKeys) {
+    this(numKeys, DEFAULT_THETA);
+  }
+
+  public ZipfianGenerator(long numKeys, double theta) {
+    if (numKeys <= 0) {
+      throw new IllegalArgumentException("numKeys must be positive: " + numKeys);
+    }
+    this.numKeys = numKeys;
+    this.theta = theta;
+    this.alpha = 1.0 / (1.0 - theta);
+    this.zetaN = zeta(numKeys, theta);
+    double zeta2 = zeta(2, theta);
+    this.eta = (1 - Math.pow(2.0 / numKeys, 1 - theta)) / (1 - zeta2 / zetaN);
+  }
+
+  // Draw the next key index. Thread-safe.
+  public long next() {
+    double u = ThreadLocalRandom.current().nextDouble();
+    double uz = u * zetaN;
+    long rank;
+    if (uz < 1.0) {
+      rank = 0;
+    } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+      rank = 1;
+    } else {
+      rank = Math.min(numKeys - 1, (long) (numKeys * Math.pow(eta * u - eta + 1, alpha)));
+    }
+    return Math.floorMod(fnvHash(rank), numKeys);
+  }
+
+  private static double zeta(long n, double theta) {
+    double sum = 0;
+    for (long i = 1; i <= n; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+
+  // 64-bit FNV-1a hash of the bytes of a long
+  private static long fnvHash(long value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < 8; i++) {
+      hash ^= (value >>> (i * 8)) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
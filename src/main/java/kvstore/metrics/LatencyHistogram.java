@@ -0,0 +1,112 @@
+package kvstore.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, in the style of HdrHistogram: values below 128 are counted exactly, and larger
+ * values in buckets of 64 per power of two, so every percentile is within 1.6% of the recorded value. Recording is
+ * lock-free and allocation-free, so many threads can record into the same histogram while another thread reports it.
+ */
+public class LatencyHistogram {
+  private static final int LINEAR_BUCKETS = 128;
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Latencies are capped at 2^41 us, i.e. about 25 days.
+  private static final int MAX_SHIFT = 34;
+  private static final long MAX_VALUE = (1L << (MAX_SHIFT + SUB_BUCKET_BITS + 1)) - 1;
+  private static final int NUM_BUCKETS = LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalValue = new AtomicLong();
+  private final AtomicLong maxValue = new AtomicLong();
+
+  public void record(long valueInMicros) {
+    long value = Math.min(Math.max(valueInMicros, 0), MAX_VALUE);
+    counts.incrementAndGet(bucketOf(value));
+    totalCount.incrementAndGet();
+    totalValue.addAndGet(value);
+    maxValue.accumulateAndGet(value, Math::max);
+  }
+
+  // Move the counts of this histogram into a new one, and reset this one. Every recorded value ends up in exactly one of
+  // the drained histograms, even while other threads keep recording.
+  public LatencyHistogram drain() {
+    LatencyHistogram drained = new LatencyHistogram();
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long count = counts.getAndSet(i, 0);
+      if (count > 0) {
+        drained.counts.set(i, count);
+        total += count;
+      }
+    }
+    totalCount.addAndGet(-total);
+    drained.totalCount.set(total);
+    drained.totalValue.set(totalValue.getAndSet(0));
+    drained.maxValue.set(maxValue.getAndSet(0));
+    return drained;
+  }
+
+  // Add the counts of another histogram to this one.
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long count = other.counts.get(i);
+      if (count > 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    totalCount.addAndGet(other.totalCount.get());
+    totalValue.addAndGet(other.totalValue.get());
+    maxValue.accumulateAndGet(other.maxValue.get(), Math::max);
+  }
+
+  public long count() {
+    return totalCount.get();
+  }
+
+  // Sum of the recorded values, e.g. for the mean latency
+  public long sum() {
+    return totalValue.get();
+  }
+
+  public long max() {
+    return maxValue.get();
+  }
+
+  // The value below which the given fraction of the recorded values fall, e.g. 0.99 for p99. 0 if nothing is recorded.
+  public long percentile(double fraction) {
+    long total = totalCount.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), maxValue.get());
+      }
+    }
+    return maxValue.get();
+  }
+
+  private static int bucketOf(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    // Shift the value to 7 significant bits, i.e. a sub-bucket in [64, 128)
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+  }
+
+  private static long highestValueOf(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+    long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,146 @@
+package kvstore.partition;
+
+import com.google.common.hash.Hashing;
+import io.grpc.Metadata;
+import kvstore.PartitionMap;
+import kvstore.ReplicaGroup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of a partition map, shared by the servers and the clients so that they agree on the owner of
+ * every key. Every replica group owns a number of virtual nodes, points of the ring at the hash of "name#i", and a key
+ * belongs to the group of the first point at or after the hash of the key, wrapping around. With many virtual nodes per
+ * group, the groups own about the same share of the keys, and adding a group to N others only moves about 1/(N+1) of
+ * the keys, all of them to the new group.
+ *
+ * Keys are hashed in lower case, like the data storage keeps them.
+ */
+public class PartitionRing {
+  public static final int DEFAULT_VIRTUAL_NODES = 256;
+  // Trailer of the errors for keys sent to a replica group that doesn't own them: the version of the partition map of
+  // the server, so that the client knows its own map is out of date.
+  public static final Metadata.Key<String> MAP_VERSION_TRAILER =
+          Metadata.Key.of("kvstore-partition-map-version", Metadata.ASCII_STRING_MARSHALLER);
+
+  private final PartitionMap map;
+  // Virtual nodes by position on the ring
+  private final TreeMap<Long, ReplicaGroup> ring = new TreeMap<>();
+
+  // Build the ring of a partition map with at least one group. Throws IllegalArgumentException if the map is invalid.
+  public PartitionRing(PartitionMap map) {
+    if (map.getGroupsCount() == 0) {
+      throw new IllegalArgumentException("Partition map has no replica group");
+    }
+    Set<String> names = new HashSet<>();
+    for (ReplicaGroup group : map.getGroupsList()) {
+      if (!names.add(group.getName())) {
+        throw new IllegalArgumentException("Duplicate replica group " + group.getName());
+      }
+      if (group.getAddressesCount() == 0) {
+        throw new IllegalArgumentException("Replica group " + group.getName() + " has no replica");
+      }
+    }
+    this.map = map;
+    int virtualNodes = map.getVirtualNodes() > 0 ? map.getVirtualNodes() : DEFAULT_VIRTUAL_NODES;
+    for (ReplicaGroup group : map.getGroupsList()) {
+      for (int i = 0; i < virtualNodes; i++) {
+        // On the rare collision, the first group keeps the point on every client and server alike.
+        ring.putIfAbsent(hash(group.getName() + "#" + i), group);
+      }
+    }
+  }
+
+  public PartitionMap getMap() {
+    return map;
+  }
+
+  public long getVersion() {
+    return map.getVersion();
+  }
+
+  // Replica group that owns the key
+  public ReplicaGroup groupOf(String key) {
+    Map.Entry<Long, ReplicaGroup> node = ring.ceilingEntry(hash(key.toLowerCase()));
+    return node != null ? node.getValue() : ring.firstEntry().getValue();
+  }
+
+  private static long hash(String text) {
+    return Hashing.murmur3_128().hashString(text, StandardCharsets.UTF_8).asLong();
+  }
+
+  /**
+   * Read a partition map file. Blank lines and lines starting with # are ignored. The other lines are:
+   *   version <n>: version of the map, to be increased on every change
+   *   virtual-nodes <n>: optional, virtual nodes per group. Defaults to DEFAULT_VIRTUAL_NODES
+   *   group <name> <host:port>,<host:port>,...: one replica group, with the addresses of its replicas
+   * Throws IllegalArgumentException if the file is malformed.
+   */
+  public static PartitionMap readFile(Path file) throws IOException {
+    PartitionMap.Builder builder = PartitionMap.newBuilder();
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] tokens = line.split("\\s+");
+      try {
+        switch (tokens[0]) {
+          case "version":
+            checkTokens(tokens, 2);
+            builder.setVersion(Long.parseLong(tokens[1]));
+            break;
+          case "virtual-nodes":
+            checkTokens(tokens, 2);
+            builder.setVirtualNodes(Integer.parseInt(tokens[1]));
+            break;
+          case "group":
+            checkTokens(tokens, 3);
+            ReplicaGroup.Builder group = ReplicaGroup.newBuilder().setName(tokens[1]);
+            for (String address : tokens[2].split(",")) {
+              portOf(address);
+              group.addAddresses(address);
+            }
+            builder.addGroups(group);
+            break;
+          default:
+            throw new IllegalArgumentException("unknown entry " + tokens[0]);
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(file + " line " + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+    PartitionMap map = builder.build();
+    // Validates the groups
+    new PartitionRing(map);
+    return map;
+  }
+
+  // Port of a host:port address. Throws IllegalArgumentException if the address is malformed.
+  public static int portOf(String address) {
+    int separator = address.lastIndexOf(':');
+    if (separator <= 0) {
+      throw new IllegalArgumentException("expected host:port, got " + address);
+    }
+    int port = Integer.parseInt(address.substring(separator + 1));
+    if (port < 0 || port > 65535) {
+      throw new IllegalArgumentException("invalid port in " + address);
+    }
+    return port;
+  }
+
+  private static void checkTokens(String[] tokens, int expected) {
+    if (tokens.length != expected) {
+      throw new IllegalArgumentException("expected " + expected + " tokens, got " + tokens.length);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package kvstore.server;
+
+/**
+ * Bloom filter over the keys of one SSTable, so that a point GET skips the tables that can't contain the key without
+ * reading them. With 10 bits per key and 7 hash functions, about 1% of the lookups of missing keys read a block anyway.
+ */
+class BloomFilter {
+  private static final int BITS_PER_KEY = 10;
+  private static final int NUM_HASHES = 7;
+
+  private final long[] bits;
+  private final long numBits;
+
+  // An empty filter sized for the given number of keys
+  BloomFilter(long expectedKeys) {
+    this(new long[(int) Math.max(1, (Math.max(1, expectedKeys) * BITS_PER_KEY + 63) / 64)]);
+  }
+
+  // A filter with the given bits, as returned by toLongs()
+  BloomFilter(long[] bits) {
+    this.bits = bits;
+    this.numBits = (long) bits.length * 64;
+  }
+
+  void add(byte[] key) {
+    long hash = hash(key);
+    for (int i = 0; i < NUM_HASHES; i++) {
+      long bit = bitIndex(hash, i);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  // False if the key is definitely not in the set
+  boolean mightContain(byte[] key) {
+    long hash = hash(key);
+    for (int i = 0; i < NUM_HASHES; i++) {
+      long bit = bitIndex(hash, i);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The i-th bit of the key, from the two 32-bit halves of its hash. Computed as a long, so that the index reaches
+  // every bit of a filter larger than 2^31 bits, and isn't skewed by int overflow.
+  private long bitIndex(long hash, int i) {
+    long hash1 = hash & 0xffffffffL;
+    long hash2 = hash >>> 32;
+    return Math.floorMod(hash1 + i * hash2, numBits);
+  }
+
+  long[] toLongs() {
+    return bits;
+  }
+
+  // 64-bit FNV-1a, split into the two hashes of the double hashing scheme
+  private static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,255 @@
+package kvstore.server;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import kvstore.BulkLoadAck;
+import kvstore.BulkLoadRequest;
+import kvstore.KeyResult;
+import kvstore.KeyValuePair;
+import kvstore.MultiPutRequest;
+import kvstore.MultiPutResponse;
+import kvstore.PaxosDatum;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves bulk loads: streams of records imported into the store, typically to load the initial data set. Instead of
+ * one Paxos round per record, the records are cut into chunks of up to MAX_CHUNK_PAIRS, and each chunk is replicated as
+ * one proposal. Up to MAX_IN_FLIGHT_CHUNKS chunks are replicated at the same time. Beyond that, the stream stops asking
+ * the client for more records until a chunk completes, so a fast client can't pile up records in the server's memory.
+ *
+ * The client gets an ack with the number of records loaded whenever a chunk completes. Acks count the records in
+ * stream order: chunks that complete out of order are only acknowledged once the chunks before them completed too.
+ *
+ * On a replica with several shards, every chunk is split by shard, and each part is replicated by the consensus group of
+ * its shard. The chunk completes once all its parts did.
+ *
+ * With a partition map, every record must belong to the replica group, like the keys of the other writes. The first
+ * record of another group fails the stream with the error that makes the client refresh its partition map. The
+ * records received before it may have been loaded.
+ */
+public class BulkLoader {
+  private static final int MAX_CHUNK_PAIRS = 4096;
+  private static final int MAX_CHUNK_BYTES = 1 << 20;
+  private static final int MAX_IN_FLIGHT_CHUNKS = 8;
+  // A chunk forwarded to the leader gets more time than a single request, since it takes several Paxos retries to fail.
+  private static final long FORWARD_TIMEOUT_IN_MS = 60_000;
+
+  // The Proposer and the WriteBatcher of every shard, indexed by shard
+  private final List<Proposer> proposers;
+  private final List<WriteBatcher> writeBatchers;
+  // The partition map of the replica group, or null without one
+  private final PartitionManager partitions;
+  private final ExecutorService forwardExecutor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "bulk-load-forwarder");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public BulkLoader(Proposer proposer, WriteBatcher writeBatcher) {
+    this(List.of(proposer), List.of(writeBatcher), null);
+  }
+
+  // Load into every shard of the replica. A null partition map accepts every key.
+  public BulkLoader(List<Proposer> proposers, List<WriteBatcher> writeBatchers, PartitionManager partitions) {
+    this.proposers = proposers;
+    this.writeBatchers = writeBatchers;
+    this.partitions = partitions;
+  }
+
+  // Start serving a bulk load. Returns the observer of the records the client sends.
+  public StreamObserver<BulkLoadRequest> serve(ServerCallStreamObserver<BulkLoadAck> responseObserver) {
+    BulkLoadStream stream = new BulkLoadStream(responseObserver);
+    // Ask for the records one message at a time, so that the stream can stop asking while the chunks are busy.
+    responseObserver.disableAutoRequest();
+    responseObserver.request(1);
+    return stream;
+  }
+
+  // Replicate the writes of one chunk, as one proposal per shard.
+  private CompletableFuture<Void> replicate(List<PaxosDatum> data) {
+    if (proposers.size() == 1) {
+      return replicate(0, data);
+    }
+    List<List<PaxosDatum>> dataByShard = new ArrayList<>();
+    for (int shard = 0; shard < proposers.size(); shard++) {
+      dataByShard.add(new ArrayList<>());
+    }
+    for (PaxosDatum datum : data) {
+      dataByShard.get(ShardRouter.shardOf(datum.getKey(), proposers.size())).add(datum);
+    }
+    List<CompletableFuture<Void>> parts = new ArrayList<>();
+    for (int shard = 0; shard < dataByShard.size(); shard++) {
+      if (!dataByShard.get(shard).isEmpty()) {
+        parts.add(replicate(shard, dataByShard.get(shard)));
+      }
+    }
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Replicate the writes of one shard as one proposal. A replica that isn't the leader of the shard forwards the writes
+   * to the leader as a MULTI-PUT, like it forwards the other writes.
+   */
+  private CompletableFuture<Void> replicate(int shard, List<PaxosDatum> data) {
+    Proposer proposer = proposers.get(shard);
+    WriteBatcher writeBatcher = writeBatchers.get(shard);
+    if (!proposer.hasRemoteLeader()) {
+      return writeBatcher.submitAll(data);
+    }
+    return CompletableFuture.runAsync(() -> {
+      MultiPutRequest.Builder requestBuilder = MultiPutRequest.newBuilder().setForwarded(true);
+      for (PaxosDatum datum : data) {
+        requestBuilder.addPairs(KeyValuePair.newBuilder().setKey(datum.getKey()).setValue(datum.getValue()));
+      }
+      try {
+        MultiPutResponse response = proposer.forwardMultiPut(requestBuilder.build(), FORWARD_TIMEOUT_IN_MS);
+        for (KeyResult result : response.getResultsList()) {
+          if (!result.getStatus()) {
+            throw new IllegalStateException(result.getError());
+          }
+        }
+      } catch (StatusRuntimeException e) {
+        if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+          throw e;
+        }
+        // The leader is down. Take over by proposing from this replica.
+        ServerLogger.error("Leader unavailable: %s", e.getMessage());
+        proposer.forgetLeader();
+        writeBatcher.submitAll(data).join();
+      }
+    }, forwardExecutor);
+  }
+
+  // One chunk of records being replicated
+  private static class Chunk {
+    private final int size;
+    private boolean done = false;
+
+    private Chunk(int size) {
+      this.size = size;
+    }
+  }
+
+  // One bulk load served by this replica
+  private class BulkLoadStream implements StreamObserver<BulkLoadRequest> {
+    private final ServerCallStreamObserver<BulkLoadAck> responseObserver;
+    private final long startTime = System.currentTimeMillis();
+    // The chunks being replicated, in stream order
+    private final ArrayDeque<Chunk> inFlightChunks = new ArrayDeque<>();
+    private List<PaxosDatum> nextChunk = new ArrayList<>();
+    private int nextChunkBytes = 0;
+    private long numReceived = 0;
+    private long numLoaded = 0;
+    // Whether the stream holds back asking for the next message, because too many chunks are in flight
+    private boolean requestWithheld = false;
+    private boolean clientCompleted = false;
+    private boolean finished = false;
+
+    private BulkLoadStream(ServerCallStreamObserver<BulkLoadAck> responseObserver) {
+      this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public synchronized void onNext(BulkLoadRequest request) {
+      if (finished) {
+        return;
+      }
+      for (KeyValuePair pair : request.getPairsList()) {
+        String key = pair.getKey().toLowerCase();
+        String value = pair.getValue().toLowerCase();
+        if (partitions != null && !partitions.owns(key)) {
+          finished = true;
+          StatusRuntimeException error = partitions.wrongGroup(key);
+          ServerLogger.error("Bulk load failed after %d records received: %s", numReceived, error.getMessage());
+          responseObserver.onError(error);
+          return;
+        }
+        nextChunk.add(PaxosDatum.newBuilder().setMethod("PUT").setKey(key).setValue(value).build());
+        nextChunkBytes += key.length() + value.length();
+        numReceived++;
+        if (nextChunk.size() >= MAX_CHUNK_PAIRS || nextChunkBytes >= MAX_CHUNK_BYTES) {
+          submitChunk();
+        }
+      }
+      if (inFlightChunks.size() < MAX_IN_FLIGHT_CHUNKS) {
+        responseObserver.request(1);
+      } else {
+        requestWithheld = true;
+      }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+      if (!finished) {
+        finished = true;
+        ServerLogger.error("Bulk load cancelled by the client after %d records received, %d loaded: %s",
+                numReceived, numLoaded, t.getMessage());
+      }
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+      clientCompleted = true;
+      if (!nextChunk.isEmpty()) {
+        submitChunk();
+      }
+      completeIfDone();
+    }
+
+    private void submitChunk() {
+      List<PaxosDatum> data = nextChunk;
+      nextChunk = new ArrayList<>();
+      nextChunkBytes = 0;
+      Chunk chunk = new Chunk(data.size());
+      inFlightChunks.add(chunk);
+      replicate(data).whenComplete((ignored, e) -> onChunkDone(chunk, e));
+    }
+
+    private synchronized void onChunkDone(Chunk chunk, Throwable error) {
+      if (finished) {
+        return;
+      }
+      if (error != null) {
+        finished = true;
+        ServerLogger.error("Bulk load failed after %d records loaded: %s", numLoaded, error.getMessage());
+        responseObserver.onError(Status.INTERNAL
+                .withDescription("Failed to replicate records after " + numLoaded + " loaded: " + error.getMessage())
+                .asRuntimeException());
+        return;
+      }
+      chunk.done = true;
+      long previouslyLoaded = numLoaded;
+      while (!inFlightChunks.isEmpty() && inFlightChunks.peek().done) {
+        numLoaded += inFlightChunks.poll().size;
+      }
+      if (numLoaded > previouslyLoaded) {
+        responseObserver.onNext(BulkLoadAck.newBuilder().setNumLoaded(numLoaded).build());
+      }
+      if (requestWithheld && inFlightChunks.size() < MAX_IN_FLIGHT_CHUNKS) {
+        requestWithheld = false;
+        responseObserver.request(1);
+      }
+      completeIfDone();
+    }
+
+    private void completeIfDone() {
+      if (finished || !clientCompleted || !inFlightChunks.isEmpty()) {
+        return;
+      }
+      finished = true;
+      long durationInMs = Math.max(1, System.currentTimeMillis() - startTime);
+      ServerLogger.info("Bulk load of %d records completed in %d ms (%d records/s)",
+              numLoaded, durationInMs, numLoaded * 1000 / durationInMs);
+      responseObserver.onNext(BulkLoadAck.newBuilder().setNumLoaded(numLoaded).build());
+      responseObserver.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package kvstore.server;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import kvstore.Invalidations;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the client-side read caches coherent. A client opens an invalidation stream, and passes the id of its
+ * subscription in the GETs of the keys it wants to cache. The replica tracks the key for the subscription before it
+ * reads the value, and once the ReplicatedLog applies a write to the key, it sends the key on the stream and stops
+ * tracking it, until the next GET of the key tracks it again. Since the key is tracked before the read and invalidated
+ * after the write, a client never keeps a value older than the last write it was told about.
+ *
+ * The apply path only removes the key from the tracking table and queues it for its subscribers. The keys are sent
+ * from a background thread, batched, and only while the stream has room. A subscriber that falls too far behind is
+ * dropped: its stream fails, and the client clears its cache before it subscribes again. When the tracking table is
+ * full, some tracked keys are invalidated early to make room, like an eviction.
+ */
+class CacheInvalidator {
+  // Keys tracked for all the subscriptions together
+  private static final int MAX_TRACKED_KEYS = 1 << 20;
+  // Keys queued for a subscriber that doesn't read its stream, before it is dropped
+  private static final int MAX_QUEUED_KEYS = 1 << 16;
+  private static final int MAX_MESSAGE_KEYS = 1024;
+  private static final LongAdder INVALIDATIONS = Metrics.counter("kvstore_cache_invalidations_total");
+  private static final LongAdder DROPPED_SUBSCRIBERS = Metrics.counter("kvstore_cache_dropped_subscribers_total");
+
+  private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+  // Subscribers of every tracked key. The sets are only changed inside the compute functions of the map.
+  private final ConcurrentHashMap<String, Set<Subscriber>> trackedKeys = new ConcurrentHashMap<>();
+  private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "cache-invalidator");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  CacheInvalidator() {
+    Metrics.gauge(subscribers::size, "kvstore_cache_subscribers");
+    Metrics.gauge(trackedKeys::mappingCount, "kvstore_cache_tracked_keys");
+  }
+
+  // Open the invalidation stream of a new subscription. Its first message carries the id of the subscription.
+  void subscribe(ServerCallStreamObserver<Invalidations> responseObserver) {
+    Subscriber subscriber = new Subscriber(UUID.randomUUID().toString(), responseObserver);
+    subscribers.put(subscriber.id, subscriber);
+    responseObserver.setOnCancelHandler(() -> unsubscribe(subscriber));
+    responseObserver.setOnReadyHandler(subscriber::drain);
+    synchronized (subscriber) {
+      responseObserver.onNext(Invalidations.newBuilder().setSubscriptionId(subscriber.id).build());
+    }
+    ServerLogger.info("Cache subscription %s opened", subscriber.id);
+  }
+
+  /**
+   * Track a key for a subscription, before reading it for a GET. Returns whether the key is tracked, i.e. whether the
+   * client may cache the value it reads. A subscription this replica doesn't know, e.g. one opened before a restart,
+   * isn't.
+   */
+  boolean track(String subscriptionId, String key) {
+    Subscriber subscriber = subscribers.get(subscriptionId);
+    if (subscriber == null || subscriber.closed) {
+      return false;
+    }
+    while (trackedKeys.mappingCount() >= MAX_TRACKED_KEYS && !trackedKeys.containsKey(key)) {
+      Iterator<String> tracked = trackedKeys.keySet().iterator();
+      if (!tracked.hasNext()) {
+        break;
+      }
+      invalidate(tracked.next());
+    }
+    trackedKeys.compute(key, (k, keySubscribers) -> {
+      Set<Subscriber> updated = keySubscribers == null ? new HashSet<>() : keySubscribers;
+      updated.add(subscriber);
+      return updated;
+    });
+    return true;
+  }
+
+  // Send the key to its subscribers, after a write to it was applied. Called by the ReplicatedLog, so it never blocks.
+  void invalidate(String key) {
+    if (trackedKeys.isEmpty()) {
+      return;
+    }
+    Set<Subscriber> keySubscribers = trackedKeys.remove(key);
+    if (keySubscribers == null) {
+      return;
+    }
+    long appliedAtMicros = epochMicros();
+    for (Subscriber subscriber : keySubscribers) {
+      subscriber.enqueue(key, appliedAtMicros);
+    }
+  }
+
+  // Make every subscriber drop all of its cached keys, after the data storage was replaced by a snapshot.
+  void invalidateAll() {
+    trackedKeys.clear();
+    long appliedAtMicros = epochMicros();
+    for (Subscriber subscriber : subscribers.values()) {
+      subscriber.enqueue(null, appliedAtMicros);
+    }
+  }
+
+  // End every invalidation stream, when the server shuts down. Their clients clear their caches.
+  void close() {
+    for (Subscriber subscriber : subscribers.values()) {
+      unsubscribe(subscriber);
+      sender.execute(() -> subscriber.fail(Status.UNAVAILABLE.withDescription("Server shutting down")));
+    }
+  }
+
+  private void unsubscribe(Subscriber subscriber) {
+    subscriber.closed = true;
+    if (subscribers.remove(subscriber.id) == null) {
+      return;
+    }
+    for (String key : trackedKeys.keySet()) {
+      trackedKeys.computeIfPresent(key, (k, keySubscribers) -> {
+        keySubscribers.remove(subscriber);
+        return keySubscribers.isEmpty() ? null : keySubscribers;
+      });
+    }
+    ServerLogger.info("Cache subscription %s closed", subscriber.id);
+  }
+
+  private static long epochMicros() {
+    Instant now = Instant.now();
+    return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+  }
+
+  // One invalidation stream, and the keys queued for it
+  private class Subscriber {
+    private final String id;
+    private final ServerCallStreamObserver<Invalidations> responseObserver;
+    // Keys to send, oldest first
+    private final Queue<QueuedKey> queuedKeys = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numQueued = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    private Subscriber(String id, ServerCallStreamObserver<Invalidations> responseObserver) {
+      this.id = id;
+      this.responseObserver = responseObserver;
+    }
+
+    private void enqueue(String key, long appliedAtMicros) {
+      if (closed) {
+        return;
+      }
+      if (numQueued.incrementAndGet() > MAX_QUEUED_KEYS) {
+        drop();
+        return;
+      }
+      queuedKeys.add(new QueuedKey(key, appliedAtMicros));
+      if (drainScheduled.compareAndSet(false, true)) {
+        sender.execute(this::drain);
+      }
+    }
+
+    // Send the queued keys for as long as the stream is ready. The rest is sent when it is ready again.
+    private synchronized void drain() {
+      drainScheduled.set(false);
+      while (!closed && !queuedKeys.isEmpty() && responseObserver.isReady()) {
+        Invalidations.Builder message = Invalidations.newBuilder()
+                .setAppliedAtMicros(queuedKeys.peek().appliedAtMicros);
+        QueuedKey queued;
+        while (message.getKeysCount() < MAX_MESSAGE_KEYS && (queued = queuedKeys.poll()) != null) {
+          numQueued.decrementAndGet();
+          if (queued.key == null) {
+            message.setAll(true);
+          } else {
+            message.addKeys(queued.key);
+          }
+        }
+        if (message.getAll()) {
+          message.clearKeys();
+        }
+        INVALIDATIONS.add(message.getKeysCount());
+        responseObserver.onNext(message.build());
+      }
+    }
+
+    // Fail the stream of a subscriber that doesn't keep up, so that its client clears its cache and subscribes again.
+    // Called from the apply path, so the tracking table is cleaned up by the sender thread.
+    private void drop() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      DROPPED_SUBSCRIBERS.increment();
+      ServerLogger.error("Dropped cache subscription %s, which is more than %d invalidations behind",
+              id, MAX_QUEUED_KEYS);
+      sender.execute(() -> {
+        unsubscribe(this);
+        fail(Status.RESOURCE_EXHAUSTED.withDescription("Too many invalidations queued for the subscription"));
+      });
+    }
+
+    private synchronized void fail(Status status) {
+      try {
+        responseObserver.onError(status.asRuntimeException());
+      } catch (IllegalStateException e) {
+        // The call was already cancelled.
+      }
+    }
+  }
+
+  // A key to invalidate, or null for all the keys, and the time its write was applied
+  private static class QueuedKey {
+    private final String key;
+    private final long appliedAtMicros;
+
+    private QueuedKey(String key, long appliedAtMicros) {
+      this.key = key;
+      this.appliedAtMicros = appliedAtMicros;
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package kvstore.server;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import kvstore.CatchUpChunk;
+import kvstore.CatchUpRequest;
+import kvstore.DecidedSlot;
+import kvstore.HandOffState;
+import kvstore.KeyValuePair;
+import kvstore.KeyValueStoreGrpc;
+import kvstore.SnapshotChunk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings a lagging or restarted replica up to date by streaming the state it is missing from another replica, instead
+ * of re-running Paxos slot by slot. If the donor still has the log from the first slot the lagging replica hasn't
+ * applied, only the decided log tail is streamed. Otherwise the donor streams a fuzzy snapshot of its data storage in
+ * chunks, followed by the log tail after the snapshot slot.
+ *
+ * The donor produces the chunks on its own executor, and only while the gRPC stream is ready to send, so that a slow
+ * receiver neither stalls the request handlers of the donor nor makes it buffer the whole data set in memory.
+ *
+ * A replica detects that it is lagging when the decided slots pile up behind a hole in its log that doesn't get filled,
+ * or when it wants to lead but the acceptors already compacted the slots it is missing.
+ */
+public class CatchUpManager {
+  private static final long CATCH_UP_CHECK_INTERVAL_IN_MS = 2000;
+  private static final long CATCH_UP_TIMEOUT_IN_MS = 10 * 60 * 1000;
+  private static final int MAX_CHUNK_PAIRS = 4096;
+  private static final int MAX_CHUNK_BYTES = 1 << 20;
+  private static final int MAX_CHUNK_SLOTS = 256;
+  private static final int NUM_DONOR_THREADS = 2;
+
+  private final Proposer proposer;
+  private final ReplicatedLog replicatedLog;
+  private final DataStorage dataStorage;
+  private final Snapshotter snapshotter;
+  private final ExecutorService donorExecutor = Executors.newFixedThreadPool(NUM_DONOR_THREADS, runnable -> {
+    Thread thread = new Thread(runnable, "catch-up-donor");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Statistics of the catch-ups of this replica
+  private volatile long numCatchUps = 0;
+  private volatile long lastCatchUpDurationInMs = -1;
+  private volatile long lastCatchUpSlots = 0;
+
+  public CatchUpManager(Proposer proposer, ReplicatedLog replicatedLog, DataStorage dataStorage, Snapshotter snapshotter) {
+    this.proposer = proposer;
+    this.replicatedLog = replicatedLog;
+    this.dataStorage = dataStorage;
+    this.snapshotter = snapshotter;
+    String shard = Integer.toString(proposer.getShard());
+    Metrics.gauge(this::getNumCatchUps, "kvstore_catch_ups", "shard", shard);
+    Metrics.gauge(this::getLastCatchUpDurationInMs, "kvstore_last_catch_up_duration_ms", "shard", shard);
+    Metrics.gauge(this::getLastCatchUpSlots, "kvstore_last_catch_up_slots", "shard", shard);
+    Thread monitor = new Thread(this::monitorLoop, "catch-up-monitor");
+    monitor.setDaemon(true);
+    monitor.start();
+  }
+
+  // Number of catch-ups this replica completed
+  public long getNumCatchUps() {
+    return numCatchUps;
+  }
+
+  // Duration of the last completed catch-up, or -1 if none
+  public long getLastCatchUpDurationInMs() {
+    return lastCatchUpDurationInMs;
+  }
+
+  // Number of slots the last completed catch-up advanced this replica by
+  public long getLastCatchUpSlots() {
+    return lastCatchUpSlots;
+  }
+
+  // Runs on the monitor thread. Catches up once the first unapplied slot stays stuck behind a hole in the log.
+  private void monitorLoop() {
+    long lastFirstUndecidedSlot = -1;
+    while (true) {
+      try {
+        Thread.sleep(CATCH_UP_CHECK_INTERVAL_IN_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long firstUndecidedSlot = replicatedLog.firstUndecidedSlot();
+      if (firstUndecidedSlot == lastFirstUndecidedSlot && replicatedLog.largestDecidedSlot() >= firstUndecidedSlot) {
+        ServerLogger.info("Slot %d is still missing while later slots are decided. Catching up.", firstUndecidedSlot);
+        catchUp();
+      }
+      lastFirstUndecidedSlot = replicatedLog.firstUndecidedSlot();
+    }
+  }
+
+  /**
+   * Pull the missing state from another replica: the leader if it is known, otherwise the other replicas one after the
+   * other, until one of them moves this replica forward.
+   */
+  public synchronized void catchUp() {
+    List<Integer> donorPorts = new ArrayList<>(proposer.getReplicaPorts());
+    int leaderPort = proposer.getLeaderPort();
+    if (donorPorts.remove((Integer) leaderPort)) {
+      donorPorts.add(0, leaderPort);
+    }
+    for (int donorPort : donorPorts) {
+      if (catchUpFrom(donorPort)) {
+        return;
+      }
+    }
+    ServerLogger.error("Unable to catch up from any replica. Will retry later.");
+  }
+
+  /**
+   * Stream the missing state from one replica and install it. Returns whether this replica moved forward. The pairs of
+   * a snapshot go into the data storage chunk by chunk, so that the snapshot is never held in memory as a whole. The
+   * log stays fenced until the snapshot is complete.
+   */
+  private boolean catchUpFrom(int donorPort) {
+    long startTime = System.currentTimeMillis();
+    long fromSlot = replicatedLog.firstUndecidedSlot();
+    // A snapshot that broke off left the data storage incomplete, so only another snapshot can fix it.
+    boolean snapshotRequired = replicatedLog.isInstallingSnapshot();
+    ServerLogger.info("Catch up from replica %d, starting at slot %d%s",
+            donorPort, fromSlot, snapshotRequired ? " with a snapshot" : "");
+
+    CatchUpRequest request = CatchUpRequest.newBuilder()
+            .setFromSlot(fromSlot).setShard(proposer.getShard()).setSnapshot(snapshotRequired).build();
+    long snapshotSlot = -1;
+    long numSnapshotPairs = 0;
+    boolean installing = false;
+    long numSlots = 0;
+    try {
+      // The blocking iterator requests the next chunk only once the previous one is consumed.
+      Iterator<CatchUpChunk> chunks = KeyValueStoreGrpc.newBlockingStub(proposer.channelTo(donorPort))
+              .withDeadlineAfter(CATCH_UP_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)
+              .catchUp(request);
+      while (chunks.hasNext()) {
+        CatchUpChunk chunk = chunks.next();
+        if (chunk.hasSnapshot()) {
+          if (snapshotSlot == -1) {
+            snapshotSlot = chunk.getSnapshot().getSlot();
+            // Otherwise this replica is past the snapshot already, and its chunks are skipped.
+            installing = snapshotter.beginInstallSnapshot(snapshotSlot, chunk.getSnapshot().getHandOff());
+          }
+          if (installing) {
+            for (KeyValuePair pair : chunk.getSnapshot().getPairsList()) {
+              dataStorage.put(pair.getKey(), pair.getValue());
+            }
+            numSnapshotPairs += chunk.getSnapshot().getPairsCount();
+          }
+          continue;
+        }
+        if (installing) {
+          // The snapshot is complete once the log tail starts.
+          snapshotter.finishInstallSnapshot(snapshotSlot, numSnapshotPairs);
+          installing = false;
+        }
+        replicatedLog.decideAll(chunk.getDecidedSlotsList());
+        numSlots += chunk.getDecidedSlotsCount();
+      }
+      if (installing) {
+        snapshotter.finishInstallSnapshot(snapshotSlot, numSnapshotPairs);
+      }
+    } catch (StatusRuntimeException e) {
+      ServerLogger.error("Failed to catch up from replica %d: %s%s", donorPort, e.getMessage(),
+              installing ? ". No write is applied until another snapshot is installed" : "");
+      return false;
+    }
+
+    long durationInMs = System.currentTimeMillis() - startTime;
+    long advancedSlots = replicatedLog.firstUndecidedSlot() - fromSlot;
+    ServerLogger.info("Caught up %d slots from replica %d (snapshot up to slot %d, %d log slots) in %d ms",
+            advancedSlots, donorPort, snapshotSlot, numSlots, durationInMs);
+    if (advancedSlots <= 0) {
+      return false;
+    }
+    numCatchUps++;
+    lastCatchUpDurationInMs = durationInMs;
+    lastCatchUpSlots = advancedSlots;
+    return true;
+  }
+
+  // Donor side. Start streaming the state from the requested slot on. Returns right away; the stream runs on the
+  // donor executor.
+  public void serve(CatchUpRequest request, ServerCallStreamObserver<CatchUpChunk> responseObserver) {
+    long fromSlot = request.getFromSlot();
+    DonorStream stream;
+    if (!request.getSnapshot() && replicatedLog.retainFrom(fromSlot)) {
+      stream = new DonorStream(responseObserver, fromSlot, -1, null);
+    } else {
+      // The log from the requested slot on is compacted. Send a snapshot of everything applied so far instead.
+      // Retaining always succeeds here, since only applied slots get compacted.
+      HandOffState handOff = replicatedLog.handOffState();
+      long snapshotSlot = handOff.getSlot();
+      replicatedLog.retainFrom(snapshotSlot + 1);
+      stream = new DonorStream(responseObserver, snapshotSlot + 1, snapshotSlot, handOff);
+      // Checked once the stream exists, since a snapshot installed from then on aborts the stream anyway.
+      if (replicatedLog.isInstallingSnapshot()) {
+        ServerLogger.info("Refuse catch-up from slot %d while the data storage is replaced by a snapshot", fromSlot);
+        stream.finish();
+        responseObserver.onError(Status.UNAVAILABLE.withDescription("Installing a snapshot").asRuntimeException());
+        return;
+      }
+    }
+    ServerLogger.info("Serve catch-up from slot %d%s", fromSlot,
+            stream.snapshotSlot == -1 ? "" : " with a snapshot up to slot " + stream.snapshotSlot);
+    responseObserver.setOnCancelHandler(stream::finish);
+    responseObserver.setOnReadyHandler(() -> donorExecutor.execute(stream::drain));
+    donorExecutor.execute(stream::drain);
+  }
+
+  // One catch-up stream served by this replica
+  private class DonorStream {
+    private final ServerCallStreamObserver<CatchUpChunk> responseObserver;
+    private final long retainedSlot;
+    private final long snapshotSlot;
+    private final long numInstalledSnapshots;
+    // Remaining pairs of the snapshot, or null once it has been sent (or if there is none)
+    private CloseableIterator<Map.Entry<String, String>> snapshotPairs;
+    // Hand-off state as of the snapshot slot, or null once the first chunk of the snapshot has been sent
+    private HandOffState handOff;
+    private long nextSlot;
+    private boolean finished = false;
+
+    private DonorStream(ServerCallStreamObserver<CatchUpChunk> responseObserver, long retainedSlot, long snapshotSlot,
+                        HandOffState handOff) {
+      this.responseObserver = responseObserver;
+      this.retainedSlot = retainedSlot;
+      this.snapshotSlot = snapshotSlot;
+      this.handOff = handOff;
+      this.numInstalledSnapshots = replicatedLog.numInstalledSnapshots();
+      this.snapshotPairs = snapshotSlot == -1 ? null : dataStorage.iterator();
+      this.nextSlot = retainedSlot;
+    }
+
+    // Runs on the donor executor. Sends chunks for as long as the stream is ready, and resumes when it is ready again.
+    private synchronized void drain() {
+      try {
+        while (!finished && responseObserver.isReady() && !responseObserver.isCancelled()) {
+          CatchUpChunk chunk = nextChunk();
+          if (chunk == null) {
+            finish();
+            responseObserver.onCompleted();
+            return;
+          }
+          responseObserver.onNext(chunk);
+        }
+      } catch (StatusRuntimeException e) {
+        ServerLogger.error("Catch-up stream failed: %s", e.getMessage());
+        if (!finished) {
+          finish();
+          responseObserver.onError(e);
+        }
+      }
+    }
+
+    // The next chunk to send, or null once the stream has reached the last applied slot.
+    private CatchUpChunk nextChunk() {
+      if (snapshotPairs != null) {
+        SnapshotChunk.Builder snapshotBuilder = SnapshotChunk.newBuilder().setSlot(snapshotSlot);
+        if (handOff != null) {
+          snapshotBuilder.setHandOff(handOff);
+          handOff = null;
+        }
+        int numBytes = 0;
+        while (snapshotPairs.hasNext() && snapshotBuilder.getPairsCount() < MAX_CHUNK_PAIRS && numBytes < MAX_CHUNK_BYTES) {
+          Map.Entry<String, String> pair = snapshotPairs.next();
+          snapshotBuilder.addPairs(KeyValuePair.newBuilder().setKey(pair.getKey()).setValue(pair.getValue()));
+          numBytes += pair.getKey().length() + pair.getValue().length();
+        }
+        if (!snapshotPairs.hasNext()) {
+          snapshotPairs = null;
+          if (replicatedLog.numInstalledSnapshots() != numInstalledSnapshots) {
+            // The data storage was replaced while it was iterated, so the snapshot is inconsistent.
+            throw Status.ABORTED.withDescription("Data storage replaced during catch-up").asRuntimeException();
+          }
+        }
+        return CatchUpChunk.newBuilder().setSnapshot(snapshotBuilder).build();
+      }
+      List<DecidedSlot> decidedSlots = replicatedLog.appliedSlots(nextSlot, MAX_CHUNK_SLOTS);
+      if (decidedSlots.isEmpty()) {
+        return null;
+      }
+      nextSlot = decidedSlots.get(decidedSlots.size() - 1).getSlot() + 1;
+      return CatchUpChunk.newBuilder().addAllDecidedSlots(decidedSlots).build();
+    }
+
+    // Stop streaming and let the log be compacted again. Safe to invoke more than once.
+    private synchronized void finish() {
+      if (!finished) {
+        finished = true;
+        replicatedLog.release(retainedSlot);
+        if (snapshotPairs != null) {
+          snapshotPairs.close();
+        }
+      }
+    }
+  }
+}
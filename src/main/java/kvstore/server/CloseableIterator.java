@@ -0,0 +1,28 @@
+package kvstore.server;
+
+import java.util.Iterator;
+
+/**
+ * Iterator over a storage engine that may hold resources until it is done, like the files of an LSM tree. Reaching the
+ * end releases them, and close() releases them when the iteration stops early. Closing more than once is harmless.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+  @Override
+  default void close() {
+  }
+
+  // Wrap an iterator that holds no resources
+  static <T> CloseableIterator<T> of(Iterator<T> iterator) {
+    return new CloseableIterator<T>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public T next() {
+        return iterator.next();
+      }
+    };
+  }
+}
@@ -0,0 +1,90 @@
+package kvstore.server;
+
+import kvstore.metrics.LatencyHistogram;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention manager of a Proposer: hands out its ballots, and decides how long a failed proposal waits before retrying.
+ *
+ * Ballots are (round, replica id) pairs packed in one long, round * MAX_REPLICA_IDS + replica id, with the port of the
+ * replica as its id. They are unique across replicas and increase on every replica. When a ballot is rejected in favor
+ * of a higher one, the next round jumps past it, so the next election isn't lost to the same ballot again.
+ *
+ * Retries wait for a random time, up to a ceiling that doubles on every failed attempt of a proposal (exponential
+ * backoff with full jitter), so that proposers competing for the leadership fall out of step instead of preempting each
+ * other forever. The first ceiling grows with the conflict rate, the share of recent Paxos rounds preempted by another
+ * proposer: without contention a retry waits a few milliseconds, under contention the proposers spread out sooner.
+ */
+class ContentionManager {
+  // Ports, and so replica ids, are below 65536
+  static final long MAX_REPLICA_IDS = 1 << 16;
+  private static final long MIN_BACKOFF_IN_MS = 2;
+  // Ceiling of the first retry when every recent round was preempted
+  private static final long CONTENDED_BACKOFF_IN_MS = 50;
+  private static final long MAX_BACKOFF_IN_MS = 1000;
+  // Weight of the latest round in the conflict rate
+  private static final double CONFLICT_RATE_SMOOTHING = 0.2;
+  private static final LongAdder CONFLICTS = Metrics.counter("kvstore_paxos_conflicts_total");
+  private static final LatencyHistogram BACKOFF = Metrics.histogram("kvstore_paxos_backoff_seconds");
+
+  private final int replicaId;
+  private long round = 0;
+  // Highest ballot seen from any replica, including this one
+  private long highestBallot = -1;
+  // Moving average of the share of rounds preempted by another proposer, between 0 and 1
+  private double conflictRate = 0;
+
+  ContentionManager(int replicaId) {
+    if (replicaId < 0 || replicaId >= MAX_REPLICA_IDS) {
+      throw new IllegalArgumentException("Replica id must be between 0 and " + (MAX_REPLICA_IDS - 1) + ". Got: " + replicaId);
+    }
+    this.replicaId = replicaId;
+  }
+
+  // A new ballot, higher than every ballot this replica generated or saw.
+  synchronized long nextBallot() {
+    round = Math.max(round + 1, highestBallot / MAX_REPLICA_IDS + 1);
+    long ballot = round * MAX_REPLICA_IDS + replicaId;
+    highestBallot = ballot;
+    return ballot;
+  }
+
+  // To be invoked with every ballot seen, from requests of other proposers or promised by the acceptors.
+  synchronized void observeBallot(long ballot) {
+    highestBallot = Math.max(highestBallot, ballot);
+  }
+
+  /**
+   * To be invoked when an acceptor rejects the given ballot in favor of the promised one. Returns whether the ballot
+   * was preempted by a higher one, as opposed to e.g. refused while another replica holds the read lease.
+   */
+  synchronized boolean observeRejection(long ballot, long promisedBallot) {
+    observeBallot(promisedBallot);
+    if (promisedBallot <= ballot) {
+      return false;
+    }
+    CONFLICTS.increment();
+    conflictRate += CONFLICT_RATE_SMOOTHING * (1 - conflictRate);
+    return true;
+  }
+
+  // To be invoked when a Paxos round decides its value.
+  synchronized void observeSuccess() {
+    conflictRate -= CONFLICT_RATE_SMOOTHING * conflictRate;
+  }
+
+  synchronized double conflictRate() {
+    return conflictRate;
+  }
+
+  // How long to wait before the given attempt of a proposal, counted from 1 for the first retry.
+  long backoffInMs(int attempt) {
+    double base = MIN_BACKOFF_IN_MS + conflictRate() * (CONTENDED_BACKOFF_IN_MS - MIN_BACKOFF_IN_MS);
+    double ceiling = Math.min(MAX_BACKOFF_IN_MS, base * Math.pow(2, Math.min(attempt - 1, 30)));
+    long backoff = 1 + ThreadLocalRandom.current().nextLong((long) ceiling);
+    BACKOFF.record(backoff * 1000);
+    return backoff;
+  }
+}
@@ -1,85 +1,93 @@
 package kvstore.server;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 
-// KeyValue class to store key-value pairs
+/**
+ * KeyValue class to store key-value pairs. Safe for concurrent use without any external locking. Each key is written by
+ * one thread at a time anyway, since the replicated log applies the decided writes in slot order.
+ *
+ * The pairs are kept by a pluggable StorageEngine: on the heap, off the heap, or on disk in an LSM tree.
+ */
 public class DataStorage {
-  private final Map<String, String> store;
-  private final ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+  private final StorageEngine engine;
 
-  // Constructor for KeyValue class
+  // Constructor for KeyValue class, keeping the pairs on the heap
   public DataStorage() {
-    store = new HashMap<>();
+    this(new HeapStorageEngine());
   }
 
-  /**
-   * Non-blocking call to acquire a write-lock associated with a particular key. If lock is available, acquire and
-   * return true. If lock is not available, return false without waiting.
-   */
-  public boolean tryWriteLock(String key) {
-    ReentrantReadWriteLock lock = locks.computeIfAbsent(key, k -> new ReentrantReadWriteLock());
-    boolean locked = lock.writeLock().tryLock();
-    if (locked) {
-      ServerLogger.info("LOCKED (write) " + key);
-    } else {
-      ServerLogger.error("FAILED TO LOCK (write) " + key);
-    }
-    return locked;
+  // Constructor for KeyValue class, keeping the pairs in the given engine
+  public DataStorage(StorageEngine engine) {
+    this.engine = engine;
   }
 
-  // Unlock the write-lock of the given key
-  public void writeUnlock(String key) {
-    ReentrantReadWriteLock lock = locks.get(key);
-    if (lock != null) {
-      ServerLogger.info("UNLOCKING (write) " + key);
-      lock.writeLock().unlock();
-    } else {
-      ServerLogger.error("FAILED TO UNLOCK (write) " + key);
-    }
+  // Method to put a key-value pair into the store
+  public void put(String key, String value) {
+    engine.put(key, value);
+  }
+
+  // Method to get the value associated with a key, or null if the key doesn't exist
+  public String get(String key) {
+    return engine.get(key);
+  }
+
+  // Method to remove a key-value pair from the store
+  public String delete(String key) {
+    return engine.delete(key);
+  }
+
+  // Method to check if the store contains a specific key
+  public boolean containsKey(String key) {
+    return engine.containsKey(key);
+  }
+
+  /**
+   * Method to visit every key-value pair in the store, without blocking concurrent reads and writes. Mutations that
+   * happen during the iteration may or may not be visited.
+   */
+  public void forEach(BiConsumer<String, String> action) {
+    engine.forEach(action);
   }
 
   /**
-   * Blocking call to acquire a read-lock associated with a particular key. This is used when processing GET. When lock
-   * is not available, wait till it acquires the read lock.
+   * Method to iterate the key-value pairs in the store step by step, without blocking concurrent reads and writes.
+   * Mutations that happen during the iteration may or may not be visited.
    */
-  public void blockingReadLock(String key) {
-    ReentrantReadWriteLock lock = locks.computeIfAbsent(key, k -> new ReentrantReadWriteLock());
-    lock.readLock().lock();
-    ServerLogger.info("LOCKED (read) " + key);
+  public CloseableIterator<Map.Entry<String, String>> iterator() {
+    return engine.iterator();
   }
 
-  // Unlock the write-lock of the given key
-  public void readUnlock(String key) {
-    ReentrantReadWriteLock lock = locks.get(key);
-    if (lock != null) {
-      ServerLogger.info("UNLOCKING (read) " + key);
-      lock.readLock().unlock();
-    } else {
-      ServerLogger.error("FAILED TO UNLOCK (read) " + key);
+  /**
+   * Method to iterate the key-value pairs with startKey <= key < endKey in key order, without loading the range into
+   * memory. A null endKey means no upper bound. Mutations that happen during the iteration may or may not be visited.
+   */
+  public CloseableIterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+    if (endKey != null && startKey.compareTo(endKey) >= 0) {
+      return CloseableIterator.of(Collections.emptyIterator());
     }
+    return engine.scan(startKey, endKey);
   }
 
-  // Method to put a key-value pair into the store
-  public void put(String key, String value) {
-    store.put(key, value);
+  // Whether the store serves range scans
+  public boolean supportsScan() {
+    return engine.supportsScan();
   }
 
-  // Method to get the value associated with a key
-  public String get(String key) {
-    return store.get(key);
+  // Method to remove all the key-value pairs from the store
+  public void clear() {
+    engine.clear();
   }
 
-  // Method to remove a key-value pair from the store
-  public String delete(String key) {
-    return store.remove(key);
+  // See StorageEngine.checkpoint()
+  public boolean checkpoint(long slot) {
+    return engine.checkpoint(slot);
   }
 
-  // Method to check if the store contains a specific key
-  public boolean containsKey(String key) {
-    return store.containsKey(key);
+  // See StorageEngine.checkpointSlot()
+  public long checkpointSlot() {
+    return engine.checkpointSlot();
   }
 }
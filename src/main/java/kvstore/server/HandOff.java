@@ -0,0 +1,188 @@
+package kvstore.server;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import kvstore.HandOffState;
+import kvstore.PartitionMap;
+import kvstore.ReplicaGroup;
+import kvstore.partition.PartitionRing;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The progress of one shard in moving keys between replica groups after the partition map changed. It only changes as
+ * the replicated log applies the entries of the Rebalancer, so that every replica of the group goes through the same
+ * states at the same slots:
+ *   FENCE: the group starts moving the keys of a new map. From its slot on, the writes of the keys the group doesn't
+ *     own in that map are rejected, so the values the Rebalancer copies to the new owners don't change anymore.
+ *   PUT_IF_ABSENT: another group hands over a key this group gained, unless this group has taken a write of it since.
+ *   MOVE_OUT: the Rebalancer deletes a key it handed over, only if the key still has the value it copied.
+ *   HANDED_OVER: another group has handed over all the keys it held for a map version.
+ * The keys this group gained in its fence aren't served until every other group of the fence and of the fence before
+ * it has handed over for that version: the reads and deletes of those keys fail with FAILED_PRECONDITION, which the
+ * client retries, instead of missing a key that is still on its way. The same goes for every key before the first
+ * fence, while the group doesn't know which keys it owns.
+ *
+ * Without a partition map, every key is served and nothing is rejected.
+ */
+public class HandOff {
+  // Group of the replica, or null without a partition map
+  private final String groupName;
+  private PartitionRing fence;
+  private PartitionRing previousFence;
+  private final Map<String, Long> handedOver = new HashMap<>();
+
+  public HandOff(String groupName) {
+    this.groupName = groupName;
+  }
+
+  // Version of the map of the last fence, or 0 if there was none
+  public synchronized long fenceVersion() {
+    return fence == null ? 0 : fence.getVersion();
+  }
+
+  // Whether the writes of the key are rejected, since the group moves it to another group
+  public synchronized boolean fences(String key) {
+    return fence != null && !fence.groupOf(key).getName().equals(groupName);
+  }
+
+  // Apply a FENCE. Returns false if the fence of the map, or of a later one, was applied already.
+  synchronized boolean applyFence(PartitionMap map) {
+    if (groupName == null || map.getVersion() <= fenceVersion()) {
+      return false;
+    }
+    previousFence = fence;
+    fence = new PartitionRing(map);
+    return true;
+  }
+
+  // Apply a HANDED_OVER of the given group
+  synchronized void applyHandedOver(String group, long mapVersion) {
+    handedOver.merge(group, mapVersion, Math::max);
+  }
+
+  /**
+   * Throws StatusRuntimeException (FAILED_PRECONDITION) if the key isn't served: it was fenced off for another group,
+   * or it is still being handed over to this group. The trailers carry the version of the fence, so that the client
+   * refreshes its partition map if it is older, or retries later otherwise.
+   */
+  public synchronized void checkServes(String key) {
+    if (groupName == null) {
+      return;
+    }
+    if (fences(key)) {
+      throw rejected(key);
+    }
+    if (fence == null || (!ownedBefore(key) && !allHandedOver())) {
+      throw error("Key " + key + " is being handed over to replica group " + groupName + ".");
+    }
+  }
+
+  // Throws StatusRuntimeException (FAILED_PRECONDITION) if some keys of the group may still be on their way to it, so
+  // that a scan would miss them.
+  public synchronized void checkServesAll() {
+    if (groupName != null && (fence == null || !allHandedOver())) {
+      throw error("Keys are being handed over to replica group " + groupName + ".");
+    }
+  }
+
+  // The error of a key fenced off, e.g. of a write the fence rejected
+  public synchronized StatusRuntimeException rejected(String key) {
+    String owner = fence == null ? "another one" : fence.groupOf(key).getName();
+    return error("Key " + key + " belongs to replica group " + owner + ", not " + groupName + ". Partition map version "
+            + fenceVersion() + ".");
+  }
+
+  private StatusRuntimeException error(String description) {
+    Metadata trailers = new Metadata();
+    trailers.put(PartitionRing.MAP_VERSION_TRAILER, Long.toString(fenceVersion()));
+    return Status.FAILED_PRECONDITION.withDescription(description).asRuntimeException(trailers);
+  }
+
+  private boolean ownedBefore(String key) {
+    return previousFence != null && previousFence.groupOf(key).getName().equals(groupName);
+  }
+
+  // Whether every other group of the last two fences has handed over for the version of the last one
+  private boolean allHandedOver() {
+    Set<String> groups = new HashSet<>();
+    for (PartitionRing ring : new PartitionRing[] {fence, previousFence}) {
+      if (ring != null) {
+        for (ReplicaGroup group : ring.getMap().getGroupsList()) {
+          groups.add(group.getName());
+        }
+      }
+    }
+    groups.remove(groupName);
+    for (String group : groups) {
+      if (handedOver.getOrDefault(group, 0L) < fence.getVersion()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The pairs of a range whose keys aren't fenced off, checked as they are read
+  public CloseableIterator<Map.Entry<String, String>> skipFenced(CloseableIterator<Map.Entry<String, String>> pairs) {
+    return groupName == null ? pairs : new UnfencedPairs(pairs);
+  }
+
+  synchronized HandOffState toProto(long slot) {
+    HandOffState.Builder builder = HandOffState.newBuilder().setSlot(slot).putAllHandedOver(handedOver);
+    if (fence != null) {
+      builder.setFence(fence.getMap());
+    }
+    if (previousFence != null) {
+      builder.setPreviousFence(previousFence.getMap());
+    }
+    return builder.build();
+  }
+
+  // Replace the state by the one recorded with a snapshot
+  synchronized void restore(HandOffState state) {
+    fence = state.hasFence() ? new PartitionRing(state.getFence()) : null;
+    previousFence = state.hasPreviousFence() ? new PartitionRing(state.getPreviousFence()) : null;
+    handedOver.clear();
+    handedOver.putAll(state.getHandedOverMap());
+  }
+
+  private class UnfencedPairs implements CloseableIterator<Map.Entry<String, String>> {
+    private final CloseableIterator<Map.Entry<String, String>> pairs;
+    private Map.Entry<String, String> next;
+
+    private UnfencedPairs(CloseableIterator<Map.Entry<String, String>> pairs) {
+      this.pairs = pairs;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && pairs.hasNext()) {
+        Map.Entry<String, String> pair = pairs.next();
+        if (!fences(pair.getKey())) {
+          next = pair;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, String> pair = next;
+      next = null;
+      return pair;
+    }
+
+    @Override
+    public void close() {
+      pairs.close();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package kvstore.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage engine that keeps the pairs in a ConcurrentHashMap on the heap. Reads never block, and writes only
+ * synchronize with writes to keys in the same hash bin. No per-key locks are needed, and no memory is held for keys
+ * that have been deleted. A SortedKeyIndex next to the map serves the range scans.
+ */
+public class HeapStorageEngine implements StorageEngine {
+  private static final int INITIAL_CAPACITY = 1 << 16;
+
+  // Pre-sized, so that the first writes don't keep resizing the table.
+  private final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>(INITIAL_CAPACITY);
+  private final SortedKeyIndex sortedKeys = new SortedKeyIndex();
+
+  @Override
+  public void put(String key, String value) {
+    if (store.put(key, value) == null) {
+      sortedKeys.add(key);
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    return store.get(key);
+  }
+
+  @Override
+  public String delete(String key) {
+    String value = store.remove(key);
+    if (value != null) {
+      sortedKeys.remove(key);
+    }
+    return value;
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return store.containsKey(key);
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    store.forEach(action);
+  }
+
+  @Override
+  public CloseableIterator<Map.Entry<String, String>> iterator() {
+    return CloseableIterator.of(store.entrySet().iterator());
+  }
+
+  @Override
+  public CloseableIterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+    return sortedKeys.scan(startKey, endKey, store::get);
+  }
+
+  @Override
+  public void clear() {
+    store.clear();
+    sortedKeys.clear();
+  }
+}
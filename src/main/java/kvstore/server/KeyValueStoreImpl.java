@@ -1,150 +1,503 @@
 package kvstore.server;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import kvstore.KeyValueStoreGrpc;
 import io.grpc.*;
 import kvstore.*;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class KeyValueStoreImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
+  private static final long READ_INDEX_TIMEOUT_IN_MS = 5000;
   private final DataStorage dataStorage;
+  private final ReplicatedLog replicatedLog;
   private final Proposer proposer;
-  private long largestProposalNumber;
-  private long acceptedProposalNumber;
-  private PaxosDatum acceptedProposalDatum;
+  private final WriteBatcher writeBatcher;
+  private final CatchUpManager catchUpManager;
+  private final BulkLoader bulkLoader;
+  private CacheInvalidator cacheInvalidator = null;
+
+  // Serve the data storage for storing key-value pairs, and the replicated log that feeds it
+  public KeyValueStoreImpl(int port, List<Integer> allReplicaPorts, DataStorage dataStorage,
+                           ReplicatedLog replicatedLog, Snapshotter snapshotter) {
+    this(new Proposer(port, allReplicaPorts, replicatedLog), dataStorage, replicatedLog, snapshotter);
+  }
+
+  // Same, reaching the other replicas through the channels of channelFactory instead of TCP to localhost
+  public KeyValueStoreImpl(int port, List<Integer> allReplicaPorts, DataStorage dataStorage,
+                           ReplicatedLog replicatedLog, Snapshotter snapshotter,
+                           Function<Integer, ManagedChannel> channelFactory) {
+    this(0, port, allReplicaPorts, dataStorage, replicatedLog, snapshotter, channelFactory);
+  }
+
+  // Serve one shard of the replica: the keys the ShardRouter routes to it, and the Paxos messages of its consensus group
+  public KeyValueStoreImpl(int shard, int port, List<Integer> allReplicaPorts, DataStorage dataStorage,
+                           ReplicatedLog replicatedLog, Snapshotter snapshotter,
+                           Function<Integer, ManagedChannel> channelFactory) {
+    this(new Proposer(shard, port, allReplicaPorts, replicatedLog, channelFactory), dataStorage, replicatedLog,
+            snapshotter);
+  }
+
+  private KeyValueStoreImpl(Proposer proposer, DataStorage dataStorage, ReplicatedLog replicatedLog,
+                            Snapshotter snapshotter) {
+    this.dataStorage = dataStorage;
+    this.replicatedLog = replicatedLog;
+    this.proposer = proposer;
+    this.writeBatcher = new WriteBatcher(proposer, replicatedLog);
+    this.catchUpManager = new CatchUpManager(proposer, replicatedLog, dataStorage, snapshotter);
+    proposer.setCatchUpManager(catchUpManager);
+    this.bulkLoader = new BulkLoader(proposer, writeBatcher);
+    replicatedLog.registerMetrics(proposer.getShard());
+  }
+
+  Proposer getProposer() {
+    return proposer;
+  }
+
+  WriteBatcher getWriteBatcher() {
+    return writeBatcher;
+  }
+
+  DataStorage getDataStorage() {
+    return dataStorage;
+  }
+
+  ReplicatedLog getReplicatedLog() {
+    return replicatedLog;
+  }
 
-  // Initialize the data storage for storing key-value pairs
-  public KeyValueStoreImpl(int port, List<Integer> allReplicaPorts) {
-    this.dataStorage = new DataStorage();
-    this.proposer = new Proposer(port, allReplicaPorts);
-    // Reset to initial values to indicate no proposal seen in the current Paxos round.
-    largestProposalNumber = -1;
-    acceptedProposalNumber = -1;
-    acceptedProposalDatum = null;
+  // Serve the client-side read caches of this shard: track the keys of their GETs, and invalidate them once written.
+  void setCacheInvalidator(CacheInvalidator cacheInvalidator) {
+    this.cacheInvalidator = cacheInvalidator;
+    replicatedLog.setCacheInvalidator(cacheInvalidator);
+  }
+
+  // Feed the watches with the changes this shard applies
+  void setWatchManager(WatchManager watchManager) {
+    replicatedLog.setWatchManager(watchManager, proposer.getShard());
   }
 
   // Method to handle GET requests
   @Override
   public void get(GetRequest request, StreamObserver<GetResponse> responseObserver) {
-    ServerLogger.info("Received GET request: " + request.toString().replace('\n', ' '));
+    ServerLogger.debug("Received GET request: %s", request);
 
     // Process the message
     String key = request.getKey().toLowerCase();
     GetResponse res;
 
-    // the coordinator will wait on read lock until success
-    dataStorage.blockingReadLock(key);
+    // A client caching the value must hear of every write applied after the read, so the key is tracked before it.
+    boolean cacheable = cacheInvalidator != null && !request.getCacheSubscription().isEmpty()
+            && cacheInvalidator.track(request.getCacheSubscription(), key);
+
+    // Make sure this replica has applied every write that completed before the read started, and still holds the key
+    try {
+      awaitReadIndex();
+      replicatedLog.handOff().checkServes(key);
+    } catch (StatusRuntimeException e) {
+      ServerLogger.debug("Send GET error: %s\n", e.getMessage());
+      responseObserver.onError(e);
+      return;
+    }
+
+    // The coordinator gets the value in the data storage. A single lookup, so that a concurrent DELETE can't remove
+    // the key between checking for it and reading it.
+    String value = dataStorage.get(key);
 
     // Check if the key exists in the data storage
-    if (!dataStorage.containsKey(key)) {
-      dataStorage.readUnlock(key);
-      ServerLogger.info("Send GET error: INVALID_ARGUMENT. Key %s doesn't exist.\n", key);
+    if (value == null) {
+      ServerLogger.debug("Send GET error: INVALID_ARGUMENT. Key %s doesn't exist.\n", key);
       responseObserver.onError(Status.INVALID_ARGUMENT.
               withDescription("Key " + key + " doesn't exist.").asRuntimeException());
       return;
     }
 
-    // The coordinator gets the value in the data storage
-    String value = dataStorage.get(key);
-    dataStorage.readUnlock(key);
-    res = GetResponse.newBuilder().setValue(value).build();
-    ServerLogger.info("Send GET response: %s\n", res.toString().replace('\n', ' '));
+    res = GetResponse.newBuilder().setValue(value).setCacheable(cacheable).build();
+    ServerLogger.debug("Send GET response: %s\n", res);
     responseObserver.onNext(res);
     responseObserver.onCompleted();
   }
 
+  /**
+   * To be invoked before a local read, to make it linearizable. The leader holding its read lease knows it has applied
+   * every completed write, since no other replica can become the leader and commit writes while the lease runs. Any
+   * other replica asks the leader for its read index, and waits until it has applied the log up to it. Without the
+   * lease, the read index is the slot after a NOOP committed through a majority: by the leader, or by this replica if
+   * it knows no leader. Throws StatusRuntimeException (UNAVAILABLE) if the read index can't be obtained or reached in
+   * time, rather than serve a read that may be stale.
+   */
+  private void awaitReadIndex() {
+    if (proposer.hasReadLease()) {
+      return;
+    }
+    long readIndex;
+    try {
+      readIndex = proposer.hasRemoteLeader() ? -1 : proposer.commitReadIndex(READ_INDEX_TIMEOUT_IN_MS);
+      if (readIndex == -1 && proposer.hasRemoteLeader()) {
+        readIndex = proposer.readIndexFromLeader();
+      }
+    } catch (StatusRuntimeException e) {
+      ServerLogger.debug("Unable to get the read index: %s", e.getMessage());
+      throw Status.UNAVAILABLE.withDescription("Unable to get the read index: " + e.getMessage()).asRuntimeException();
+    }
+    if (readIndex == -1) {
+      throw Status.UNAVAILABLE.withDescription("No leader to get the read index from").asRuntimeException();
+    }
+    try {
+      replicatedLog.whenApplied(readIndex - 1).get(READ_INDEX_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      throw Status.UNAVAILABLE.withDescription("Unable to catch up with read index " + readIndex).asRuntimeException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withDescription("Interrupted").asRuntimeException();
+    }
+  }
+
   // Method to handle PUT requests
   @Override
   public void put(PutRequest request, StreamObserver<PutResponse> responseObserver) {
-    ServerLogger.info("Received PUT request: %s", request.toString().replace('\n', ' '));
+    ServerLogger.debug("Received PUT request: %s", request);
 
     // Process the message
     String key = request.getKey().toLowerCase();
     String value = request.getValue().toLowerCase();
     PaxosDatum datum = PaxosDatum.newBuilder().setMethod("PUT").setKey(key).setValue(value).build();
-    PutResponse res;
-
-    long proposalNumber = Proposer.generateProposalNumber();
-    largestProposalNumber = proposalNumber;
-
-    // Execute Paxos and retry if necessary.
-    proposer.retriablePaxosPropose(proposalNumber, datum);
 
-    // The coordinator store the key-value pair in the data storage
-    dataStorage.put(key, value);
-
-    largestProposalNumber = -1;
+    // Forward to the leader, so that only one replica proposes and it can skip the prepare phase.
+    if (!request.getForwarded() && proposer.hasRemoteLeader()) {
+      forwardToLeader("PUT", () -> proposer.forwardPut(request.toBuilder().setForwarded(true).build()),
+              responseObserver, () -> proposePut(datum, responseObserver));
+      return;
+    }
+    proposePut(datum, responseObserver);
+  }
 
-    res = PutResponse.newBuilder().setStatus(true).build();
-    ServerLogger.info("Send PUT response: %s\n",res.toString().replace('\n', ' '));
-    responseObserver.onNext(res);
-    responseObserver.onCompleted();
+  // Execute Paxos together with the other concurrent writes. The replicated log stores the key-value pair in the data
+  // storage. Respond once it is applied locally, so that the client can read its own write from this replica.
+  private void proposePut(PaxosDatum datum, StreamObserver<PutResponse> responseObserver) {
+    writeBatcher.submit(datum).whenComplete((ignored, e) -> {
+      if (e != null) {
+        ServerLogger.debug("Send PUT error: %s\n", e.getMessage());
+        responseObserver.onError(writeError(e));
+        return;
+      }
+      PutResponse putResponse = PutResponse.newBuilder().setStatus(true).build();
+      ServerLogger.debug("Send PUT response: %s\n", putResponse);
+      responseObserver.onNext(putResponse);
+      responseObserver.onCompleted();
+    });
   }
 
 
   // Method to handle DELETE requests
   @Override
   public void delete(DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
-    ServerLogger.info("Received DELETE request: %s", request.toString().replace('\n', ' '));
+    ServerLogger.debug("Received DELETE request: %s", request);
 
     // Process the message
     // Delete the key-value pair from the data storage
     String key = request.getKey().toLowerCase();
     PaxosDatum datum = PaxosDatum.newBuilder().setMethod("DELETE").setKey(key).build();
-    DeleteResponse res;
-
-    long proposalNumber = Proposer.generateProposalNumber();
-    largestProposalNumber = proposalNumber;
 
+    // A key on its way from another replica group isn't missing.
+    try {
+      replicatedLog.handOff().checkServes(key);
+    } catch (StatusRuntimeException e) {
+      ServerLogger.debug("Send DELETE error: %s\n", e.getMessage());
+      responseObserver.onError(e);
+      return;
+    }
     if (!dataStorage.containsKey(key)) {
-      ServerLogger.info("Send DELETE response: error: INVALID_ARGUMENT. Key %s doesn't exist.\n", key);
+      ServerLogger.debug("Send DELETE response: error: INVALID_ARGUMENT. Key %s doesn't exist.\n", key);
       responseObserver.onError(Status.INVALID_ARGUMENT.
               withDescription("Key " + key + " doesn't exist.").asRuntimeException());
       return;
     }
 
-    // Execute Paxos and retry if necessary.
-    proposer.retriablePaxosPropose(proposalNumber, datum);
+    // Forward to the leader, so that only one replica proposes and it can skip the prepare phase.
+    if (!request.getForwarded() && proposer.hasRemoteLeader()) {
+      forwardToLeader("DELETE", () -> proposer.forwardDelete(request.toBuilder().setForwarded(true).build()),
+              responseObserver, () -> proposeDelete(datum, responseObserver));
+      return;
+    }
+    proposeDelete(datum, responseObserver);
+  }
 
-    dataStorage.delete(key);
-    largestProposalNumber = -1;
+  // Execute Paxos together with the other concurrent writes. The replicated log deletes the key from the data storage.
+  // Send the DELETE response once it is applied locally.
+  private void proposeDelete(PaxosDatum datum, StreamObserver<DeleteResponse> responseObserver) {
+    writeBatcher.submit(datum).whenComplete((ignored, e) -> {
+      if (e != null) {
+        ServerLogger.debug("Send DELETE error: %s\n", e.getMessage());
+        responseObserver.onError(writeError(e));
+        return;
+      }
+      DeleteResponse deleteResponse = DeleteResponse.newBuilder().setStatus(true).build();
+      ServerLogger.debug("Send DELETE response: %s\n", deleteResponse);
+      responseObserver.onNext(deleteResponse);
+      responseObserver.onCompleted();
+    });
+  }
 
-    // Send the DELETE response
-    res = DeleteResponse.newBuilder().setStatus(true).build();
-    ServerLogger.info("Send DELETE response: \n", res.toString().replace('\n', ' '));
-    responseObserver.onNext(res);
+
+  /**
+   * Method to handle SCAN requests. Streams the pairs of the range in key order, in chunks, straight from the ordered
+   * index of the data storage. Linearizable like GET: the scan starts once this replica caught up with the read index.
+   */
+  @Override
+  public void scan(ScanRequest request, StreamObserver<ScanResponse> responseObserver) {
+    ServerLogger.debug("Received SCAN request: %s", request);
+
+    if (request.getLimit() < 0) {
+      ServerLogger.debug("Send SCAN error: INVALID_ARGUMENT. Negative limit %d.\n", request.getLimit());
+      responseObserver.onError(Status.INVALID_ARGUMENT.
+              withDescription("Limit must not be negative.").asRuntimeException());
+      return;
+    }
+    if (!dataStorage.supportsScan()) {
+      ServerLogger.debug("Send SCAN error: UNIMPLEMENTED. The storage engine doesn't serve scans.\n");
+      responseObserver.onError(Status.UNIMPLEMENTED.
+              withDescription("The storage engine of this replica doesn't serve scans.").asRuntimeException());
+      return;
+    }
+    String startKey = request.getStartKey().toLowerCase();
+    String endKey = request.getEndKey().isEmpty() ? null : request.getEndKey().toLowerCase();
+
+    CloseableIterator<Map.Entry<String, String>> pairs;
+    try {
+      pairs = scanRange(startKey, endKey);
+    } catch (StatusRuntimeException e) {
+      ServerLogger.debug("Send SCAN error: %s\n", e.getMessage());
+      responseObserver.onError(e);
+      return;
+    }
+    new ScanStream(pairs, request.getLimit(),
+            (ServerCallStreamObserver<ScanResponse>) responseObserver).start();
+  }
+
+  // The pairs with startKey <= key < endKey in key order, once this replica caught up with the read index. A null
+  // endKey means no upper bound. The keys fenced off for other replica groups are skipped. Throws
+  // StatusRuntimeException if the read index can't be reached, or while keys are handed over to this group.
+  CloseableIterator<Map.Entry<String, String>> scanRange(String startKey, String endKey) {
+    awaitReadIndex();
+    HandOff handOff = replicatedLog.handOff();
+    handOff.checkServesAll();
+    return handOff.skipFenced(dataStorage.scan(startKey, endKey));
+  }
+
+  // Method to handle MULTI-GET requests. Reads all the keys locally in one pass, after a single read index round trip.
+  @Override
+  public void multiGet(MultiGetRequest request, StreamObserver<MultiGetResponse> responseObserver) {
+    ServerLogger.debug("Received MULTI-GET request of %d keys", request.getKeysCount());
+
+    try {
+      awaitReadIndex();
+      for (String key : request.getKeysList()) {
+        replicatedLog.handOff().checkServes(key.toLowerCase());
+      }
+    } catch (StatusRuntimeException e) {
+      ServerLogger.debug("Send MULTI-GET error: %s\n", e.getMessage());
+      responseObserver.onError(e);
+      return;
+    }
+
+    MultiGetResponse.Builder responseBuilder = MultiGetResponse.newBuilder();
+    for (String requestedKey : request.getKeysList()) {
+      String key = requestedKey.toLowerCase();
+      String value = dataStorage.get(key);
+      if (value == null) {
+        responseBuilder.addResults(KeyResult.newBuilder().setKey(key).setError("Key " + key + " doesn't exist."));
+      } else {
+        responseBuilder.addResults(KeyResult.newBuilder().setKey(key).setStatus(true).setValue(value));
+      }
+    }
+    MultiGetResponse response = responseBuilder.build();
+    ServerLogger.debug("Send MULTI-GET response of %d keys\n", response.getResultsCount());
+    responseObserver.onNext(response);
     responseObserver.onCompleted();
   }
 
+  // Method to handle MULTI-PUT requests. All the pairs are replicated as one proposal.
+  @Override
+  public void multiPut(MultiPutRequest request, StreamObserver<MultiPutResponse> responseObserver) {
+    ServerLogger.debug("Received MULTI-PUT request of %d pairs", request.getPairsCount());
 
-  // Method to handle Paxos Prepare request as an Acceptor
+    List<PaxosDatum> data = new ArrayList<>();
+    for (KeyValuePair pair : request.getPairsList()) {
+      data.add(PaxosDatum.newBuilder().setMethod("PUT")
+              .setKey(pair.getKey().toLowerCase()).setValue(pair.getValue().toLowerCase()).build());
+    }
+
+    // Forward to the leader, so that only one replica proposes and it can skip the prepare phase.
+    if (!request.getForwarded() && proposer.hasRemoteLeader()) {
+      forwardToLeader("MULTI-PUT", () -> proposer.forwardMultiPut(request.toBuilder().setForwarded(true).build()),
+              responseObserver, () -> proposeMultiPut(data, responseObserver));
+      return;
+    }
+    proposeMultiPut(data, responseObserver);
+  }
+
+  private void proposeMultiPut(List<PaxosDatum> data, StreamObserver<MultiPutResponse> responseObserver) {
+    writeBatcher.submitEach(data).whenComplete((rejectedData, e) -> {
+      MultiPutResponse.Builder responseBuilder = MultiPutResponse.newBuilder();
+      for (int i = 0; i < data.size(); i++) {
+        responseBuilder.addResults(writeResult(data.get(i).getKey(), e, rejectedData, i));
+      }
+      MultiPutResponse response = responseBuilder.build();
+      ServerLogger.debug("Send MULTI-PUT response of %d pairs%s\n",
+              response.getResultsCount(), e == null ? "" : ", error: " + e.getMessage());
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    });
+  }
+
+  // Method to handle MULTI-DELETE requests. The keys that exist are deleted in one proposal, the others are reported as
+  // errors.
   @Override
-  public void prepare(PrepareRequest request, StreamObserver<PrepareResponse> responseObserver) {
-    ServerLogger.info("Received Paxos prepare: %s", request.toString().replace('\n', ' '));
+  public void multiDelete(MultiDeleteRequest request, StreamObserver<MultiDeleteResponse> responseObserver) {
+    ServerLogger.debug("Received MULTI-DELETE request of %d keys", request.getKeysCount());
 
-    RandomException.randomlyThrowException();
+    // The keys on their way from another replica group aren't missing.
+    try {
+      for (String key : request.getKeysList()) {
+        replicatedLog.handOff().checkServes(key.toLowerCase());
+      }
+    } catch (StatusRuntimeException e) {
+      ServerLogger.debug("Send MULTI-DELETE error: %s\n", e.getMessage());
+      responseObserver.onError(e);
+      return;
+    }
 
-    PrepareResponse.Builder responseBuilder = PrepareResponse.newBuilder();
+    // Forward to the leader, so that only one replica proposes and it can skip the prepare phase.
+    if (!request.getForwarded() && proposer.hasRemoteLeader()) {
+      forwardToLeader("MULTI-DELETE", () -> proposer.forwardMultiDelete(request.toBuilder().setForwarded(true).build()),
+              responseObserver, () -> proposeMultiDelete(request, responseObserver));
+      return;
+    }
+    proposeMultiDelete(request, responseObserver);
+  }
 
-    long proposalNumber = request.getProposalNumber();
-    if (proposalNumber < largestProposalNumber) {
-      responseBuilder.setPrepareOk(false);
-    } else {
-      largestProposalNumber = proposalNumber;
+  private void proposeMultiDelete(MultiDeleteRequest request, StreamObserver<MultiDeleteResponse> responseObserver) {
+    List<String> keys = new ArrayList<>();
+    List<Boolean> existing = new ArrayList<>();
+    List<PaxosDatum> data = new ArrayList<>();
+    for (String requestedKey : request.getKeysList()) {
+      String key = requestedKey.toLowerCase();
+      keys.add(key);
+      existing.add(dataStorage.containsKey(key));
+      if (existing.get(existing.size() - 1)) {
+        data.add(PaxosDatum.newBuilder().setMethod("DELETE").setKey(key).build());
+      }
+    }
 
-      if (acceptedProposalNumber == -1) {
-        responseBuilder.setPrepareOk(true).setPreviousProposalNumber(-1);
-      } else {
-        responseBuilder
-                .setPrepareOk(true)
-                .setPreviousProposalNumber(acceptedProposalNumber)
-                .setPreviousProposalValue(acceptedProposalDatum);
+    writeBatcher.submitEach(data).whenComplete((rejectedData, e) -> {
+      MultiDeleteResponse.Builder responseBuilder = MultiDeleteResponse.newBuilder();
+      // Index of the key among the deletes proposed
+      int dataIndex = 0;
+      for (int i = 0; i < keys.size(); i++) {
+        String key = keys.get(i);
+        if (existing.get(i)) {
+          responseBuilder.addResults(writeResult(key, e, rejectedData, dataIndex++));
+        } else {
+          responseBuilder.addResults(KeyResult.newBuilder().setKey(key).setError("Key " + key + " doesn't exist."));
+        }
       }
+      MultiDeleteResponse response = responseBuilder.build();
+      ServerLogger.debug("Send MULTI-DELETE response of %d keys%s\n",
+              response.getResultsCount(), e == null ? "" : ", error: " + e.getMessage());
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    });
+  }
+
+  /**
+   * Complete a write forwarded to the leader with the response of the leader. The handler thread doesn't wait for it:
+   * the callback runs once the leader responds, so that writes stalled in Paxos don't hold the threads that serve the
+   * reads. If the connection to the leader is down, the write can't reach it: forget the leader and propose the write
+   * from this replica instead. Once the write was sent, the leader may have committed it even if the call fails, so
+   * the error goes back to the client rather than propose the write a second time.
+   */
+  private <T> void forwardToLeader(String method, Supplier<ListenableFuture<T>> forward,
+                                   StreamObserver<T> responseObserver, Runnable proposeLocally) {
+    if (proposer.leaderUnreachable()) {
+      ServerLogger.error("Leader unavailable, propose the %s locally", method);
+      proposer.forgetLeader();
+      proposeLocally.run();
+      return;
+    }
+    Futures.addCallback(forward.get(), new FutureCallback<T>() {
+      @Override
+      public void onSuccess(T response) {
+        ServerLogger.debug("Send %s response from the leader: %s\n", method, response);
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        Status status = Status.fromThrowable(t);
+        if (status.getCode() == Status.Code.UNAVAILABLE) {
+          // Propose the next writes locally, unless the leader is heard from again in the meantime.
+          ServerLogger.error("Leader unavailable: %s", t.getMessage());
+          proposer.forgetLeader();
+        }
+        ServerLogger.debug("Send %s error: %s\n", method, t.getMessage());
+        // The trailers tell the client about a newer partition map.
+        responseObserver.onError(status.asRuntimeException(Status.trailersFromThrowable(t)));
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  // The result of the write at the given index of a multi-key write, given the outcome of its proposal and the indexes
+  // of the writes the hand-off fence rejected
+  private KeyResult writeResult(String key, Throwable error, BitSet rejectedData, int index) {
+    if (error != null) {
+      return KeyResult.newBuilder().setKey(key).setError(error.getMessage()).build();
+    }
+    if (rejectedData != null && rejectedData.get(index)) {
+      return KeyResult.newBuilder().setKey(key).setError(replicatedLog.handOff().rejected(key).getMessage()).build();
+    }
+    return KeyResult.newBuilder().setKey(key).setStatus(true).build();
+  }
+
+  // The error of a failed write for the client. A write the hand-off fence rejected keeps its status and trailers, so
+  // that the client refreshes its partition map.
+  static StatusRuntimeException writeError(Throwable error) {
+    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    if (cause instanceof StatusRuntimeException) {
+      return (StatusRuntimeException) cause;
+    }
+    return Status.INTERNAL.withDescription(error.getMessage()).asRuntimeException();
+  }
+
+  // Method to handle Paxos Prepare request as an Acceptor
+  @Override
+  public void prepare(PrepareRequest request, StreamObserver<PrepareResponse> responseObserver) {
+    ServerLogger.debug("Received Paxos prepare: %s", request);
+
+    RandomException.randomlyThrowException();
+
+    PrepareResponse response =
+            replicatedLog.prepare(request.getProposalNumber(), request.getProposerPort(), request.getSlot());
+    if (response.getPrepareOk()) {
+      proposer.observeBallot(request.getProposalNumber(), request.getProposerPort());
     }
 
-    PrepareResponse response = responseBuilder.build();
-    ServerLogger.info("Sent Paxos prepare response: %s\n", response.toString().replace('\n', ' '));
+    ServerLogger.debug("Sent Paxos prepare response: %s\n", response);
     responseObserver.onNext(response);
     responseObserver.onCompleted();
   }
@@ -152,24 +505,19 @@ public class KeyValueStoreImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
   // Method to handle Paxos Accept request as an Acceptor
   @Override
   public void accept(AcceptRequest request, StreamObserver<AcceptResponse> responseObserver) {
-    ServerLogger.info("Received Paxos accept: %s", request.toString().replace('\n', ' '));
+    ServerLogger.debug("Received Paxos accept: proposalNumber: %d slot: %d proposerPort: %d value: %s",
+            request.getProposalNumber(), request.getSlot(), request.getProposerPort(),
+            ReplicatedLog.describe(request.getProposalValue()));
 
     RandomException.randomlyThrowException();
 
-    AcceptResponse.Builder responseBuilder = AcceptResponse.newBuilder();
-
-    long proposalNumber = request.getProposalNumber();
-    if (proposalNumber < largestProposalNumber) {
-      responseBuilder.setAcceptOk(false);
-    } else {
-      largestProposalNumber = proposalNumber;
-      acceptedProposalNumber = proposalNumber;
-      acceptedProposalDatum = request.getProposalValue();
-      responseBuilder.setAcceptOk(true);
+    AcceptResponse response =
+            replicatedLog.accept(request.getProposalNumber(), request.getSlot(), request.getProposalValue());
+    if (response.getAcceptOk()) {
+      proposer.observeBallot(request.getProposalNumber(), request.getProposerPort());
     }
 
-    AcceptResponse response = responseBuilder.build();
-    ServerLogger.info("Sent Paxos accept response: %s\n", response.toString().replace('\n', ' '));
+    ServerLogger.debug("Sent Paxos accept response: %s\n", response);
     responseObserver.onNext(response);
     responseObserver.onCompleted();
   }
@@ -177,31 +525,98 @@ public class KeyValueStoreImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
   // Method to handle Paxos Decide request as a Learner
   @Override
   public void decide(DecideRequest request, StreamObserver<DecideResponse> responseObserver) {
-    ServerLogger.info("Received Paxos decide: %s", request.toString().replace('\n', ' '));
-
-    PaxosDatum datum = request.getProposalValue();
-    String method = datum.getMethod();
-    String key = datum.getKey().toLowerCase();
-    if (method.equalsIgnoreCase("PUT")) {
-      dataStorage.put(key, datum.getValue());
-    } else if (method.equalsIgnoreCase("DELETE")) {
-      String value = dataStorage.delete(key);
-      // if the key doesn't exist in this data storage, log it
-      if (value == null) {
-        ServerLogger.error("Data error while processing DELETE: key " + key + " doesn't exist.");
-      }
-    } else {
-      ServerLogger.error("Unknown method " + method + '\n');
-    }
+    ServerLogger.debug("Received Paxos decide: slot: %d value: %s",
+            request.getSlot(), ReplicatedLog.describe(request.getProposalValue()));
+
+    // Decided values are applied to the data storage in slot order.
+    replicatedLog.decide(request.getSlot(), request.getProposalValue());
 
     DecideResponse response = DecideResponse.newBuilder().setSuccess(true).build();
-    ServerLogger.info("Sent Paxos decide response: %s\n", response.toString().replace('\n', ' '));
+    ServerLogger.debug("Sent Paxos decide response: %s\n", response);
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  // Method to handle BULK-LOAD streams. Replicates the records in large chunks, and acks the progress as they commit.
+  @Override
+  public StreamObserver<BulkLoadRequest> bulkLoad(StreamObserver<BulkLoadAck> responseObserver) {
+    ServerLogger.info("Received BULK-LOAD stream");
+    return bulkLoader.serve((ServerCallStreamObserver<BulkLoadAck>) responseObserver);
+  }
+
+  // Method to handle STATS requests. Reports the metrics of this replica, and their Prometheus text if asked for.
+  @Override
+  public void stats(StatsRequest request, StreamObserver<StatsResponse> responseObserver) {
+    StatsResponse response = Metrics.toStatsResponse();
+    if (request.getPrometheusText()) {
+      response = response.toBuilder().setPrometheusText(Metrics.toPrometheusText()).build();
+    }
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  // Method to handle catch-up requests of a lagging replica. Streams the state it is missing in chunks.
+  @Override
+  public void catchUp(CatchUpRequest request, StreamObserver<CatchUpChunk> responseObserver) {
+    ServerLogger.info("Received catch-up request: %s", request);
+    catchUpManager.serve(request, (ServerCallStreamObserver<CatchUpChunk>) responseObserver);
+  }
+
+  // Method to handle read lease requests of the leader as an Acceptor
+  @Override
+  public void lease(LeaseRequest request, StreamObserver<LeaseResponse> responseObserver) {
+    LeaseResponse response =
+            replicatedLog.grantLease(request.getProposalNumber(), request.getProposerPort(), request.getDurationInMs());
+    if (response.getGranted()) {
+      proposer.observeBallot(request.getProposalNumber(), request.getProposerPort());
+    }
     responseObserver.onNext(response);
     responseObserver.onCompleted();
+  }
 
-    // Reset to initial values to indicate no proposal seen in the current Paxos round.
-    largestProposalNumber = -1;
-    acceptedProposalNumber = -1;
-    acceptedProposalDatum = null;
+  // Method to handle read index requests of the other replicas, as the leader
+  @Override
+  public void readIndex(ReadIndexRequest request, StreamObserver<ReadIndexResponse> responseObserver) {
+    ReadIndexResponse.Builder responseBuilder = ReadIndexResponse.newBuilder();
+    if (proposer.hasReadLease()) {
+      responseBuilder.setOk(true).setSlot(replicatedLog.firstUndecidedSlot());
+    } else if (!proposer.hasRemoteLeader()) {
+      // Without the lease, commit a NOOP to order the read after every completed write.
+      try {
+        long readIndex = proposer.commitReadIndex(READ_INDEX_TIMEOUT_IN_MS);
+        if (readIndex != -1) {
+          responseBuilder.setOk(true).setSlot(readIndex);
+        }
+      } catch (StatusRuntimeException e) {
+        ServerLogger.debug("Unable to commit a read index: %s", e.getMessage());
+      }
+    }
+    ReadIndexResponse response = responseBuilder.build();
+    ServerLogger.debug("Sent read index response: %s", response);
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  // Method to handle the batches of writes the other replicas forward, as the leader. The batch is proposed as it is,
+  // in one entry together with the local writes. Respond with its slot, so that the replica can wait for it to apply.
+  @Override
+  public void proposeBatch(ProposeBatchRequest request, StreamObserver<ProposeBatchResponse> responseObserver) {
+    ServerLogger.debug("Received forwarded batch of %d writes", request.getBatch().getDataCount());
+    if (proposer.hasRemoteLeader()) {
+      // Nothing is proposed, so the replica may propose the batch itself.
+      responseObserver.onNext(ProposeBatchResponse.newBuilder().setOk(false).build());
+      responseObserver.onCompleted();
+      return;
+    }
+    writeBatcher.submitBatch(request.getBatch()).whenComplete((slot, e) -> {
+      if (e != null) {
+        ServerLogger.debug("Send forwarded batch error: %s\n", e.getMessage());
+        responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        return;
+      }
+      ServerLogger.debug("Send forwarded batch response: slot %d\n", slot);
+      responseObserver.onNext(ProposeBatchResponse.newBuilder().setOk(true).setSlot(slot).build());
+      responseObserver.onCompleted();
+    });
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package kvstore.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer with many producers and a single consumer, for the records of the ServerLogger. A
+ * producer claims a slot with one compare-and-set on the tail and publishes the record through the sequence number of
+ * the slot, so handler threads never block on each other or on the writer thread. When the buffer is full, offer()
+ * fails instead of waiting.
+ *
+ * Every slot has a sequence number. A slot is free for the producer of sequence s when its sequence number is s, and
+ * holds the record of sequence s for the consumer when its sequence number is s + 1.
+ */
+class LogRingBuffer<T> {
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<T> entries;
+  private final AtomicLongArray sequences;
+  // Next sequence to claim by the producers
+  private final AtomicLong tail = new AtomicLong();
+  // Next sequence to take by the consumer. Only accessed by the consumer thread.
+  private long head = 0;
+
+  LogRingBuffer(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two. Got: " + capacity);
+    }
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.entries = new AtomicReferenceArray<>(capacity);
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  // Add an entry. Returns false if the buffer is full.
+  boolean offer(T entry) {
+    long sequence = tail.get();
+    while (true) {
+      int index = (int) sequence & mask;
+      long slotSequence = sequences.get(index);
+      if (slotSequence == sequence) {
+        if (tail.compareAndSet(sequence, sequence + 1)) {
+          entries.lazySet(index, entry);
+          // Publishes the entry to the consumer
+          sequences.set(index, sequence + 1);
+          return true;
+        }
+        sequence = tail.get();
+      } else if (slotSequence < sequence) {
+        // The consumer hasn't taken the entry of this slot from the previous lap yet
+        return false;
+      } else {
+        // Another producer claimed this sequence first
+        sequence = tail.get();
+      }
+    }
+  }
+
+  // Take the oldest entry, or return null if the buffer is empty. Must only be called by the consumer thread.
+  T poll() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return null;
+    }
+    T entry = entries.get(index);
+    entries.lazySet(index, null);
+    // Frees the slot for the producer of the next lap
+    sequences.set(index, head + capacity);
+    head++;
+    return entry;
+  }
+
+  // Whether the buffer holds no published entry. Must only be called by the consumer thread.
+  boolean isEmpty() {
+    return sequences.get((int) head & mask) != head + 1;
+  }
+}
@@ -0,0 +1,573 @@
+package kvstore.server;
+
+import kvstore.metrics.LatencyHistogram;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage engine that keeps the pairs on disk in a log-structured merge tree, so that a replica can hold far more data
+ * than fits in memory.
+ *
+ * Writes go to an in-memory sorted memtable. Once it grows past MEMTABLE_MAX_BYTES, it is frozen and a background
+ * thread writes it out as an immutable SSTable, while a new memtable takes the writes. Deletes write a tombstone, which
+ * hides the older values of the key until compaction drops it. A GET checks the memtable, the frozen memtable, then the
+ * tables from newest to oldest; the bloom filter and block index of each table are in memory, so a GET reads at most
+ * one block of each table that may contain the key, which is usually a single one.
+ *
+ * The background thread also compacts the tables, size-tiered: whenever the newest tables form a run of
+ * COMPACTION_MIN_TABLES or more whose sizes are all within reach of the newer ones, it merges the run into one table.
+ * This keeps the number of tables logarithmic in the data size while writing every pair only a few times.
+ *
+ * The MANIFEST file lists the live tables, and is atomically replaced whenever the list changes. It also records the
+ * last checkpoint slot: checkpoint() flushes the memtable, so that everything applied up to that slot is in the listed
+ * tables, and the Snapshotter then truncates the write-ahead log without writing a snapshot file.
+ */
+public class LsmStorageEngine implements StorageEngine {
+  // Marks a deleted key in memtables and tables. Compared by reference, so it never collides with a real value.
+  static final String TOMBSTONE = new String("<tombstone>");
+
+  private static final long MEMTABLE_MAX_BYTES = 16 << 20;
+  // Rough per-entry overhead of a skip list node, on top of the key and value.
+  private static final long MEMTABLE_ENTRY_OVERHEAD = 64;
+  private static final int COMPACTION_MIN_TABLES = 4;
+  // Compact the newest tables anyway once there are this many, even if their sizes are uneven.
+  private static final int COMPACTION_MAX_TABLES = 16;
+  private static final String MANIFEST_FILE = "MANIFEST";
+  private static final String TEMP_MANIFEST_FILE = "MANIFEST.tmp";
+  private static final String TABLE_SUFFIX = ".sst";
+  // Time a full memtable waits for the previous one to be flushed, during which the writes stall
+  private static final LatencyHistogram WRITE_STALL = Metrics.histogram("kvstore_lsm_write_stall_seconds");
+
+  private final Path dir;
+  private volatile ConcurrentSkipListMap<String, String> memtable = new ConcurrentSkipListMap<>();
+  private final AtomicLong memtableBytes = new AtomicLong();
+  // The frozen memtable being written out by the background thread, or null
+  private volatile ConcurrentSkipListMap<String, String> flushingMemtable = null;
+  // The live tables, newest first. Replaced as a whole, never modified.
+  private volatile List<SSTable> tables = Collections.emptyList();
+
+  // Guarded by this
+  private long nextTableNumber = 0;
+  private long checkpointSlot = -1;
+  // Bumped by clear(), so that the background thread drops the tables it was writing from the data before that.
+  private long generation = 0;
+
+  // Open the engine in the given directory, creating it if needed.
+  public LsmStorageEngine(Path dir) {
+    this.dir = dir;
+    try {
+      Files.createDirectories(dir);
+      openTables();
+    } catch (IOException e) {
+      ServerLogger.error("Failed to open LSM storage engine in %s: %s", dir, e.getMessage());
+      System.exit(1);
+    }
+    Thread thread = new Thread(this::runBackgroundWork, "lsm-flusher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Open the tables listed in the manifest, and delete the leftovers of flushes and compactions that didn't finish.
+  private void openTables() throws IOException {
+    List<Long> tableNumbers = new ArrayList<>();
+    Path manifest = dir.resolve(MANIFEST_FILE);
+    if (Files.exists(manifest)) {
+      for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+        String[] fields = line.split(" ");
+        switch (fields[0]) {
+          case "checkpoint-slot":
+            checkpointSlot = Long.parseLong(fields[1]);
+            break;
+          case "next-table-number":
+            nextTableNumber = Long.parseLong(fields[1]);
+            break;
+          case "table":
+            tableNumbers.add(Long.parseLong(fields[1]));
+            break;
+          default:
+            throw new IOException("Unknown manifest line: " + line);
+        }
+      }
+    }
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.equals(TEMP_MANIFEST_FILE)
+                || (name.endsWith(TABLE_SUFFIX) && !tableNumbers.contains(tableNumber(name)))) {
+          Files.delete(file);
+        }
+      }
+    }
+
+    List<SSTable> opened = new ArrayList<>();
+    for (long number : tableNumbers) {
+      opened.add(SSTable.open(tablePath(number), number));
+    }
+    tables = Collections.unmodifiableList(opened);
+    ServerLogger.info("Opened LSM storage engine with %d tables, checkpoint slot %d", opened.size(), checkpointSlot);
+  }
+
+  @Override
+  public void put(String key, String value) {
+    write(key, value);
+  }
+
+  @Override
+  public String get(String key) {
+    String value = lookUp(key);
+    return value == TOMBSTONE ? null : value;
+  }
+
+  @Override
+  public String delete(String key) {
+    String value = get(key);
+    if (value != null) {
+      write(key, TOMBSTONE);
+    }
+    return value;
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    try (CloseableIterator<Map.Entry<String, String>> iterator = iterator()) {
+      while (iterator.hasNext()) {
+        Map.Entry<String, String> entry = iterator.next();
+        action.accept(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Iterate the pairs in key order, merging the memtables and the tables. The tables are pinned until the iteration
+   * reaches the end or is closed, so that compaction doesn't delete them underneath it.
+   */
+  @Override
+  public CloseableIterator<Map.Entry<String, String>> iterator() {
+    List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+    sources.add(memtable.entrySet().iterator());
+    ConcurrentSkipListMap<String, String> frozen = flushingMemtable;
+    if (frozen != null) {
+      sources.add(frozen.entrySet().iterator());
+    }
+    List<SSTable> pinned = retainTables();
+    for (SSTable table : pinned) {
+      sources.add(table.iterator());
+    }
+    return new MergingIterator(sources, true, () -> releaseTables(pinned));
+  }
+
+  /**
+   * Iterate the pairs with startKey <= key < endKey in key order. Every table starts reading at the block that may hold
+   * startKey, so a short scan reads a few blocks rather than whole tables. Pins the tables like iterator() does.
+   */
+  @Override
+  public CloseableIterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+    List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+    sources.add(range(memtable, startKey, endKey).entrySet().iterator());
+    ConcurrentSkipListMap<String, String> frozen = flushingMemtable;
+    if (frozen != null) {
+      sources.add(range(frozen, startKey, endKey).entrySet().iterator());
+    }
+    List<SSTable> pinned = retainTables();
+    for (SSTable table : pinned) {
+      sources.add(table.iterator(startKey, endKey));
+    }
+    return new MergingIterator(sources, true, () -> releaseTables(pinned));
+  }
+
+  private static ConcurrentNavigableMap<String, String> range(ConcurrentSkipListMap<String, String> memtable,
+                                                              String startKey, String endKey) {
+    return endKey == null ? memtable.tailMap(startKey, true) : memtable.subMap(startKey, true, endKey, false);
+  }
+
+  /**
+   * Drop every pair, e.g. before installing a snapshot from another replica. Also drops the checkpoint, since the
+   * write-ahead log no longer covers the slots in between.
+   */
+  @Override
+  public synchronized void clear() {
+    generation++;
+    memtable = new ConcurrentSkipListMap<>();
+    memtableBytes.set(0);
+    flushingMemtable = null;
+    List<SSTable> dropped = tables;
+    tables = Collections.emptyList();
+    checkpointSlot = -1;
+    writeManifest();
+    dropped.forEach(SSTable::markObsolete);
+    notifyAll();
+  }
+
+  // Flush the memtable and record the slot in the manifest. Blocks until the flush is done.
+  @Override
+  public synchronized boolean checkpoint(long slot) {
+    if (!memtable.isEmpty()) {
+      freezeMemtable();
+    }
+    while (flushingMemtable != null) {
+      waitForBackgroundWork();
+    }
+    checkpointSlot = slot;
+    writeManifest();
+    return true;
+  }
+
+  @Override
+  public synchronized long checkpointSlot() {
+    return checkpointSlot;
+  }
+
+  // Synchronized with freezeMemtable(), so that no write lands in a memtable after it was frozen. The writes come from
+  // the one thread applying the log, so the lock is uncontended apart from checkpoints.
+  private synchronized void write(String key, String value) {
+    memtable.put(key, value);
+    long size = memtableBytes.addAndGet(2L * (key.length() + value.length()) + MEMTABLE_ENTRY_OVERHEAD);
+    if (size >= MEMTABLE_MAX_BYTES) {
+      freezeMemtable();
+    }
+  }
+
+  // The value of the key, TOMBSTONE if it was deleted, or null if it was never written
+  private String lookUp(String key) {
+    // Check the memtables before the tables: the background thread publishes a flushed table before dropping its
+    // memtable, so a key is always in one of them.
+    String value = memtable.get(key);
+    if (value != null) {
+      return value;
+    }
+    ConcurrentSkipListMap<String, String> frozen = flushingMemtable;
+    if (frozen != null) {
+      value = frozen.get(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    List<SSTable> pinned = retainTables();
+    try {
+      for (SSTable table : pinned) {
+        value = table.get(key, keyBytes);
+        if (value != null) {
+          return value;
+        }
+      }
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      releaseTables(pinned);
+    }
+  }
+
+  // Hand the memtable to the background thread, first waiting for the previous one to be written out.
+  private synchronized void freezeMemtable() {
+    if (flushingMemtable != null) {
+      long startNanos = System.nanoTime();
+      while (flushingMemtable != null) {
+        waitForBackgroundWork();
+      }
+      Metrics.recordSince(WRITE_STALL, startNanos);
+    }
+    flushingMemtable = memtable;
+    memtable = new ConcurrentSkipListMap<>();
+    memtableBytes.set(0);
+    notifyAll();
+  }
+
+  private void waitForBackgroundWork() {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the LSM flusher", e);
+    }
+  }
+
+  // Take a reference on every live table. Retries if compaction replaced the list in the meantime.
+  private List<SSTable> retainTables() {
+    while (true) {
+      List<SSTable> current = tables;
+      int numRetained = 0;
+      while (numRetained < current.size() && current.get(numRetained).tryRetain()) {
+        numRetained++;
+      }
+      if (numRetained == current.size()) {
+        return current;
+      }
+      releaseTables(current.subList(0, numRetained));
+    }
+  }
+
+  private static void releaseTables(List<SSTable> pinned) {
+    pinned.forEach(SSTable::release);
+  }
+
+  // Body of the background thread: write out frozen memtables, and compact the tables in between.
+  private void runBackgroundWork() {
+    while (true) {
+      ConcurrentSkipListMap<String, String> frozen;
+      long frozenGeneration;
+      synchronized (this) {
+        while (flushingMemtable == null) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        frozen = flushingMemtable;
+        frozenGeneration = generation;
+      }
+      try {
+        flush(frozen, frozenGeneration);
+        while (compact()) {
+          // Keep merging while the newest tables form a run.
+        }
+      } catch (IOException | UncheckedIOException e) {
+        ServerLogger.error("LSM background work in %s failed: %s", dir, e.getMessage());
+        System.exit(1);
+      }
+    }
+  }
+
+  private void flush(ConcurrentSkipListMap<String, String> frozen, long frozenGeneration) throws IOException {
+    long startTime = System.currentTimeMillis();
+    long number = allocateTableNumber();
+    SSTable table = SSTable.write(tablePath(number), number, frozen.entrySet().iterator(), frozen.size());
+    synchronized (this) {
+      if (generation != frozenGeneration) {
+        // Cleared while writing, so the table holds stale data.
+        table.markObsolete();
+        return;
+      }
+      List<SSTable> updated = new ArrayList<>();
+      updated.add(table);
+      updated.addAll(tables);
+      // Publish the table before dropping the memtable, see lookUp().
+      tables = Collections.unmodifiableList(updated);
+      flushingMemtable = null;
+      writeManifest();
+      notifyAll();
+    }
+    ServerLogger.info("Flushed memtable of %d pairs to table %d in %d ms",
+            table.getNumEntries(), number, System.currentTimeMillis() - startTime);
+  }
+
+  /**
+   * Merge the newest run of tables in which every table is at most as large as all the newer ones together, if the run
+   * is long enough. Tombstones are dropped when the run reaches the oldest table, since nothing older is left for them
+   * to hide. Returns whether it merged anything.
+   */
+  private boolean compact() throws IOException {
+    List<SSTable> current;
+    long generationAtStart;
+    synchronized (this) {
+      current = tables;
+      generationAtStart = generation;
+    }
+    if (current.size() < COMPACTION_MIN_TABLES) {
+      return false;
+    }
+    int runLength = 1;
+    long runBytes = current.get(0).getFileSize();
+    while (runLength < current.size() && current.get(runLength).getFileSize() <= runBytes) {
+      runBytes += current.get(runLength).getFileSize();
+      runLength++;
+    }
+    if (runLength < COMPACTION_MIN_TABLES) {
+      if (current.size() < COMPACTION_MAX_TABLES) {
+        return false;
+      }
+      runLength = COMPACTION_MIN_TABLES;
+    }
+
+    long startTime = System.currentTimeMillis();
+    List<SSTable> run = current.subList(0, runLength);
+    // Pin the run, in case clear() drops it while it is being merged.
+    int numRetained = 0;
+    while (numRetained < run.size() && run.get(numRetained).tryRetain()) {
+      numRetained++;
+    }
+    if (numRetained < run.size()) {
+      releaseTables(run.subList(0, numRetained));
+      return false;
+    }
+    boolean dropTombstones = runLength == current.size();
+    List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+    long numEntries = 0;
+    for (SSTable table : run) {
+      sources.add(table.iterator());
+      numEntries += table.getNumEntries();
+    }
+    long number = allocateTableNumber();
+    SSTable merged;
+    try {
+      merged = SSTable.write(tablePath(number), number, new MergingIterator(sources, dropTombstones, () -> {
+      }), numEntries);
+    } finally {
+      releaseTables(run);
+    }
+
+    synchronized (this) {
+      // Only this thread adds tables, so the list is unchanged unless it was cleared.
+      if (generation != generationAtStart) {
+        merged.markObsolete();
+        return false;
+      }
+      List<SSTable> updated = new ArrayList<>();
+      updated.add(merged);
+      updated.addAll(current.subList(runLength, current.size()));
+      tables = Collections.unmodifiableList(updated);
+      writeManifest();
+    }
+    run.forEach(SSTable::markObsolete);
+    ServerLogger.info("Compacted %d tables into table %d of %d pairs in %d ms",
+            runLength, number, merged.getNumEntries(), System.currentTimeMillis() - startTime);
+    return true;
+  }
+
+  private synchronized long allocateTableNumber() {
+    return nextTableNumber++;
+  }
+
+  // Atomically replace the manifest by the current state. Must hold the lock.
+  private void writeManifest() {
+    Path tempPath = dir.resolve(TEMP_MANIFEST_FILE);
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+        writer.write("checkpoint-slot " + checkpointSlot + "\n");
+        writer.write("next-table-number " + nextTableNumber + "\n");
+        for (SSTable table : tables) {
+          writer.write("table " + table.getNumber() + "\n");
+        }
+      }
+      try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Files.move(tempPath, dir.resolve(MANIFEST_FILE),
+              StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      ServerLogger.error("Failed to write LSM manifest %s: %s", tempPath, e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private Path tablePath(long number) {
+    return dir.resolve(number + TABLE_SUFFIX);
+  }
+
+  private static long tableNumber(String fileName) {
+    try {
+      return Long.parseLong(fileName.substring(0, fileName.length() - TABLE_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Merges sorted sources, ordered from newest to oldest, into one sorted sequence. For a key present in several
+   * sources, only the newest entry is returned. Tombstones are either returned or skipped. Invokes onEnd once, when the
+   * sources are exhausted or the iterator is closed.
+   */
+  private static class MergingIterator implements CloseableIterator<Map.Entry<String, String>> {
+    private final List<Iterator<Map.Entry<String, String>>> sources;
+    private final boolean skipTombstones;
+    private final Runnable onEnd;
+    // The head of each non-exhausted source, smallest key first, then newest source first
+    private final PriorityQueue<Head> heads = new PriorityQueue<>();
+    private Map.Entry<String, String> next;
+    private boolean ended = false;
+
+    private record Head(Map.Entry<String, String> entry, int sourceIndex) implements Comparable<Head> {
+      @Override
+      public int compareTo(Head other) {
+        int comparison = entry.getKey().compareTo(other.entry.getKey());
+        return comparison != 0 ? comparison : Integer.compare(sourceIndex, other.sourceIndex);
+      }
+    }
+
+    private MergingIterator(List<Iterator<Map.Entry<String, String>>> sources, boolean skipTombstones,
+                            Runnable onEnd) {
+      this.sources = sources;
+      this.skipTombstones = skipTombstones;
+      this.onEnd = onEnd;
+      for (int i = 0; i < sources.size(); i++) {
+        advance(i);
+      }
+      next = computeNext();
+    }
+
+    private void advance(int sourceIndex) {
+      Iterator<Map.Entry<String, String>> source = sources.get(sourceIndex);
+      if (source.hasNext()) {
+        heads.add(new Head(source.next(), sourceIndex));
+      }
+    }
+
+    private Map.Entry<String, String> computeNext() {
+      while (!heads.isEmpty()) {
+        Head newest = heads.poll();
+        advance(newest.sourceIndex);
+        // Skip the older entries of the same key.
+        while (!heads.isEmpty() && heads.peek().entry.getKey().equals(newest.entry.getKey())) {
+          advance(heads.poll().sourceIndex);
+        }
+        if (!skipTombstones || newest.entry.getValue() != TOMBSTONE) {
+          return newest.entry;
+        }
+      }
+      close();
+      return null;
+    }
+
+    @Override
+    public void close() {
+      if (!ended) {
+        ended = true;
+        heads.clear();
+        onEnd.run();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, String> current = next;
+      next = computeNext();
+      return current;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package kvstore.server;
+
+import kvstore.LatencySummary;
+import kvstore.MetricValue;
+import kvstore.StatsResponse;
+import kvstore.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of this server: latency histograms, counters, and gauges read when the metrics are reported. Series are
+ * named like Prometheus series, e.g. kvstore_rpc_latency_seconds{method="get"}, and created on first use. Hot paths look
+ * their histogram or counter up once and keep it, so recording is a few lock-free atomic updates.
+ *
+ * Like ServerLogger, the metrics are shared by the JVM. Replicas that run in the same JVM, e.g. in the benchmarks, add up.
+ */
+public class Metrics {
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+  private static final ConcurrentSkipListMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+  private static final ConcurrentSkipListMap<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+  private static final ConcurrentSkipListMap<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+
+  // The latency histogram of a series. Labels are name-value pairs. Latencies are recorded in microseconds.
+  public static LatencyHistogram histogram(String name, String... labels) {
+    return HISTOGRAMS.computeIfAbsent(series(name, labels), series -> new LatencyHistogram());
+  }
+
+  // The counter of a series. Labels are name-value pairs.
+  public static LongAdder counter(String name, String... labels) {
+    return COUNTERS.computeIfAbsent(series(name, labels), series -> new LongAdder());
+  }
+
+  // Register a gauge, read whenever the metrics are reported. Replaces the gauge of the same series.
+  public static void gauge(LongSupplier value, String name, String... labels) {
+    GAUGES.put(series(name, labels), value);
+  }
+
+  // Record the time elapsed since startNanos, a System.nanoTime().
+  public static void recordSince(LatencyHistogram histogram, long startNanos) {
+    histogram.record((System.nanoTime() - startNanos) / 1000);
+  }
+
+  private static String series(String name, String... labels) {
+    if (labels.length == 0) {
+      return name;
+    }
+    StringBuilder series = new StringBuilder(name).append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        series.append(',');
+      }
+      series.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+    }
+    return series.append('}').toString();
+  }
+
+  // Summary of every metric, for the Stats RPC
+  public static StatsResponse toStatsResponse() {
+    StatsResponse.Builder response = StatsResponse.newBuilder();
+    for (Map.Entry<String, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      long count = histogram.count();
+      response.addLatencies(LatencySummary.newBuilder()
+              .setSeries(entry.getKey())
+              .setCount(count)
+              .setMeanUs(count == 0 ? 0 : histogram.sum() / count)
+              .setP50Us(histogram.percentile(0.5))
+              .setP99Us(histogram.percentile(0.99))
+              .setP999Us(histogram.percentile(0.999))
+              .setMaxUs(histogram.max()));
+    }
+    for (Map.Entry<String, LongAdder> entry : COUNTERS.entrySet()) {
+      response.addCounters(MetricValue.newBuilder().setSeries(entry.getKey()).setValue(entry.getValue().sum()));
+    }
+    for (Map.Entry<String, LongSupplier> entry : GAUGES.entrySet()) {
+      response.addGauges(MetricValue.newBuilder().setSeries(entry.getKey()).setValue(entry.getValue().getAsLong()));
+    }
+    return response.build();
+  }
+
+  /**
+   * Every metric in the Prometheus text exposition format. The latency histograms are exposed as summaries in seconds,
+   * with the p50, p99 and p999 quantiles.
+   */
+  public static String toPrometheusText() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, List<String>> family : byFamily(HISTOGRAMS.keySet()).entrySet()) {
+      String name = family.getKey();
+      text.append("# TYPE ").append(name).append(" summary\n");
+      for (String series : family.getValue()) {
+        LatencyHistogram histogram = HISTOGRAMS.get(series);
+        String labels = series.substring(name.length());
+        for (double quantile : QUANTILES) {
+          text.append(name).append(withLabel(labels, "quantile", Double.toString(quantile))).append(' ')
+                  .append(histogram.percentile(quantile) / 1e6).append('\n');
+        }
+        text.append(name).append("_sum").append(labels).append(' ').append(histogram.sum() / 1e6).append('\n');
+        text.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+      }
+    }
+    appendValues(text, "counter", COUNTERS, LongAdder::sum);
+    appendValues(text, "gauge", GAUGES, LongSupplier::getAsLong);
+    return text.toString();
+  }
+
+  private interface ValueReader<T> {
+    long read(T metric);
+  }
+
+  private static <T> void appendValues(StringBuilder text, String type, Map<String, T> metrics, ValueReader<T> reader) {
+    for (Map.Entry<String, List<String>> family : byFamily(metrics.keySet()).entrySet()) {
+      text.append("# TYPE ").append(family.getKey()).append(' ').append(type).append('\n');
+      for (String series : family.getValue()) {
+        T metric = metrics.get(series);
+        if (metric != null) {
+          text.append(series).append(' ').append(reader.read(metric)).append('\n');
+        }
+      }
+    }
+  }
+
+  // Group series by their metric name, i.e. the series without labels
+  private static Map<String, List<String>> byFamily(Iterable<String> allSeries) {
+    Map<String, List<String>> families = new TreeMap<>();
+    for (String series : allSeries) {
+      int labelsStart = series.indexOf('{');
+      String name = labelsStart < 0 ? series : series.substring(0, labelsStart);
+      families.computeIfAbsent(name, n -> new ArrayList<>()).add(series);
+    }
+    return families;
+  }
+
+  // Add a label to a label set like {method="get"}, or to an empty one
+  private static String withLabel(String labels, String name, String value) {
+    String label = name + "=\"" + value + '"';
+    if (labels.isEmpty()) {
+      return '{' + label + '}';
+    }
+    return labels.substring(0, labels.length() - 1) + ',' + label + '}';
+  }
+}
@@ -0,0 +1,57 @@
+package kvstore.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP endpoint that serves the metrics of this server at /metrics in the Prometheus text format, for a Prometheus
+ * server to scrape. The same metrics are also available over gRPC through the Stats RPC.
+ */
+public class MetricsEndpoint {
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final int port;
+  private HttpServer httpServer;
+
+  public MetricsEndpoint(int port) {
+    this.port = port;
+  }
+
+  public void start() {
+    try {
+      httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+    } catch (IOException e) {
+      ServerLogger.error("Failed to start the metrics endpoint on port %d: %s", port, e.getMessage());
+      System.exit(1);
+    }
+    httpServer.createContext("/metrics", this::handle);
+    httpServer.start();
+    ServerLogger.info("Metrics endpoint started, listening on " + port);
+  }
+
+  public void stop() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = Metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package kvstore.server;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import kvstore.metrics.LatencyHistogram;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the latency of every RPC this server handles, per method, from the arrival of the call to its response. For
+ * the streaming methods, that is the duration of the whole stream. Also counts the calls that end with an error status.
+ */
+class MetricsInterceptor implements ServerInterceptor {
+  // Latency histogram of every method, keyed by the method name, so that a call costs one lookup
+  private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                               ServerCallHandler<ReqT, RespT> next) {
+    long startNanos = System.nanoTime();
+    String method = call.getMethodDescriptor().getBareMethodName();
+    LatencyHistogram latency = latencies.computeIfAbsent(method,
+            m -> Metrics.histogram("kvstore_rpc_latency_seconds", "method", m.toLowerCase()));
+    return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+      @Override
+      public void close(Status status, Metadata trailers) {
+        Metrics.recordSince(latency, startNanos);
+        if (!status.isOk()) {
+          Metrics.counter("kvstore_rpc_errors_total", "method", method.toLowerCase(), "code", status.getCode().name())
+                  .increment();
+        }
+        super.close(status, trailers);
+      }
+    }, headers);
+  }
+}
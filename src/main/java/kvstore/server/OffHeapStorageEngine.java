@@ -0,0 +1,406 @@
+package kvstore.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage engine that keeps the keys and the values outside of the Java heap, as UTF-8 bytes in direct ByteBuffer
+ * slabs. The heap only holds the open-addressing index, which is a pair of primitive arrays that the garbage collector
+ * doesn't have to trace, so a large data set neither causes long GC pauses nor costs several objects per pair.
+ *
+ * The store is split into segments by key hash, each with its own slabs, index and StampedLock. Reads are optimistic:
+ * they don't take the lock, and only retry under the read lock if a write to the same segment interfered. Writes lock
+ * their segment only. A record is [key length][value length][key bytes][value bytes]. Overwritten and deleted records
+ * are left in the slabs until the garbage outweighs the live records, then the segment is rewritten into new slabs.
+ *
+ * Range scans are opt-in, since they go through a SortedKeyIndex, which keeps a copy of every key on the heap, as a
+ * String in a skip list node: about 80 bytes per key on top of the key itself, all traced by the garbage collector.
+ * Without it, both the keys and the values stay entirely off the heap, and scan() is unsupported.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+  private static final int NUM_SEGMENTS = 64;
+  private static final int SLAB_SIZE = 4 << 20;
+  private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int INITIAL_INDEX_CAPACITY = 1024;
+  private static final double MAX_INDEX_LOAD = 0.6;
+  // Index entries. Any other value is the address of a record: (slab number + 1) << 32 | offset in the slab.
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  // Null unless scans are enabled
+  private final SortedKeyIndex sortedKeys;
+
+  public OffHeapStorageEngine(boolean scans) {
+    this.sortedKeys = scans ? new SortedKeyIndex() : null;
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  @Override
+  public void put(String key, String value) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(keyBytes);
+    segmentFor(hash).put(keyBytes, hash, value.getBytes(StandardCharsets.UTF_8));
+    if (sortedKeys != null) {
+      sortedKeys.add(key);
+    }
+  }
+
+  // The value of the key, or null if the key doesn't exist
+  @Override
+  public String get(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(keyBytes);
+    byte[] value = segmentFor(hash).get(keyBytes, hash);
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  // Remove the key. Returns its value, or null if the key didn't exist.
+  @Override
+  public String delete(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(keyBytes);
+    byte[] value = segmentFor(hash).delete(keyBytes, hash);
+    if (value == null) {
+      return null;
+    }
+    if (sortedKeys != null) {
+      sortedKeys.remove(key);
+    }
+    return new String(value, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return get(key) != null;
+  }
+
+  // Visit every pair. Each segment is copied under its read lock, so the action runs without holding any lock.
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    for (Segment segment : segments) {
+      for (Map.Entry<String, String> pair : segment.copyPairs()) {
+        action.accept(pair.getKey(), pair.getValue());
+      }
+    }
+  }
+
+  // Iterate the pairs one segment at a time, copying each segment under its read lock.
+  @Override
+  public CloseableIterator<Map.Entry<String, String>> iterator() {
+    return new CloseableIterator<Map.Entry<String, String>>() {
+      private int nextSegment = 0;
+      private Iterator<Map.Entry<String, String>> pairs = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!pairs.hasNext() && nextSegment < NUM_SEGMENTS) {
+          pairs = segments[nextSegment++].copyPairs().iterator();
+        }
+        return pairs.hasNext();
+      }
+
+      @Override
+      public Map.Entry<String, String> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return pairs.next();
+      }
+    };
+  }
+
+  @Override
+  public CloseableIterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+    if (sortedKeys == null) {
+      throw new UnsupportedOperationException("Scans need the off-heap-sorted storage engine");
+    }
+    return sortedKeys.scan(startKey, endKey, this::get);
+  }
+
+  @Override
+  public boolean supportsScan() {
+    return sortedKeys != null;
+  }
+
+  @Override
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+    if (sortedKeys != null) {
+      sortedKeys.clear();
+    }
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[hash >>> 26];
+  }
+
+  private static int hash(byte[] keyBytes) {
+    int hash = Arrays.hashCode(keyBytes);
+    // Spread the bits, since the top bits pick the segment and the bottom bits pick the index slot.
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static long address(int slabNumber, int offset) {
+    return ((long) (slabNumber + 1) << 32) | offset;
+  }
+
+  private static int slabNumber(long address) {
+    return (int) (address >>> 32) - 1;
+  }
+
+  private static int offset(long address) {
+    return (int) address;
+  }
+
+  // One independently locked part of the store
+  private static class Segment {
+    private final StampedLock lock = new StampedLock();
+    // Index: the address of the record in every slot, and the hash of its key, so that probing rarely reads the slabs.
+    private long[] addresses = new long[INITIAL_INDEX_CAPACITY];
+    private int[] hashes = new int[INITIAL_INDEX_CAPACITY];
+    private int numPairs = 0;
+    private int numDeleted = 0;
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    // Bytes appended to the slabs, and the part of them taken by records still in the index
+    private long usedBytes = 0;
+    private long liveBytes = 0;
+
+    private byte[] get(byte[] key, int hash) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          byte[] value = getUnlocked(key, hash);
+          if (lock.validate(stamp)) {
+            return value;
+          }
+        } catch (RuntimeException e) {
+          // A concurrent write moved the index or the slabs under the read. Retry under the lock.
+        }
+      }
+      stamp = lock.readLock();
+      try {
+        return getUnlocked(key, hash);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    private byte[] getUnlocked(byte[] key, int hash) {
+      long[] addresses = this.addresses;
+      int[] hashes = this.hashes;
+      List<ByteBuffer> slabs = this.slabs;
+      int slot = find(addresses, hashes, slabs, key, hash);
+      if (slot < 0) {
+        return null;
+      }
+      long address = addresses[slot];
+      ByteBuffer slab = slabs.get(slabNumber(address));
+      int offset = offset(address);
+      int valueLength = slab.getInt(offset + Integer.BYTES);
+      if (valueLength < 0 || valueLength > slab.capacity()) {
+        // Only possible in an optimistic read that raced with a write
+        throw new IllegalStateException("Inconsistent record length");
+      }
+      byte[] value = new byte[valueLength];
+      slab.get(offset + RECORD_HEADER_SIZE + key.length, value, 0, value.length);
+      return value;
+    }
+
+    /**
+     * The index slot holding the key, or -(slot + 1) with the slot to insert it in if it is missing. Probes at most the
+     * whole table, so that a read racing with a write always terminates.
+     */
+    private static int find(long[] addresses, int[] hashes, List<ByteBuffer> slabs, byte[] key, int hash) {
+      int mask = addresses.length - 1;
+      int firstDeleted = -1;
+      int slot = hash & mask;
+      for (int probes = 0; probes < addresses.length; probes++) {
+        long address = addresses[slot];
+        if (address == EMPTY) {
+          return -((firstDeleted == -1 ? slot : firstDeleted) + 1);
+        }
+        if (address == DELETED) {
+          if (firstDeleted == -1) {
+            firstDeleted = slot;
+          }
+        } else if (hashes[slot] == hash && keyEquals(slabs.get(slabNumber(address)), offset(address), key)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -((firstDeleted == -1 ? 0 : firstDeleted) + 1);
+    }
+
+    private static boolean keyEquals(ByteBuffer slab, int offset, byte[] key) {
+      if (slab.getInt(offset) != key.length) {
+        return false;
+      }
+      int keyOffset = offset + RECORD_HEADER_SIZE;
+      for (int i = 0; i < key.length; i++) {
+        if (slab.get(keyOffset + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void put(byte[] key, int hash, byte[] value) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = find(addresses, hashes, slabs, key, hash);
+        if (slot >= 0) {
+          liveBytes -= recordSize(addresses[slot]);
+        } else {
+          slot = -slot - 1;
+          if (addresses[slot] == DELETED) {
+            numDeleted--;
+          }
+          numPairs++;
+        }
+        addresses[slot] = append(key, value);
+        hashes[slot] = hash;
+        liveBytes += RECORD_HEADER_SIZE + key.length + value.length;
+        if (numPairs + numDeleted > addresses.length * MAX_INDEX_LOAD) {
+          rebuildIndex();
+        }
+        if (usedBytes > SLAB_SIZE && usedBytes - liveBytes > liveBytes) {
+          compactSlabs();
+        }
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    private byte[] delete(byte[] key, int hash) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = find(addresses, hashes, slabs, key, hash);
+        if (slot < 0) {
+          return null;
+        }
+        byte[] value = getUnlocked(key, hash);
+        liveBytes -= recordSize(addresses[slot]);
+        addresses[slot] = DELETED;
+        numPairs--;
+        numDeleted++;
+        return value;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    private int recordSize(long address) {
+      ByteBuffer slab = slabs.get(slabNumber(address));
+      int offset = offset(address);
+      return RECORD_HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + Integer.BYTES);
+    }
+
+    // Append a record to the last slab, starting a new slab if it doesn't fit. Returns its address.
+    private long append(byte[] key, byte[] value) {
+      int size = RECORD_HEADER_SIZE + key.length + value.length;
+      ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+      if (slab == null || slab.remaining() < size) {
+        slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, size));
+        slabs.add(slab);
+      }
+      int offset = slab.position();
+      slab.putInt(key.length).putInt(value.length).put(key).put(value);
+      usedBytes += size;
+      return address(slabs.size() - 1, offset);
+    }
+
+    // Re-insert every pair into a new index, doubling it if it is more than half full. Drops the deleted entries.
+    private void rebuildIndex() {
+      int capacity = numPairs > addresses.length * MAX_INDEX_LOAD / 2 ? addresses.length * 2 : addresses.length;
+      long[] newAddresses = new long[capacity];
+      int[] newHashes = new int[capacity];
+      for (int slot = 0; slot < addresses.length; slot++) {
+        if (addresses[slot] != EMPTY && addresses[slot] != DELETED) {
+          int newSlot = hashes[slot] & (capacity - 1);
+          while (newAddresses[newSlot] != EMPTY) {
+            newSlot = (newSlot + 1) & (capacity - 1);
+          }
+          newAddresses[newSlot] = addresses[slot];
+          newHashes[newSlot] = hashes[slot];
+        }
+      }
+      addresses = newAddresses;
+      hashes = newHashes;
+      numDeleted = 0;
+    }
+
+    // Copy the live records into new slabs, so that the old slabs and their garbage can be freed.
+    private void compactSlabs() {
+      List<ByteBuffer> oldSlabs = slabs;
+      long[] newAddresses = addresses.clone();
+      slabs = new ArrayList<>();
+      usedBytes = 0;
+      for (int slot = 0; slot < addresses.length; slot++) {
+        long address = addresses[slot];
+        if (address != EMPTY && address != DELETED) {
+          ByteBuffer oldSlab = oldSlabs.get(slabNumber(address));
+          int offset = offset(address);
+          byte[] key = new byte[oldSlab.getInt(offset)];
+          byte[] value = new byte[oldSlab.getInt(offset + Integer.BYTES)];
+          oldSlab.get(offset + RECORD_HEADER_SIZE, key, 0, key.length);
+          oldSlab.get(offset + RECORD_HEADER_SIZE + key.length, value, 0, value.length);
+          newAddresses[slot] = append(key, value);
+        }
+      }
+      addresses = newAddresses;
+    }
+
+    private List<Map.Entry<String, String>> copyPairs() {
+      long stamp = lock.readLock();
+      try {
+        List<Map.Entry<String, String>> pairs = new ArrayList<>(numPairs);
+        for (long address : addresses) {
+          if (address != EMPTY && address != DELETED) {
+            ByteBuffer slab = slabs.get(slabNumber(address));
+            int offset = offset(address);
+            byte[] key = new byte[slab.getInt(offset)];
+            byte[] value = new byte[slab.getInt(offset + Integer.BYTES)];
+            slab.get(offset + RECORD_HEADER_SIZE, key, 0, key.length);
+            slab.get(offset + RECORD_HEADER_SIZE + key.length, value, 0, value.length);
+            pairs.add(new AbstractMap.SimpleImmutableEntry<>(
+                    new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8)));
+          }
+        }
+        return pairs;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    private void clear() {
+      long stamp = lock.writeLock();
+      try {
+        addresses = new long[INITIAL_INDEX_CAPACITY];
+        hashes = new int[INITIAL_INDEX_CAPACITY];
+        slabs = new ArrayList<>();
+        numPairs = 0;
+        numDeleted = 0;
+        usedBytes = 0;
+        liveBytes = 0;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package kvstore.server;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import kvstore.PartitionMap;
+import kvstore.ReplicaGroup;
+import kvstore.partition.PartitionRing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The partition map of a replica, when the keys are split across several replica groups, each a Paxos cluster of its
+ * own. The map is read from a file shared with the other replicas, and reloaded whenever the file changes, so that a
+ * group can be added by editing the file with a higher version. The group of this replica is the one that lists its
+ * port, and doesn't change while it runs.
+ *
+ * The replica only serves the keys its group owns in the current map. The requests of other keys fail with
+ * FAILED_PRECONDITION and the version of the map in the trailers, so that the client refreshes its own map.
+ */
+public class PartitionManager {
+  private final Path file;
+  private final String groupName;
+  private volatile PartitionRing ring;
+  private FileTime lastModified;
+
+  // Load the map file, and find the group of the replica of the given port. Throws IllegalArgumentException if the map
+  // is invalid or no group has the replica.
+  public PartitionManager(Path file, int port) throws IOException {
+    this.file = file;
+    this.lastModified = Files.getLastModifiedTime(file);
+    this.ring = new PartitionRing(PartitionRing.readFile(file));
+    ReplicaGroup group = groupOf(ring.getMap(), port);
+    if (group == null) {
+      throw new IllegalArgumentException("No replica group of " + file + " has port " + port);
+    }
+    this.groupName = group.getName();
+  }
+
+  private static ReplicaGroup groupOf(PartitionMap map, int port) {
+    for (ReplicaGroup group : map.getGroupsList()) {
+      for (String address : group.getAddressesList()) {
+        if (PartitionRing.portOf(address) == port) {
+          return group;
+        }
+      }
+    }
+    return null;
+  }
+
+  public PartitionRing ring() {
+    return ring;
+  }
+
+  public String groupName() {
+    return groupName;
+  }
+
+  // Ports of the replicas of the group of this replica, in the order of the map. They all run on the same host.
+  public List<Integer> groupPorts() {
+    List<Integer> ports = new ArrayList<>();
+    for (String address : ownGroup().getAddressesList()) {
+      ports.add(PartitionRing.portOf(address));
+    }
+    return ports;
+  }
+
+  // The group of this replica in the current map, or null once it was removed from the map
+  public ReplicaGroup ownGroup() {
+    for (ReplicaGroup group : ring.getMap().getGroupsList()) {
+      if (group.getName().equals(groupName)) {
+        return group;
+      }
+    }
+    return null;
+  }
+
+  public boolean owns(String key) {
+    return ring.groupOf(key).getName().equals(groupName);
+  }
+
+  // The error of a request for a key of another group
+  public StatusRuntimeException wrongGroup(String key) {
+    PartitionRing current = ring;
+    Metadata trailers = new Metadata();
+    trailers.put(PartitionRing.MAP_VERSION_TRAILER, Long.toString(current.getVersion()));
+    return Status.FAILED_PRECONDITION
+            .withDescription("Key " + key.toLowerCase() + " belongs to replica group " + current.groupOf(key).getName()
+                    + ", not " + groupName + ". Partition map version " + current.getVersion() + ".")
+            .asRuntimeException(trailers);
+  }
+
+  /**
+   * Reload the map if the file changed since the last load and has a higher version. Returns whether the map changed.
+   * An invalid file is logged and ignored, so that the replica keeps serving with its current map.
+   */
+  public synchronized boolean reload() {
+    try {
+      FileTime modified = Files.getLastModifiedTime(file);
+      if (modified.equals(lastModified)) {
+        return false;
+      }
+      lastModified = modified;
+      PartitionRing newRing = new PartitionRing(PartitionRing.readFile(file));
+      if (newRing.getVersion() <= ring.getVersion()) {
+        ServerLogger.error("Ignored partition map %s of version %d. The current version is %d.",
+                file, newRing.getVersion(), ring.getVersion());
+        return false;
+      }
+      ring = newRing;
+      ServerLogger.info("Loaded partition map version %d with %d replica groups",
+              newRing.getVersion(), newRing.getMap().getGroupsCount());
+      return true;
+    } catch (IOException | IllegalArgumentException e) {
+      ServerLogger.error("Unable to reload partition map %s: %s", file, e.getMessage());
+      return false;
+    }
+  }
+}
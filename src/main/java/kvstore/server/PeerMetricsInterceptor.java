@@ -0,0 +1,54 @@
+package kvstore.server;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import kvstore.metrics.LatencyHistogram;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the latency of every RPC this replica sends to one other replica, per method, so that a slow or failing peer
+ * stands out. Failed calls, including timeouts and calls cancelled once the quorum was reached, are counted instead.
+ */
+class PeerMetricsInterceptor implements ClientInterceptor {
+  private final String peer;
+  // Latency histogram of every method, keyed by the method name, so that a call costs one lookup
+  private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+  PeerMetricsInterceptor(int peerPort) {
+    this.peer = Integer.toString(peerPort);
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                             CallOptions callOptions, Channel next) {
+    String methodName = method.getBareMethodName();
+    LatencyHistogram latency = latencies.computeIfAbsent(methodName,
+            m -> Metrics.histogram("kvstore_peer_rpc_latency_seconds", "peer", peer, "method", m.toLowerCase()));
+    return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+      @Override
+      public void start(Listener<RespT> responseListener, Metadata headers) {
+        long startNanos = System.nanoTime();
+        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+          @Override
+          public void onClose(Status status, Metadata trailers) {
+            if (status.isOk()) {
+              Metrics.recordSince(latency, startNanos);
+            } else {
+              Metrics.counter("kvstore_peer_rpc_errors_total", "peer", peer, "method", methodName.toLowerCase(),
+                      "code", status.getCode().name()).increment();
+            }
+            super.onClose(status, trailers);
+          }
+        }, headers);
+      }
+    };
+  }
+}
@@ -1,33 +1,116 @@
 package kvstore.server;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.ConnectivityState;
 import io.grpc.Grpc;
 import io.grpc.InsecureChannelCredentials;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import kvstore.*;
 import kvstore.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
+import kvstore.KeyValueStoreGrpc.KeyValueStoreFutureStub;
+import kvstore.metrics.LatencyHistogram;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class Proposer {
   private static final int TIMEOUT = 5000;
-  private static final int PAXOS_RESTART_DELAY_IN_MS = 1000;
+  // Returned by retriablePaxosPropose() when another replica is the leader, and the batch should be forwarded to it.
+  public static final long FORWARD_TO_LEADER = -1;
+  // The leader renews its read lease well before it expires. It assumes that the clocks of the replicas drift apart by
+  // less than LEASE_CLOCK_DRIFT_IN_MS during one lease.
+  public static final long LEASE_DURATION_IN_MS = 2000;
+  private static final long LEASE_RENEW_INTERVAL_IN_MS = 500;
+  private static final long LEASE_CLOCK_DRIFT_IN_MS = 200;
+  // Returned by sendPrepare() when this replica has to catch up before it can lead.
+  private static final TreeMap<Long, AcceptedEntry> BEHIND_COMPACTED_LOG = new TreeMap<>();
+  private static final LatencyHistogram PREPARE_LATENCY =
+          Metrics.histogram("kvstore_paxos_phase_latency_seconds", "phase", "prepare");
+  private static final LatencyHistogram ACCEPT_LATENCY =
+          Metrics.histogram("kvstore_paxos_phase_latency_seconds", "phase", "accept");
+  private static final LatencyHistogram DECIDE_LATENCY =
+          Metrics.histogram("kvstore_paxos_phase_latency_seconds", "phase", "decide");
+  private static final LatencyHistogram LEASE_LATENCY =
+          Metrics.histogram("kvstore_paxos_phase_latency_seconds", "phase", "lease");
+  // From the first attempt to the decision, including the retries
+  private static final LatencyHistogram PROPOSE_LATENCY = Metrics.histogram("kvstore_paxos_propose_latency_seconds");
+  private static final LongAdder PROPOSALS = Metrics.counter("kvstore_paxos_proposals_total");
+  private static final LongAdder RETRIES = Metrics.counter("kvstore_paxos_retries_total");
+  private static final LongAdder ELECTIONS = Metrics.counter("kvstore_paxos_elections_total");
+  private static final LongAdder STEP_DOWNS = Metrics.counter("kvstore_paxos_step_downs_total");
   private final List<Integer> replicaPorts = new ArrayList<>();
-  private List<KeyValueStoreBlockingStub> replicaStubs;
+  private List<ManagedChannel> replicaChannels;
+  private List<KeyValueStoreFutureStub> replicaStubs;
+  // Records the latency of the calls to each replica, in the order of replicaPorts
+  private List<PeerMetricsInterceptor> peerInterceptors;
   private static final String SERVER_HOST = "localhost";
+  // Opens the channel to the replica on a given port
+  private final Function<Integer, ManagedChannel> channelFactory;
   private final int serverPort;
+  // Shard whose consensus group this Proposer runs. Every request it sends carries it.
+  private final int shard;
+  private final ReplicatedLog replicatedLog;
+  // Only one replica thread runs the prepare phase at a time.
+  private final Object electionLock = new Object();
+  // Ballot this replica won the prepare phase with, or -1 if it is not the leader. While it is the leader, every
+  // proposal skips the prepare phase and goes straight to accept.
+  private volatile long leaderBallot = -1;
+  // Port of the replica believed to be the leader, or -1 if unknown. Learned from the prepare and accept requests.
+  private volatile int leaderPort = -1;
+  private long largestObservedBallot = -1;
+  // Generates the ballots of this replica, and the backoff of retries.
+  private final ContentionManager contention;
+  // Next log slot the leader proposes a new value in.
+  private final AtomicLong nextSlot = new AtomicLong(0);
+  // Ballot the current read lease was granted for, and the System.nanoTime() it expires at.
+  private volatile long leaseBallot = -1;
+  private volatile long leaseExpiryNanos = 0;
+  // Pulls the state this replica is missing from another replica, once it fell behind the compacted logs.
+  private CatchUpManager catchUpManager;
 
   // Constructor for Proposer class
-  public Proposer(int serverPort, List<Integer> allReplicaPorts) {
+  public Proposer(int serverPort, List<Integer> allReplicaPorts, ReplicatedLog replicatedLog) {
+    this(serverPort, allReplicaPorts, replicatedLog, Proposer::openLocalChannel);
+  }
+
+  // Constructor for Proposer class, reaching the other replicas through the channels of channelFactory, e.g. in-process
+  // channels when all the replicas run in one JVM.
+  public Proposer(int serverPort, List<Integer> allReplicaPorts, ReplicatedLog replicatedLog,
+                  Function<Integer, ManagedChannel> channelFactory) {
+    this(0, serverPort, allReplicaPorts, replicatedLog, channelFactory);
+  }
+
+  // Constructor for the Proposer of one shard of the replica
+  public Proposer(int shard, int serverPort, List<Integer> allReplicaPorts, ReplicatedLog replicatedLog,
+                  Function<Integer, ManagedChannel> channelFactory) {
+    this.shard = shard;
     this.serverPort = serverPort;
+    this.replicatedLog = replicatedLog;
+    this.channelFactory = channelFactory;
+    this.contention = new ContentionManager(serverPort);
+    // Ballots of the previous runs of this replica are in its write-ahead log. New ballots must be higher.
+    contention.observeBallot(replicatedLog.promisedProposalNumber());
     readReplicaPortsFromCli(allReplicaPorts);
   // readReplicaPortsFromFile();
     this.createReplicaStubs();
+    Metrics.gauge(() -> isLeader() ? 1 : 0, "kvstore_paxos_is_leader", "shard", Integer.toString(shard));
+    Thread leaseRenewer = new Thread(this::leaseRenewLoop, "lease-renewer");
+    leaseRenewer.setDaemon(true);
+    leaseRenewer.start();
   }
 
   // To be invoked by Constructor. Method to read replica ports from command-line arguments
@@ -63,39 +146,331 @@ public class Proposer {
     }
   }
 
-  // To be invoked by Constructor. Method to create blocking stubs for communication with replicas
+  // To be invoked by Constructor. Method to create future stubs for parallel communication with replicas
   private void createReplicaStubs() {
+    replicaChannels = new ArrayList<>();
     replicaStubs = new ArrayList<>();
+    peerInterceptors = new ArrayList<>();
     for (int neighbor : replicaPorts) {
-      String target = SERVER_HOST + ":" + neighbor;
-      ManagedChannel channel = Grpc.newChannelBuilder(target, InsecureChannelCredentials.create()).build();
-      replicaStubs.add(KeyValueStoreGrpc.newBlockingStub(channel));
+      ManagedChannel channel = channelFactory.apply(neighbor);
+      PeerMetricsInterceptor peerInterceptor = new PeerMetricsInterceptor(neighbor);
+      replicaChannels.add(channel);
+      peerInterceptors.add(peerInterceptor);
+      replicaStubs.add(KeyValueStoreGrpc.newFutureStub(channel).withInterceptors(peerInterceptor));
     }
   }
 
-  // Generate global unique and incremental proposal ID.
-  // In this project, we simplify this to timestamp in milliseconds. In real world,
-  // there should be a service to provide such ID in distributed environment.
-  public static long generateProposalNumber() {
-    return System.currentTimeMillis();
+  // Default channel factory: a TCP channel to the replica listening on the given port of this host
+  private static ManagedChannel openLocalChannel(int port) {
+    return Grpc.newChannelBuilder(SERVER_HOST + ":" + port, InsecureChannelCredentials.create()).build();
+  }
+
+  // Channel factory that opens one TCP channel per replica, and returns the same channel on every call, so that the
+  // Proposers of all the shards of this replica share one connection to each other replica.
+  public static Function<Integer, ManagedChannel> sharedLocalChannels() {
+    Map<Integer, ManagedChannel> channels = new ConcurrentHashMap<>();
+    return port -> channels.computeIfAbsent(port, Proposer::openLocalChannel);
+  }
+
+  // Shard whose consensus group this Proposer runs
+  public int getShard() {
+    return shard;
+  }
+
+  // To be invoked once, before proposing. The catch-up manager depends on the channels of this Proposer.
+  public void setCatchUpManager(CatchUpManager catchUpManager) {
+    this.catchUpManager = catchUpManager;
+  }
+
+  // Ports of the other replicas
+  public List<Integer> getReplicaPorts() {
+    return replicaPorts;
+  }
+
+  // The channel to the replica on the given port, shared by every component that talks to that replica.
+  public ManagedChannel channelTo(int port) {
+    return replicaChannels.get(replicaPorts.indexOf(port));
+  }
+
+  // Port of the replica believed to be the leader, or -1 if unknown.
+  public int getLeaderPort() {
+    return leaderPort;
   }
 
-  // Check if the number responded OK is majority
-  private boolean isMajority(int numOk) {
-    return numOk > replicaStubs.size() / 2;
+  // Whether this replica currently holds a ballot that lets it skip the prepare phase.
+  public boolean isLeader() {
+    return leaderBallot != -1;
   }
 
-  // Method for executing Paxos three-phase proposal protocol, and retry if no majority is reached.
-  public void retriablePaxosPropose(long proposalNumber, PaxosDatum datum) {
+  // Whether another replica is known to be the leader, so that writes should be forwarded to it.
+  public boolean hasRemoteLeader() {
+    return !isLeader() && leaderPort != -1 && leaderPort != serverPort;
+  }
+
+  /**
+   * To be invoked by the Acceptor whenever it promises or accepts a ballot, and by this Proposer with the ballot of each
+   * of its elections. A higher ballot from another replica means that replica took over the leadership, so this replica
+   * steps down.
+   */
+  public synchronized void observeBallot(long ballot, int proposerPort) {
+    contention.observeBallot(ballot);
+    if (ballot < largestObservedBallot) {
+      return;
+    }
+    largestObservedBallot = ballot;
+    if (proposerPort == serverPort) {
+      // This replica runs an election with a new ballot. Until it wins, no replica is known to be the leader.
+      leaderPort = -1;
+    } else {
+      if (isLeader()) {
+        ServerLogger.info("Replica %d took over leadership with proposal number %d. Stepping down.", proposerPort, ballot);
+        STEP_DOWNS.increment();
+      }
+      leaderBallot = -1;
+      leaderPort = proposerPort;
+    }
+  }
+
+  // Whether this replica is the leader and holds an unexpired read lease, so that its local reads are linearizable.
+  public boolean hasReadLease() {
+    long ballot = leaderBallot;
+    return ballot != -1 && leaseBallot == ballot && System.nanoTime() - leaseExpiryNanos < 0;
+  }
+
+  // Runs on the lease renewer thread. Keeps the read lease of the leader alive.
+  private void leaseRenewLoop() {
     while (true) {
-      boolean paxosSuccess = paxosPropose(proposalNumber, datum);
-      if (paxosSuccess) {
-        break;
+      try {
+        Thread.sleep(LEASE_RENEW_INTERVAL_IN_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long ballot = leaderBallot;
+      if (ballot != -1) {
+        renewLease(ballot);
+      }
+    }
+  }
+
+  /**
+   * Ask all replicas in parallel to grant the read lease to this leader. The lease is held once the majority granted it,
+   * and is counted from before the requests were sent, minus the clock drift, so that it expires on the leader first.
+   */
+  private void renewLease(long ballot) {
+    long startNanos = System.nanoTime();
+    LeaseRequest request = LeaseRequest.newBuilder()
+            .setProposalNumber(ballot)
+            .setProposerPort(serverPort)
+            .setDurationInMs(LEASE_DURATION_IN_MS)
+            .setShard(shard)
+            .build();
+    QuorumCall<LeaseResponse> quorum = new QuorumCall<>("Lease", replicaStubs.size(), LeaseResponse::getGranted);
+    for (int i = 0; i < replicaStubs.size(); i++) {
+      KeyValueStoreFutureStub replicaStub = replicaStubs.get(i);
+      quorum.add(i, replicaStub.withDeadlineAfter(LEASE_RENEW_INTERVAL_IN_MS, TimeUnit.MILLISECONDS).lease(request));
+    }
+    boolean majorityOk = quorum.await(LEASE_RENEW_INTERVAL_IN_MS);
+    Metrics.recordSince(LEASE_LATENCY, startNanos);
+    quorum.cancelStragglers();
+    for (LeaseResponse rejected : quorum.getRejectedResponses()) {
+      if (contention.observeRejection(ballot, rejected.getPromisedProposalNumber())) {
+        ServerLogger.info("Lease rejected in favor of proposal number %d. Stepping down.", rejected.getPromisedProposalNumber());
+        leaderBallot = -1;
+        STEP_DOWNS.increment();
+        return;
+      }
+    }
+    if (majorityOk && leaderBallot == ballot) {
+      leaseExpiryNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(LEASE_DURATION_IN_MS - LEASE_CLOCK_DRIFT_IN_MS);
+      leaseBallot = ballot;
+    }
+  }
+
+  /**
+   * Ask the leader for its read index: the slot before which every completed write is. Returns -1 if the replica turns
+   * out not to lead. Throws StatusRuntimeException if the leader is unreachable.
+   */
+  public long readIndexFromLeader() {
+    ReadIndexResponse response = leaderStub().withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS)
+            .readIndex(ReadIndexRequest.newBuilder().setShard(shard).build());
+    return response.getOk() ? response.getSlot() : -1;
+  }
+
+  /**
+   * Get a read index without the read lease, by committing a NOOP through a majority: every write that completed before
+   * is in an earlier slot. Returns the slot after the NOOP, or -1 if another replica leads. Throws
+   * StatusRuntimeException if no majority decides the NOOP in time.
+   */
+  public long commitReadIndex(long timeoutInMs) {
+    long slot = retriablePaxosPropose(ReplicatedLog.NOOP, timeoutInMs);
+    return slot == FORWARD_TO_LEADER ? -1 : slot + 1;
+  }
+
+  // Forget the leader, e.g. after it became unreachable. The next write will run the prepare phase.
+  public void forgetLeader() {
+    leaderPort = -1;
+  }
+
+  // True if the connection to the leader is down, so that a request forwarded to it would fail before being sent.
+  public boolean leaderUnreachable() {
+    int port = leaderPort;
+    return port != -1 && channelTo(port).getState(false) == ConnectivityState.TRANSIENT_FAILURE;
+  }
+
+  /**
+   * Forward a PUT request to the leader. Returns right away: the future completes with the response of the leader, or
+   * fails with StatusRuntimeException if the leader fails to handle it. The same goes for the other writes.
+   */
+  public ListenableFuture<PutResponse> forwardPut(PutRequest request) {
+    ServerLogger.debug("Forward PUT request to leader %d", leaderPort);
+    return leaderFutureStub().withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).put(request);
+  }
+
+  // Forward a DELETE request to the leader.
+  public ListenableFuture<DeleteResponse> forwardDelete(DeleteRequest request) {
+    ServerLogger.debug("Forward DELETE request to leader %d", leaderPort);
+    return leaderFutureStub().withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).delete(request);
+  }
+
+  // Forward a MULTI-PUT request to the leader.
+  public ListenableFuture<MultiPutResponse> forwardMultiPut(MultiPutRequest request) {
+    ServerLogger.debug("Forward MULTI-PUT request to leader %d", leaderPort);
+    return leaderFutureStub().withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).multiPut(request);
+  }
+
+  // Forward a MULTI-PUT request to the leader and wait for its response, up to the given time, e.g. for a large chunk of
+  // a bulk load. Throws StatusRuntimeException if the leader fails to handle it.
+  public MultiPutResponse forwardMultiPut(MultiPutRequest request, long timeoutInMs) {
+    ServerLogger.debug("Forward MULTI-PUT request to leader %d", leaderPort);
+    return leaderStub().withDeadlineAfter(timeoutInMs, TimeUnit.MILLISECONDS).multiPut(request);
+  }
+
+  // Forward a MULTI-DELETE request to the leader.
+  public ListenableFuture<MultiDeleteResponse> forwardMultiDelete(MultiDeleteRequest request) {
+    ServerLogger.debug("Forward MULTI-DELETE request to leader %d", leaderPort);
+    return leaderFutureStub().withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).multiDelete(request);
+  }
+
+  /**
+   * Forward a batch of writes to the leader, which proposes it as one entry, in order. Returns the slot it was decided
+   * in. Returns FORWARD_TO_LEADER instead, after forgetting the leader, if the batch can't have been proposed: the
+   * connection to the leader is down, or that replica no longer leads. Throws StatusRuntimeException if the leader
+   * fails or doesn't respond in time. It may have committed the batch all the same, so it must not be proposed again.
+   */
+  public long forwardBatch(PaxosBatch batch) {
+    int port = leaderPort;
+    if (port == -1) {
+      return FORWARD_TO_LEADER;
+    }
+    if (channelTo(port).getState(false) == ConnectivityState.TRANSIENT_FAILURE) {
+      // The call would fail before sending anything.
+      ServerLogger.error("Leader %d unavailable, propose the batch of %d writes locally", port, batch.getDataCount());
+      forgetLeader();
+      return FORWARD_TO_LEADER;
+    }
+    ServerLogger.debug("Forward batch of %d writes to leader %d", batch.getDataCount(), port);
+    ProposeBatchResponse response;
+    try {
+      response = blockingStubTo(port).withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS)
+              .proposeBatch(ProposeBatchRequest.newBuilder().setBatch(batch).setShard(shard).build());
+    } catch (StatusRuntimeException e) {
+      Status.Code code = e.getStatus().getCode();
+      if (code == Status.Code.UNAVAILABLE || code == Status.Code.DEADLINE_EXCEEDED) {
+        // The leader is down, or lost its leadership without this replica noticing.
+        forgetLeader();
       }
-      // Wait for small amount of time (one second) then restart Paxos.
-      ServerLogger.info("Unable to reach majority. Wait for 1 second then restart Paxos.");
+      throw e;
+    }
+    if (!response.getOk()) {
+      ServerLogger.info("Replica %d no longer leads, propose the batch locally", port);
+      forgetLeader();
+      return FORWARD_TO_LEADER;
+    }
+    return response.getSlot();
+  }
+
+  private KeyValueStoreBlockingStub leaderStub() {
+    return blockingStubTo(leaderPort);
+  }
+
+  private KeyValueStoreBlockingStub blockingStubTo(int port) {
+    int index = replicaPorts.indexOf(port);
+    return KeyValueStoreGrpc.newBlockingStub(replicaChannels.get(index)).withInterceptors(peerInterceptors.get(index));
+  }
+
+  private KeyValueStoreFutureStub leaderFutureStub() {
+    return replicaStubs.get(replicaPorts.indexOf(leaderPort));
+  }
+
+  /**
+   * Method for executing Paxos proposal protocol, and retry if no majority is reached. Returns the log slot the batch
+   * was decided in, once it is decided. Several proposals may run at the same time, each in its own slot.
+   *
+   * Returns FORWARD_TO_LEADER instead if another replica is the leader, e.g. after it preempted this proposal. Taking
+   * the leadership back would preempt its proposals in turn, and the replicas would keep preempting each other. If the
+   * batch was already sent to the acceptors, that is only once its slot turned out to be decided with another batch.
+   */
+  public long retriablePaxosPropose(PaxosBatch batch) {
+    return retriablePaxosPropose(batch, -1);
+  }
+
+  // Same as above, but throws StatusRuntimeException once the batch isn't decided after the given time, unless -1.
+  private long retriablePaxosPropose(PaxosBatch batch, long timeoutInMs) {
+    long startNanos = System.nanoTime();
+    PROPOSALS.increment();
+    long slot = -1;
+    long slotProposalNumber = -1;
+    int attempt = 0;
+    while (true) {
+      if (hasRemoteLeader()) {
+        // The new leader may have recovered the slot with this batch. Then it is committed already, and forwarding it
+        // would commit it twice.
+        if (slot != -1 && batch.equals(awaitDecidedBatch(slot))) {
+          Metrics.recordSince(PROPOSE_LATENCY, startNanos);
+          return slot;
+        }
+        return FORWARD_TO_LEADER;
+      }
+      long proposalNumber = leaderBallot;
+      if (proposalNumber == -1) {
+        proposalNumber = becomeLeader();
+      }
+      if (proposalNumber != -1) {
+        if (slot != -1 && slotProposalNumber != proposalNumber) {
+          // The election of the new ballot decided every slot allocated before it, possibly with this very batch, which
+          // must then not be committed a second time. A slot still undecided was taken after the election, so this
+          // batch is the only one proposed in it.
+          PaxosBatch decided = replicatedLog.decidedBatch(slot);
+          if (batch.equals(decided)) {
+            Metrics.recordSince(PROPOSE_LATENCY, startNanos);
+            return slot;
+          }
+          if (decided != null) {
+            slot = -1;
+          }
+          slotProposalNumber = proposalNumber;
+        }
+        if (slot == -1) {
+          slot = nextSlot.getAndIncrement();
+          slotProposalNumber = proposalNumber;
+        }
+        ServerLogger.debug("\n");
+        ServerLogger.debug("Initiating Paxos protocol for slot %d...", slot);
+        if (acceptAndDecide(proposalNumber, slot, batch)) {
+          Metrics.recordSince(PROPOSE_LATENCY, startNanos);
+          return slot;
+        }
+      }
+      if (timeoutInMs != -1 && System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(timeoutInMs)) {
+        throw Status.UNAVAILABLE.withDescription("No majority decided slot " + slot + " in time").asRuntimeException();
+      }
+      RETRIES.increment();
+      // Wait for a random, growing amount of time then restart Paxos, so that competing proposers fall out of step.
+      attempt++;
+      long backoffInMs = contention.backoffInMs(attempt);
+      ServerLogger.info("Unable to reach majority. Wait for %d ms then restart Paxos.", backoffInMs);
       try {
-        Thread.sleep(PAXOS_RESTART_DELAY_IN_MS);
+        Thread.sleep(backoffInMs);
       } catch (InterruptedException e) {
         // Handle interrupted exception
         ServerLogger.error("Received interruption.");
@@ -105,138 +480,200 @@ public class Proposer {
     }
   }
 
-  // Method for executing Paxos three-phase proposal protocol to reach consensus on DB state.
-  private boolean paxosPropose(long proposalNumber, PaxosDatum datum) {
-    ServerLogger.info("\n");
-    ServerLogger.info("Initiating Paxos protocol...");
+  /**
+   * Wait for the slot to be decided, by whichever replica leads, and return its batch. Throws StatusRuntimeException if
+   * it isn't decided in time: whether the batch proposed in it was chosen is unknown then.
+   */
+  private PaxosBatch awaitDecidedBatch(long slot) {
+    try {
+      replicatedLog.whenApplied(slot).get(TIMEOUT, TimeUnit.MILLISECONDS);
+      return replicatedLog.decidedBatch(slot);
+    } catch (TimeoutException | ExecutionException e) {
+      throw Status.UNAVAILABLE.withDescription("Unable to learn the outcome of slot " + slot).asRuntimeException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withDescription("Interrupted").asRuntimeException();
+    }
+  }
 
-    // Phase 1: send prepare
-    ServerLogger.info("Send Prepare with proposal number %d", proposalNumber);
-    PrepareResponse prepareResponse = sendPrepare(proposalNumber, datum);
-    if (!prepareResponse.getPrepareOk()) {
-      ServerLogger.info("Paxos failed to reach consensus during prepare. Will retry later.");
-      return false;
+  /**
+   * Run the prepare phase to win a ballot for all the slots this replica hasn't applied yet. The values the acceptors
+   * report for those slots are committed again, and the holes in between are filled with NOOP, before the replica
+   * starts proposing new values as the leader. Returns the ballot, or -1 if the replica didn't become the leader.
+   */
+  private long becomeLeader() {
+    synchronized (electionLock) {
+      if (leaderBallot != -1) {
+        // Another thread won the election meanwhile.
+        return leaderBallot;
+      }
+
+      // Phase 1: send prepare
+      ELECTIONS.increment();
+      long proposalNumber = contention.nextBallot();
+      observeBallot(proposalNumber, serverPort);
+      long fromSlot = replicatedLog.firstUndecidedSlot();
+      ServerLogger.info("Send Prepare with proposal number %d from slot %d", proposalNumber, fromSlot);
+      TreeMap<Long, AcceptedEntry> recoveredEntries = sendPrepare(proposalNumber, fromSlot);
+      if (recoveredEntries == BEHIND_COMPACTED_LOG) {
+        // Pull the missing state from another replica. The next attempt prepares from the caught-up slot.
+        catchUpManager.catchUp();
+        return -1;
+      }
+      if (recoveredEntries == null) {
+        ServerLogger.info("Paxos failed to reach consensus during prepare. Will retry later.");
+        return -1;
+      }
+
+      // Also decide the slots this replica allocated under an older ballot, so that a batch proposed in one of them is
+      // either chosen there or known not to be.
+      long largestSlot = Math.max(replicatedLog.largestSlot(), nextSlot.get() - 1);
+      if (!recoveredEntries.isEmpty()) {
+        largestSlot = Math.max(largestSlot, recoveredEntries.lastKey());
+      }
+      for (long slot = fromSlot; slot <= largestSlot; slot++) {
+        if (replicatedLog.isDecided(slot)) {
+          continue;
+        }
+        AcceptedEntry recovered = recoveredEntries.get(slot);
+        PaxosBatch batch = recovered == null ? ReplicatedLog.NOOP : recovered.getValue();
+        ServerLogger.info("Recover slot %d with value %s", slot, ReplicatedLog.describe(batch));
+        if (!acceptAndDecide(proposalNumber, slot, batch)) {
+          return -1;
+        }
+      }
+
+      ServerLogger.info("Became leader with proposal number %d", proposalNumber);
+      // Never below a slot allocated meanwhile under the older ballot, which its proposer drives again under this one.
+      nextSlot.accumulateAndGet(largestSlot + 1, Math::max);
+      leaderPort = serverPort;
+      leaderBallot = proposalNumber;
+      renewLease(proposalNumber);
+      return proposalNumber;
     }
+  }
 
+  // Run the accept and decide phases for one slot. Steps down from leadership if any acceptor rejects the ballot.
+  private boolean acceptAndDecide(long proposalNumber, long slot, PaxosBatch batch) {
     // Phase 2: send accept
-    ServerLogger.info(
-            "Send Accept with proposal number %d and value %s",
-            prepareResponse.getPreviousProposalNumber(),
-            prepareResponse.getPreviousProposalValue().toString().replace('\n', ' '));
-    boolean acceptOk =
-            sendAccept(
-                    prepareResponse.getPreviousProposalNumber(),
-                    prepareResponse.getPreviousProposalValue());
+    ServerLogger.debug(
+            "Send Accept with proposal number %d, slot %d and value %s",
+            proposalNumber,
+            slot,
+            ReplicatedLog.describe(batch));
+    boolean acceptOk = sendAccept(proposalNumber, slot, batch);
     if (!acceptOk) {
-      // TODO: restart Paxos protocol after short amount of delay
       ServerLogger.info("Paxos failed to reach consensus during accept. Will retry later.");
       return false;
     }
 
-    // Phase 3: send decide
-    ServerLogger.info(
-            "Send Decide with value %s",
-            prepareResponse.getPreviousProposalValue().toString().replace('\n', ' '));
-    sendDecide(prepareResponse.getPreviousProposalValue());
-    ServerLogger.info(
-            "Paxos successful. Committed: %s",
-            prepareResponse.getPreviousProposalValue().toString().replace('\n', ' '));
+    // Phase 3: send decide, and learn the value locally
+    ServerLogger.debug("Send Decide with slot %d and value %s", slot, ReplicatedLog.describe(batch));
+    sendDecide(slot, batch);
+    replicatedLog.decide(slot, batch);
+    contention.observeSuccess();
+    ServerLogger.debug("Paxos successful. Committed slot %d: %s", slot, ReplicatedLog.describe(batch));
     return true;
   }
 
-
-  // Method to send prepare request to replicas
-  private PrepareResponse sendPrepare(long proposalNumber, PaxosDatum datum) {
+  /**
+   * Method to send prepare request to all replicas in parallel. Returns once the majority responded. On success,
+   * returns the value to recover in every slot the acceptors reported: the decided value if any acceptor knows it,
+   * otherwise the value accepted with the highest proposal number. Returns null if the majority didn't promise, or
+   * BEHIND_COMPACTED_LOG if an acceptor already dropped the entries this replica is missing.
+   */
+  private TreeMap<Long, AcceptedEntry> sendPrepare(long proposalNumber, long fromSlot) {
     PrepareRequest request =
-            PrepareRequest.newBuilder().setProposalNumber(proposalNumber).build();
-    int numPrepareOk = 0;
-    PaxosDatum previousDatum = null;
-    long previousProposal = -1;
+            PrepareRequest.newBuilder()
+                    .setProposalNumber(proposalNumber)
+                    .setProposerPort(serverPort)
+                    .setSlot(fromSlot)
+                    .setShard(shard)
+                    .build();
+    long startNanos = System.nanoTime();
+    QuorumCall<PrepareResponse> quorum =
+            new QuorumCall<>("Prepare", replicaStubs.size(), PrepareResponse::getPrepareOk);
     // Treat all other replicas as acceptors.
     for (int i = 0; i < replicaStubs.size(); i++) {
-      KeyValueStoreBlockingStub replicaStub = replicaStubs.get(i);
-      PrepareResponse response;
-      try {
-          response = replicaStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).prepare(request);
-      } catch (StatusRuntimeException e) {
-        ServerLogger.error("Error from replicas %d: %s", i, e.getMessage());
-        continue;
-      }
-      ServerLogger.info("Received prepare response from replicas %d: prepare ok %b, proposal number %d, proposal value %s", i, response.getPrepareOk(), response.getPreviousProposalNumber(), response.getPreviousProposalValue().toString().replace('\n', ' '));
-      if (response.getPrepareOk()) {
-        numPrepareOk++;
-        if (response.getPreviousProposalNumber() > previousProposal) {
-          previousProposal = response.getPreviousProposalNumber();
-          previousDatum = response.getPreviousProposalValue();
-        }
-      }
+      KeyValueStoreFutureStub replicaStub = replicaStubs.get(i);
+      quorum.add(i, replicaStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).prepare(request));
     }
-
-    ServerLogger.info("Total replicas: %d. Prepare OK: %d", replicaStubs.size(), numPrepareOk);
-    if (!isMajority(numPrepareOk)) {
-      return PrepareResponse.newBuilder().setPrepareOk(false).build();
+    boolean majorityOk = quorum.await(TIMEOUT);
+    Metrics.recordSince(PREPARE_LATENCY, startNanos);
+    quorum.cancelStragglers();
+    if (!majorityOk) {
+      for (PrepareResponse rejected : quorum.getRejectedResponses()) {
+        // The next ballot jumps past the one promised instead.
+        contention.observeRejection(proposalNumber, rejected.getPromisedProposalNumber());
+      }
+      return null;
     }
 
-    if (previousDatum == null) {
-      // This means no value has been accepted before. The acceptors can accept new value
-      return PrepareResponse
-              .newBuilder()
-              .setPrepareOk(true)
-              .setPreviousProposalNumber(proposalNumber)
-              .setPreviousProposalValue(datum)
-              .build();
+    TreeMap<Long, AcceptedEntry> recoveredEntries = new TreeMap<>();
+    for (PrepareResponse response : quorum.getOkResponses()) {
+      if (response.getCompactedSlot() >= fromSlot) {
+        // The acceptor no longer has the entries this replica is missing, so they can't be recovered from it.
+        ServerLogger.error("Replica is behind the compacted log of the acceptors (slot %d). Catching up before leading.", response.getCompactedSlot());
+        return BEHIND_COMPACTED_LOG;
+      }
+      for (AcceptedEntry entry : response.getAcceptedEntriesList()) {
+        AcceptedEntry current = recoveredEntries.get(entry.getSlot());
+        if (current == null
+                || (entry.getDecided() && !current.getDecided())
+                || (!current.getDecided() && entry.getProposalNumber() > current.getProposalNumber())) {
+          recoveredEntries.put(entry.getSlot(), entry);
+        }
+      }
     }
-
-    // The acceptors already promised to accept an existing datum
-    return PrepareResponse
-            .newBuilder()
-            .setPrepareOk(true)
-            .setPreviousProposalNumber(proposalNumber)
-            .setPreviousProposalValue(previousDatum)
-            .build();
+    return recoveredEntries;
   }
 
-  // Method to send commit request to replicas
-  private boolean sendAccept(long proposalNumber, PaxosDatum datum) {
+  // Method to send accept request to all replicas in parallel. Returns once the majority responded.
+  private boolean sendAccept(long proposalNumber, long slot, PaxosBatch batch) {
     AcceptRequest request =
             AcceptRequest.newBuilder()
                     .setProposalNumber(proposalNumber)
-                    .setProposalValue(datum)
+                    .setProposalValue(batch)
+                    .setProposerPort(serverPort)
+                    .setSlot(slot)
+                    .setShard(shard)
                     .build();
-    int numAcceptOk = 0;
+    long startNanos = System.nanoTime();
+    QuorumCall<AcceptResponse> quorum =
+            new QuorumCall<>("Accept", replicaStubs.size(), AcceptResponse::getAcceptOk);
     // Treat all other replicas as acceptors.
     for (int i = 0; i < replicaStubs.size(); i++) {
-      KeyValueStoreBlockingStub replicaStub = replicaStubs.get(i);
-      AcceptResponse response;
-      try {
-        response = replicaStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).accept(request);
-      } catch (StatusRuntimeException e) {
-        ServerLogger.error("Error from replicas %d: %s", i, e.getMessage());
-        continue;
-      }
-      ServerLogger.info("Received accept response from replicas %d: accept ok %b", i, response.getAcceptOk());
-      if (response.getAcceptOk()) {
-        numAcceptOk++;
+      KeyValueStoreFutureStub replicaStub = replicaStubs.get(i);
+      quorum.add(i, replicaStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).accept(request));
+    }
+    boolean majorityOk = quorum.await(TIMEOUT);
+    Metrics.recordSince(ACCEPT_LATENCY, startNanos);
+    quorum.cancelStragglers();
+    for (AcceptResponse rejected : quorum.getRejectedResponses()) {
+      if (contention.observeRejection(proposalNumber, rejected.getPromisedProposalNumber())) {
+        // Another replica won a higher ballot. Run the prepare phase again on the next attempt.
+        ServerLogger.info("Accept rejected in favor of proposal number %d. Stepping down.", rejected.getPromisedProposalNumber());
+        leaderBallot = -1;
+        STEP_DOWNS.increment();
+        break;
       }
     }
-    ServerLogger.info("Total replicas: %d. Accept OK: %d", replicaStubs.size(), numAcceptOk);
-    return isMajority(numAcceptOk);
+    return majorityOk;
   }
 
-  // Method to send abort request to replicas
-  private void sendDecide(PaxosDatum datum) {
-    DecideRequest request = DecideRequest.newBuilder().setProposalValue(datum).build();
+  // Method to send decide request to all replicas in parallel. Returns once the majority learned the value; the
+  // remaining replicas keep receiving it in the background.
+  private void sendDecide(long slot, PaxosBatch batch) {
+    DecideRequest request = DecideRequest.newBuilder().setSlot(slot).setProposalValue(batch).setShard(shard).build();
+    long startNanos = System.nanoTime();
+    QuorumCall<DecideResponse> quorum =
+            new QuorumCall<>("Decide", replicaStubs.size(), DecideResponse::getSuccess);
     // Treat all other replicas as learners.
     for (int i = 0; i < replicaStubs.size(); i++) {
-      KeyValueStoreBlockingStub replicaStub = replicaStubs.get(i);
-      DecideResponse response;
-      try {
-        response = replicaStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).decide(request);
-      } catch (StatusRuntimeException e) {
-        ServerLogger.error("Error from replicas %d: %s", i, e.getMessage());
-        continue;
-      }
-      ServerLogger.info("Received decide response from replicas %d: %s", i, response.toString().replace('\n', ' '));
+      KeyValueStoreFutureStub replicaStub = replicaStubs.get(i);
+      quorum.add(i, replicaStub.withDeadlineAfter(TIMEOUT, TimeUnit.MILLISECONDS).decide(request));
     }
+    quorum.await(TIMEOUT);
+    Metrics.recordSince(DECIDE_LATENCY, startNanos);
   }
 }
@@ -0,0 +1,145 @@
+package kvstore.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Collects the responses of one Paxos phase that has been fanned out to all replicas in parallel. The phase is
+ * complete as soon as a majority of the replicas replied OK, or as soon as enough replicas rejected (or failed) that a
+ * majority can no longer be reached. Responses arriving after that are ignored.
+ */
+class QuorumCall<T> {
+  private static final LongAdder PREPARE_REJECTIONS = rejectionCounter("prepare");
+  private static final LongAdder ACCEPT_REJECTIONS = rejectionCounter("accept");
+  private static final LongAdder DECIDE_REJECTIONS = rejectionCounter("decide");
+  private static final LongAdder LEASE_REJECTIONS = rejectionCounter("lease");
+
+  private final String phase;
+  // Counts the replicas that rejected this phase
+  private final LongAdder rejections;
+  private final int numReplicas;
+  private final Predicate<T> isOk;
+  private final List<ListenableFuture<T>> calls = new ArrayList<>();
+  private final List<T> okResponses = new ArrayList<>();
+  private final List<T> rejectedResponses = new ArrayList<>();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private int numNotOk = 0;
+
+  QuorumCall(String phase, int numReplicas, Predicate<T> isOk) {
+    this.phase = phase;
+    this.numReplicas = numReplicas;
+    this.isOk = isOk;
+    this.rejections = rejectionsOf(phase);
+    if (numReplicas == 0) {
+      done.countDown();
+    }
+  }
+
+  private static LongAdder rejectionCounter(String phase) {
+    return Metrics.counter("kvstore_paxos_rejections_total", "phase", phase);
+  }
+
+  // Rejection counter of a phase, looked up once per call rather than once per rejection
+  private static LongAdder rejectionsOf(String phase) {
+    switch (phase) {
+      case "Prepare":
+        return PREPARE_REJECTIONS;
+      case "Accept":
+        return ACCEPT_REJECTIONS;
+      case "Decide":
+        return DECIDE_REJECTIONS;
+      case "Lease":
+        return LEASE_REJECTIONS;
+      default:
+        return rejectionCounter(phase.toLowerCase());
+    }
+  }
+
+  // Register the in-flight call to a replica. Must be invoked for every replica before await().
+  void add(int replicaIndex, ListenableFuture<T> call) {
+    calls.add(call);
+    Futures.addCallback(call, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(T response) {
+        ServerLogger.debug("Received %s response from replicas %d: %s", phase, replicaIndex, response);
+        boolean ok = isOk.test(response);
+        if (!ok) {
+          rejections.increment();
+        }
+        onResponse(response, ok);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (!call.isCancelled()) {
+          ServerLogger.error("Error from replicas %d: %s", replicaIndex, t.getMessage());
+        }
+        onResponse(null, false);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  // Record one response. A null response stands for an error.
+  private synchronized void onResponse(T response, boolean ok) {
+    if (done.getCount() == 0) {
+      return;
+    }
+    if (ok) {
+      okResponses.add(response);
+    } else {
+      if (response != null) {
+        rejectedResponses.add(response);
+      }
+      numNotOk++;
+    }
+    if (isMajority(okResponses.size()) || !isMajority(numReplicas - numNotOk)) {
+      done.countDown();
+    }
+  }
+
+  private boolean isMajority(int numOk) {
+    return numOk > numReplicas / 2;
+  }
+
+  /**
+   * Block until the outcome of the phase is known, or until the timeout elapses. Returns whether a majority of the
+   * replicas replied OK.
+   */
+  boolean await(long timeoutInMs) {
+    try {
+      done.await(timeoutInMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      ServerLogger.debug("Total replicas: %d. %s OK: %d", numReplicas, phase, okResponses.size());
+      return isMajority(okResponses.size());
+    }
+  }
+
+  // Cancel the calls to the replicas that haven't responded yet.
+  void cancelStragglers() {
+    for (ListenableFuture<T> call : calls) {
+      call.cancel(true);
+    }
+  }
+
+  // Snapshot of the OK responses received so far.
+  synchronized List<T> getOkResponses() {
+    return new ArrayList<>(okResponses);
+  }
+
+  // Snapshot of the responses that explicitly rejected the request, received so far.
+  synchronized List<T> getRejectedResponses() {
+    return new ArrayList<>(rejectedResponses);
+  }
+}
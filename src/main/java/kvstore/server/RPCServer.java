@@ -3,20 +3,49 @@ package kvstore.server;
 import io.grpc.Grpc;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.List;
 
 public class RPCServer {
   private final Server server;
   private final int serverPort;
+  private final ShardRouter router;
 
-  // Constructor to initialize the server with custom port
-  public RPCServer(int serverPort, List<Integer> allReplicaPorts) {
+  // Constructor to initialize the server with custom port, serving the shards of this replica, and only the keys of its
+  // replica group if partitions isn't null. The RPC handlers run on the given executor, or on the default executor of
+  // gRPC if it is null.
+  public RPCServer(int serverPort, List<KeyValueStoreImpl> shards, PartitionManager partitions, Executor executor) {
     this.serverPort = serverPort;
-    server = Grpc.newServerBuilderForPort(serverPort, InsecureServerCredentials.create())
-            .addService(new KeyValueStoreImpl(serverPort, allReplicaPorts)).build();
+    this.router = new ShardRouter(shards, partitions);
+    ServerBuilder<?> builder = Grpc.newServerBuilderForPort(serverPort, InsecureServerCredentials.create())
+            .addService(ServerInterceptors.intercept(router, new MetricsInterceptor()));
+    if (executor != null) {
+      builder.executor(executor);
+    }
+    server = builder.build();
+  }
+
+  /**
+   * Executor that runs every call on its own virtual thread, so that a handler blocked on a remote replica doesn't hold
+   * an OS thread, and a burst of slow calls can't use up the threads that serve the other calls. Virtual threads are
+   * available from Java 21. The executor is looked up at runtime, so that the server still builds and runs on Java 17.
+   * Throws UnsupportedOperationException on an older Java.
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      throw new UnsupportedOperationException(
+              "Virtual threads require Java 21 or later. Running on Java " + Runtime.version().feature(), e);
+    }
   }
 
   // Method to start the server
@@ -48,7 +77,9 @@ public class RPCServer {
   // Method to stop the server
   public void stop() throws InterruptedException {
     if (server != null) {
-      server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+      server.shutdown();
+      router.closeStreams();
+      server.awaitTermination(30, TimeUnit.SECONDS);
     }
   }
 
@@ -3,10 +3,16 @@ package kvstore.server;
 import java.util.Random;
 
 public class RandomException {
-  private static final double EXCEPTION_RATIO = 0.2;
+  private static final double DEFAULT_EXCEPTION_RATIO = 0.2;
+  // Fraction of the calls that throw. 0 turns the fault injection off, e.g. in benchmarks.
+  private static volatile double exceptionRatio = DEFAULT_EXCEPTION_RATIO;
+
+  public static void setExceptionRatio(double ratio) {
+    exceptionRatio = ratio;
+  }
 
   public static void randomlyThrowException() {
-    int threshold = (int)(100 * EXCEPTION_RATIO);
+    int threshold = (int)(100 * exceptionRatio);
 
     // Generate a random number between 0 and 99
     int randomNumber = new Random().nextInt(100);
@@ -0,0 +1,219 @@
+package kvstore.server;
+
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import kvstore.HandOffRequest;
+import kvstore.KeyValuePair;
+import kvstore.KeyValueStoreGrpc;
+import kvstore.PaxosDatum;
+import kvstore.ReplicaGroup;
+import kvstore.partition.PartitionRing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands the keys a replica group no longer owns over to their new owners, after the partition map changed, e.g. when a
+ * group was added. Reloads the map periodically, and once it has a new version, moves the keys of every shard in steps
+ * that go through the replicated log of the shard, see HandOff:
+ *   1. FENCE the new map. From its slot on, the shard rejects the writes of the keys of other groups, so their values
+ *      are final once it is applied here.
+ *   2. Scan the shard for the keys of other groups, and hand each chunk of them over to its owner, which only stores
+ *      the keys it hasn't taken a write of since.
+ *   3. MOVE_OUT the chunk: delete every key that still has the value that was handed over.
+ * Once every shard is done, the group tells every other group of the map. A group doesn't serve the keys it gained
+ * until all the others have told it, so that a read doesn't miss a key on its way, nor a delete fail for it.
+ *
+ * Only the first replica of the group in the map moves the keys, and it starts over on the next check if a step fails,
+ * e.g. because an owner doesn't have the new map yet. Every step can be repeated safely: the fence of a map is only
+ * applied once, and a key handed over twice keeps the first value. The replicas of a group removed from the map all
+ * move their keys.
+ */
+public class Rebalancer {
+  private static final long CHECK_INTERVAL_IN_MS = 2000;
+  private static final int MAX_CHUNK_PAIRS = 1000;
+  private static final long TIMEOUT_IN_MS = 30000;
+  private static final LongAdder MOVED_KEYS = Metrics.counter("kvstore_rebalance_moved_keys_total");
+
+  private final PartitionManager partitions;
+  private final List<KeyValueStoreImpl> shards;
+  private final int serverPort;
+  // Channels to the replicas of the other groups, by address. Only used by the rebalancer thread.
+  private final Map<String, ManagedChannel> channels = new HashMap<>();
+  // Version of the map whose keys were all moved, or -1 before the first check
+  private long movedVersion = -1;
+
+  public Rebalancer(PartitionManager partitions, List<KeyValueStoreImpl> shards, int serverPort) {
+    this.partitions = partitions;
+    this.shards = shards;
+    this.serverPort = serverPort;
+  }
+
+  public void start() {
+    Thread thread = new Thread(this::rebalanceLoop, "rebalancer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // The first check also moves the keys left over from a move interrupted by a restart.
+  private void rebalanceLoop() {
+    while (true) {
+      try {
+        Thread.sleep(CHECK_INTERVAL_IN_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      partitions.reload();
+      PartitionRing ring = partitions.ring();
+      if (ring.getVersion() == movedVersion || !isMover()) {
+        continue;
+      }
+      try {
+        boolean moved = true;
+        for (KeyValueStoreImpl shard : shards) {
+          moved = moved && moveForeignKeys(ring, shard);
+        }
+        if (moved && handOffDone(ring)) {
+          movedVersion = ring.getVersion();
+        }
+      } catch (RuntimeException e) {
+        ServerLogger.error("Unable to move the keys of other replica groups: %s", e);
+      }
+    }
+  }
+
+  // Whether this replica is the first of its group in the map. A group removed from the map hands over all its keys.
+  private boolean isMover() {
+    ReplicaGroup group = partitions.ownGroup();
+    return group == null || PartitionRing.portOf(group.getAddresses(0)) == serverPort;
+  }
+
+  // Fence the keys of a shard that belong to other groups, then move them. Returns false if a step failed.
+  private boolean moveForeignKeys(PartitionRing ring, KeyValueStoreImpl shard) {
+    if (!fence(ring, shard)) {
+      return false;
+    }
+    Map<String, List<KeyValuePair>> chunks = new HashMap<>();
+    long numMoved = 0;
+    try (CloseableIterator<Map.Entry<String, String>> pairs = shard.getDataStorage().iterator()) {
+      while (pairs.hasNext()) {
+        Map.Entry<String, String> pair = pairs.next();
+        ReplicaGroup owner = ring.groupOf(pair.getKey());
+        if (owner.getName().equals(partitions.groupName())) {
+          continue;
+        }
+        List<KeyValuePair> chunk = chunks.computeIfAbsent(owner.getName(), name -> new ArrayList<>());
+        chunk.add(KeyValuePair.newBuilder().setKey(pair.getKey()).setValue(pair.getValue()).build());
+        if (chunk.size() == MAX_CHUNK_PAIRS) {
+          if (!move(owner, ring.getVersion(), chunk, shard)) {
+            return false;
+          }
+          numMoved += chunk.size();
+          chunk.clear();
+        }
+      }
+    }
+    for (ReplicaGroup owner : ring.getMap().getGroupsList()) {
+      List<KeyValuePair> chunk = chunks.get(owner.getName());
+      if (chunk != null && !chunk.isEmpty()) {
+        if (!move(owner, ring.getVersion(), chunk, shard)) {
+          return false;
+        }
+        numMoved += chunk.size();
+      }
+    }
+    if (numMoved > 0) {
+      ServerLogger.info("Moved %d keys of shard %d to other replica groups for partition map version %d",
+              numMoved, shard.getProposer().getShard(), ring.getVersion());
+    }
+    return true;
+  }
+
+  // Propose the fence of the map in the shard, unless the shard applied it already, and wait until it is applied here.
+  private boolean fence(PartitionRing ring, KeyValueStoreImpl shard) {
+    if (shard.getReplicatedLog().handOff().fenceVersion() >= ring.getVersion()) {
+      return true;
+    }
+    PaxosDatum fence = PaxosDatum.newBuilder().setMethod("FENCE").setPartitionMap(ring.getMap()).build();
+    return await(shard.getWriteBatcher().submit(fence),
+            "fence partition map version " + ring.getVersion() + " in shard " + shard.getProposer().getShard());
+  }
+
+  // Hand a chunk of pairs over to the group that owns them, then delete the keys that still hold the values sent.
+  private boolean move(ReplicaGroup owner, long mapVersion, List<KeyValuePair> chunk, KeyValueStoreImpl shard) {
+    HandOffRequest request = HandOffRequest.newBuilder()
+            .setGroup(partitions.groupName()).setMapVersion(mapVersion).addAllPairs(chunk).build();
+    if (!handOffTo(owner, request)) {
+      return false;
+    }
+    List<PaxosDatum> moveOuts = new ArrayList<>();
+    for (KeyValuePair pair : chunk) {
+      moveOuts.add(PaxosDatum.newBuilder()
+              .setMethod("MOVE_OUT").setKey(pair.getKey()).setValue(pair.getValue()).build());
+    }
+    // Until the deletes are applied, the keys are on both groups. Only the owner serves them.
+    if (!await(shard.getWriteBatcher().submitAll(moveOuts),
+            "delete the keys moved to replica group " + owner.getName())) {
+      return false;
+    }
+    MOVED_KEYS.add(chunk.size());
+    return true;
+  }
+
+  // Tell every other group of the map that this group has handed over all its keys for the map.
+  private boolean handOffDone(PartitionRing ring) {
+    HandOffRequest request = HandOffRequest.newBuilder()
+            .setGroup(partitions.groupName()).setMapVersion(ring.getVersion()).setDone(true).build();
+    for (ReplicaGroup group : ring.getMap().getGroupsList()) {
+      if (!group.getName().equals(partitions.groupName()) && !handOffTo(group, request)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Wait for a write of the Rebalancer to be applied to a shard of this replica. Returns false if it failed.
+  private boolean await(CompletableFuture<Void> written, String description) {
+    try {
+      written.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (ExecutionException | TimeoutException e) {
+      ServerLogger.error("Unable to %s: %s", description, e.getMessage());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // Send the request to the replicas of a group, one after the other, until one of them takes it.
+  private boolean handOffTo(ReplicaGroup group, HandOffRequest request) {
+    for (String address : group.getAddressesList()) {
+      ManagedChannel channel = channels.computeIfAbsent(address,
+              target -> Grpc.newChannelBuilder(target, InsecureChannelCredentials.create()).build());
+      try {
+        KeyValueStoreGrpc.newBlockingStub(channel)
+                .withDeadlineAfter(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS).handOff(request);
+        return true;
+      } catch (StatusRuntimeException e) {
+        if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+          // E.g. FAILED_PRECONDITION until the group loads the new map
+          ServerLogger.error("Replica group %s didn't take the hand-off: %s", group.getName(), e.getMessage());
+          return false;
+        }
+        ServerLogger.error("Replica %s of group %s unavailable: %s", address, group.getName(), e.getMessage());
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,632 @@
+package kvstore.server;
+
+import kvstore.AcceptResponse;
+import kvstore.AcceptedEntry;
+import kvstore.DecidedSlot;
+import kvstore.HandOffState;
+import kvstore.LeaseResponse;
+import kvstore.PaxosBatch;
+import kvstore.PaxosDatum;
+import kvstore.PrepareResponse;
+import kvstore.WalRecord;
+import kvstore.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Replicated log of Paxos instances, one instance per slot. Holds the Acceptor state of every slot, and applies the
+ * decided slots to the data storage strictly in slot order, so that all replicas go through the same sequence of
+ * mutations even though several instances are in flight at once. Every change of the Acceptor and Learner state is
+ * recorded in the write-ahead log, and replayed from it on restart.
+ */
+public class ReplicatedLog {
+  // Empty batch that fills a slot which no value was chosen for, e.g. a hole left behind by a crashed leader.
+  public static final PaxosBatch NOOP = PaxosBatch.getDefaultInstance();
+  // Batches with more writes than this are logged by their size only.
+  private static final int MAX_LOGGED_BATCH_SIZE = 16;
+  // Time the Acceptor and Learner handlers wait for the lock of the log
+  private static final LatencyHistogram LOCK_WAIT = Metrics.histogram("kvstore_log_lock_wait_seconds");
+  // Time to apply one decided batch to the data storage
+  private static final LatencyHistogram APPLY_LATENCY = Metrics.histogram("kvstore_storage_apply_latency_seconds");
+
+  private final DataStorage dataStorage;
+  private final WriteAheadLog writeAheadLog;
+  private final TreeMap<Long, LogEntry> entries = new TreeMap<>();
+  // Multi-Paxos promise. It covers every slot, so that the leader doesn't need to run prepare per slot.
+  private long promisedProposalNumber = -1;
+  // All the slots before this one have been decided and applied.
+  private long nextSlotToApply = 0;
+  // The entries up to and including this slot have been truncated, since a snapshot covers them.
+  private long compactedSlot = -1;
+  // Read lease granted to a leader. While it runs, no other proposer gets a promise, so the holder can serve reads
+  // locally. Leases are not durable. Instead, a restarted replica doesn't promise anything for one lease duration, in
+  // case it granted a lease right before it crashed.
+  private int leaseHolderPort = -1;
+  private long leaseExpiryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Proposer.LEASE_DURATION_IN_MS);
+  // Largest slot known to be decided, or -1 if none. A decided slot beyond nextSlotToApply means a hole in the log.
+  private long largestDecidedSlot = -1;
+  // Futures to complete once the slot they are keyed by has been applied.
+  private final TreeMap<Long, List<CompletableFuture<Void>>> applyWaiters = new TreeMap<>();
+  // Number of catch-up streams that read the entries from the slot they are keyed by on. Compaction keeps those.
+  private final TreeMap<Long, Integer> retainedSlots = new TreeMap<>();
+  // Incremented whenever the data storage is replaced by a snapshot from another replica.
+  private long numInstalledSnapshots = 0;
+  // Whether the data storage holds a snapshot of another replica that is only partly streamed in. No slot is applied
+  // meanwhile, and the storage must not be snapshotted or streamed to other replicas.
+  private boolean installingSnapshot = false;
+  // Told about every applied write, to invalidate the client-side read caches. Null if the caches aren't served.
+  private volatile CacheInvalidator cacheInvalidator = null;
+  // Told about every applied slot, to feed the watch streams. Null if watches aren't served.
+  private volatile WatchManager watchManager = null;
+  private int watchShard = 0;
+  // Progress in moving keys between replica groups, changed by the entries the log applies
+  private volatile HandOff handOff = new HandOff(null);
+
+  // Acceptor and Learner state of one slot
+  private static class LogEntry {
+    private long acceptedProposalNumber = -1;
+    private PaxosBatch acceptedBatch;
+    private PaxosBatch decidedBatch;
+    // Indexes of the writes of the decided batch that changed nothing once applied, e.g. the DELETE of a missing key.
+    // Null if there are none, or the slot hasn't been applied yet.
+    private BitSet unchangedData;
+    // Indexes of the writes of the decided batch the hand-off fence rejected, a subset of unchangedData. Null if there
+    // are none, or the slot hasn't been applied yet.
+    private BitSet rejectedData;
+  }
+
+  // Reader of the applied slots, e.g. a watch catching up with the log
+  public interface AppliedSlotConsumer {
+    void accept(long slot, PaxosBatch batch, BitSet unchangedData);
+  }
+
+  // A batch as a log argument. Large batches, like the chunks of a bulk load, are summarized. Small ones are formatted
+  // by the ServerLogger, only if the log line is written.
+  public static Object describe(PaxosBatch batch) {
+    if (batch.getDataCount() > MAX_LOGGED_BATCH_SIZE) {
+      return "batch of " + batch.getDataCount() + " writes";
+    }
+    return batch;
+  }
+
+  public ReplicatedLog(DataStorage dataStorage, WriteAheadLog writeAheadLog) {
+    this.dataStorage = dataStorage;
+    this.writeAheadLog = writeAheadLog;
+  }
+
+  void setCacheInvalidator(CacheInvalidator cacheInvalidator) {
+    this.cacheInvalidator = cacheInvalidator;
+  }
+
+  // Track the hand-off of the keys of the given replica group. To be invoked before replaying the write-ahead log.
+  void setReplicaGroup(String groupName) {
+    this.handOff = new HandOff(groupName);
+  }
+
+  public HandOff handOff() {
+    return handOff;
+  }
+
+  // Feed the watches with the applied slots of this log, as the log of the given shard
+  void setWatchManager(WatchManager watchManager, int shard) {
+    this.watchShard = shard;
+    this.watchManager = watchManager;
+  }
+
+  // Report the progress of this log in the metrics, as the log of the given shard
+  public void registerMetrics(int shard) {
+    String shardLabel = Integer.toString(shard);
+    Metrics.gauge(this::firstUndecidedSlot, "kvstore_log_first_undecided_slot", "shard", shardLabel);
+    Metrics.gauge(this::largestDecidedSlot, "kvstore_log_largest_decided_slot", "shard", shardLabel);
+    Metrics.gauge(this::compactedSlot, "kvstore_log_compacted_slot", "shard", shardLabel);
+  }
+
+  /**
+   * Acceptor prepare phase. Promises to ignore proposal numbers lower than the given one in all slots, and reports the
+   * values already accepted or decided from the given slot on. Refuses while another replica holds the read lease. The
+   * promise is durable before this returns.
+   */
+  public PrepareResponse prepare(long proposalNumber, int proposerPort, long fromSlot) {
+    PrepareResponse.Builder responseBuilder = PrepareResponse.newBuilder();
+    long walPosition = -1;
+    synchronized (this) {
+      if (proposalNumber < promisedProposalNumber || isLeasedToOther(proposerPort)) {
+        return responseBuilder
+                .setPrepareOk(false)
+                .setPromisedProposalNumber(promisedProposalNumber)
+                .build();
+      }
+      if (proposalNumber > promisedProposalNumber) {
+        promisedProposalNumber = proposalNumber;
+        walPosition = writeAheadLog.append(
+                WalRecord.newBuilder().setType("PROMISE").setProposalNumber(proposalNumber).build());
+      }
+
+      responseBuilder.setPrepareOk(true).setCompactedSlot(compactedSlot);
+      for (Map.Entry<Long, LogEntry> slotEntry : entries.tailMap(fromSlot, true).entrySet()) {
+        LogEntry entry = slotEntry.getValue();
+        if (entry.decidedBatch != null) {
+          responseBuilder.addAcceptedEntries(AcceptedEntry.newBuilder()
+                  .setSlot(slotEntry.getKey())
+                  .setProposalNumber(entry.acceptedProposalNumber)
+                  .setValue(entry.decidedBatch)
+                  .setDecided(true));
+        } else if (entry.acceptedBatch != null) {
+          responseBuilder.addAcceptedEntries(AcceptedEntry.newBuilder()
+                  .setSlot(slotEntry.getKey())
+                  .setProposalNumber(entry.acceptedProposalNumber)
+                  .setValue(entry.acceptedBatch));
+        }
+      }
+    }
+    // Sync outside of the lock, so that concurrent handlers share the fsync.
+    if (walPosition != -1) {
+      writeAheadLog.sync(walPosition);
+    }
+    return responseBuilder.build();
+  }
+
+  /**
+   * Grant the read lease to the leader with the given ballot, for the given duration from now. The leader counts its
+   * lease from before it sent the request, so it always expires there before it expires here.
+   */
+  public synchronized LeaseResponse grantLease(long proposalNumber, int proposerPort, long durationInMs) {
+    if (proposalNumber < promisedProposalNumber || isLeasedToOther(proposerPort)) {
+      return LeaseResponse.newBuilder().setGranted(false).setPromisedProposalNumber(promisedProposalNumber).build();
+    }
+    leaseHolderPort = proposerPort;
+    leaseExpiryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationInMs);
+    return LeaseResponse.newBuilder().setGranted(true).build();
+  }
+
+  private boolean isLeasedToOther(int proposerPort) {
+    return leaseHolderPort != proposerPort && System.nanoTime() - leaseExpiryNanos < 0;
+  }
+
+  /**
+   * Acceptor accept phase. Accepts the value in the slot unless a higher proposal number has been promised. The
+   * accepted value is durable before this returns.
+   */
+  public AcceptResponse accept(long proposalNumber, long slot, PaxosBatch batch) {
+    long walPosition;
+    long lockStartNanos = System.nanoTime();
+    synchronized (this) {
+      Metrics.recordSince(LOCK_WAIT, lockStartNanos);
+      if (proposalNumber < promisedProposalNumber) {
+        return AcceptResponse.newBuilder()
+                .setAcceptOk(false)
+                .setPromisedProposalNumber(promisedProposalNumber)
+                .build();
+      }
+      acceptLocked(proposalNumber, slot, batch);
+      walPosition = writeAheadLog.append(WalRecord.newBuilder()
+              .setType("ACCEPT")
+              .setProposalNumber(proposalNumber)
+              .setSlot(slot)
+              .setValue(batch)
+              .build());
+    }
+    writeAheadLog.sync(walPosition);
+    return AcceptResponse.newBuilder().setAcceptOk(true).build();
+  }
+
+  private void acceptLocked(long proposalNumber, long slot, PaxosBatch batch) {
+    promisedProposalNumber = Math.max(promisedProposalNumber, proposalNumber);
+    LogEntry entry = entries.computeIfAbsent(slot, s -> new LogEntry());
+    entry.acceptedProposalNumber = proposalNumber;
+    entry.acceptedBatch = batch;
+  }
+
+  /**
+   * Learner. Records the decided value of the slot, then applies every decided slot that is next in order. The decided
+   * value is durable before the writes waiting for it are completed.
+   */
+  public void decide(long slot, PaxosBatch batch) {
+    decideAll(List.of(DecidedSlot.newBuilder().setSlot(slot).setValue(batch).build()));
+  }
+
+  // Learner. Records the decided values of several slots at once, e.g. a chunk of the log tail during catch-up.
+  public void decideAll(List<DecidedSlot> decidedSlots) {
+    List<CompletableFuture<Void>> applied = new ArrayList<>();
+    long walPosition = -1;
+    long lockStartNanos = System.nanoTime();
+    synchronized (this) {
+      Metrics.recordSince(LOCK_WAIT, lockStartNanos);
+      for (DecidedSlot decidedSlot : decidedSlots) {
+        if (isDecided(decidedSlot.getSlot())) {
+          // Already decided, e.g. re-decided by a new leader during recovery.
+          continue;
+        }
+        walPosition = writeAheadLog.append(WalRecord.newBuilder()
+                .setType("DECIDE")
+                .setSlot(decidedSlot.getSlot())
+                .setValue(decidedSlot.getValue())
+                .build());
+        decideLocked(decidedSlot.getSlot(), decidedSlot.getValue(), false);
+      }
+      if (walPosition == -1) {
+        return;
+      }
+      collectAppliedWaiters(applied);
+    }
+    writeAheadLog.sync(walPosition);
+    // Complete outside of the lock, since the callbacks respond to the clients.
+    applied.forEach(future -> future.complete(null));
+  }
+
+  private void collectAppliedWaiters(List<CompletableFuture<Void>> applied) {
+    Map<Long, List<CompletableFuture<Void>>> appliedWaiters = applyWaiters.headMap(nextSlotToApply);
+    appliedWaiters.values().forEach(applied::addAll);
+    appliedWaiters.clear();
+  }
+
+  private void decideLocked(long slot, PaxosBatch batch, boolean replaying) {
+    LogEntry entry = entries.computeIfAbsent(slot, s -> new LogEntry());
+    entry.decidedBatch = batch;
+    largestDecidedSlot = Math.max(largestDecidedSlot, slot);
+    applyDecidedLocked(replaying);
+  }
+
+  private void applyDecidedLocked(boolean replaying) {
+    LogEntry next;
+    while (!installingSnapshot && (next = entries.get(nextSlotToApply)) != null && next.decidedBatch != null) {
+      long startNanos = System.nanoTime();
+      apply(nextSlotToApply, next, replaying);
+      Metrics.recordSince(APPLY_LATENCY, startNanos);
+      WatchManager watches = watchManager;
+      if (watches != null) {
+        watches.applied(watchShard, nextSlotToApply, next.decidedBatch, next.unchangedData);
+      }
+      nextSlotToApply++;
+    }
+  }
+
+  // Restore the state recorded by one write-ahead log record. To be invoked on startup, before serving requests.
+  public synchronized void replay(WalRecord record) {
+    switch (record.getType()) {
+      case "PROMISE":
+        promisedProposalNumber = Math.max(promisedProposalNumber, record.getProposalNumber());
+        break;
+      case "ACCEPT":
+        if (record.getSlot() >= nextSlotToApply) {
+          acceptLocked(record.getProposalNumber(), record.getSlot(), record.getValue());
+        }
+        break;
+      case "DECIDE":
+        if (!isDecided(record.getSlot())) {
+          decideLocked(record.getSlot(), record.getValue(), true);
+        }
+        break;
+      case "HAND_OFF":
+        // The state as of the snapshot. Older segments left over from before the snapshot lead up to the same state.
+        handOff.restore(record.getHandOff());
+        break;
+      default:
+        ServerLogger.error("Unknown write-ahead log record type %s", record.getType());
+    }
+  }
+
+  /**
+   * Apply the mutations of one decided batch to the data storage. While replaying on top of a snapshot, the snapshot
+   * may already contain the effect of the batch. Applying it again yields the same state, since PUT and DELETE are
+   * idempotent, but deleting a missing key is expected then. Every written key is invalidated in the client-side read
+   * caches once its write is applied.
+   *
+   * The entries that move keys between replica groups are applied the same on every replica, as they apply them in
+   * slot order (see HandOff): the writes of the keys fenced off are rejected, PUT_IF_ABSENT only stores the pair if the
+   * key doesn't exist, and MOVE_OUT only deletes the key if it still has the value that was handed over.
+   *
+   * Records in the entry the indexes of the writes that changed nothing, for the watches, and of the rejected ones.
+   */
+  private void apply(long slot, LogEntry entry, boolean replaying) {
+    PaxosBatch batch = entry.decidedBatch;
+    CacheInvalidator invalidator = cacheInvalidator;
+    HandOff keyHandOff = handOff;
+    BitSet unchangedData = null;
+    BitSet rejectedData = null;
+    for (int i = 0; i < batch.getDataCount(); i++) {
+      PaxosDatum datum = batch.getData(i);
+      String method = datum.getMethod();
+      String key = datum.getKey().toLowerCase();
+      boolean changed = true;
+      if (method.equalsIgnoreCase("FENCE")) {
+        if (keyHandOff.applyFence(datum.getPartitionMap())) {
+          ServerLogger.info("Fenced the keys of other replica groups in partition map version %d at slot %d",
+                  datum.getPartitionMap().getVersion(), slot);
+        }
+        changed = false;
+      } else if (method.equalsIgnoreCase("HANDED_OVER")) {
+        // The key is the name of the group
+        keyHandOff.applyHandedOver(datum.getKey(), Long.parseLong(datum.getValue()));
+        changed = false;
+      } else if (method.equalsIgnoreCase("MOVE_OUT")) {
+        // The key is still there for other groups, so the watches don't see it go.
+        if (datum.getValue().equals(dataStorage.get(key))) {
+          dataStorage.delete(key);
+          if (invalidator != null) {
+            invalidator.invalidate(key);
+          }
+        }
+        changed = false;
+      } else if (keyHandOff.fences(key)) {
+        if (rejectedData == null) {
+          rejectedData = new BitSet(batch.getDataCount());
+        }
+        rejectedData.set(i);
+        changed = false;
+      } else if (method.equalsIgnoreCase("PUT")) {
+        dataStorage.put(key, datum.getValue());
+      } else if (method.equalsIgnoreCase("PUT_IF_ABSENT")) {
+        changed = !dataStorage.containsKey(key);
+        if (changed) {
+          dataStorage.put(key, datum.getValue());
+        }
+      } else if (method.equalsIgnoreCase("DELETE")) {
+        String value = dataStorage.delete(key);
+        changed = value != null;
+        // if the key doesn't exist in this data storage, log it
+        if (value == null && !replaying) {
+          ServerLogger.error("Data error while processing DELETE: key %s doesn't exist.", key);
+        }
+      } else {
+        ServerLogger.error("Unknown method %s in slot %d\n", method, slot);
+        changed = false;
+      }
+      if (!changed) {
+        if (unchangedData == null) {
+          unchangedData = new BitSet(batch.getDataCount());
+        }
+        unchangedData.set(i);
+        continue;
+      }
+      if (invalidator != null) {
+        invalidator.invalidate(key);
+      }
+    }
+    entry.unchangedData = unchangedData;
+    entry.rejectedData = rejectedData;
+  }
+
+  // Returns a future that completes once the given slot, and every slot before it, has been applied.
+  public synchronized CompletableFuture<Void> whenApplied(long slot) {
+    if (slot < nextSlotToApply) {
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    applyWaiters.computeIfAbsent(slot, s -> new ArrayList<>()).add(future);
+    return future;
+  }
+
+  // Restore the position of the log from a snapshot that covers every slot up to and including the given one.
+  public synchronized void restoreSnapshot(long slot) {
+    nextSlotToApply = slot + 1;
+    compactedSlot = slot;
+    largestDecidedSlot = Math.max(largestDecidedSlot, slot);
+  }
+
+  /**
+   * Start replacing the data storage by a snapshot streamed from another replica, which covers every slot up to and
+   * including the given one. Clears the data storage, for the caller to put the pairs of the snapshot in as they
+   * arrive, and stops applying slots until finishInstallSnapshot(). Returns false if this replica has already applied
+   * the slot, in which case the snapshot is ignored. If the stream breaks off, the data storage stays incomplete, and
+   * the log stays fenced until another snapshot is installed in full. The hand-off state is replaced by the one of the
+   * snapshot.
+   */
+  public synchronized boolean beginInstallSnapshot(long slot, HandOffState handOffState) {
+    // An incomplete data storage is replaced by a snapshot of the last applied slot too.
+    if (slot < nextSlotToApply - (installingSnapshot ? 1 : 0)) {
+      return false;
+    }
+    installingSnapshot = true;
+    numInstalledSnapshots++;
+    dataStorage.clear();
+    handOff.restore(handOffState);
+    return true;
+  }
+
+  /**
+   * Complete the snapshot started by beginInstallSnapshot(), once all its pairs are in the data storage. The Acceptor
+   * state of the later slots is kept. The caller must take a local snapshot to make the new state durable.
+   */
+  public void finishInstallSnapshot(long slot) {
+    List<CompletableFuture<Void>> applied = new ArrayList<>();
+    synchronized (this) {
+      entries.headMap(slot, true).clear();
+      restoreSnapshot(slot);
+      installingSnapshot = false;
+      if (cacheInvalidator != null) {
+        cacheInvalidator.invalidateAll();
+      }
+      if (watchManager != null) {
+        watchManager.snapshotInstalled(watchShard, slot);
+      }
+      // Slots after the snapshot that were decided while waiting for the hole to be filled can be applied now.
+      applyDecidedLocked(false);
+      collectAppliedWaiters(applied);
+    }
+    applied.forEach(future -> future.complete(null));
+  }
+
+  // Whether a snapshot of another replica is being installed, or was left incomplete.
+  public synchronized boolean isInstallingSnapshot() {
+    return installingSnapshot;
+  }
+
+  /**
+   * Start a snapshot. Returns the slot the snapshot will cover: every slot up to and including it has been applied to
+   * the data storage. The write-ahead log is rotated to a new segment, which starts with the promise, the hand-off
+   * state and the entries after that slot, so that it can be replayed on top of the snapshot without the older
+   * segments.
+   */
+  public long beginSnapshot() {
+    long snapshotSlot;
+    long walPosition = 0;
+    synchronized (this) {
+      snapshotSlot = nextSlotToApply - 1;
+      writeAheadLog.rotate();
+      if (promisedProposalNumber != -1) {
+        walPosition = writeAheadLog.append(
+                WalRecord.newBuilder().setType("PROMISE").setProposalNumber(promisedProposalNumber).build());
+      }
+      walPosition = writeAheadLog.append(
+              WalRecord.newBuilder().setType("HAND_OFF").setHandOff(handOff.toProto(snapshotSlot)).build());
+      for (Map.Entry<Long, LogEntry> slotEntry : entries.tailMap(nextSlotToApply, true).entrySet()) {
+        LogEntry entry = slotEntry.getValue();
+        if (entry.acceptedBatch != null) {
+          walPosition = writeAheadLog.append(WalRecord.newBuilder()
+                  .setType("ACCEPT")
+                  .setProposalNumber(entry.acceptedProposalNumber)
+                  .setSlot(slotEntry.getKey())
+                  .setValue(entry.acceptedBatch)
+                  .build());
+        }
+        if (entry.decidedBatch != null) {
+          walPosition = writeAheadLog.append(WalRecord.newBuilder()
+                  .setType("DECIDE")
+                  .setSlot(slotEntry.getKey())
+                  .setValue(entry.decidedBatch)
+                  .build());
+        }
+      }
+    }
+    writeAheadLog.sync(walPosition);
+    return snapshotSlot;
+  }
+
+  // Drop the entries up to and including the slot, once a durable snapshot covers them.
+  public synchronized void compact(long slot) {
+    if (!retainedSlots.isEmpty()) {
+      // Keep the entries that catch-up streams are still sending.
+      slot = Math.min(slot, retainedSlots.firstKey() - 1);
+    }
+    entries.headMap(slot, true).clear();
+    compactedSlot = Math.max(compactedSlot, slot);
+  }
+
+  /**
+   * Keep the entries from the given slot on until release() is invoked, so that a catch-up stream can read them while
+   * snapshots are taken. Returns false if they have been compacted already.
+   */
+  public synchronized boolean retainFrom(long slot) {
+    if (slot <= compactedSlot) {
+      return false;
+    }
+    retainedSlots.merge(slot, 1, Integer::sum);
+    return true;
+  }
+
+  // Undo one retainFrom() of the given slot.
+  public synchronized void release(long slot) {
+    retainedSlots.computeIfPresent(slot, (s, count) -> count == 1 ? null : count - 1);
+  }
+
+  /**
+   * The decided values of up to maxSlots consecutive applied slots, starting at the given slot. Returns an empty list
+   * if the slot hasn't been applied yet. The entries must have been retained by retainFrom().
+   */
+  public synchronized List<DecidedSlot> appliedSlots(long fromSlot, int maxSlots) {
+    List<DecidedSlot> appliedSlots = new ArrayList<>();
+    for (long slot = fromSlot; slot < nextSlotToApply && appliedSlots.size() < maxSlots; slot++) {
+      LogEntry entry = entries.get(slot);
+      if (entry == null) {
+        break;
+      }
+      appliedSlots.add(DecidedSlot.newBuilder().setSlot(slot).setValue(entry.decidedBatch).build());
+    }
+    return appliedSlots;
+  }
+
+  /**
+   * Pass every applied slot from the given one on to history, then the next slot to apply to live, all under the lock
+   * of the log, so that a watch can switch from the log to the live slots without missing or repeating one. Returns
+   * false, without calling either, if the log was compacted past the given slot.
+   */
+  public synchronized boolean readAppliedSlots(long fromSlot, AppliedSlotConsumer history, LongConsumer live) {
+    if (fromSlot <= compactedSlot) {
+      return false;
+    }
+    // The entries after the compacted slot are all there.
+    for (long slot = fromSlot; slot < nextSlotToApply; slot++) {
+      LogEntry entry = entries.get(slot);
+      history.accept(slot, entry.decidedBatch, entry.unchangedData);
+    }
+    live.accept(nextSlotToApply);
+    return true;
+  }
+
+  // Whether the value of the slot is known to be decided on this replica.
+  public synchronized boolean isDecided(long slot) {
+    if (slot < nextSlotToApply) {
+      return true;
+    }
+    LogEntry entry = entries.get(slot);
+    return entry != null && entry.decidedBatch != null;
+  }
+
+  // The batch decided in the slot, or null if it isn't decided yet. Throws IllegalStateException if the slot was
+  // compacted, since its batch is no longer known.
+  public synchronized PaxosBatch decidedBatch(long slot) {
+    LogEntry entry = entries.get(slot);
+    if (entry != null && entry.decidedBatch != null) {
+      return entry.decidedBatch;
+    }
+    if (slot < nextSlotToApply) {
+      throw new IllegalStateException("Slot " + slot + " was compacted");
+    }
+    return null;
+  }
+
+  /**
+   * Indexes of the writes of an applied slot that the hand-off fence rejected, or null if there are none. Throws
+   * IllegalStateException if the slot hasn't been applied, or was compacted.
+   */
+  public synchronized BitSet rejectedData(long slot) {
+    LogEntry entry = entries.get(slot);
+    if (entry == null || slot >= nextSlotToApply) {
+      throw new IllegalStateException("Slot " + slot + (slot < nextSlotToApply ? " was compacted" : " isn't applied"));
+    }
+    return entry.rejectedData;
+  }
+
+  // The hand-off state as of the last applied slot, for a snapshot streamed to another replica
+  public synchronized HandOffState handOffState() {
+    return handOff.toProto(nextSlotToApply - 1);
+  }
+
+  // The first slot that this replica hasn't applied yet.
+  public synchronized long firstUndecidedSlot() {
+    return nextSlotToApply;
+  }
+
+  // The largest slot known to be decided, or -1 if none.
+  public synchronized long largestDecidedSlot() {
+    return largestDecidedSlot;
+  }
+
+  // The entries up to and including this slot have been dropped, or -1 if none.
+  public synchronized long compactedSlot() {
+    return compactedSlot;
+  }
+
+  // Number of snapshots installed from other replicas so far.
+  public synchronized long numInstalledSnapshots() {
+    return numInstalledSnapshots;
+  }
+
+  // The highest proposal number this replica has promised, or -1 if none.
+  public synchronized long promisedProposalNumber() {
+    return promisedProposalNumber;
+  }
+
+  // The largest slot that this replica has seen any value for, or -1 if none.
+  public synchronized long largestSlot() {
+    return entries.isEmpty() ? nextSlotToApply - 1 : Math.max(entries.lastKey(), nextSlotToApply - 1);
+  }
+}
@@ -0,0 +1,343 @@
+package kvstore.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted file of key-value pairs, written by the LsmStorageEngine when it flushes a memtable or merges
+ * tables. Deleted keys are kept as tombstones, so that they hide the older values of the key in older tables.
+ *
+ * File format: data blocks of about BLOCK_SIZE bytes, each a sequence of [key length][key][value length][value] in key
+ * order, with value length -1 for a tombstone. Then the block index, [number of blocks] followed by [first key length]
+ * [first key][offset][length] for every block, then the bloom filter, [number of longs][longs], then a fixed-size
+ * footer. The index and the bloom filter are loaded into memory when the table is opened, so that a point lookup reads
+ * at most one block from disk.
+ *
+ * Tables are reference counted. The engine holds one reference while the table is live, and readers hold one while
+ * they use it. The file is closed, and deleted if the table became obsolete, once the last reference is released.
+ */
+class SSTable {
+  private static final int BLOCK_SIZE = 4096;
+  private static final int MAGIC = 0x4b565354; // "KVST"
+  private static final int FOOTER_SIZE = 3 * Long.BYTES + 3 * Integer.BYTES;
+  private static final int TOMBSTONE_LENGTH = -1;
+
+  private final long number;
+  private final Path path;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final long numEntries;
+  private final String[] blockFirstKeys;
+  private final long[] blockOffsets;
+  private final int[] blockLengths;
+  private final BloomFilter bloomFilter;
+  private final AtomicInteger references = new AtomicInteger(1);
+  private volatile boolean obsolete = false;
+
+  private SSTable(long number, Path path, FileChannel channel, long fileSize, long numEntries, String[] blockFirstKeys,
+                  long[] blockOffsets, int[] blockLengths, BloomFilter bloomFilter) {
+    this.number = number;
+    this.path = path;
+    this.channel = channel;
+    this.fileSize = fileSize;
+    this.numEntries = numEntries;
+    this.blockFirstKeys = blockFirstKeys;
+    this.blockOffsets = blockOffsets;
+    this.blockLengths = blockLengths;
+    this.bloomFilter = bloomFilter;
+  }
+
+  /**
+   * Write the entries, which must be in key order, to a new table file and open it. A value equal to
+   * LsmStorageEngine.TOMBSTONE is written as a tombstone. The file is fsync-ed before this returns.
+   */
+  static SSTable write(Path path, long number, Iterator<Map.Entry<String, String>> entries, long expectedEntries)
+          throws IOException {
+    BloomFilter bloomFilter = new BloomFilter(expectedEntries);
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    DataOutputStream indexOutput = new DataOutputStream(index);
+    int numBlocks = 0;
+    long numEntries = 0;
+    long position = 0;
+    try (FileOutputStream fileOutput = new FileOutputStream(path.toFile());
+         DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, 1 << 16))) {
+      ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+      DataOutputStream blockOutput = new DataOutputStream(block);
+      byte[] blockFirstKey = null;
+      while (entries.hasNext()) {
+        Map.Entry<String, String> entry = entries.next();
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        if (blockFirstKey == null) {
+          blockFirstKey = key;
+        }
+        blockOutput.writeInt(key.length);
+        blockOutput.write(key);
+        if (entry.getValue() == LsmStorageEngine.TOMBSTONE) {
+          blockOutput.writeInt(TOMBSTONE_LENGTH);
+        } else {
+          byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+          blockOutput.writeInt(value.length);
+          blockOutput.write(value);
+        }
+        bloomFilter.add(key);
+        numEntries++;
+        if (block.size() >= BLOCK_SIZE || !entries.hasNext()) {
+          indexOutput.writeInt(blockFirstKey.length);
+          indexOutput.write(blockFirstKey);
+          indexOutput.writeLong(position);
+          indexOutput.writeInt(block.size());
+          numBlocks++;
+          block.writeTo(output);
+          position += block.size();
+          block.reset();
+          blockFirstKey = null;
+        }
+      }
+
+      long indexOffset = position;
+      output.writeInt(numBlocks);
+      index.writeTo(output);
+      int indexLength = Integer.BYTES + index.size();
+      long bloomOffset = indexOffset + indexLength;
+      long[] bloomBits = bloomFilter.toLongs();
+      output.writeInt(bloomBits.length);
+      for (long bits : bloomBits) {
+        output.writeLong(bits);
+      }
+      int bloomLength = Integer.BYTES + bloomBits.length * Long.BYTES;
+
+      output.writeLong(indexOffset);
+      output.writeInt(indexLength);
+      output.writeLong(bloomOffset);
+      output.writeInt(bloomLength);
+      output.writeLong(numEntries);
+      output.writeInt(MAGIC);
+      output.flush();
+      fileOutput.getFD().sync();
+    }
+    return open(path, number);
+  }
+
+  // Open an existing table file, loading its block index and bloom filter.
+  static SSTable open(Path path, long number) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long fileSize = channel.size();
+      ByteBuffer footer = read(channel, fileSize - FOOTER_SIZE, FOOTER_SIZE);
+      long indexOffset = footer.getLong();
+      int indexLength = footer.getInt();
+      long bloomOffset = footer.getLong();
+      int bloomLength = footer.getInt();
+      long numEntries = footer.getLong();
+      if (footer.getInt() != MAGIC) {
+        throw new IOException("Not an SSTable: " + path);
+      }
+
+      ByteBuffer index = read(channel, indexOffset, indexLength);
+      int numBlocks = index.getInt();
+      String[] blockFirstKeys = new String[numBlocks];
+      long[] blockOffsets = new long[numBlocks];
+      int[] blockLengths = new int[numBlocks];
+      for (int i = 0; i < numBlocks; i++) {
+        blockFirstKeys[i] = readString(index, index.getInt());
+        blockOffsets[i] = index.getLong();
+        blockLengths[i] = index.getInt();
+      }
+
+      ByteBuffer bloom = read(channel, bloomOffset, bloomLength);
+      long[] bloomBits = new long[bloom.getInt()];
+      for (int i = 0; i < bloomBits.length; i++) {
+        bloomBits[i] = bloom.getLong();
+      }
+      return new SSTable(number, path, channel, fileSize, numEntries, blockFirstKeys, blockOffsets, blockLengths,
+              new BloomFilter(bloomBits));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  long getNumber() {
+    return number;
+  }
+
+  long getFileSize() {
+    return fileSize;
+  }
+
+  long getNumEntries() {
+    return numEntries;
+  }
+
+  /**
+   * Look the key up. Returns its value, LsmStorageEngine.TOMBSTONE if the key was deleted, or null if the table doesn't
+   * know the key. Reads at most one block.
+   */
+  String get(String key, byte[] keyBytes) throws IOException {
+    if (!bloomFilter.mightContain(keyBytes)) {
+      return null;
+    }
+    // The last block whose first key isn't greater than the key
+    int blockIndex = Arrays.binarySearch(blockFirstKeys, key);
+    if (blockIndex < 0) {
+      blockIndex = -blockIndex - 2;
+      if (blockIndex < 0) {
+        return null;
+      }
+    }
+    ByteBuffer block = read(channel, blockOffsets[blockIndex], blockLengths[blockIndex]);
+    while (block.hasRemaining()) {
+      String entryKey = readString(block, block.getInt());
+      int valueLength = block.getInt();
+      int comparison = entryKey.compareTo(key);
+      if (comparison == 0) {
+        return valueLength == TOMBSTONE_LENGTH ? LsmStorageEngine.TOMBSTONE : readString(block, valueLength);
+      }
+      if (comparison > 0) {
+        return null;
+      }
+      if (valueLength != TOMBSTONE_LENGTH) {
+        block.position(block.position() + valueLength);
+      }
+    }
+    return null;
+  }
+
+  // Iterate all the entries in key order, tombstones included, reading one block at a time.
+  Iterator<Map.Entry<String, String>> iterator() {
+    return iterator(null, null);
+  }
+
+  /**
+   * Iterate the entries with startKey <= key < endKey in key order, tombstones included. A null startKey or endKey means
+   * no bound on that side. Starts reading at the one block that may hold startKey.
+   */
+  Iterator<Map.Entry<String, String>> iterator(String startKey, String endKey) {
+    int firstBlock = 0;
+    if (startKey != null) {
+      firstBlock = Arrays.binarySearch(blockFirstKeys, startKey);
+      if (firstBlock < 0) {
+        firstBlock = Math.max(0, -firstBlock - 2);
+      }
+    }
+    int startBlock = firstBlock;
+    return new Iterator<Map.Entry<String, String>>() {
+      private int nextBlock = startBlock;
+      private ByteBuffer block = ByteBuffer.allocate(0);
+      private Map.Entry<String, String> next = computeNext();
+
+      private Map.Entry<String, String> computeNext() {
+        while (true) {
+          while (!block.hasRemaining()) {
+            if (nextBlock >= blockOffsets.length) {
+              return null;
+            }
+            try {
+              block = read(channel, blockOffsets[nextBlock], blockLengths[nextBlock]);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+            nextBlock++;
+          }
+          String key = readString(block, block.getInt());
+          int valueLength = block.getInt();
+          if (endKey != null && key.compareTo(endKey) >= 0) {
+            block = ByteBuffer.allocate(0);
+            nextBlock = blockOffsets.length;
+            return null;
+          }
+          if (startKey != null && key.compareTo(startKey) < 0) {
+            if (valueLength != TOMBSTONE_LENGTH) {
+              block.position(block.position() + valueLength);
+            }
+            continue;
+          }
+          String value = valueLength == TOMBSTONE_LENGTH ? LsmStorageEngine.TOMBSTONE : readString(block, valueLength);
+          return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Map.Entry<String, String> next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> current = next;
+        next = computeNext();
+        return current;
+      }
+    };
+  }
+
+  // Take a reference, unless the table has already been closed. Returns whether it succeeded.
+  boolean tryRetain() {
+    while (true) {
+      int count = references.get();
+      if (count == 0) {
+        return false;
+      }
+      if (references.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  // Release a reference. The last one closes the file, and deletes it if the table is obsolete.
+  void release() {
+    if (references.decrementAndGet() > 0) {
+      return;
+    }
+    try {
+      channel.close();
+      if (obsolete) {
+        Files.deleteIfExists(path);
+      }
+    } catch (IOException e) {
+      ServerLogger.error("Failed to close SSTable %s: %s", path, e.getMessage());
+    }
+  }
+
+  // To be invoked by the engine when it drops the table, e.g. after merging it. Releases the engine's reference.
+  void markObsolete() {
+    obsolete = true;
+    release();
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of SSTable");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static String readString(ByteBuffer buffer, int length) {
+    String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return string;
+  }
+}
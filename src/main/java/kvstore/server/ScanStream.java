@@ -0,0 +1,85 @@
+package kvstore.server;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import kvstore.KeyValuePair;
+import kvstore.ScanResponse;
+
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * One range scan served by this replica. Walks the ordered index of the DataStorage lazily, or of every shard of the
+ * replica at once, and sends the pairs in chunks only while the stream has room, so that neither the range nor the
+ * unsent chunks pile up in memory when the client reads slower than the scan goes.
+ */
+class ScanStream {
+  private static final int MAX_CHUNK_PAIRS = 1024;
+  private static final int MAX_CHUNK_BYTES = 256 << 10;
+
+  private final ServerCallStreamObserver<ScanResponse> responseObserver;
+  private final CloseableIterator<Map.Entry<String, String>> pairs;
+  private final long limit;
+  private long numSent = 0;
+  private boolean finished = false;
+
+  // Stream the pairs of a range, in the order of the iterator. A limit of 0 means no limit.
+  ScanStream(CloseableIterator<Map.Entry<String, String>> pairs, int limit,
+             ServerCallStreamObserver<ScanResponse> responseObserver) {
+    this.responseObserver = responseObserver;
+    this.pairs = pairs;
+    this.limit = limit == 0 ? Long.MAX_VALUE : limit;
+  }
+
+  // Start streaming. The rest of the chunks are sent from the gRPC threads, whenever the stream is ready again.
+  void start() {
+    responseObserver.setOnCancelHandler(this::cancel);
+    responseObserver.setOnReadyHandler(this::drain);
+    drain();
+  }
+
+  // Sends chunks for as long as the stream is ready.
+  private synchronized void drain() {
+    try {
+      while (!finished && responseObserver.isReady()) {
+        ScanResponse.Builder chunk = ScanResponse.newBuilder();
+        int numBytes = 0;
+        while (pairs.hasNext() && numSent < limit && chunk.getPairsCount() < MAX_CHUNK_PAIRS
+                && numBytes < MAX_CHUNK_BYTES) {
+          Map.Entry<String, String> pair = pairs.next();
+          chunk.addPairs(KeyValuePair.newBuilder().setKey(pair.getKey()).setValue(pair.getValue()));
+          numBytes += pair.getKey().length() + pair.getValue().length();
+          numSent++;
+        }
+        if (chunk.getPairsCount() > 0) {
+          responseObserver.onNext(chunk.build());
+        }
+        if (!pairs.hasNext() || numSent >= limit) {
+          finish();
+          ServerLogger.debug("Send SCAN response: %d pairs", numSent);
+          responseObserver.onCompleted();
+        }
+      }
+    } catch (StatusRuntimeException | UncheckedIOException e) {
+      ServerLogger.error("Scan stream failed: %s", e.getMessage());
+      if (!finished) {
+        finish();
+        responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+      }
+    }
+  }
+
+  private synchronized void cancel() {
+    if (!finished) {
+      finish();
+      ServerLogger.info("Scan cancelled by the client after %d pairs", numSent);
+    }
+  }
+
+  // Stop scanning, and release what the storage engine holds for the scan.
+  private void finish() {
+    finished = true;
+    pairs.close();
+  }
+}
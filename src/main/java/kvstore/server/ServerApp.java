@@ -1,38 +1,253 @@
 package kvstore.server;
 
 import io.grpc.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 // ServerApp class to start the server application
 public class ServerApp {
+  // File of the data directory of a replica that records its number of shards
+  private static final String SHARDS_FILE = "shards";
+
   public static void main(String[] args) throws InterruptedException {
     // Parse command-line arguments
     CliFlags flags = CliFlags.parseCli(args);
     ServerLogger.setPort(flags.port);
-    RPCServer rpcServer = new RPCServer(flags.port, flags.allReplicaPorts);
+    ServerLogger.setLevel(flags.logLevel);
+    if (flags.logFile != null) {
+      try {
+        ServerLogger.setLogFile(flags.logFile);
+      } catch (IOException e) {
+        ServerLogger.error("Unable to open log file %s: %s", flags.logFile, e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    Executor executor = createExecutor(flags.executor);
+
+    // With a partition map, this replica only holds the keys of its replica group, and replicates them with the other
+    // replicas of the group.
+    PartitionManager partitions = null;
+    List<Integer> allReplicaPorts = flags.allReplicaPorts;
+    if (flags.partitionMapFile != null) {
+      partitions = loadPartitionsOrFail(flags.partitionMapFile, flags.port);
+      allReplicaPorts = partitions.groupPorts();
+      if (allReplicaPorts.size() < CliFlags.MIN_REPLICAS) {
+        ServerLogger.error("Replica group %s has %d replicas. Must be at least %d.",
+                partitions.groupName(), allReplicaPorts.size(), CliFlags.MIN_REPLICAS);
+        System.exit(1);
+      }
+      ServerLogger.info("Serving replica group %s of partition map version %d with replicas %s",
+              partitions.groupName(), partitions.ring().getVersion(), allReplicaPorts);
+    }
+
+    // Restore the data and the Paxos state of every shard of this replica from its latest snapshot and its write-ahead
+    // log. The shards share the channels to the other replicas.
+    Path replicaDir = flags.dataDir.resolve("replica-" + flags.port);
+    checkShardCountOrFail(replicaDir, flags.shards);
+    Function<Integer, ManagedChannel> channels = Proposer.sharedLocalChannels();
+    List<KeyValueStoreImpl> shards = new ArrayList<>();
+    for (int shard = 0; shard < flags.shards; shard++) {
+      // A replica with a single shard keeps its files right in its directory
+      Path shardDir = flags.shards == 1 ? replicaDir : replicaDir.resolve("shard-" + shard);
+      DataStorage dataStorage = new DataStorage(createStorageEngine(flags.storageEngine, shardDir));
+      WriteAheadLog writeAheadLog = new WriteAheadLog(shardDir);
+      ReplicatedLog replicatedLog = new ReplicatedLog(dataStorage, writeAheadLog);
+      if (partitions != null) {
+        replicatedLog.setReplicaGroup(partitions.groupName());
+      }
+      Snapshotter snapshotter = new Snapshotter(shardDir, dataStorage, replicatedLog, writeAheadLog);
+      snapshotter.load();
+      writeAheadLog.replay(replicatedLog::replay);
+      snapshotter.start();
+      shards.add(new KeyValueStoreImpl(shard, flags.port, allReplicaPorts, dataStorage, replicatedLog, snapshotter,
+              channels));
+    }
+
+    RPCServer rpcServer = new RPCServer(flags.port, shards, partitions, executor);
     rpcServer.start();
+    if (partitions != null) {
+      new Rebalancer(partitions, shards, flags.port).start();
+    }
+    if (flags.metricsPort >= 0) {
+      new MetricsEndpoint(flags.metricsPort).start();
+    }
     rpcServer.blockUntilShutdown();
   }
 
+  /**
+   * The keys are routed to the shards by hash, so a data directory must keep using the number of shards it was created
+   * with. Records that number in the directory on the first start, and exits with an error if it changed.
+   */
+  private static void checkShardCountOrFail(Path replicaDir, int shards) {
+    Path shardsFile = replicaDir.resolve(SHARDS_FILE);
+    try {
+      if (Files.exists(shardsFile)) {
+        int recordedShards = Integer.parseInt(Files.readString(shardsFile).trim());
+        if (recordedShards != shards) {
+          ServerLogger.error("Data directory %s was created with %d shards. Got --shards=%d.",
+                  replicaDir, recordedShards, shards);
+          System.exit(1);
+        }
+        return;
+      }
+      Files.createDirectories(replicaDir);
+      Files.writeString(shardsFile, Integer.toString(shards));
+    } catch (IOException | NumberFormatException e) {
+      ServerLogger.error("Unable to check the number of shards of %s: %s", replicaDir, e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  // Load the partition map, and exit with an error if it is invalid or doesn't have this replica.
+  private static PartitionManager loadPartitionsOrFail(Path file, int port) {
+    try {
+      return new PartitionManager(file, port);
+    } catch (IOException | IllegalArgumentException e) {
+      ServerLogger.error("Unable to load partition map %s: %s", file, e.getMessage());
+      System.exit(1);
+      return null;
+    }
+  }
+
+  private static StorageEngine createStorageEngine(String name, Path replicaDir) {
+    switch (name) {
+      case "off-heap":
+        return new OffHeapStorageEngine(false);
+      case "off-heap-sorted":
+        return new OffHeapStorageEngine(true);
+      case "lsm":
+        return new LsmStorageEngine(replicaDir.resolve("lsm"));
+      default:
+        return new HeapStorageEngine();
+    }
+  }
+
+  // Executor of the RPC handlers, or null for the default executor of gRPC
+  private static Executor createExecutor(String name) {
+    switch (name) {
+      case "virtual":
+        try {
+          return RPCServer.newVirtualThreadExecutor();
+        } catch (UnsupportedOperationException e) {
+          ServerLogger.error("Unable to use the virtual executor: %s", e.getMessage());
+          System.exit(1);
+          return null;
+        }
+      default:
+        return null;
+    }
+  }
+
   // Inner class to hold parsed command-line arguments
   private static class CliFlags {
     private static final List<Integer> DEFAULT_ALL_REPLICA_PORTS = List.of(3333,3334,3335,3336,3337);
-    private static final int NUMBER_OF_REPLICAS = 5;
+    // The proposer of a replica needs a majority of the other replicas as acceptors, so fewer replicas can't commit
+    // anything once one of them is down.
+    private static final int MIN_REPLICAS = 3;
+    private static final String DEFAULT_DATA_DIR = "data";
+    private static final List<String> STORAGE_ENGINES = List.of("heap", "off-heap", "off-heap-sorted", "lsm");
+    private static final String DEFAULT_STORAGE_ENGINE = "heap";
+    private static final int NO_METRICS_PORT = -1;
+    private static final List<String> EXECUTORS = List.of("default", "virtual");
+    private static final String DEFAULT_EXECUTOR = "default";
+    private static final int DEFAULT_SHARDS = 1;
+    private static final int MAX_SHARDS = 256;
+    private static final ServerLogger.Level DEFAULT_LOG_LEVEL = ServerLogger.Level.INFO;
 
     private final int port;
     private final List<Integer> allReplicaPorts;
+    private final Path dataDir;
+    private final String storageEngine;
+    // Port of the Prometheus metrics endpoint, or NO_METRICS_PORT
+    private final int metricsPort;
+    private final ServerLogger.Level logLevel;
+    // File to write the logs to, or null for the console
+    private final Path logFile;
+    private final String executor;
+    // Number of shards, each an independent Paxos group
+    private final int shards;
+    // Partition map of the replica groups, or null if this replica group holds every key
+    private final Path partitionMapFile;
 
     // Private constructor. Only to be invoked by parseCli().
-    private CliFlags(int port, List<Integer> allReplicaPorts) {
+    private CliFlags(int port, List<Integer> allReplicaPorts, Path dataDir, String storageEngine, int metricsPort,
+                     ServerLogger.Level logLevel, Path logFile, String executor,
+                     int shards, Path partitionMapFile) {
       this.port = port;
       this.allReplicaPorts = allReplicaPorts;
+      this.dataDir = dataDir;
+      this.storageEngine = storageEngine;
+      this.metricsPort = metricsPort;
+      this.logLevel = logLevel;
+      this.logFile = logFile;
+      this.executor = executor;
+      this.shards = shards;
+      this.partitionMapFile = partitionMapFile;
     }
 
     /**
      * Parse CLI flags. Perform validations.
      */
-    public static CliFlags parseCli(String[] args) {
+    public static CliFlags parseCli(String[] cliArgs) {
+      // Separate the optional --name=value flags from the positional arguments
+      List<String> positionalArgs = new ArrayList<>();
+      Path dataDir = Paths.get(DEFAULT_DATA_DIR);
+      String storageEngine = DEFAULT_STORAGE_ENGINE;
+      int metricsPort = NO_METRICS_PORT;
+      ServerLogger.Level logLevel = DEFAULT_LOG_LEVEL;
+      Path logFile = null;
+      String executor = DEFAULT_EXECUTOR;
+      int shards = DEFAULT_SHARDS;
+      Path partitionMapFile = null;
+      for (String arg : cliArgs) {
+        if (arg.startsWith("--data-dir=")) {
+          dataDir = Paths.get(arg.substring("--data-dir=".length()));
+        } else if (arg.startsWith("--storage-engine=")) {
+          storageEngine = arg.substring("--storage-engine=".length());
+          if (!STORAGE_ENGINES.contains(storageEngine)) {
+            printUsage();
+            ServerLogger.error("Unknown storage engine: " + storageEngine);
+            System.exit(1);
+          }
+        } else if (arg.startsWith("--metrics-port=")) {
+          metricsPort = parsePortOrFail(arg.substring("--metrics-port=".length()));
+        } else if (arg.startsWith("--log-level=")) {
+          logLevel = parseLogLevelOrFail(arg.substring("--log-level=".length()));
+        } else if (arg.startsWith("--log-file=")) {
+          logFile = Paths.get(arg.substring("--log-file=".length()));
+        } else if (arg.startsWith("--partition-map=")) {
+          partitionMapFile = Paths.get(arg.substring("--partition-map=".length()));
+          if (!Files.isRegularFile(partitionMapFile)) {
+            printUsage();
+            ServerLogger.error("Partition map not found: " + partitionMapFile);
+            System.exit(1);
+          }
+        } else if (arg.startsWith("--shards=")) {
+          shards = parseShardsOrFail(arg.substring("--shards=".length()));
+        } else if (arg.startsWith("--executor=")) {
+          executor = arg.substring("--executor=".length());
+          if (!EXECUTORS.contains(executor)) {
+            printUsage();
+            ServerLogger.error("Unknown executor: " + executor);
+            System.exit(1);
+          }
+        } else if (arg.startsWith("--")) {
+          printUsage();
+          ServerLogger.error("Unknown flag: " + arg);
+          System.exit(1);
+        } else {
+          positionalArgs.add(arg);
+        }
+      }
+      String[] args = positionalArgs.toArray(new String[0]);
+
       if (args.length < 1) {
         printUsage();
         ServerLogger.error("<port-number> is not specified");
@@ -47,6 +262,23 @@ public class ServerApp {
 
       int port = parsePortOrFail(args[0]);
 
+      if (metricsPort == port) {
+        printUsage();
+        ServerLogger.error("The metrics port must differ from the server port");
+        System.exit(1);
+      }
+
+      if (partitionMapFile != null) {
+        // The replicas of the group are listed in the partition map
+        if (args.length > 1) {
+          printUsage();
+          ServerLogger.error("<all-replicas-port-number> can't be used with --partition-map");
+          System.exit(1);
+        }
+        return new CliFlags(port, null, dataDir, storageEngine, metricsPort, logLevel, logFile,
+                executor, shards, partitionMapFile);
+      }
+
       List<Integer> allReplicaPorts;
       if (args.length == 1) {
         // Default replica ports
@@ -55,16 +287,16 @@ public class ServerApp {
       } else {
         String[] allReplicaPortsString = args[1].split(",");
         // Check number of replicas
-        if (allReplicaPortsString.length != NUMBER_OF_REPLICAS) {
+        if (allReplicaPortsString.length < MIN_REPLICAS) {
           printUsage();
           ServerLogger.error(
               String.format(
-                  "Invalid number of replicas. Must be %d. Got %d.",
-                  NUMBER_OF_REPLICAS,
+                  "Invalid number of replicas. Must be at least %d. Got %d.",
+                  MIN_REPLICAS,
                   allReplicaPortsString.length));
           System.exit(1);
         }
-        allReplicaPorts = new ArrayList<>(NUMBER_OF_REPLICAS);
+        allReplicaPorts = new ArrayList<>(allReplicaPortsString.length);
         for (String portStr : allReplicaPortsString) {
           int onePort = parsePortOrFail(portStr);
           // Check duplicates
@@ -82,18 +314,75 @@ public class ServerApp {
         ServerLogger.error("Server port must be included in the replica port numbers");
         System.exit(1);
       }
-
-      return new CliFlags(port, allReplicaPorts);
+      return new CliFlags(port, allReplicaPorts, dataDir, storageEngine, metricsPort, logLevel, logFile,
+              executor, shards, null);
     }
 
     private static void printUsage() {
-      String usage = "Usage: ServerApp <port-number> [<all-replicas-port-number>]\n"
+      String usage = "Usage: ServerApp <port-number> [<all-replicas-port-number>] [--data-dir=<path>] [--storage-engine=<engine>]\n"
+              + "    [--metrics-port=<port>] [--log-level=<level>] [--log-file=<path>] [--executor=<executor>]\n"
+              + "    [--shards=<n>] [--partition-map=<path>]\n"
               + "  <port-number>: Port number of this replica. Must be between 0 and 65535\n"
-              + "  <all-replicas-port-number>: Port numbers of the other replicas. Specify as comma-separated integers\n"
-              + "      Optional flag. If unspecified, will use default value " + DEFAULT_ALL_REPLICA_PORTS;
+              + "  <all-replicas-port-number>: Port numbers of all the replicas, this one included. Specify as comma-separated\n"
+              + "      integers. At least " + MIN_REPLICAS + " replicas. An odd number tolerates the most failures for its size.\n"
+              + "      Optional flag. If unspecified, will use default value " + DEFAULT_ALL_REPLICA_PORTS + "\n"
+              + "  --data-dir=<path>: Optional flag. Directory of the write-ahead log and the snapshots. Each replica uses its own\n"
+              + "      sub-directory. If unspecified, will use default value " + DEFAULT_DATA_DIR + "\n"
+              + "  --storage-engine=<engine>: Optional flag. Where the replica keeps its data, one of " + STORAGE_ENGINES + ".\n"
+              + "      off-heap keeps the keys and values outside of the Java heap, to avoid long GC pauses with large data sets.\n"
+              + "      It doesn't serve scans. off-heap-sorted does, at the cost of a copy of every key on the heap.\n"
+              + "      lsm keeps them on disk in a log-structured merge tree, for data sets larger than memory. A data directory\n"
+              + "      must keep using the engine it was created with.\n"
+              + "      If unspecified, will use default value " + DEFAULT_STORAGE_ENGINE + "\n"
+              + "  --metrics-port=<port>: Optional flag. Serve the metrics of this replica over HTTP at /metrics on this port,\n"
+              + "      in the Prometheus text format. If unspecified, metrics are only available through the Stats RPC\n"
+              + "  --log-level=<level>: Optional flag. One of debug, info, error, off. debug also logs every request and every\n"
+              + "      Paxos message. If unspecified, will use default value " + DEFAULT_LOG_LEVEL.name().toLowerCase() + "\n"
+              + "  --log-file=<path>: Optional flag. Append the logs to this file. If unspecified, logs to the console\n"
+              + "  --executor=<executor>: Optional flag. Where the requests are handled, one of " + EXECUTORS + ". virtual runs\n"
+              + "      every request on its own virtual thread, and requires Java 21 or later.\n"
+              + "      If unspecified, will use default value " + DEFAULT_EXECUTOR + "\n"
+              + "  --shards=<n>: Optional flag. Split the keys by hash into n shards, each replicated by its own Paxos group,\n"
+              + "      so that the writes of different shards run in parallel. Must be the same on every replica, and can't\n"
+              + "      change for a data directory. If unspecified, will use default value " + DEFAULT_SHARDS + "\n"
+              + "  --partition-map=<path>: Optional flag. Split the keys by consistent hashing across the replica groups of this\n"
+              + "      file, each a Paxos cluster of its own, instead of replicating every key on every replica. The group of\n"
+              + "      this replica is the one that lists its port, and its replicas must run on the same host. Replaces\n"
+              + "      <all-replicas-port-number>. The file is reloaded when it changes, and the keys a group no longer owns\n"
+              + "      are moved to their new group. If unspecified, every replica holds every key";
       System.out.println(usage);
     }
 
+    // Parses a number of shards from a string and exits with an error if it is invalid.
+    private static int parseShardsOrFail(String shardsStr) {
+      int parsed = 0;
+      try {
+        parsed = Integer.parseInt(shardsStr);
+      } catch (NumberFormatException e) {
+        printUsage();
+        ServerLogger.error("Unable to parse the number of shards \"%s\" as integer.", shardsStr);
+        System.exit(1);
+      }
+      if (parsed < 1 || parsed > MAX_SHARDS) {
+        printUsage();
+        ServerLogger.error("Invalid number of shards. Must be between 1 and %d. Got: %d", MAX_SHARDS, parsed);
+        System.exit(1);
+      }
+      return parsed;
+    }
+
+    // Parses a log level from a string and exits with an error if it is unknown.
+    private static ServerLogger.Level parseLogLevelOrFail(String levelStr) {
+      try {
+        return ServerLogger.Level.valueOf(levelStr.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        printUsage();
+        ServerLogger.error("Unknown log level: " + levelStr);
+        System.exit(1);
+        return null;
+      }
+    }
+
     //  Parses a port number from a string and
     //  exits with an error if parsing fails or the port number is invalid.
     private static int parsePortOrFail(String portStr) {
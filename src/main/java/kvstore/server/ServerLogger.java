@@ -1,29 +1,230 @@
 package kvstore.server;
 
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.TextFormat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-// ServerLogger class for logging server messages
+/**
+ * ServerLogger class for logging server messages.
+ *
+ * Logging is asynchronous: a call checks the level, then puts the text and the arguments into a lock-free
+ * LogRingBuffer, and a background thread formats the lines and writes them to the console or to the log file in
+ * batches. Calls of a disabled level return right away, and the arguments are only formatted by the background thread,
+ * so they must not be modified after the call. Protobuf messages are formatted on one line.
+ *
+ * If the writer falls behind and the buffer fills up, records are dropped rather than blocking the caller, and the
+ * writer logs how many were dropped. The remaining records are written when the JVM exits, including on System.exit().
+ */
 public class ServerLogger {
+  public enum Level { DEBUG, INFO, ERROR, OFF }
+
+  private static final int BUFFER_CAPACITY = 1 << 16;
+  // How long the writer sleeps when there is nothing to write, unless a new record wakes it up
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long SHUTDOWN_TIMEOUT_IN_MS = 5000;
+  private static final ZoneId ZONE = ZoneId.systemDefault();
+
   // Port number to distinguish logs from different server replicas.
-  private static int serverPort = -1;
+  private static volatile int serverPort = -1;
+  // Records of the enabled levels are logged. Benchmarks turn logging off, so that they measure the server rather than
+  // the console.
+  private static volatile Level level = Level.INFO;
+
+  // One log call, formatted by the writer thread
+  private static final class LogRecord {
+    private final long timeInMs;
+    private final Level level;
+    private final String text;
+    private final Object[] args;
+
+    private LogRecord(long timeInMs, Level level, String text, Object[] args) {
+      this.timeInMs = timeInMs;
+      this.level = level;
+      this.text = text;
+      this.args = args;
+    }
+  }
+
+  private static final LogRingBuffer<LogRecord> BUFFER = new LogRingBuffer<>(BUFFER_CAPACITY);
+  private static final AtomicLong DROPPED_RECORDS = new AtomicLong();
+  // Guards the output, which the writer thread shares with setLogFile() and with the logging after shutdown
+  private static final Object OUTPUT_LOCK = new Object();
+  private static Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+  // Reused by the writer thread to format the lines
+  private static final StringBuilder LINE = new StringBuilder();
+  private static final Thread WRITER = new Thread(ServerLogger::writeLoop, "server-logger");
+  // Set while the writer is about to sleep, so that the next log call wakes it up
+  private static volatile boolean writerSleeping = false;
+  // Set once the JVM shuts down. Later calls write their line synchronously.
+  private static volatile boolean closed = false;
+
+  static {
+    WRITER.setDaemon(true);
+    WRITER.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(ServerLogger::close, "server-logger-shutdown"));
+  }
 
   public static void setPort(int port) {
     serverPort = port;
   }
 
-  // Method to log error messages without protocol information
-  public static void error(String text, Object... additional) {
-    LocalDateTime time = LocalDateTime.now();
-    String identifier = serverPort == -1 ? "[ERROR]" : String.format("[%d][ERROR]", serverPort);
-    String formatted = String.format(text, additional);
-    System.out.println(String.format("%s %s %s", time, identifier, formatted));
+  public static void setLevel(Level level) {
+    ServerLogger.level = level;
+  }
+
+  public static void setEnabled(boolean enabled) {
+    setLevel(enabled ? Level.INFO : Level.OFF);
+  }
+
+  // Write the logs to a file instead of the console. The file is appended to.
+  public static void setLogFile(Path path) throws IOException {
+    Writer fileOutput = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    synchronized (OUTPUT_LOCK) {
+      output.flush();
+      output = fileOutput;
+    }
+  }
+
+  public static boolean isEnabled(Level level) {
+    return level.compareTo(ServerLogger.level) >= 0;
+  }
+
+  // Method to log detailed messages, like every request and every Paxos message. Disabled by default.
+  public static void debug(String text, Object... additional) {
+    log(Level.DEBUG, text, additional);
   }
 
   // Method to log informational messages without protocol information
   public static void info(String text, Object... additional) {
-    LocalDateTime time = LocalDateTime.now();
-    String identifier = serverPort == -1 ? "[INFO]" : String.format("[%d][INFO]", serverPort);
-    String formatted = String.format(text, additional);
-    System.out.println(String.format("%s %s %s", time, identifier, formatted));
+    log(Level.INFO, text, additional);
+  }
+
+  // Method to log error messages without protocol information
+  public static void error(String text, Object... additional) {
+    log(Level.ERROR, text, additional);
+  }
+
+  private static void log(Level level, String text, Object[] additional) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    LogRecord record = new LogRecord(System.currentTimeMillis(), level, text, additional);
+    if (closed) {
+      synchronized (OUTPUT_LOCK) {
+        write(record);
+        flush();
+      }
+      return;
+    }
+    if (!BUFFER.offer(record)) {
+      DROPPED_RECORDS.incrementAndGet();
+      return;
+    }
+    if (writerSleeping) {
+      LockSupport.unpark(WRITER);
+    }
+  }
+
+  // Loop of the writer thread: write every buffered record, flush once the buffer is empty, then sleep until woken up
+  private static void writeLoop() {
+    while (true) {
+      synchronized (OUTPUT_LOCK) {
+        LogRecord record;
+        while ((record = BUFFER.poll()) != null) {
+          write(record);
+        }
+        long dropped = DROPPED_RECORDS.getAndSet(0);
+        if (dropped > 0) {
+          write(new LogRecord(System.currentTimeMillis(), Level.ERROR,
+                  "Dropped %d log records. The log writer fell behind.", new Object[] {dropped}));
+        }
+        flush();
+      }
+      if (closed && BUFFER.isEmpty()) {
+        return;
+      }
+      writerSleeping = true;
+      if (BUFFER.isEmpty() && !closed) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+      writerSleeping = false;
+    }
+  }
+
+  // Let the writer thread write the remaining records, then switch to synchronous logging
+  private static void close() {
+    closed = true;
+    LockSupport.unpark(WRITER);
+    try {
+      WRITER.join(SHUTDOWN_TIMEOUT_IN_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (WRITER.isAlive()) {
+      return;
+    }
+    // Records of the calls that raced with closing
+    synchronized (OUTPUT_LOCK) {
+      LogRecord record;
+      while ((record = BUFFER.poll()) != null) {
+        write(record);
+      }
+      flush();
+    }
+  }
+
+  // Format a record and write its line. Called with OUTPUT_LOCK held.
+  private static void write(LogRecord record) {
+    LINE.setLength(0);
+    LINE.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(record.timeInMs), ZONE)).append(' ');
+    if (serverPort != -1) {
+      LINE.append('[').append(serverPort).append(']');
+    }
+    LINE.append('[').append(record.level).append("] ").append(format(record.text, record.args)).append('\n');
+    try {
+      output.append(LINE);
+    } catch (IOException e) {
+      System.err.println("Failed to write log: " + e.getMessage());
+    }
+  }
+
+  private static String format(String text, Object[] args) {
+    if (args.length == 0) {
+      return text;
+    }
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i] instanceof MessageOrBuilder) {
+          args[i] = TextFormat.shortDebugString((MessageOrBuilder) args[i]);
+        }
+      }
+      return String.format(text, args);
+    } catch (RuntimeException e) {
+      // A bad format string must not stop the writer thread
+      return text + " (failed to format the log arguments: " + e + ")";
+    }
+  }
+
+  private static void flush() {
+    try {
+      output.flush();
+    } catch (IOException e) {
+      System.err.println("Failed to flush log: " + e.getMessage());
+    }
   }
 }
@@ -0,0 +1,501 @@
+package kvstore.server;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import kvstore.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * The gRPC service of a replica split into shards. The keyspace is split by key hash, and every shard is served by its
+ * own KeyValueStoreImpl, with its own Proposer, WriteBatcher, replicated log, write-ahead log and DataStorage: each
+ * shard is an independent Paxos group, with its own leader, so the writes of different shards are proposed, logged and
+ * applied in parallel. The shards of a replica share its process, its gRPC server and its channels to the other
+ * replicas.
+ *
+ * Requests of one key go to the shard of the key. Multi-key requests are split by shard, and their results are put back
+ * in the order of the request. Scans merge the ranges of all the shards in key order. Paxos, lease, read index and
+ * catch-up messages carry the shard of their consensus group. Every replica must run with the same number of shards.
+ *
+ * With a partition map, the replica only serves the keys of its replica group: requests with a key of another group
+ * fail, so that the client refreshes its map. The keys the Rebalancer moves to another group are fenced off in the log
+ * of their shard first, and the keys moving in aren't served until their previous owners have handed them over, see
+ * HandOff.
+ *
+ * The shards share one CacheInvalidator, so that a client-side read cache gets the invalidations of all the shards on a
+ * single stream, and one WatchManager, so that a watch gets the changes of all the shards on a single stream.
+ */
+public class ShardRouter extends KeyValueStoreGrpc.KeyValueStoreImplBase {
+  private final List<KeyValueStoreImpl> shards;
+  private final BulkLoader bulkLoader;
+  // Partition map of the replica, or null if its group holds every key
+  private final PartitionManager partitions;
+  private final CacheInvalidator cacheInvalidator = new CacheInvalidator();
+  private final WatchManager watchManager;
+
+  // Route to the given shards, indexed by shard
+  public ShardRouter(List<KeyValueStoreImpl> shards) {
+    this(shards, null);
+  }
+
+  // Same, only serving the keys of the replica group in the partition map
+  public ShardRouter(List<KeyValueStoreImpl> shards, PartitionManager partitions) {
+    this.shards = shards;
+    this.partitions = partitions;
+    List<Proposer> proposers = new ArrayList<>();
+    List<WriteBatcher> writeBatchers = new ArrayList<>();
+    List<ReplicatedLog> logs = new ArrayList<>();
+    for (KeyValueStoreImpl shard : shards) {
+      proposers.add(shard.getProposer());
+      writeBatchers.add(shard.getWriteBatcher());
+      logs.add(shard.getReplicatedLog());
+      shard.setCacheInvalidator(cacheInvalidator);
+    }
+    this.bulkLoader = new BulkLoader(proposers, writeBatchers, partitions);
+    this.watchManager = new WatchManager(logs);
+    for (KeyValueStoreImpl shard : shards) {
+      shard.setWatchManager(watchManager);
+    }
+  }
+
+  // Shard of a key, among numShards. Keys are lower case, like in the data storage.
+  public static int shardOf(String key, int numShards) {
+    return Math.floorMod(key.hashCode(), numShards);
+  }
+
+  private KeyValueStoreImpl shardOf(String key) {
+    return shards.get(shardOf(key.toLowerCase(), shards.size()));
+  }
+
+  @Override
+  public void get(GetRequest request, StreamObserver<GetResponse> responseObserver) {
+    if (ownsOrFail(List.of(request.getKey()), responseObserver)) {
+      shardOf(request.getKey()).get(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void put(PutRequest request, StreamObserver<PutResponse> responseObserver) {
+    if (request.getForwarded() || ownsOrFail(List.of(request.getKey()), responseObserver)) {
+      shardOf(request.getKey()).put(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void delete(DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
+    if (request.getForwarded() || ownsOrFail(List.of(request.getKey()), responseObserver)) {
+      shardOf(request.getKey()).delete(request, responseObserver);
+    }
+  }
+
+  // Scans merge the ranges of every shard, once each shard caught up with the read index of its leader.
+  @Override
+  public void scan(ScanRequest request, StreamObserver<ScanResponse> responseObserver) {
+    if (shards.size() == 1 && partitions == null) {
+      shards.get(0).scan(request, responseObserver);
+      return;
+    }
+    ServerLogger.debug("Received SCAN request: %s", request);
+    if (request.getLimit() < 0) {
+      ServerLogger.debug("Send SCAN error: INVALID_ARGUMENT. Negative limit %d.\n", request.getLimit());
+      responseObserver.onError(Status.INVALID_ARGUMENT.
+              withDescription("Limit must not be negative.").asRuntimeException());
+      return;
+    }
+    if (!shards.get(0).getDataStorage().supportsScan()) {
+      ServerLogger.debug("Send SCAN error: UNIMPLEMENTED. The storage engine doesn't serve scans.\n");
+      responseObserver.onError(Status.UNIMPLEMENTED.
+              withDescription("The storage engine of this replica doesn't serve scans.").asRuntimeException());
+      return;
+    }
+    String startKey = request.getStartKey().toLowerCase();
+    String endKey = request.getEndKey().isEmpty() ? null : request.getEndKey().toLowerCase();
+
+    List<CloseableIterator<Map.Entry<String, String>>> ranges = new ArrayList<>();
+    try {
+      for (KeyValueStoreImpl shard : shards) {
+        ranges.add(shard.scanRange(startKey, endKey));
+      }
+    } catch (StatusRuntimeException e) {
+      for (CloseableIterator<Map.Entry<String, String>> range : ranges) {
+        range.close();
+      }
+      responseObserver.onError(e);
+      return;
+    }
+    CloseableIterator<Map.Entry<String, String>> pairs = ranges.size() == 1 ? ranges.get(0) : new MergedRanges(ranges);
+    new ScanStream(pairs, request.getLimit(), (ServerCallStreamObserver<ScanResponse>) responseObserver).start();
+  }
+
+  @Override
+  public void multiGet(MultiGetRequest request, StreamObserver<MultiGetResponse> responseObserver) {
+    if (!ownsOrFail(request.getKeysList(), responseObserver)) {
+      return;
+    }
+    if (shards.size() == 1) {
+      shards.get(0).multiGet(request, responseObserver);
+      return;
+    }
+    List<String> keys = request.getKeysList();
+    scatter(keys,
+            indexes -> {
+              MultiGetRequest.Builder shardRequest = MultiGetRequest.newBuilder();
+              indexes.forEach(i -> shardRequest.addKeys(keys.get(i)));
+              return shardRequest.build();
+            },
+            KeyValueStoreImpl::multiGet, MultiGetResponse::getResultsList,
+            results -> MultiGetResponse.newBuilder().addAllResults(results).build(),
+            responseObserver);
+  }
+
+  @Override
+  public void multiPut(MultiPutRequest request, StreamObserver<MultiPutResponse> responseObserver) {
+    List<String> keys = new ArrayList<>();
+    for (KeyValuePair pair : request.getPairsList()) {
+      keys.add(pair.getKey());
+    }
+    if (!request.getForwarded() && !ownsOrFail(keys, responseObserver)) {
+      return;
+    }
+    if (shards.size() == 1) {
+      shards.get(0).multiPut(request, responseObserver);
+      return;
+    }
+    scatter(keys,
+            indexes -> {
+              MultiPutRequest.Builder shardRequest = request.toBuilder().clearPairs();
+              indexes.forEach(i -> shardRequest.addPairs(request.getPairs(i)));
+              return shardRequest.build();
+            },
+            KeyValueStoreImpl::multiPut, MultiPutResponse::getResultsList,
+            results -> MultiPutResponse.newBuilder().addAllResults(results).build(),
+            responseObserver);
+  }
+
+  @Override
+  public void multiDelete(MultiDeleteRequest request, StreamObserver<MultiDeleteResponse> responseObserver) {
+    if (!request.getForwarded() && !ownsOrFail(request.getKeysList(), responseObserver)) {
+      return;
+    }
+    if (shards.size() == 1) {
+      shards.get(0).multiDelete(request, responseObserver);
+      return;
+    }
+    List<String> keys = request.getKeysList();
+    scatter(keys,
+            indexes -> {
+              MultiDeleteRequest.Builder shardRequest =
+                      MultiDeleteRequest.newBuilder().setForwarded(request.getForwarded());
+              indexes.forEach(i -> shardRequest.addKeys(keys.get(i)));
+              return shardRequest.build();
+            },
+            KeyValueStoreImpl::multiDelete, MultiDeleteResponse::getResultsList,
+            results -> MultiDeleteResponse.newBuilder().addAllResults(results).build(),
+            responseObserver);
+  }
+
+  // Bulk loads cut the records into chunks, and replicate the part of every chunk in its shard. Like the other writes,
+  // a record of another replica group fails the stream.
+  @Override
+  public StreamObserver<BulkLoadRequest> bulkLoad(StreamObserver<BulkLoadAck> responseObserver) {
+    ServerLogger.info("Received BULK-LOAD stream");
+    return bulkLoader.serve((ServerCallStreamObserver<BulkLoadAck>) responseObserver);
+  }
+
+  // The metrics are shared by the shards.
+  @Override
+  public void stats(StatsRequest request, StreamObserver<StatsResponse> responseObserver) {
+    shards.get(0).stats(request, responseObserver);
+  }
+
+  // Method to handle partition map requests of the clients. Without a partition map, the map has no group.
+  @Override
+  public void getPartitionMap(PartitionMapRequest request, StreamObserver<PartitionMap> responseObserver) {
+    responseObserver.onNext(partitions == null ? PartitionMap.getDefaultInstance() : partitions.ring().getMap());
+    responseObserver.onCompleted();
+  }
+
+  // End the streams that stay open until the client cancels them, so that a graceful shutdown doesn't wait for them.
+  public void closeStreams() {
+    cacheInvalidator.close();
+    watchManager.close();
+  }
+
+  // Method to open the invalidation stream of a client-side read cache. The stream stays open until the client cancels it.
+  @Override
+  public void subscribeInvalidations(InvalidationRequest request, StreamObserver<Invalidations> responseObserver) {
+    cacheInvalidator.subscribe((ServerCallStreamObserver<Invalidations>) responseObserver);
+  }
+
+  // Method to open a watch stream. A watch of a key needs the key to belong to the replica group, like a GET. A watch
+  // of a prefix gets the changes of the keys of the group only.
+  @Override
+  public void watch(WatchRequest request, StreamObserver<WatchResponse> responseObserver) {
+    ServerLogger.debug("Received WATCH request: %s", request);
+    if (request.getPrefix() || ownsOrFail(List.of(request.getKey()), responseObserver)) {
+      watchManager.watch(request, (ServerCallStreamObserver<WatchResponse>) responseObserver);
+    }
+  }
+
+  // Whether the replica group of this replica owns all the keys. Otherwise fails the call with the error that makes
+  // the client refresh its partition map. Writes forwarded by another replica of the group aren't checked again: it
+  // checked them.
+  private boolean ownsOrFail(List<String> keys, StreamObserver<?> responseObserver) {
+    if (partitions == null) {
+      return true;
+    }
+    for (String key : keys) {
+      if (!partitions.owns(key)) {
+        StatusRuntimeException error = partitions.wrongGroup(key);
+        ServerLogger.debug("Send error: %s\n", error.getMessage());
+        responseObserver.onError(error);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Method to handle the keys another replica group hands over to this one, see Rebalancer. The pairs go to their
+   * shards as PUT_IF_ABSENT, and once the group is done, every shard records it with HANDED_OVER. Fails with
+   * FAILED_PRECONDITION if this replica doesn't have the partition map of the request yet, or its group doesn't own a
+   * key in that map, so that the other group tries again later.
+   */
+  @Override
+  public void handOff(HandOffRequest request, StreamObserver<HandOffResponse> responseObserver) {
+    ServerLogger.info("Received %d keys from replica group %s for partition map version %d%s", request.getPairsCount(),
+            request.getGroup(), request.getMapVersion(), request.getDone() ? ", the last ones" : "");
+    if (partitions != null && partitions.ring().getVersion() < request.getMapVersion()) {
+      partitions.reload();
+    }
+    if (partitions == null || partitions.ring().getVersion() < request.getMapVersion()) {
+      responseObserver.onError(Status.FAILED_PRECONDITION
+              .withDescription("Partition map version " + request.getMapVersion() + " isn't loaded yet.")
+              .asRuntimeException());
+      return;
+    }
+    List<String> keys = new ArrayList<>();
+    for (KeyValuePair pair : request.getPairsList()) {
+      keys.add(pair.getKey());
+    }
+    if (!ownsOrFail(keys, responseObserver)) {
+      return;
+    }
+    List<List<PaxosDatum>> dataByShard = new ArrayList<>();
+    for (int shard = 0; shard < shards.size(); shard++) {
+      dataByShard.add(new ArrayList<>());
+    }
+    for (KeyValuePair pair : request.getPairsList()) {
+      String key = pair.getKey().toLowerCase();
+      dataByShard.get(shardOf(key, shards.size())).add(
+              PaxosDatum.newBuilder().setMethod("PUT_IF_ABSENT").setKey(key).setValue(pair.getValue()).build());
+    }
+    List<CompletableFuture<Void>> written = new ArrayList<>();
+    for (int shard = 0; shard < shards.size(); shard++) {
+      List<PaxosDatum> data = dataByShard.get(shard);
+      if (request.getDone()) {
+        // After the pairs, in the same proposal
+        data.add(PaxosDatum.newBuilder().setMethod("HANDED_OVER")
+                .setKey(request.getGroup()).setValue(Long.toString(request.getMapVersion())).build());
+      }
+      written.add(shards.get(shard).getWriteBatcher().submitAll(data));
+    }
+    CompletableFuture.allOf(written.toArray(new CompletableFuture[0])).whenComplete((ignored, e) -> {
+      if (e != null) {
+        ServerLogger.error("Failed to take the keys of replica group %s: %s", request.getGroup(), e.getMessage());
+        responseObserver.onError(KeyValueStoreImpl.writeError(e));
+        return;
+      }
+      responseObserver.onNext(HandOffResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public void prepare(PrepareRequest request, StreamObserver<PrepareResponse> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.prepare(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void accept(AcceptRequest request, StreamObserver<AcceptResponse> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.accept(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void decide(DecideRequest request, StreamObserver<DecideResponse> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.decide(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void catchUp(CatchUpRequest request, StreamObserver<CatchUpChunk> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.catchUp(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void lease(LeaseRequest request, StreamObserver<LeaseResponse> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.lease(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void readIndex(ReadIndexRequest request, StreamObserver<ReadIndexResponse> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.readIndex(request, responseObserver);
+    }
+  }
+
+  @Override
+  public void proposeBatch(ProposeBatchRequest request, StreamObserver<ProposeBatchResponse> responseObserver) {
+    KeyValueStoreImpl shard = shardOrFail(request.getShard(), responseObserver);
+    if (shard != null) {
+      shard.proposeBatch(request, responseObserver);
+    }
+  }
+
+  // The shard a message of another replica is for, or null after failing the call if this replica has no such shard.
+  private KeyValueStoreImpl shardOrFail(int shard, StreamObserver<?> responseObserver) {
+    if (shard < 0 || shard >= shards.size()) {
+      ServerLogger.error("Received a message for shard %d, but this replica has %d shards", shard, shards.size());
+      responseObserver.onError(Status.FAILED_PRECONDITION
+              .withDescription("Replica has " + shards.size() + " shards. Got shard " + shard
+                      + ". Every replica must run with the same number of shards.")
+              .asRuntimeException());
+      return null;
+    }
+    return shards.get(shard);
+  }
+
+  // A handler of a KeyValueStoreImpl, e.g. KeyValueStoreImpl::multiGet
+  private interface ShardCall<Req, Resp> {
+    void call(KeyValueStoreImpl shard, Req request, StreamObserver<Resp> responseObserver);
+  }
+
+  /**
+   * Run a multi-key request on every shard that owns some of its keys, in parallel, and respond with the results of all
+   * the keys in the order of the request. shardRequest builds the request of a shard from the indexes of its keys in
+   * the request. Fails the call if any shard fails its part.
+   */
+  private <Req, Resp> void scatter(List<String> keys, Function<List<Integer>, Req> shardRequest,
+                                   ShardCall<Req, Resp> call, Function<Resp, List<KeyResult>> resultsOf,
+                                   Function<List<KeyResult>, Resp> responseOf, StreamObserver<Resp> responseObserver) {
+    TreeMap<Integer, List<Integer>> indexesByShard = new TreeMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      indexesByShard.computeIfAbsent(shardOf(keys.get(i).toLowerCase(), shards.size()), shard -> new ArrayList<>())
+              .add(i);
+    }
+    if (indexesByShard.isEmpty()) {
+      responseObserver.onNext(responseOf.apply(List.of()));
+      responseObserver.onCompleted();
+      return;
+    }
+    KeyResult[] results = new KeyResult[keys.size()];
+    AtomicInteger remainingShards = new AtomicInteger(indexesByShard.size());
+    AtomicBoolean failed = new AtomicBoolean(false);
+    for (Map.Entry<Integer, List<Integer>> entry : indexesByShard.entrySet()) {
+      List<Integer> indexes = entry.getValue();
+      call.call(shards.get(entry.getKey()), shardRequest.apply(indexes), new StreamObserver<Resp>() {
+        @Override
+        public void onNext(Resp response) {
+          List<KeyResult> shardResults = resultsOf.apply(response);
+          for (int j = 0; j < indexes.size(); j++) {
+            results[indexes.get(j)] = shardResults.get(j);
+          }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          if (failed.compareAndSet(false, true)) {
+            responseObserver.onError(t);
+          }
+        }
+
+        @Override
+        public void onCompleted() {
+          // The results of the other shards are visible once the count reached zero.
+          if (remainingShards.decrementAndGet() == 0 && !failed.get()) {
+            responseObserver.onNext(responseOf.apply(Arrays.asList(results)));
+            responseObserver.onCompleted();
+          }
+        }
+      });
+    }
+  }
+
+  // Merges the sorted ranges of the shards into one sorted range. The shards hold disjoint keys.
+  private static class MergedRanges implements CloseableIterator<Map.Entry<String, String>> {
+    private final List<CloseableIterator<Map.Entry<String, String>>> ranges;
+    // The head of each non-exhausted range, smallest key first
+    private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+    private record Head(Map.Entry<String, String> entry, int rangeIndex) implements Comparable<Head> {
+      @Override
+      public int compareTo(Head other) {
+        return entry.getKey().compareTo(other.entry.getKey());
+      }
+    }
+
+    private MergedRanges(List<CloseableIterator<Map.Entry<String, String>>> ranges) {
+      this.ranges = ranges;
+      for (int i = 0; i < ranges.size(); i++) {
+        advance(i);
+      }
+    }
+
+    private void advance(int rangeIndex) {
+      CloseableIterator<Map.Entry<String, String>> range = ranges.get(rangeIndex);
+      if (range.hasNext()) {
+        heads.add(new Head(range.next(), rangeIndex));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      Head head = heads.poll();
+      if (head == null) {
+        throw new NoSuchElementException();
+      }
+      advance(head.rangeIndex);
+      return head.entry;
+    }
+
+    @Override
+    public void close() {
+      heads.clear();
+      for (CloseableIterator<Map.Entry<String, String>> range : ranges) {
+        range.close();
+      }
+    }
+  }
+}
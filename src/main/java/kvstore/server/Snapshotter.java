@@ -0,0 +1,256 @@
+package kvstore.server;
+
+import kvstore.HandOffState;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Takes snapshots of the DataStorage into a compact binary file, and loads them back on startup through a
+ * memory-mapped buffer. Once a snapshot is durable, the write-ahead log segments and the log entries it covers are
+ * dropped, so that restart time depends on the data size rather than on the write history.
+ *
+ * Snapshots are fuzzy: the data storage is iterated in the background while writes keep being applied. The snapshot
+ * records the last slot applied before the iteration started, and the log is replayed from the next slot on. The
+ * writes that made it into the snapshot anyway are applied again, which yields the same state since PUT and DELETE are
+ * idempotent.
+ *
+ * File format: [magic][version][snapshot slot][number of pairs] followed by [key length][key][value length][value]
+ * for every pair, all strings in UTF-8.
+ */
+public class Snapshotter {
+  private static final int MAGIC = 0x4b565353; // "KVSS"
+  private static final int VERSION = 1;
+  private static final String SNAPSHOT_FILE = "snapshot.bin";
+  private static final String TEMP_SNAPSHOT_FILE = "snapshot.bin.tmp";
+  private static final long SNAPSHOT_CHECK_INTERVAL_IN_MS = 10_000;
+  // Take a snapshot once this many slots have been applied since the last one.
+  private static final long SNAPSHOT_MIN_APPLIED_SLOTS = 10_000;
+  // Map the snapshot file in windows, since one mapping is limited to 2GB.
+  private static final long MAP_WINDOW_SIZE = 1 << 30;
+
+  private final Path dir;
+  private final DataStorage dataStorage;
+  private final ReplicatedLog replicatedLog;
+  private final WriteAheadLog writeAheadLog;
+  private long lastSnapshotSlot = -1;
+
+  public Snapshotter(Path dir, DataStorage dataStorage, ReplicatedLog replicatedLog, WriteAheadLog writeAheadLog) {
+    this.dir = dir;
+    this.dataStorage = dataStorage;
+    this.replicatedLog = replicatedLog;
+    this.writeAheadLog = writeAheadLog;
+  }
+
+  /**
+   * Load the latest snapshot, if any, into the data storage. To be invoked before replaying the write-ahead log. An
+   * engine that checkpoints its own data on disk already holds the pairs, so only its checkpoint slot is restored.
+   */
+  public void load() {
+    long checkpointSlot = dataStorage.checkpointSlot();
+    if (checkpointSlot >= 0) {
+      replicatedLog.restoreSnapshot(checkpointSlot);
+      lastSnapshotSlot = checkpointSlot;
+      ServerLogger.info("Restored storage engine checkpoint up to slot %d", checkpointSlot);
+      return;
+    }
+    Path path = dir.resolve(SNAPSHOT_FILE);
+    if (!Files.exists(path)) {
+      return;
+    }
+    long startTime = System.currentTimeMillis();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedReader reader = new MappedReader(channel);
+      if (reader.readInt() != MAGIC || reader.readInt() != VERSION) {
+        ServerLogger.error("Snapshot %s has an unknown format", path);
+        System.exit(1);
+      }
+      long snapshotSlot = reader.readLong();
+      long numPairs = reader.readLong();
+      for (long i = 0; i < numPairs; i++) {
+        String key = reader.readString();
+        String value = reader.readString();
+        dataStorage.put(key, value);
+      }
+      replicatedLog.restoreSnapshot(snapshotSlot);
+      lastSnapshotSlot = snapshotSlot;
+      ServerLogger.info("Loaded snapshot of %d pairs up to slot %d in %d ms",
+              numPairs, snapshotSlot, System.currentTimeMillis() - startTime);
+    } catch (IOException e) {
+      ServerLogger.error("Failed to load snapshot %s: %s", path, e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  // Reads the snapshot file through a memory-mapped window, moving the window forward as it is consumed.
+  private static class MappedReader {
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart = 0;
+    private MappedByteBuffer buffer;
+
+    private MappedReader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_WINDOW_SIZE));
+    }
+
+    // Make sure the next numBytes bytes are within the mapped window.
+    private void ensureMapped(int numBytes) throws IOException {
+      if (buffer.remaining() >= numBytes) {
+        return;
+      }
+      windowStart += buffer.position();
+      if (windowStart + numBytes > size) {
+        throw new IOException("Unexpected end of snapshot file");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, MAP_WINDOW_SIZE));
+    }
+
+    private int readInt() throws IOException {
+      ensureMapped(Integer.BYTES);
+      return buffer.getInt();
+    }
+
+    private long readLong() throws IOException {
+      ensureMapped(Long.BYTES);
+      return buffer.getLong();
+    }
+
+    private String readString() throws IOException {
+      int length = readInt();
+      ensureMapped(length);
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  // Start the background thread that takes a snapshot whenever enough slots were applied since the last one.
+  public void start() {
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(SNAPSHOT_CHECK_INTERVAL_IN_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (replicatedLog.firstUndecidedSlot() - 1 - lastSnapshotSlot >= SNAPSHOT_MIN_APPLIED_SLOTS) {
+          takeSnapshot();
+        }
+      }
+    }, "snapshotter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Start replacing the data storage by a snapshot received from another replica during catch-up. The caller then
+   * puts the pairs into the data storage as they arrive. Runs under the snapshot lock, so that no local snapshot
+   * iterates the data storage while it is cleared. No local snapshot is taken until the install is finished.
+   */
+  public synchronized boolean beginInstallSnapshot(long slot, HandOffState handOffState) {
+    return replicatedLog.beginInstallSnapshot(slot, handOffState);
+  }
+
+  // Complete the snapshot of another replica once all its pairs are in, and make it durable by taking a local snapshot.
+  public synchronized void finishInstallSnapshot(long slot, long numPairs) {
+    replicatedLog.finishInstallSnapshot(slot);
+    ServerLogger.info("Installed snapshot of %d pairs up to slot %d from another replica", numPairs, slot);
+    takeSnapshot();
+  }
+
+  /**
+   * Write a snapshot of the data storage, then truncate the write-ahead log and the replicated log it covers. Doesn't
+   * block reads and writes, apart from the short log rotation. If the storage engine keeps its data on disk, a
+   * checkpoint of the engine replaces the snapshot file.
+   */
+  public synchronized void takeSnapshot() {
+    if (replicatedLog.isInstallingSnapshot()) {
+      ServerLogger.info("Skip snapshot while the data storage is replaced by a snapshot of another replica");
+      return;
+    }
+    long startTime = System.currentTimeMillis();
+    long snapshotSlot = replicatedLog.beginSnapshot();
+    if (dataStorage.checkpoint(snapshotSlot)) {
+      try {
+        // A snapshot file left from before would be stale.
+        Files.deleteIfExists(dir.resolve(SNAPSHOT_FILE));
+      } catch (IOException e) {
+        ServerLogger.error("Failed to delete stale snapshot: %s", e.getMessage());
+      }
+      truncateLogs(snapshotSlot);
+      ServerLogger.info("Took storage engine checkpoint up to slot %d in %d ms",
+              snapshotSlot, System.currentTimeMillis() - startTime);
+      return;
+    }
+
+    Path tempPath = dir.resolve(TEMP_SNAPSHOT_FILE);
+    long numPairs;
+    try (FileOutputStream fileOutput = new FileOutputStream(tempPath.toFile());
+         DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, 1 << 16))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(snapshotSlot);
+      // Placeholder for the number of pairs, which is only known at the end of the iteration.
+      output.writeLong(0);
+      long[] count = new long[1];
+      dataStorage.forEach((key, value) -> {
+        try {
+          writeString(output, key);
+          writeString(output, value);
+          count[0]++;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      numPairs = count[0];
+      output.flush();
+      fileOutput.getChannel().write(ByteBuffer.allocate(Long.BYTES).putLong(0, numPairs), 16);
+      fileOutput.getFD().sync();
+    } catch (IOException | UncheckedIOException e) {
+      ServerLogger.error("Failed to write snapshot %s: %s", tempPath, e.getMessage());
+      return;
+    }
+
+    try {
+      Files.move(tempPath, dir.resolve(SNAPSHOT_FILE),
+              StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      // Make the rename durable before the log segments it replaces are deleted.
+      try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+        channel.force(true);
+      }
+    } catch (IOException e) {
+      ServerLogger.error("Failed to install snapshot %s: %s", tempPath, e.getMessage());
+      return;
+    }
+
+    truncateLogs(snapshotSlot);
+    ServerLogger.info("Took snapshot of %d pairs up to slot %d in %d ms",
+            numPairs, snapshotSlot, System.currentTimeMillis() - startTime);
+  }
+
+  private void truncateLogs(long snapshotSlot) {
+    // The snapshot covers everything before the current segment, which starts right after the snapshot slot.
+    writeAheadLog.deleteSegmentsBefore(writeAheadLog.currentSegmentId());
+    replicatedLog.compact(snapshotSlot);
+    lastSnapshotSlot = snapshotSlot;
+  }
+
+  private static void writeString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+}
@@ -0,0 +1,68 @@
+package kvstore.server;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * Ordered index of the keys of a hash-based storage engine, so that it can serve range scans. Kept in a concurrent skip
+ * list, which scans never lock and which writes update without blocking the scans. The values stay in the engine, and
+ * are looked up while the scan goes.
+ */
+class SortedKeyIndex {
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+  void add(String key) {
+    keys.add(key);
+  }
+
+  void remove(String key) {
+    keys.remove(key);
+  }
+
+  void clear() {
+    keys.clear();
+  }
+
+  /**
+   * Iterate the pairs with startKey <= key < endKey in key order, looking each value up as the iteration reaches it. A
+   * null endKey means no upper bound. Keys deleted during the scan are skipped.
+   */
+  CloseableIterator<Map.Entry<String, String>> scan(String startKey, String endKey, Function<String, String> lookUp) {
+    NavigableSet<String> range = endKey == null ? keys.tailSet(startKey, true) : keys.subSet(startKey, true, endKey, false);
+    Iterator<String> rangeKeys = range.iterator();
+    return new CloseableIterator<Map.Entry<String, String>>() {
+      private Map.Entry<String, String> next = computeNext();
+
+      private Map.Entry<String, String> computeNext() {
+        while (rangeKeys.hasNext()) {
+          String key = rangeKeys.next();
+          String value = lookUp.apply(key);
+          if (value != null) {
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Map.Entry<String, String> next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> current = next;
+        next = computeNext();
+        return current;
+      }
+    };
+  }
+}
@@ -0,0 +1,57 @@
+package kvstore.server;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Where a replica keeps its key-value pairs. Implementations must be safe for concurrent reads while the replicated log
+ * applies the decided writes, which it does from one thread at a time.
+ */
+public interface StorageEngine {
+  void put(String key, String value);
+
+  // The value of the key, or null if the key doesn't exist
+  String get(String key);
+
+  // Remove the key. Returns its value, or null if the key didn't exist.
+  String delete(String key);
+
+  boolean containsKey(String key);
+
+  /**
+   * Visit every pair, without blocking concurrent reads and writes. Mutations that happen during the iteration may or
+   * may not be visited.
+   */
+  void forEach(BiConsumer<String, String> action);
+
+  // Iterate the pairs step by step, with the same guarantees as forEach()
+  CloseableIterator<Map.Entry<String, String>> iterator();
+
+  /**
+   * Iterate the pairs with startKey <= key < endKey in key order, with the same guarantees as forEach(). A null endKey
+   * means no upper bound. startKey must not be greater than endKey. Throws UnsupportedOperationException if the engine
+   * doesn't keep its keys in order, see supportsScan().
+   */
+  CloseableIterator<Map.Entry<String, String>> scan(String startKey, String endKey);
+
+  // Whether the engine serves scan()
+  default boolean supportsScan() {
+    return true;
+  }
+
+  void clear();
+
+  /**
+   * Make every write applied so far durable, and record that it covers every slot up to and including the given one.
+   * Returns false if the engine only keeps its pairs in memory, in which case the Snapshotter writes them to a snapshot
+   * file instead.
+   */
+  default boolean checkpoint(long slot) {
+    return false;
+  }
+
+  // The slot recorded by the last checkpoint, or -1 if there is none
+  default long checkpointSlot() {
+    return -1;
+  }
+}
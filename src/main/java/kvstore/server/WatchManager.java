@@ -0,0 +1,406 @@
+package kvstore.server;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import kvstore.PaxosBatch;
+import kvstore.PaxosDatum;
+import kvstore.WatchEvent;
+import kvstore.WatchRequest;
+import kvstore.WatchResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the watch streams: every change committed to a key, or to the keys of a prefix, in the order the replicated
+ * logs apply them. The revision of a change is the slot that applied it in the log of its shard. The slots are the same
+ * on every replica of the group, so a client can resume a watch from the revisions it reached on any of them, as long
+ * as the log still has the slots, i.e. no snapshot compacted them.
+ *
+ * The apply path only hands every applied slot over to a queue, while some watch is open. A dispatcher thread finds the
+ * watches of the written keys, through an index of the watched keys and prefixes, and queues the slot for each of them.
+ * The events are sent from a background thread, and only while the stream has room. A watch that falls too far behind
+ * is dropped: its stream fails, and the client resumes it from its revisions.
+ *
+ * A watch that starts from given revisions first reads the slots from them on from the logs, then switches to the live
+ * slots. Both happen under the lock of the log of the shard, so that no slot is applied in between.
+ */
+class WatchManager {
+  // Slots queued for a watch that doesn't read its stream, before it is dropped. More than a resumed watch reads from
+  // the log, which keeps about the slots applied since the last snapshot.
+  private static final int MAX_QUEUED_SLOTS = 1 << 16;
+  // Applied slots waiting for the dispatcher, before every watch is dropped
+  private static final int MAX_PENDING_SLOTS = 1 << 16;
+  private static final int MAX_MESSAGE_EVENTS = 1024;
+  // Interval of the progress messages of the idle watches
+  private static final long PROGRESS_INTERVAL_IN_MS = 5000;
+  private static final LongAdder EVENTS = Metrics.counter("kvstore_watch_events_total");
+  private static final LongAdder DROPPED_WATCHES = Metrics.counter("kvstore_watch_dropped_total");
+
+  // Replicated log of every shard
+  private final List<ReplicatedLog> logs;
+  private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+  // Watches of every watched key and prefix. The sets are only changed inside the compute functions of the maps, and
+  // read by the dispatcher at any time.
+  private final ConcurrentHashMap<String, Set<Watcher>> keyWatchers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<Watcher>> prefixWatchers = new ConcurrentHashMap<>();
+  // Longest watched prefix so far, to bound the prefixes of a key to look up
+  private final AtomicInteger maxPrefixLength = new AtomicInteger();
+  // Applied slots, for the dispatcher
+  private final BlockingQueue<AppliedSlot> pendingSlots = new LinkedBlockingQueue<>(MAX_PENDING_SLOTS);
+  // Next slot of every shard to dispatch. The slots before it are queued for their watches.
+  private final AtomicLongArray dispatchedSlots;
+  private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "watch-sender");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  WatchManager(List<ReplicatedLog> logs) {
+    this.logs = logs;
+    this.dispatchedSlots = new AtomicLongArray(logs.size());
+    Metrics.gauge(watchers::size, "kvstore_watches");
+    Metrics.gauge(pendingSlots::size, "kvstore_watch_pending_slots");
+    Thread dispatcher = new Thread(this::dispatchLoop, "watch-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+    sender.scheduleWithFixedDelay(this::sendProgress, PROGRESS_INTERVAL_IN_MS, PROGRESS_INTERVAL_IN_MS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Open a watch stream. Fails the call with INVALID_ARGUMENT if the request is malformed, and with OUT_OF_RANGE if the
+   * log of a shard was compacted past the revision to start from.
+   */
+  void watch(WatchRequest request, ServerCallStreamObserver<WatchResponse> responseObserver) {
+    if (request.getFromRevisionsCount() != 0 && request.getFromRevisionsCount() != logs.size()) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+              .withDescription("Expected one revision per shard, " + logs.size() + " shards. Got "
+                      + request.getFromRevisionsCount() + ".")
+              .asRuntimeException());
+      return;
+    }
+    if (request.getKey().isEmpty() && !request.getPrefix()) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Key must not be empty.").asRuntimeException());
+      return;
+    }
+    Watcher watcher = new Watcher(request.getKey().toLowerCase(), request.getPrefix(), responseObserver);
+    responseObserver.setOnCancelHandler(() -> unwatch(watcher));
+    responseObserver.setOnReadyHandler(watcher::drain);
+    watchers.add(watcher);
+    ConcurrentHashMap<String, Set<Watcher>> index = watcher.prefix ? prefixWatchers : keyWatchers;
+    index.compute(watcher.key, (k, keyWatches) -> {
+      Set<Watcher> updated = keyWatches == null ? ConcurrentHashMap.newKeySet() : keyWatches;
+      updated.add(watcher);
+      return updated;
+    });
+    if (watcher.prefix) {
+      maxPrefixLength.accumulateAndGet(watcher.key.length(), Math::max);
+    }
+
+    for (int shard = 0; shard < logs.size(); shard++) {
+      int watchShard = shard;
+      long fromRevision = request.getFromRevisionsCount() == 0 ? Long.MAX_VALUE : request.getFromRevisions(shard);
+      boolean started = logs.get(shard).readAppliedSlots(fromRevision,
+              (slot, batch, unchangedData) -> watcher.enqueue(new AppliedSlot(watchShard, slot, batch, unchangedData)),
+              nextSlot -> {
+                watcher.startRevisions[watchShard] = Math.min(fromRevision, nextSlot);
+                watcher.liveFrom.set(watchShard, Math.max(fromRevision == Long.MAX_VALUE ? 0 : fromRevision, nextSlot));
+              });
+      if (!started) {
+        unwatch(watcher);
+        watcher.fail(Status.OUT_OF_RANGE.withDescription(String.format(
+                "Revision %d of shard %d was compacted. The oldest revision available is %d.",
+                fromRevision, shard, logs.get(shard).compactedSlot() + 1)));
+        return;
+      }
+    }
+    ServerLogger.info("Watch of %s %s opened from revisions %s",
+            watcher.prefix ? "prefix" : "key", watcher.key, Arrays.toString(watcher.startRevisions));
+    watcher.registered = true;
+    watcher.scheduleDrain();
+  }
+
+  // Hand an applied slot over to the dispatcher. Called by the ReplicatedLog under its lock, so it never blocks.
+  void applied(int shard, long slot, PaxosBatch batch, BitSet unchangedData) {
+    if (watchers.isEmpty() || batch.getDataCount() == 0) {
+      return;
+    }
+    if (!pendingSlots.offer(new AppliedSlot(shard, slot, batch, unchangedData))) {
+      // The dispatcher doesn't keep up: every watch would miss the slot.
+      for (Watcher watcher : watchers) {
+        watcher.drop(Status.RESOURCE_EXHAUSTED.withDescription("Too many slots pending for the watches"));
+      }
+    }
+  }
+
+  // End the watches of a shard whose data storage was replaced by a snapshot: the changes it covers aren't in the log.
+  void snapshotInstalled(int shard, long slot) {
+    for (Watcher watcher : watchers) {
+      watcher.drop(Status.OUT_OF_RANGE.withDescription(String.format(
+              "Replica installed a snapshot of shard %d up to revision %d from another replica", shard, slot)));
+    }
+  }
+
+  // End every watch stream, when the server shuts down. Their clients resume them on another replica.
+  void close() {
+    for (Watcher watcher : watchers) {
+      unwatch(watcher);
+      sender.execute(() -> watcher.fail(Status.UNAVAILABLE.withDescription("Server shutting down")));
+    }
+  }
+
+  private void unwatch(Watcher watcher) {
+    watcher.closed = true;
+    if (!watchers.remove(watcher)) {
+      return;
+    }
+    ConcurrentHashMap<String, Set<Watcher>> index = watcher.prefix ? prefixWatchers : keyWatchers;
+    index.computeIfPresent(watcher.key, (k, keyWatches) -> {
+      keyWatches.remove(watcher);
+      return keyWatches.isEmpty() ? null : keyWatches;
+    });
+    ServerLogger.info("Watch of %s %s closed", watcher.prefix ? "prefix" : "key", watcher.key);
+  }
+
+  private void dispatchLoop() {
+    while (true) {
+      AppliedSlot appliedSlot;
+      try {
+        appliedSlot = pendingSlots.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      dispatch(appliedSlot);
+    }
+  }
+
+  // Queue an applied slot for the watches of the keys it changed
+  private void dispatch(AppliedSlot appliedSlot) {
+    Set<Watcher> matched = new HashSet<>();
+    List<PaxosDatum> data = appliedSlot.batch.getDataList();
+    for (int i = 0; i < data.size(); i++) {
+      if (appliedSlot.isUnchanged(i)) {
+        continue;
+      }
+      String key = data.get(i).getKey().toLowerCase();
+      addWatchers(keyWatchers.get(key), matched);
+      if (!prefixWatchers.isEmpty()) {
+        int maxLength = Math.min(key.length(), maxPrefixLength.get());
+        for (int length = 0; length <= maxLength; length++) {
+          addWatchers(prefixWatchers.get(key.substring(0, length)), matched);
+        }
+      }
+    }
+    for (Watcher watcher : matched) {
+      // The slots before liveFrom are read from the log, or were applied before the watch started.
+      if (appliedSlot.slot >= watcher.liveFrom.get(appliedSlot.shard)) {
+        watcher.enqueue(appliedSlot);
+      }
+    }
+    dispatchedSlots.set(appliedSlot.shard, appliedSlot.slot + 1);
+  }
+
+  private static void addWatchers(Set<Watcher> watches, Set<Watcher> matched) {
+    if (watches != null) {
+      matched.addAll(watches);
+    }
+  }
+
+  // Report their progress to the watches that sent everything queued, so that their clients resume from recent
+  // revisions even if the watched keys don't change.
+  private void sendProgress() {
+    long[] revisions = new long[logs.size()];
+    for (int shard = 0; shard < revisions.length; shard++) {
+      // Read before checking the queues, as the slots before it are queued first.
+      revisions[shard] = dispatchedSlots.get(shard);
+    }
+    for (Watcher watcher : watchers) {
+      watcher.sendProgress(revisions);
+    }
+  }
+
+  // One watch stream, and the slots queued for it
+  private class Watcher {
+    private final String key;
+    private final boolean prefix;
+    private final ServerCallStreamObserver<WatchResponse> responseObserver;
+    // Per shard, the first revision the watch sends
+    private final long[] startRevisions = new long[logs.size()];
+    // Per shard, the first slot the dispatcher queues for the watch. The earlier ones are read from the log.
+    private final AtomicLongArray liveFrom = new AtomicLongArray(logs.size());
+    // Per shard, the revision up to which the client was told it has every change. Only used by the sender.
+    private final long[] reportedRevisions = new long[logs.size()];
+    // Slots to send, in order within every shard
+    private final Queue<AppliedSlot> queuedSlots = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numQueued = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // Set once the watch reads the live slots of every shard
+    private volatile boolean registered = false;
+    private boolean started = false;
+    private volatile boolean closed = false;
+
+    private Watcher(String key, boolean prefix, ServerCallStreamObserver<WatchResponse> responseObserver) {
+      this.key = key;
+      this.prefix = prefix;
+      this.responseObserver = responseObserver;
+      for (int shard = 0; shard < logs.size(); shard++) {
+        liveFrom.set(shard, Long.MAX_VALUE);
+      }
+    }
+
+    private boolean matches(String changedKey) {
+      return prefix ? changedKey.startsWith(key) : changedKey.equals(key);
+    }
+
+    private void enqueue(AppliedSlot appliedSlot) {
+      if (closed) {
+        return;
+      }
+      if (numQueued.incrementAndGet() > MAX_QUEUED_SLOTS) {
+        drop(Status.RESOURCE_EXHAUSTED.withDescription("Too many changes queued for the watch"));
+        return;
+      }
+      queuedSlots.add(appliedSlot);
+      if (registered) {
+        scheduleDrain();
+      }
+    }
+
+    private void scheduleDrain() {
+      if (drainScheduled.compareAndSet(false, true)) {
+        sender.execute(this::drain);
+      }
+    }
+
+    // Send the revisions the watch starts from, then the events of the queued slots, for as long as the stream is
+    // ready. The rest is sent when it is ready again. A slot is never split across messages.
+    private synchronized void drain() {
+      drainScheduled.set(false);
+      if (closed || !registered || !responseObserver.isReady()) {
+        return;
+      }
+      if (!started) {
+        started = true;
+        System.arraycopy(startRevisions, 0, reportedRevisions, 0, startRevisions.length);
+        responseObserver.onNext(WatchResponse.newBuilder().addAllRevisions(asList(startRevisions)).build());
+      }
+      while (!closed && !queuedSlots.isEmpty() && responseObserver.isReady()) {
+        WatchResponse.Builder message = WatchResponse.newBuilder();
+        AppliedSlot appliedSlot;
+        while (message.getEventsCount() < MAX_MESSAGE_EVENTS && (appliedSlot = queuedSlots.poll()) != null) {
+          numQueued.decrementAndGet();
+          addEvents(appliedSlot, message);
+          reportedRevisions[appliedSlot.shard] = Math.max(reportedRevisions[appliedSlot.shard], appliedSlot.slot + 1);
+        }
+        if (message.getEventsCount() > 0) {
+          EVENTS.add(message.getEventsCount());
+          responseObserver.onNext(message.build());
+        }
+      }
+    }
+
+    // The changes of the slot to the watched keys, as events
+    private void addEvents(AppliedSlot appliedSlot, WatchResponse.Builder message) {
+      List<PaxosDatum> data = appliedSlot.batch.getDataList();
+      for (int i = 0; i < data.size(); i++) {
+        PaxosDatum datum = data.get(i);
+        String changedKey = datum.getKey().toLowerCase();
+        if (appliedSlot.isUnchanged(i) || !matches(changedKey)) {
+          continue;
+        }
+        boolean deleted = datum.getMethod().equalsIgnoreCase("DELETE");
+        message.addEvents(WatchEvent.newBuilder()
+                .setType(deleted ? "DELETE" : "PUT")
+                .setKey(changedKey)
+                .setValue(deleted ? "" : datum.getValue())
+                .setShard(appliedSlot.shard)
+                .setRevision(appliedSlot.slot));
+      }
+    }
+
+    // Tell the client it has every change before the given revisions, if it sent everything queued and they are newer
+    // than what it reported.
+    private synchronized void sendProgress(long[] dispatched) {
+      if (closed || !started || !queuedSlots.isEmpty() || !responseObserver.isReady()) {
+        return;
+      }
+      boolean advanced = false;
+      long[] revisions = new long[dispatched.length];
+      for (int shard = 0; shard < revisions.length; shard++) {
+        revisions[shard] = Math.max(dispatched[shard], liveFrom.get(shard));
+        advanced = advanced || revisions[shard] > reportedRevisions[shard];
+        reportedRevisions[shard] = Math.max(reportedRevisions[shard], revisions[shard]);
+      }
+      if (advanced) {
+        responseObserver.onNext(WatchResponse.newBuilder().addAllRevisions(asList(reportedRevisions)).build());
+      }
+    }
+
+    // Fail the stream of a watch that doesn't keep up, so that its client resumes it. Called from the apply path, so
+    // the index is cleaned up by the sender thread.
+    private void drop(Status status) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      DROPPED_WATCHES.increment();
+      ServerLogger.error("Dropped watch of %s %s: %s", prefix ? "prefix" : "key", key, status.getDescription());
+      sender.execute(() -> {
+        unwatch(this);
+        fail(status);
+      });
+    }
+
+    private synchronized void fail(Status status) {
+      try {
+        responseObserver.onError(status.asRuntimeException());
+      } catch (IllegalStateException e) {
+        // The call was already cancelled.
+      }
+    }
+  }
+
+  private static List<Long> asList(long[] values) {
+    List<Long> list = new ArrayList<>(values.length);
+    for (long value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  // A slot applied by the log of a shard, and the indexes of its writes that changed nothing, or null if none
+  private static class AppliedSlot {
+    private final int shard;
+    private final long slot;
+    private final PaxosBatch batch;
+    private final BitSet unchangedData;
+
+    private AppliedSlot(int shard, long slot, PaxosBatch batch, BitSet unchangedData) {
+      this.shard = shard;
+      this.slot = slot;
+      this.batch = batch;
+      this.unchangedData = unchangedData;
+    }
+
+    private boolean isUnchanged(int index) {
+      return unchangedData != null && unchangedData.get(index);
+    }
+  }
+}
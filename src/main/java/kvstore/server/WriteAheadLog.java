@@ -0,0 +1,281 @@
+package kvstore.server;
+
+import kvstore.WalRecord;
+import kvstore.metrics.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the Acceptor promises, the accepted values and the decided values. Each record is
+ * framed as [length][crc32][protobuf bytes].
+ *
+ * Appending only buffers the record in memory. A caller that needs the record on disk calls sync() with the position
+ * append() returned. Syncs use group commit: one thread writes everything appended so far and runs a single fsync,
+ * while the other callers wait for it. Many concurrent handlers therefore share one fsync.
+ *
+ * The log is split into segment files wal-<segment-id>.log. Taking a snapshot rotates the log to a new segment, so
+ * that the segments before it can be deleted once the snapshot is durable.
+ */
+public class WriteAheadLog {
+  private static final int HEADER_SIZE = 8;
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  // Time a caller of sync() waits until its records are durable, including the wait for the fsync of another thread
+  private static final LatencyHistogram SYNC_LATENCY = Metrics.histogram("kvstore_wal_sync_latency_seconds");
+
+  private final Path dir;
+  private FileChannel channel;
+  private long segmentId;
+  // Records appended but not written to the file yet
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  // Positions count the bytes appended since the log was opened.
+  private long appendedPosition = 0;
+  private long syncedPosition = 0;
+  private boolean syncing = false;
+
+  // Open the last log segment in the directory for appending, creating the directory if necessary
+  public WriteAheadLog(Path dir) {
+    this.dir = dir;
+    try {
+      Files.createDirectories(dir);
+      List<Long> segmentIds = listSegmentIds();
+      segmentId = segmentIds.isEmpty() ? 0 : segmentIds.get(segmentIds.size() - 1);
+      channel = openSegment(segmentId);
+      syncDirectory();
+      channel.position(channel.size());
+    } catch (IOException e) {
+      ServerLogger.error("Failed to open write-ahead log in %s: %s", dir, e.getMessage());
+      System.exit(1);
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private FileChannel openSegment(long id) throws IOException {
+    return FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  // Make the creation of the current segment durable, so that the records synced into it can't be lost with its
+  // directory entry on a crash.
+  private void syncDirectory() throws IOException {
+    try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      dirChannel.force(true);
+    }
+  }
+
+  private Path segmentPath(long id) {
+    return dir.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+  }
+
+  // Ids of the segment files in the directory, in ascending order
+  private List<Long> listSegmentIds() throws IOException {
+    List<Long> ids = new ArrayList<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      files.map(file -> file.getFileName().toString())
+              .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+              .forEach(name -> ids.add(Long.parseLong(
+                      name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+    }
+    ids.sort(null);
+    return ids;
+  }
+
+  /**
+   * Read all the records of all the segments, oldest first. A torn or corrupted record at the end of the last segment,
+   * e.g. left behind by a crash during a write, is cut off. New records are appended after the last valid one.
+   */
+  public synchronized void replay(Consumer<WalRecord> consumer) {
+    int numRecords = 0;
+    try {
+      for (long id : listSegmentIds()) {
+        FileChannel segment = id == segmentId ? channel : openSegment(id);
+        long position = 0;
+        long size = segment.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+          header.clear();
+          segment.read(header, position);
+          header.flip();
+          int length = header.getInt();
+          int checksum = header.getInt();
+          if (length < 0 || position + HEADER_SIZE + length > size) {
+            break;
+          }
+          ByteBuffer body = ByteBuffer.allocate(length);
+          segment.read(body, position + HEADER_SIZE);
+          if (checksum != checksum(body.array())) {
+            break;
+          }
+          consumer.accept(WalRecord.parseFrom(body.array()));
+          position += HEADER_SIZE + length;
+          numRecords++;
+        }
+        if (position < size) {
+          ServerLogger.error("Truncating write-ahead log %s at corrupted record at offset %d", segmentPath(id), position);
+          segment.truncate(position);
+        }
+        if (id == segmentId) {
+          channel.position(position);
+        } else {
+          segment.close();
+        }
+      }
+    } catch (IOException e) {
+      ServerLogger.error("Failed to replay write-ahead log in %s: %s", dir, e.getMessage());
+      System.exit(1);
+    }
+    ServerLogger.info("Replayed %d records from write-ahead log in %s", numRecords, dir);
+  }
+
+  // Buffer one record. Returns the position to pass to sync() to make the record durable.
+  public synchronized long append(WalRecord record) {
+    byte[] body = record.toByteArray();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(body.length).putInt(checksum(body));
+    pending.write(header.array(), 0, HEADER_SIZE);
+    pending.write(body, 0, body.length);
+    appendedPosition += HEADER_SIZE + body.length;
+    return appendedPosition;
+  }
+
+  /**
+   * Block until every record up to the given position is written and fsync-ed. The callers reply to other replicas as
+   * if the records were durable once this returns, so an interrupt doesn't cut the wait short: it is restored when the
+   * records are synced.
+   */
+  public void sync(long position) {
+    long startNanos = System.nanoTime();
+    // Cleared while syncing, since the FileChannel is closed if the thread writing to it is interrupted.
+    boolean interrupted = Thread.interrupted();
+    try {
+      interrupted |= syncTo(position);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    Metrics.recordSince(SYNC_LATENCY, startNanos);
+  }
+
+  // Returns whether the thread was interrupted while waiting for another thread's fsync.
+  private boolean syncTo(long position) {
+    boolean interrupted = false;
+    byte[] toWrite;
+    long targetPosition;
+    synchronized (this) {
+      while (syncedPosition < position && syncing) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (syncedPosition >= position) {
+        // Another thread's fsync covered this position.
+        return interrupted;
+      }
+      // Become the thread that syncs, on behalf of everyone who appended so far.
+      syncing = true;
+      toWrite = pending.toByteArray();
+      pending.reset();
+      targetPosition = appendedPosition;
+    }
+
+    write(toWrite);
+
+    synchronized (this) {
+      syncing = false;
+      syncedPosition = targetPosition;
+      notifyAll();
+    }
+    return interrupted;
+  }
+
+  // Write the bytes to the current segment and fsync it. Only one thread writes at a time.
+  private void write(byte[] bytes) {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      // The replica can't keep its promises anymore. Crash, as the Paxos fault model expects.
+      ServerLogger.error("Failed to write write-ahead log in %s: %s", dir, e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Close the current segment, after writing out everything appended so far, and continue in a new segment. Returns the
+   * id of the new segment. The caller must append whatever state the new segment needs to be replayed on its own. Like
+   * sync(), an interrupt doesn't cut the rotation short, and is restored once it is done.
+   */
+  public synchronized long rotate() {
+    boolean interrupted = Thread.interrupted();
+    while (syncing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    try {
+      return rotateLocked();
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private long rotateLocked() {
+    write(pending.toByteArray());
+    pending.reset();
+    syncedPosition = appendedPosition;
+    notifyAll();
+    try {
+      channel.close();
+      segmentId++;
+      channel = openSegment(segmentId);
+      syncDirectory();
+    } catch (IOException e) {
+      ServerLogger.error("Failed to rotate write-ahead log in %s: %s", dir, e.getMessage());
+      System.exit(1);
+    }
+    return segmentId;
+  }
+
+  // Id of the segment records are currently appended to
+  public synchronized long currentSegmentId() {
+    return segmentId;
+  }
+
+  // Delete the segments older than the given one. Their records must be covered by a durable snapshot.
+  public void deleteSegmentsBefore(long id) {
+    try {
+      for (long oldId : listSegmentIds()) {
+        if (oldId < id) {
+          Files.deleteIfExists(segmentPath(oldId));
+        }
+      }
+    } catch (IOException e) {
+      ServerLogger.error("Failed to delete old write-ahead log segments in %s: %s", dir, e.getMessage());
+    }
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+}
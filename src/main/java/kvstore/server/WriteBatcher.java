@@ -0,0 +1,179 @@
+package kvstore.server;
+
+import kvstore.PaxosBatch;
+import kvstore.PaxosDatum;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batching stage in front of the Proposer. Collects the PUT and DELETE requests arriving concurrently, and proposes
+ * them together as one PaxosBatch, so that they share one Paxos instance. A batch is flushed once it holds
+ * MAX_BATCH_SIZE writes, or MAX_BATCH_DELAY_IN_MS after its first write arrived. While all the in-flight slots are
+ * busy, the writes keep accumulating into the next batch. The writes of one multi-key request are never split across
+ * batches, so that they are replicated as one proposal. The writes of keys that the replica group fences off while
+ * they are in flight are rejected once their slot is applied, see HandOff.
+ */
+public class WriteBatcher {
+  private static final int MAX_BATCH_SIZE = 256;
+  private static final long MAX_BATCH_DELAY_IN_MS = 2;
+  private static final int MAX_IN_FLIGHT_BATCHES = 8;
+  // Writes per batch on average, from the ratio of the two counters
+  private static final LongAdder BATCHES = Metrics.counter("kvstore_write_batches_total");
+  private static final LongAdder BATCHED_WRITES = Metrics.counter("kvstore_batched_writes_total");
+
+  private final Proposer proposer;
+  private final ReplicatedLog replicatedLog;
+  private final LinkedBlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+  private final Semaphore inFlightBatches = new Semaphore(MAX_IN_FLIGHT_BATCHES);
+  private final ExecutorService proposeExecutor = Executors.newFixedThreadPool(MAX_IN_FLIGHT_BATCHES, runnable -> {
+    Thread thread = new Thread(runnable, "paxos-proposer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // One write request, of one or more keys, waiting for its batch to be decided and applied. Completes with the slot.
+  private static class PendingWrite {
+    private final List<PaxosDatum> data;
+    private final CompletableFuture<Long> applied = new CompletableFuture<>();
+    // Indexes of the data rejected by the hand-off fence, or null if there are none. Set before applied completes.
+    private BitSet rejectedData;
+
+    private PendingWrite(List<PaxosDatum> data) {
+      this.data = data;
+    }
+  }
+
+  public WriteBatcher(Proposer proposer, ReplicatedLog replicatedLog) {
+    this.proposer = proposer;
+    this.replicatedLog = replicatedLog;
+    Thread flusher = new Thread(this::flushLoop, "write-batcher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  // Queue one write. Returns a future that completes once the write has been decided and applied locally, or fails
+  // with FAILED_PRECONDITION if the fence of the key rejected it.
+  public CompletableFuture<Void> submit(PaxosDatum datum) {
+    return submitAll(List.of(datum));
+  }
+
+  // Queue the writes of a multi-key request, to be proposed in the same batch. Returns a future that completes once
+  // they have been decided and applied locally, or fails with FAILED_PRECONDITION if the fence rejected any of them.
+  public CompletableFuture<Void> submitAll(List<PaxosDatum> data) {
+    return submitEach(data).thenAccept(rejectedData -> {
+      if (rejectedData != null) {
+        throw replicatedLog.handOff().rejected(data.get(rejectedData.nextSetBit(0)).getKey());
+      }
+    });
+  }
+
+  // Same as submitAll(), but completes with the indexes of the writes the fence rejected, or null if there are none.
+  public CompletableFuture<BitSet> submitEach(List<PaxosDatum> data) {
+    if (data.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    PendingWrite write = new PendingWrite(data);
+    pendingWrites.add(write);
+    return write.applied.thenApply(slot -> write.rejectedData);
+  }
+
+  // Queue a batch another replica forwarded, as the leader. Its writes stay in order, in the same batch. Returns a
+  // future that completes with the slot they were decided in, once it is applied locally.
+  public CompletableFuture<Long> submitBatch(PaxosBatch batch) {
+    PendingWrite write = new PendingWrite(batch.getDataList());
+    pendingWrites.add(write);
+    return write.applied;
+  }
+
+  // Runs on the flusher thread. Cuts the queued writes into batches and hands them to the proposer threads.
+  private void flushLoop() {
+    try {
+      while (true) {
+        inFlightBatches.acquire();
+        List<PendingWrite> batch = new ArrayList<>();
+        PendingWrite first = pendingWrites.take();
+        batch.add(first);
+        // A multi-key request may take the batch past MAX_BATCH_SIZE on its own.
+        int batchSize = first.data.size();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY_IN_MS);
+        while (batchSize < MAX_BATCH_SIZE) {
+          long remaining = deadline - System.nanoTime();
+          PendingWrite next = remaining > 0 ? pendingWrites.poll(remaining, TimeUnit.NANOSECONDS) : pendingWrites.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          batchSize += next.data.size();
+        }
+        proposeExecutor.execute(() -> propose(batch));
+      }
+    } catch (InterruptedException e) {
+      ServerLogger.error("Write batcher interrupted.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Runs on a proposer thread. Commits the batch, then completes every write in it once the slot is applied.
+  private void propose(List<PendingWrite> batch) {
+    try {
+      PaxosBatch.Builder batchBuilder = PaxosBatch.newBuilder().setId(ThreadLocalRandom.current().nextLong());
+      for (PendingWrite write : batch) {
+        batchBuilder.addAllData(write.data);
+      }
+      ServerLogger.debug("Propose batch of %d writes", batchBuilder.getDataCount());
+      BATCHES.increment();
+      BATCHED_WRITES.add(batchBuilder.getDataCount());
+      PaxosBatch paxosBatch = batchBuilder.build();
+      long slot = proposer.retriablePaxosPropose(paxosBatch);
+      while (slot == Proposer.FORWARD_TO_LEADER) {
+        // Another replica leads, and the batch isn't chosen in any slot. Let the leader commit it, or propose it again
+        // if the batch never reached a leader.
+        slot = proposer.forwardBatch(paxosBatch);
+        if (slot == Proposer.FORWARD_TO_LEADER) {
+          slot = proposer.retriablePaxosPropose(paxosBatch);
+        }
+      }
+      // Whoever proposed it, complete the writes once the slot is applied here, so that the clients read their writes.
+      long decidedSlot = slot;
+      replicatedLog.whenApplied(decidedSlot).whenComplete((ignored, e) -> {
+        Throwable error = e;
+        BitSet rejectedData = null;
+        if (error == null) {
+          try {
+            rejectedData = replicatedLog.rejectedData(decidedSlot);
+          } catch (IllegalStateException compacted) {
+            error = compacted;
+          }
+        }
+        int offset = 0;
+        for (PendingWrite write : batch) {
+          if (error != null) {
+            write.applied.completeExceptionally(error);
+            continue;
+          }
+          if (rejectedData != null && rejectedData.nextSetBit(offset) != -1
+                  && rejectedData.nextSetBit(offset) < offset + write.data.size()) {
+            write.rejectedData = rejectedData.get(offset, offset + write.data.size());
+          }
+          offset += write.data.size();
+          write.applied.complete(decidedSlot);
+        }
+      });
+    } catch (RuntimeException e) {
+      ServerLogger.error("Failed to propose batch: %s", e.getMessage());
+      batch.forEach(write -> write.applied.completeExceptionally(e));
+    } finally {
+      inFlightBatches.release();
+    }
+  }
+}